@@ -4,6 +4,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static java.util.regex.Pattern.CASE_INSENSITIVE;
+import static java.util.regex.Pattern.DOTALL;
 import static java.util.regex.Pattern.compile;
 
 /**
@@ -19,6 +20,9 @@ public class QueryValidator {
     private static final String JSON_ELEMENT = "[\\w\\d._\\-$]+";
     private static final String JSON_VALUE = "((null)|(\".+\")|('.+')|(true)|(false)|(\\d+)|([\\d]*[.]?[\\d]+))";
 
+    private static final String OPTION = "[\\w]+\\s*=\\s*" + JSON_ELEMENT + "(\\s*\\|\\s*" + JSON_ELEMENT + ")*";
+    private static final String OPTIONS = OPTION + "(\\s*,\\s*" + OPTION + ")*";
+
     private static final String WHERE = "((" + JSON_ELEMENT + "\\s*(=|!=|<|<=|>|>=)\\s*" + JSON_VALUE + ")|(" + JSON_ELEMENT + "\\s+(LIKE)\\s+'([^']*)')|(" + JSON_ELEMENT + "\\s+(LIKE)\\s+\"(([^\"]|(\\\\\"))*)\"))+";
     private static final String WHERE_COMPOSITED = "(" + WHERE + ")(\\s+(AND|OR)\\s+(" + WHERE + "))*";
 
@@ -27,13 +31,15 @@ public class QueryValidator {
     static final Pattern UPDATE = compile("UPDATE\\s+(" + COLLECTION + ")\\s+SET\\s+((" + JSON_ELEMENT + "\\s*=\\s*" + JSON_VALUE + ")(\\s*,\\s*" + JSON_ELEMENT + "\\s*=\\s*" + JSON_VALUE + ")*)", CASE_INSENSITIVE);
     static final Pattern UPDATE_WHERE = compile("UPDATE\\s+(" + COLLECTION + ")\\s+SET\\s+((" + JSON_ELEMENT + "\\s*=\\s*" + JSON_VALUE + ")(\\s*,\\s*" + JSON_ELEMENT + "\\s*=\\s*" + JSON_VALUE + ")*)\\s+WHERE\\s+(" + WHERE_COMPOSITED + ")", CASE_INSENSITIVE);
     static final Pattern DELETE = compile("DELETE\\s+FROM\\s+(" + COLLECTION + ")(\\s+WHERE\\s+(" + WHERE_COMPOSITED + "))?", CASE_INSENSITIVE);
-    static final Pattern CREATE = compile("CREATE\\s+(?!.*INDEX)(" + COLLECTION + ")", CASE_INSENSITIVE);
+    static final Pattern CREATE = compile("CREATE\\s+(?!.*INDEX)(" + COLLECTION + ")(\\s+WITH\\s+(" + OPTIONS + "))?", CASE_INSENSITIVE);
     static final Pattern DROP = compile("DROP\\s+((?!.*INDEX)" + COLLECTION + ")", CASE_INSENSITIVE);
     static final Pattern ADD = compile("ALTER\\s+(" + COLLECTION + ")\\s+ADD((\\s+((?!.WHERE)(" + JSON_ELEMENT + "))+)\\s*)(\\s+WHERE\\s+(" + WHERE_COMPOSITED + "))?", CASE_INSENSITIVE);
     static final Pattern REMOVE = compile("ALTER\\s+(" + COLLECTION + ")\\s+REMOVE((\\s+((?!.WHERE)(" + JSON_ELEMENT + "))+)\\s*)(\\s+WHERE\\s+(" + WHERE_COMPOSITED + "))?", CASE_INSENSITIVE);
-    static final Pattern CREATE_INDEX = compile("CREATE\\s+INDEX\\s+(" + JSON_ELEMENT + ")\\s+ON\\s+(" + COLLECTION + ")", CASE_INSENSITIVE);
+    static final Pattern CREATE_INDEX = compile("CREATE\\s+INDEX\\s+(" + JSON_ELEMENT + ")\\s+ON\\s+(" + COLLECTION + ")(\\s+USING\\s+(HASH|BTREE))?", CASE_INSENSITIVE);
     static final Pattern DROP_INDEX = compile("DROP\\s+INDEX\\s+(" + JSON_ELEMENT + ")\\s+ON\\s+(" + COLLECTION + ")", CASE_INSENSITIVE);
 
+    static final Pattern DURABILITY = compile("(.*?)\\s+WITH\\s+DURABILITY\\s+(NONE|BATCHED|SYNC)", CASE_INSENSITIVE | DOTALL);
+
     /**
      * Validates a query.
      *
@@ -71,6 +77,10 @@ public class QueryValidator {
         if (ql.endsWith(";")) {
             ql = ql.substring(0, ql.length() - 1);
         }
+        Matcher matcher = DURABILITY.matcher(ql);
+        if (matcher.matches()) {
+            ql = matcher.group(1);
+        }
         return ql;
     }
 
@@ -139,6 +139,8 @@ public class QueryValidatorTest {
         assertThat(QueryValidator.validate("CREATE INDEX a_2.a_3 ON a_2.a_3"), is(false));
 
         assertThat(QueryValidator.validate("CREATE INDEX a_2.a_3 ON a_2"), is(true));
+        assertThat(QueryValidator.validate("CREATE INDEX a_2.a_3 ON a_2 USING BTREE"), is(true));
+        assertThat(QueryValidator.validate("CREATE INDEX a_2.a_3 ON a_2 USING TREE"), is(false));
     }
 
     @Test
@@ -161,6 +163,14 @@ public class QueryValidatorTest {
 
         assertThat(QueryValidator.validate("CREATE a1"), is(true));
         assertThat(QueryValidator.validate("CREATE a_2"), is(true));
+
+        assertThat(QueryValidator.validate("CREATE a_2 WITH"), is(false));
+        assertThat(QueryValidator.validate("CREATE a_2 WITH compression"), is(false));
+        assertThat(QueryValidator.validate("CREATE a_2 WITH bloom=a|"), is(false));
+
+        assertThat(QueryValidator.validate("CREATE a_2 WITH compression = deflate, encoding=binary"), is(true));
+        assertThat(QueryValidator.validate("CREATE orders WITH bloom=order.user|order.product"), is(true));
+        assertThat(QueryValidator.validate("CREATE orders WITH bloom = order.user | order.product, padding=10"), is(true));
     }
 
     @Test
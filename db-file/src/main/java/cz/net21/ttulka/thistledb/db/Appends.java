@@ -0,0 +1,166 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Reservations of ranges at the end of the active segment for concurrent appenders.
+ * <p>
+ * An appender reserves a range atomically, writes its records into the range by positional writes without any lock
+ * and completes the range. Ranges may complete in any order, the published end moves only over a contiguous prefix
+ * of completed ranges. Readers see the collection up to the published end, so they never see a range still being written.
+ * <p>
+ * Positions are positions in the collection (@see Segments), a reservation never crosses a segment.
+ *
+ * @author ttulka
+ */
+final class Appends {
+
+    private static final long CLOSED = -1;
+
+    // the end of the reserved ranges, the next range starts here
+    private long reserved = CLOSED;
+
+    // the end of the contiguous completed ranges
+    private long published = CLOSED;
+
+    // completed ranges behind the published end by their starts
+    private final NavigableMap<Long, Long> completed = new TreeMap<>();
+
+    /**
+     * @return true if the reservations were opened at an end of the collection
+     */
+    synchronized boolean isOpen() {
+        return reserved != CLOSED;
+    }
+
+    /**
+     * Opens the reservations at the end of the collection.
+     *
+     * @param end the end position of the collection
+     */
+    synchronized void open(long end) {
+        reserved = end;
+        published = end;
+        completed.clear();
+    }
+
+    /**
+     * Closes the reservations, the end of the collection must be opened again. Must not be called while
+     * a reserved range is being written.
+     */
+    synchronized void close() {
+        reserved = CLOSED;
+        published = CLOSED;
+        completed.clear();
+    }
+
+    /**
+     * @return the end of the reserved ranges
+     */
+    synchronized long reserved() {
+        return reserved;
+    }
+
+    /**
+     * @return the end of the collection visible to readers
+     */
+    synchronized long published() {
+        return published;
+    }
+
+    /**
+     * @return true if all the reserved ranges are completed
+     */
+    synchronized boolean isPublished() {
+        return published == reserved;
+    }
+
+    /**
+     * Reserves a range at the end of the reserved ranges.
+     *
+     * @param size  the size of the range in bytes
+     * @param count the count of records in the range
+     * @return the range
+     */
+    synchronized Range reserve(long size, int count) {
+        if (!isOpen()) {
+            throw new IllegalStateException("Appends are not open.");
+        }
+        Range range = new Range(reserved, reserved + size, count);
+        reserved = range.end;
+        return range;
+    }
+
+    /**
+     * Completes the written range. The published end moves when all the ranges before are completed too.
+     */
+    synchronized void complete(Range range) {
+        if (range.start < published || !isOpen()) {
+            return;     // closed meanwhile
+        }
+        completed.put(range.start, range.end);
+
+        Map.Entry<Long, Long> next;
+        while ((next = completed.firstEntry()) != null && next.getKey() == published) {
+            published = next.getValue();
+            completed.pollFirstEntry();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits until all the reserved ranges are completed.
+     */
+    synchronized void awaitPublished() throws InterruptedException {
+        while (published != reserved) {
+            wait();
+        }
+    }
+
+    /**
+     * Moves the reservations to a new segment. All the reserved ranges must be completed.
+     *
+     * @param position the start position of the new segment
+     */
+    synchronized void moveTo(long position) {
+        if (published != reserved) {
+            throw new IllegalStateException("Reserved ranges not completed.");
+        }
+        reserved = position;
+        published = position;
+        notifyAll();
+    }
+
+    /**
+     * A reserved range of positions.
+     */
+    static final class Range {
+
+        private final long start;
+        private final long end;
+        private final int count;
+
+        Range(long start, long end, int count) {
+            this.start = start;
+            this.end = end;
+            this.count = count;
+        }
+
+        long start() {
+            return start;
+        }
+
+        long end() {
+            return end;
+        }
+
+        /**
+         * @return the count of records in the range
+         */
+        int count() {
+            return count;
+        }
+    }
+}
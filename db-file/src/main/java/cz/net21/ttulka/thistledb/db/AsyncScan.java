@@ -0,0 +1,254 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import lombok.extern.apachecommons.CommonsLog;
+import reactor.core.publisher.FluxSink;
+
+/**
+ * Scan of chunks of a collection with asynchronous reads, the results are emitted into a reactive sink.
+ * <p>
+ * Chunks are read ahead via asynchronous file channels, at most {@link #READ_AHEAD} chunks are read or waiting
+ * for emitting at once. Records are parsed from the read bytes and emitted only as requested by the downstream.
+ * All the work runs on a small I/O pool shared by all the scans, threads of the subscriber never wait for the disk.
+ * <p>
+ * When ordered, the results come in the order of the chunks, otherwise as the chunks are read.
+ * <p>
+ * The chunks read one snapshot of the collection, the snapshot is released when the scan is finished or cancelled.
+ *
+ * @author ttulka
+ */
+@CommonsLog
+final class AsyncScan {
+
+    static final int READ_AHEAD = 4;
+
+    static final int IO_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+    private static final ExecutorService IO = Executors.newFixedThreadPool(IO_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "thistledb-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Iterator<Chunk> chunks;
+    private final boolean ordered;
+    private final FluxSink<String> sink;
+    private final Runnable onFinished;
+
+    // chunks being read in the order of submitting
+    private final Deque<Chunk> inFlight = new ArrayDeque<>();
+
+    // open channels by paths
+    private final Map<Path, AsynchronousFileChannel> channels = new HashMap<>();
+
+    // drains running or requested, only one thread drains at once
+    private final AtomicInteger drains = new AtomicInteger();
+
+    private Iterator<String> current = Collections.emptyIterator();
+
+    private volatile boolean cancelled = false;
+    private volatile Throwable failure = null;
+    private boolean done = false;
+
+    /**
+     * @param chunks     chunks of the collection to scan
+     * @param ordered    true if the results should come in the order of the chunks
+     * @param sink       the sink to emit the results into
+     * @param onFinished called once when the scan is finished, failed or cancelled
+     */
+    AsyncScan(List<Chunk> chunks, boolean ordered, FluxSink<String> sink, Runnable onFinished) {
+        this.chunks = chunks.iterator();
+        this.ordered = ordered;
+        this.sink = sink;
+        this.onFinished = onFinished;
+    }
+
+    /**
+     * Starts the scan, the results are emitted as requested by the downstream.
+     */
+    void start() {
+        sink.onRequest(n -> drain());
+        sink.onDispose(this::cancel);
+        drain();
+    }
+
+    private void cancel() {
+        cancelled = true;
+        drain();
+    }
+
+    private void drain() {
+        if (drains.getAndIncrement() == 0) {
+            IO.execute(this::drainLoop);
+        }
+    }
+
+    private void drainLoop() {
+        int missed = 1;
+        do {
+            try {
+                if (!done) {
+                    emit();
+                }
+            } catch (Throwable e) {
+                failure = e;
+            }
+            if (!done && (cancelled || failure != null)) {
+                finish();
+                if (failure != null && !cancelled) {
+                    sink.error(failure);
+                }
+            }
+            missed = drains.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void emit() throws IOException {
+        while (!cancelled && failure == null) {
+            submitChunks();
+            while (sink.requestedFromDownstream() > 0 && current.hasNext()) {
+                if (cancelled) {
+                    return;
+                }
+                sink.next(current.next());
+            }
+            if (current.hasNext()) {
+                return;     // waiting for a demand
+            }
+            if (inFlight.isEmpty()) {
+                finish();
+                sink.complete();
+                return;
+            }
+            Chunk chunk = ordered ? inFlight.peekFirst() : readChunk();
+            if (chunk == null || !chunk.read) {
+                return;     // waiting for a read
+            }
+            inFlight.remove(chunk);
+            current = chunk.select();
+        }
+    }
+
+    private Chunk readChunk() {
+        for (Chunk chunk : inFlight) {
+            if (chunk.read) {
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    private void submitChunks() throws IOException {
+        while (inFlight.size() < READ_AHEAD && chunks.hasNext()) {
+            Chunk chunk = chunks.next();
+            inFlight.addLast(chunk);
+            if (chunk.path != null) {
+                read(chunk, channel(chunk.path));
+            } else {
+                chunk.read = true;
+            }
+        }
+    }
+
+    private AsynchronousFileChannel channel(Path path) throws IOException {
+        AsynchronousFileChannel channel = channels.get(path);
+        if (channel == null) {
+            channel = AsynchronousFileChannel.open(path, Collections.singleton(StandardOpenOption.READ), IO);
+            channels.put(path, channel);
+        }
+        return channel;
+    }
+
+    private void read(Chunk chunk, AsynchronousFileChannel channel) {
+        chunk.bytes = ByteBuffer.allocate((int) (chunk.to - chunk.from));
+        channel.read(chunk.bytes, chunk.from, chunk, new CompletionHandler<Integer, Chunk>() {
+            @Override
+            public void completed(Integer read, Chunk chunk) {
+                if (read > 0 && chunk.bytes.hasRemaining() && !cancelled) {
+                    channel.read(chunk.bytes, chunk.from + chunk.bytes.position(), chunk, this);
+                    return;
+                }
+                chunk.bytes.flip();
+                chunk.read = true;
+                drain();
+            }
+
+            @Override
+            public void failed(Throwable e, Chunk chunk) {
+                failure = new DatabaseException("Cannot read a collection: " + e.getMessage(), e);
+                drain();
+            }
+        });
+    }
+
+    private void finish() {
+        done = true;
+        if (current instanceof AutoCloseable) {
+            close((AutoCloseable) current);
+        }
+        current = Collections.emptyIterator();
+        inFlight.clear();
+        channels.values().forEach(this::close);
+        channels.clear();
+        onFinished.run();
+    }
+
+    private void close(AutoCloseable closeable) {
+        try {
+            closeable.close();
+
+        } catch (Exception e) {
+            log.warn("Cannot close a scan.", e);
+        }
+    }
+
+    /**
+     * A chunk of the collection aligned to records.
+     */
+    static final class Chunk {
+
+        private final Path path;
+        private final long from;
+        private final long to;
+        private final Function<ByteBuffer, Iterator<String>> select;
+
+        private ByteBuffer bytes;
+        private volatile boolean read = false;
+
+        /**
+         * @param path   the segment file to read the chunk from, or null when the chunk is not read ahead
+         * @param from   the offset of the first record in the file
+         * @param to     the offset behind the last record in the file
+         * @param select creates the results of the chunk from the read bytes, or from null when not read ahead
+         */
+        Chunk(Path path, long from, long to, Function<ByteBuffer, Iterator<String>> select) {
+            this.path = path;
+            this.from = from;
+            this.to = to;
+            this.select = select;
+        }
+
+        private Iterator<String> select() {
+            Iterator<String> results = select.apply(bytes);
+            bytes = null;
+            return results;
+        }
+    }
+}
@@ -0,0 +1,748 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.function.Predicate;
+
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * Index of values in a B+tree of pages in one file.
+ * <p>
+ * Entries are pairs of a typed key and a position of a record, sorted by the key and then by the position.
+ * The key of a number is its sortable double bits, numbers equal as doubles have the same key. The key of another value
+ * is its UTF-16 units, each encoded as in UTF-8, so the keys are sorted as the strings are compared. The key is truncated
+ * to {@link #MAX_KEY_SIZE}, so positions of long values can be false positives. Numbers are sorted before strings.
+ * <p>
+ * Values in a range or with a prefix are found by scanning the leaves from the lower bound, the bounds are inclusive
+ * and compared with keys truncated to the length of the bound, so truncated keys are found too.
+ * <p>
+ * Leaves hold the entries and are linked in the order of keys, inner nodes hold the first entries of their children
+ * but the first one. A node is split by bytes when full, entries are deleted from the leaves without rebalancing.
+ * <p>
+ * Decoded pages are cached in a pool of {@link #POOL_PAGES} pages, changed pages are written when evicted from
+ * the pool or by the sync. The first change after the sync marks the file unclean, a tree not synced after
+ * its last change could miss pages and must be rebuilt (@see #isClean(Path)).
+ * <p>
+ * File format: the page `0` is the header `[int magic][int version][int root][int pages][long size][byte clean]`.
+ * A node page is `[byte leaf][short count][int next leaf]` followed by `count` entries `[short key length][key][long position]`,
+ * in an inner node the first child `[int page]` precedes the entries and every entry is followed by its right child.
+ *
+ * @author ttulka
+ */
+final class BTreeIndex implements AutoCloseable {
+
+    static final int PAGE_SIZE = 4096;
+    static final int POOL_PAGES = 256;
+    static final int MAX_KEY_SIZE = 256;
+    // maximal count of ASCII case variants of a prefix to scan
+    static final int MAX_CASE_VARIANTS = 16;
+
+    private static final int MAGIC = 0x54484254;
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 25;
+    private static final int NODE_HEADER_SIZE = 7;
+    private static final int CHILD_SIZE = 4;
+
+    // the page 0 is the header, so it's never a next leaf
+    private static final int NONE = 0;
+
+    private static final byte NUMBER = 1;
+    private static final byte STRING = 2;
+
+    // bounds of all the numbers and all the strings
+    private static final byte[] NUMBERS = {NUMBER};
+    private static final byte[] STRINGS = {STRING};
+
+    private static final Comparator<byte[]> KEYS = UnsignedBytes.lexicographicalComparator();
+
+    private final Path path;
+    private final FileChannel channel;
+
+    // decoded pages in the order of access
+    private final Map<Integer, Node> pool = new LinkedHashMap<>(POOL_PAGES, 0.75f, true);
+
+    private int root;
+    private int pages;
+    private long size;
+    private boolean clean;
+
+    /**
+     * Opens the index file or creates an empty one when not existing.
+     *
+     * @throws IOException if the file is not a valid index
+     */
+    public BTreeIndex(Path path) throws IOException {
+        this.path = path;
+        if (!Files.exists(path)) {
+            create(path);
+        }
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            readHeader();
+
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an empty index file, an existing file is replaced.
+     */
+    static void create(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(1).putInt(2).putLong(0).put((byte) 1);
+            header.rewind();
+            write(channel, header, 0);
+            write(channel, encode(new Node(1, true)), PAGE_SIZE);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @return true if the file is a valid index synced after its last change
+     */
+    static boolean isClean(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    return false;
+                }
+            }
+            return header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.get(24) == 1;
+
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        ByteBuffer header = read(0);
+        root = header.getInt(8);
+        pages = header.getInt(12);
+        size = header.getLong(16);
+        clean = header.get(24) == 1;
+
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+            || pages < 2 || root < 1 || root >= pages || size < 0 || channel.size() < (long) pages * PAGE_SIZE) {
+            throw new IOException("Invalid B+tree index: " + path);
+        }
+        if (!clean) {
+            // pages written after the last sync are not counted in the header
+            pages = (int) Math.max(pages, channel.size() / PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Keys of values equal by a condition are equal: numbers are equal as doubles, other values as strings.
+     */
+    static byte[] key(String value) {
+        try {
+            return numberKey(Double.valueOf(value));
+
+        } catch (NumberFormatException e) {
+            return stringKey(value);
+        }
+    }
+
+    private static byte[] numberKey(double number) {
+        // -0.0 equals 0.0
+        long bits = Double.doubleToLongBits(number == 0 ? 0.0 : number);
+        bits ^= bits < 0 ? -1L : Long.MIN_VALUE;
+        return ByteBuffer.allocate(1 + Long.BYTES).put(NUMBER).putLong(bits).array();
+    }
+
+    private static byte[] stringKey(String value) {
+        // a unit takes at least one byte
+        int units = Math.min(value.length(), MAX_KEY_SIZE);
+        ByteBuffer key = ByteBuffer.allocate(1 + units * 3);
+        key.put(STRING);
+        for (int i = 0; i < units; i++) {
+            char unit = value.charAt(i);
+            if (unit < 0x80) {
+                key.put((byte) unit);
+            } else if (unit < 0x800) {
+                key.put((byte) (0xC0 | unit >> 6)).put((byte) (0x80 | unit & 0x3F));
+            } else {
+                key.put((byte) (0xE0 | unit >> 12)).put((byte) (0x80 | unit >> 6 & 0x3F)).put((byte) (0x80 | unit & 0x3F));
+            }
+        }
+        return Arrays.copyOf(key.array(), Math.min(key.position(), MAX_KEY_SIZE));
+    }
+
+    private static boolean isNumber(String value) {
+        if (value == null) {
+            return false;
+        }
+        try {
+            Double.valueOf(value);
+            return true;
+
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the positions of records possibly having the value
+     */
+    synchronized Positions positions(String value) throws IOException {
+        byte[] key = key(value);
+        Positions.Builder positions = new Positions.Builder();
+        try {
+            scan(new Entry(key, Long.MIN_VALUE), entry -> {
+                if (!Arrays.equals(entry.key, key)) {
+                    return false;
+                }
+                positions.add(entry.position);
+                return true;
+            });
+        } finally {
+            evict();
+        }
+        return positions.build();
+    }
+
+    /**
+     * Finds positions of values in a range as compared by conditions: as numbers when both values are numbers,
+     * otherwise as strings. Numbers compared with a string bound are compared as strings, so all the numbers are found.
+     *
+     * @param from the lowest value, or null for no lower bound
+     * @param to   the highest value, or null for no upper bound
+     * @return the positions of records possibly having a value in the range
+     */
+    synchronized Positions range(String from, String to) throws IOException {
+        Positions.Builder positions = new Positions.Builder();
+        try {
+            scan(isNumber(from) ? key(from) : NUMBERS, isNumber(to) ? key(to) : NUMBERS, positions);
+            scan(from != null ? stringKey(from) : STRINGS, to != null ? stringKey(to) : STRINGS, positions);
+        } finally {
+            evict();
+        }
+        return positions.build();
+    }
+
+    /**
+     * Finds positions of values starting with the prefix, the case of ASCII letters is ignored. At most
+     * {@link #MAX_CASE_VARIANTS} variants of the prefix are scanned, a longer prefix is shortened. All the numbers
+     * are found when the prefix could start a number.
+     *
+     * @return the positions of records possibly having a value with the prefix
+     */
+    synchronized Positions prefix(String prefix) throws IOException {
+        Positions.Builder positions = new Positions.Builder();
+        try {
+            if (prefix.isEmpty() || prefix.charAt(0) <= ' ' || "0123456789+-.IiNn".indexOf(prefix.charAt(0)) >= 0) {
+                scan(NUMBERS, NUMBERS, positions);
+            }
+            for (String variant : caseVariants(prefix)) {
+                byte[] key = stringKey(variant);
+                scan(key, key, positions);
+            }
+        } finally {
+            evict();
+        }
+        return positions.build();
+    }
+
+    /**
+     * @return the variants of the prefix with ASCII letters in both cases in the sorted order
+     */
+    private static List<String> caseVariants(String prefix) {
+        List<String> variants = Collections.singletonList("");
+        for (char ch : prefix.toCharArray()) {
+            boolean letter = ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z';
+            if (letter && variants.size() * 2 > MAX_CASE_VARIANTS) {
+                break;
+            }
+            List<String> next = new ArrayList<>(letter ? variants.size() * 2 : variants.size());
+            for (String variant : variants) {
+                if (letter) {
+                    next.add(variant + Character.toLowerCase(ch));
+                    next.add(variant + Character.toUpperCase(ch));
+                } else {
+                    next.add(variant + ch);
+                }
+            }
+            variants = next;
+        }
+        List<String> sorted = new ArrayList<>(variants);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Inserts the position of a record with the value, an already inserted position is not inserted again.
+     */
+    synchronized void insert(String value, long position) throws IOException {
+        try {
+            Split split = insert(node(root), new Entry(key(value), position));
+            if (split != null) {
+                Node newRoot = allocate(false);
+                newRoot.children.add(root);
+                newRoot.entries.add(split.separator);
+                newRoot.children.add(split.right.page);
+                root = newRoot.page;
+            }
+        } finally {
+            evict();
+        }
+    }
+
+    private Split insert(Node node, Entry entry) throws IOException {
+        if (node.leaf) {
+            int index = Collections.binarySearch(node.entries, entry);
+            if (index >= 0) {
+                return null;
+            }
+            changed(node);
+            node.entries.add(-index - 1, entry);
+            size++;
+
+        } else {
+            int index = childIndex(node, entry);
+            Split split = insert(node(node.children.get(index)), entry);
+            if (split == null) {
+                return null;
+            }
+            changed(node);
+            node.entries.add(index, split.separator);
+            node.children.add(index + 1, split.right.page);
+        }
+        return node.bytes() > PAGE_SIZE ? split(node) : null;
+    }
+
+    private Split split(Node node) throws IOException {
+        Node right = allocate(node.leaf);
+        int count = node.entries.size();
+        int half = node.bytes() / 2;
+        int bytes = NODE_HEADER_SIZE;
+        int middle = 0;
+        while (bytes < half && middle < count) {
+            bytes += node.entryBytes(node.entries.get(middle++));
+        }
+        middle = Math.max(1, Math.min(middle, count - 1));
+
+        if (node.leaf) {
+            right.entries.addAll(node.entries.subList(middle, count));
+            node.entries.subList(middle, count).clear();
+            right.next = node.next;
+            node.next = right.page;
+            return new Split(right.entries.get(0), right);
+        }
+        // the middle entry moves up
+        Entry separator = node.entries.get(middle);
+        right.entries.addAll(node.entries.subList(middle + 1, count));
+        right.children.addAll(node.children.subList(middle + 1, count + 1));
+        node.entries.subList(middle, count).clear();
+        node.children.subList(middle + 1, count + 1).clear();
+        return new Split(separator, right);
+    }
+
+    /**
+     * Loads entries into the empty tree at once: the leaves are filled in the order of keys and written one after
+     * another, then the inner nodes are built level by level. Pages are written directly, not through the pool.
+     *
+     * @param sorted positions grouped by keys of values (@see #key(String)) in the ascending order of the keys
+     * @throws IllegalStateException if the tree is not empty
+     */
+    synchronized void load(Iterator<ExternalSort.Group> sorted) throws IOException {
+        if (size > 0) {
+            throw new IllegalStateException("B+tree index is not empty: " + path);
+        }
+        unclean();
+        pool.clear();
+        pages = 1;
+
+        // pages of nodes of the actual level with their first entries
+        List<Integer> nodes = new ArrayList<>();
+        List<Entry> firsts = new ArrayList<>();
+
+        Node leaf = new Node(pages++, true);
+        nodes.add(leaf.page);
+        firsts.add(null);
+        int bytes = NODE_HEADER_SIZE;
+        while (sorted.hasNext()) {
+            ExternalSort.Group group = sorted.next();
+            for (PrimitiveIterator.OfLong position = group.positions.iterator(); position.hasNext(); ) {
+                Entry entry = new Entry(group.key, position.nextLong());
+                if (bytes + entry.bytes() > PAGE_SIZE) {
+                    Node next = new Node(pages++, true);
+                    leaf.next = next.page;
+                    writePage(leaf);
+                    leaf = next;
+                    nodes.add(leaf.page);
+                    firsts.add(entry);
+                    bytes = NODE_HEADER_SIZE;
+                }
+                leaf.entries.add(entry);
+                bytes += entry.bytes();
+                size++;
+            }
+        }
+        writePage(leaf);
+
+        while (nodes.size() > 1) {
+            List<Integer> parents = new ArrayList<>();
+            List<Entry> parentFirsts = new ArrayList<>();
+            Node node = null;
+            for (int i = 0; i < nodes.size(); i++) {
+                Entry first = firsts.get(i);
+                if (node == null || bytes + first.bytes() + CHILD_SIZE > PAGE_SIZE) {
+                    if (node != null) {
+                        writePage(node);
+                    }
+                    node = new Node(pages++, false);
+                    node.children.add(nodes.get(i));
+                    parents.add(node.page);
+                    parentFirsts.add(first);
+                    bytes = NODE_HEADER_SIZE + CHILD_SIZE;
+                } else {
+                    node.entries.add(first);
+                    node.children.add(nodes.get(i));
+                    bytes += first.bytes() + CHILD_SIZE;
+                }
+            }
+            writePage(node);
+            nodes = parents;
+            firsts = parentFirsts;
+        }
+        root = nodes.get(0);
+
+        if (channel.size() > (long) pages * PAGE_SIZE) {
+            channel.truncate((long) pages * PAGE_SIZE);
+        }
+        sync();
+    }
+
+    private void writePage(Node node) throws IOException {
+        write(channel, encode(node), (long) node.page * PAGE_SIZE);
+    }
+
+    /**
+     * Deletes the position of a record with the value.
+     */
+    synchronized void delete(String value, long position) throws IOException {
+        try {
+            Entry entry = new Entry(key(value), position);
+            Node leaf = leaf(entry);
+            int index = Collections.binarySearch(leaf.entries, entry);
+            if (index >= 0) {
+                changed(leaf);
+                leaf.entries.remove(index);
+                size--;
+            }
+        } finally {
+            evict();
+        }
+    }
+
+    /**
+     * Collects positions of entries with keys from the lower bound to the upper bound, both inclusive,
+     * a key is compared with the upper bound truncated to the length of the bound.
+     */
+    private void scan(byte[] from, byte[] to, Positions.Builder positions) throws IOException {
+        scan(new Entry(from, Long.MIN_VALUE), entry -> {
+            if (compareToBound(entry.key, to) > 0) {
+                return false;
+            }
+            positions.add(entry.position);
+            return true;
+        });
+    }
+
+    private static int compareToBound(byte[] key, byte[] bound) {
+        for (int i = 0; i < Math.min(key.length, bound.length); i++) {
+            int compared = Integer.compare(key[i] & 0xFF, bound[i] & 0xFF);
+            if (compared != 0) {
+                return compared;
+            }
+        }
+        return key.length < bound.length ? -1 : 0;
+    }
+
+    /**
+     * Visits entries from the entry on in the sorted order while the visitor returns true.
+     */
+    private void scan(Entry from, Predicate<Entry> visitor) throws IOException {
+        Node leaf = leaf(from);
+        int index = Collections.binarySearch(leaf.entries, from);
+        index = index >= 0 ? index : -index - 1;
+        while (true) {
+            for (; index < leaf.entries.size(); index++) {
+                if (!visitor.test(leaf.entries.get(index))) {
+                    return;
+                }
+            }
+            if (leaf.next == NONE) {
+                return;
+            }
+            leaf = node(leaf.next);
+            index = 0;
+            evict();
+        }
+    }
+
+    private Node leaf(Entry entry) throws IOException {
+        Node node = node(root);
+        while (!node.leaf) {
+            node = node(node.children.get(childIndex(node, entry)));
+        }
+        return node;
+    }
+
+    /**
+     * @return the index of the child containing the entry: the count of separators not greater than the entry
+     */
+    private static int childIndex(Node node, Entry entry) {
+        int low = 0;
+        int high = node.entries.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (node.entries.get(middle).compareTo(entry) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return the stats of live entries, there are no dead entries
+     */
+    synchronized StorageStats stats() {
+        return new StorageStats(size, (long) pages * PAGE_SIZE, 0, 0);
+    }
+
+    /**
+     * Writes all the changed pages and marks the file clean.
+     */
+    synchronized void sync() throws IOException {
+        if (clean || !channel.isOpen()) {
+            return;
+        }
+        for (Node node : pool.values()) {
+            writeNode(node);
+        }
+        channel.force(false);
+        clean = true;
+        writeHeader();
+        channel.force(false);
+    }
+
+    private Node node(int page) throws IOException {
+        Node node = pool.get(page);
+        if (node == null) {
+            node = decode(page, read(page));
+            pool.put(page, node);
+        }
+        return node;
+    }
+
+    private Node allocate(boolean leaf) throws IOException {
+        Node node = new Node(pages++, leaf);
+        pool.put(node.page, node);
+        changed(node);
+        return node;
+    }
+
+    private void changed(Node node) throws IOException {
+        node.dirty = true;
+        unclean();
+    }
+
+    private void unclean() throws IOException {
+        if (clean) {
+            clean = false;
+            writeHeader();
+            channel.force(false);
+        }
+    }
+
+    private void evict() throws IOException {
+        Iterator<Node> nodes = pool.values().iterator();
+        while (pool.size() > POOL_PAGES && nodes.hasNext()) {
+            writeNode(nodes.next());
+            nodes.remove();
+        }
+    }
+
+    private void writeNode(Node node) throws IOException {
+        if (node.dirty) {
+            writePage(node);
+            node.dirty = false;
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(root).putInt(pages).putLong(size).put((byte) (clean ? 1 : 0));
+        header.rewind();
+        write(channel, header, 0);
+    }
+
+    private ByteBuffer read(int page) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        long offset = (long) page * PAGE_SIZE;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Invalid B+tree index, missing page " + page + ": " + path);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    private static ByteBuffer encode(Node node) {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        buffer.put((byte) (node.leaf ? 1 : 0)).putShort((short) node.entries.size()).putInt(node.next);
+        if (!node.leaf) {
+            buffer.putInt(node.children.get(0));
+        }
+        for (int i = 0; i < node.entries.size(); i++) {
+            Entry entry = node.entries.get(i);
+            buffer.putShort((short) entry.key.length).put(entry.key).putLong(entry.position);
+            if (!node.leaf) {
+                buffer.putInt(node.children.get(i + 1));
+            }
+        }
+        buffer.rewind();
+        return buffer;
+    }
+
+    private Node decode(int page, ByteBuffer buffer) throws IOException {
+        try {
+            Node node = new Node(page, buffer.get() == 1);
+            int count = buffer.getShort() & 0xFFFF;
+            node.next = buffer.getInt();
+            if (!node.leaf) {
+                node.children.add(buffer.getInt());
+            }
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(key);
+                node.entries.add(new Entry(key, buffer.getLong()));
+                if (!node.leaf) {
+                    node.children.add(buffer.getInt());
+                }
+            }
+            return node;
+
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Invalid B+tree index, corrupted page " + page + ": " + path, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            try {
+                sync();
+            } finally {
+                pool.clear();
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * An entry of the tree: a key with a position.
+     */
+    private static final class Entry implements Comparable<Entry> {
+
+        private final byte[] key;
+        private final long position;
+
+        Entry(byte[] key, long position) {
+            this.key = key;
+            this.position = position;
+        }
+
+        int bytes() {
+            return Short.BYTES + key.length + Long.BYTES;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int compared = KEYS.compare(key, other.key);
+            return compared != 0 ? compared : Long.compare(position, other.position);
+        }
+    }
+
+    /**
+     * A decoded page of the tree.
+     */
+    private static final class Node {
+
+        private final int page;
+        private final boolean leaf;
+        private final List<Entry> entries = new ArrayList<>();
+        // pages of children of an inner node
+        private final List<Integer> children = new ArrayList<>();
+
+        private int next = NONE;
+        private boolean dirty = false;
+
+        Node(int page, boolean leaf) {
+            this.page = page;
+            this.leaf = leaf;
+        }
+
+        int entryBytes(Entry entry) {
+            return entry.bytes() + (leaf ? 0 : CHILD_SIZE);
+        }
+
+        int bytes() {
+            int bytes = NODE_HEADER_SIZE + (leaf ? 0 : CHILD_SIZE);
+            for (Entry entry : entries) {
+                bytes += entryBytes(entry);
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * A new right node of a split node with the separator of the nodes.
+     */
+    private static final class Split {
+
+        private final Entry separator;
+        private final Node right;
+
+        Split(Entry separator, Node right) {
+            this.separator = separator;
+            this.right = right;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Indexing with indexes of the type {@link IndexType#BTREE} in B+trees (@see BTreeIndex), hash indexes are delegated.
+ * <p>
+ * A B+tree index is stored in the file {@link #FILE} in the directory of the index, the type of an index is told
+ * by existence of the file. Trees are opened on the first access and closed by {@link #close()}.
+ *
+ * @author ttulka
+ */
+class BTreeIndexing implements Indexing {
+
+    // not a valid name of a hash index file
+    static final String FILE = "btree";
+
+    private final IndexingFile indexing;
+
+    // true for B+tree indexes, false for hash indexes, a missing value means not known yet
+    private final Map<String, Boolean> treeIndexes = new ConcurrentHashMap<>();
+
+    // open trees by indexes
+    private final Map<String, BTreeIndex> trees = new ConcurrentHashMap<>();
+
+    /**
+     * @param indexing the indexing of hash indexes
+     */
+    public BTreeIndexing(IndexingFile indexing) {
+        this.indexing = indexing;
+    }
+
+    private Path treePath(String index) {
+        return indexing.getPathToIndex(index).resolve(FILE);
+    }
+
+    private boolean isTree(String index) {
+        return treeIndexes.computeIfAbsent(index, key -> Files.exists(treePath(key)));
+    }
+
+    private BTreeIndex tree(String index) {
+        return trees.computeIfAbsent(index, key -> {
+            try {
+                return new BTreeIndex(treePath(key));
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot open a B+tree index: " + treePath(key), e);
+            }
+        });
+    }
+
+    /**
+     * @return indexes whose trees were not synced after their last change and must be rebuilt
+     */
+    Set<String> damaged() {
+        Set<String> damaged = new HashSet<>();
+        if (!Files.exists(getPath())) {
+            return damaged;
+        }
+        try (Stream<Path> dirs = Files.list(getPath())) {
+            // the name of the index directory is the name of the index
+            dirs.filter(dir -> Files.exists(dir.resolve(FILE)) && !BTreeIndex.isClean(dir.resolve(FILE)))
+                    .forEach(dir -> damaged.add(dir.getFileName().toString()));
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot read an index directory: " + getPath(), e);
+        }
+        return damaged;
+    }
+
+    @Override
+    public Path getPath() {
+        return indexing.getPath();
+    }
+
+    @Override
+    public boolean exists(String index) {
+        return indexing.exists(index);
+    }
+
+    @Override
+    public void existing(Collection<String> indexes) {
+        indexing.existing(indexes);
+    }
+
+    @Override
+    public Positions positions(String index, String value) {
+        if (!exists(index) || !isTree(index)) {
+            return indexing.positions(index, value);
+        }
+        try {
+            return tree(index).positions(value);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot read a B+tree index: " + treePath(index), e);
+        }
+    }
+
+    @Override
+    public Positions range(String index, String from, String to) {
+        if (!exists(index) || !isTree(index)) {
+            return indexing.range(index, from, to);
+        }
+        try {
+            return tree(index).range(from, to);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot read a B+tree index: " + treePath(index), e);
+        }
+    }
+
+    @Override
+    public Positions prefix(String index, String prefix) {
+        if (!exists(index) || !isTree(index)) {
+            return indexing.prefix(index, prefix);
+        }
+        try {
+            return tree(index).prefix(prefix);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot read a B+tree index: " + treePath(index), e);
+        }
+    }
+
+    @Override
+    public void insert(String index, Object value, long position) {
+        if (!exists(index) || !isTree(index)) {
+            indexing.insert(index, value, position);
+            return;
+        }
+        insertIntoTree(index, value.toString(), position);
+    }
+
+    private void insertIntoTree(String index, String value, long position) {
+        try {
+            tree(index).insert(value, position);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot insert into a B+tree index: " + treePath(index), e);
+        }
+    }
+
+    @Override
+    public void insertAll(String index, Map<String, List<Long>> valuePositions) {
+        if (!exists(index) || !isTree(index)) {
+            indexing.insertAll(index, valuePositions);
+            return;
+        }
+        valuePositions.forEach((value, positions) -> positions.forEach(position -> insertIntoTree(index, value, position)));
+    }
+
+    /**
+     * The key is the key of the value in the tree.
+     */
+    @Override
+    public byte[] buildKey(String index, Object value) {
+        if (!exists(index) || !isTree(index)) {
+            return indexing.buildKey(index, value);
+        }
+        return BTreeIndex.key(value.toString());
+    }
+
+    @Override
+    public void build(String index, Iterator<ExternalSort.Group> sorted) {
+        if (!exists(index) || !isTree(index)) {
+            indexing.build(index, sorted);
+            return;
+        }
+        try {
+            tree(index).load(sorted);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot build a B+tree index: " + treePath(index), e);
+        }
+    }
+
+    @Override
+    public void delete(String index, Object value, long position) {
+        if (!exists(index) || !isTree(index)) {
+            indexing.delete(index, value, position);
+            return;
+        }
+        try {
+            tree(index).delete(value.toString(), position);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot delete from a B+tree index: " + treePath(index), e);
+        }
+    }
+
+    @Override
+    public boolean create(String index) {
+        return create(index, IndexType.HASH);
+    }
+
+    @Override
+    public boolean create(String index, IndexType type) {
+        if (type != IndexType.BTREE) {
+            boolean created = indexing.create(index, type);
+            if (created) {
+                treeIndexes.put(index, false);
+            }
+            return created;
+        }
+        if (!indexing.create(index)) {
+            return false;
+        }
+        treeIndexes.put(index, true);
+        tree(index);
+        return true;
+    }
+
+    @Override
+    public IndexType type(String index) {
+        if (!exists(index)) {
+            return null;
+        }
+        return isTree(index) ? IndexType.BTREE : indexing.type(index);
+    }
+
+    @Override
+    public void drop(String index) {
+        closeTree(index);
+        treeIndexes.remove(index);
+        indexing.drop(index);
+    }
+
+    @Override
+    public void dropAll() {
+        closeTrees();
+        treeIndexes.clear();
+        indexing.dropAll();
+    }
+
+    /**
+     * Trees are replaced with empty ones, so the types of indexes are kept.
+     */
+    @Override
+    public void dropOnlyData() {
+        closeTrees();
+        if (Files.exists(getPath())) {
+            try (Stream<Path> files = Files.walk(getPath())) {
+                Iterator<Path> trees = files.filter(file -> file.endsWith(FILE)).iterator();
+                while (trees.hasNext()) {
+                    BTreeIndex.create(trees.next());
+                }
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot clean up an index directory: " + getPath(), e);
+            }
+        }
+        indexing.dropOnlyData();
+    }
+
+    @Override
+    public void cleanUp(String index) {
+        // trees have no dead entries
+        if (!exists(index) || !isTree(index)) {
+            indexing.cleanUp(index);
+        }
+    }
+
+    @Override
+    public void cleanUp() {
+        indexing.cleanUp();
+    }
+
+    @Override
+    public void sync() {
+        indexing.sync();
+        trees.forEach((index, tree) -> {
+            try {
+                tree.sync();
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot sync a B+tree index: " + treePath(index), e);
+            }
+        });
+    }
+
+    @Override
+    public StorageStats stats(String index) {
+        if (!exists(index) || !isTree(index)) {
+            return indexing.stats(index);
+        }
+        return tree(index).stats();
+    }
+
+    @Override
+    public boolean cleanUpNeeded(double threshold) {
+        return indexing.cleanUpNeeded(threshold);
+    }
+
+    @Override
+    public long cleanUpNext(double threshold) {
+        return indexing.cleanUpNext(threshold);
+    }
+
+    @Override
+    public void close() {
+        closeTrees();
+        indexing.close();
+    }
+
+    private void closeTree(String index) {
+        BTreeIndex tree = trees.remove(index);
+        if (tree != null) {
+            try {
+                tree.close();
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot close a B+tree index: " + treePath(index), e);
+            }
+        }
+    }
+
+    private void closeTrees() {
+        List<String> indexes = new ArrayList<>(trees.keySet());
+        indexes.forEach(this::closeTree);
+    }
+}
@@ -0,0 +1,66 @@
+package cz.net21.ttulka.thistledb.db;
+
+/**
+ * Counters of blocks checked by bloom filters of a collection, collected by scans with a single equality condition.
+ * <p>
+ * A bloom filter never skips a block containing the value, but lets through a block without the value with a small
+ * probability. Such a block is a false positive, the scan reads it for nothing.
+ *
+ * @author ttulka
+ */
+final class BloomFilterStats {
+
+    private final long negatives;
+    private final long truePositives;
+    private final long falsePositives;
+    private final double expectedFpp;
+
+    BloomFilterStats(long negatives, long truePositives, long falsePositives, double expectedFpp) {
+        this.negatives = negatives;
+        this.truePositives = truePositives;
+        this.falsePositives = falsePositives;
+        this.expectedFpp = expectedFpp;
+    }
+
+    /**
+     * @return the count of blocks skipped
+     */
+    long getNegatives() {
+        return negatives;
+    }
+
+    /**
+     * @return the count of blocks let through and containing a matching record
+     */
+    long getTruePositives() {
+        return truePositives;
+    }
+
+    /**
+     * @return the count of blocks let through without a matching record
+     */
+    long getFalsePositives() {
+        return falsePositives;
+    }
+
+    /**
+     * @return the ratio of blocks let through to all the blocks without a matching record
+     */
+    double falsePositiveRate() {
+        long withoutMatch = negatives + falsePositives;
+        return withoutMatch > 0 ? (double) falsePositives / withoutMatch : 0;
+    }
+
+    /**
+     * @return the average false-positive probability of the bloom filters by their fill
+     */
+    double expectedFalsePositiveRate() {
+        return expectedFpp;
+    }
+
+    @Override
+    public String toString() {
+        return "skipped " + negatives + " blocks, let through " + truePositives + " blocks with and " + falsePositives + " blocks without a match, "
+               + String.format("false-positive rate %.4f (expected %.4f)", falsePositiveRate(), expectedFpp);
+    }
+}
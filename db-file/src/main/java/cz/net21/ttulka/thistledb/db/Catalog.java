@@ -0,0 +1,239 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import lombok.NonNull;
+import lombok.extern.apachecommons.CommonsLog;
+
+/**
+ * Catalog of collections in a data directory, persistent in the manifest file {@link #FILE}.
+ * <p>
+ * The manifest lists the collections with their options and indexes, so the data source starts without listing
+ * the data directory and opening the collections. The manifest is the commit point of creating and dropping
+ * collections: a collection is created before it's added and removed before it's dropped. An index is added after
+ * it's created and removed before it's dropped, so listed indexes always exist. Indexes not listed may exist too.
+ * <p>
+ * The manifest is replaced atomically with every change. A missing or corrupted manifest is rebuilt from the data directory,
+ * indexes of the collections are not known then (names of indexes are hashed on the disk).
+ *
+ * @author ttulka
+ */
+@CommonsLog
+final class Catalog {
+
+    // not a valid collection name
+    static final String FILE = ".catalog";
+
+    private static final Pattern COLLECTION_NAME = Pattern.compile("[a-z0-9_]+");
+
+    private static final String COUNT = ".count";
+    private static final String INDEXES = ".indexes";
+    private static final String OPTIONS = ".options.";
+    private static final String INDEX_SEPARATOR = ",";
+
+    private final Path path;
+
+    // entries by names of collections
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * Loads the catalog of the data directory, rebuilds it when missing or corrupted.
+     *
+     * @param dataDir the data directory
+     */
+    Catalog(@NonNull Path dataDir) {
+        this.path = dataDir.resolve(FILE);
+        if (!load()) {
+            rebuild(dataDir);
+        }
+    }
+
+    /**
+     * @param fileName the name of a file in the data directory
+     * @return true if the file is a collection file
+     */
+    static boolean isCollectionFile(@NonNull String fileName) {
+        return COLLECTION_NAME.matcher(fileName).matches();
+    }
+
+    synchronized Set<String> names() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(entries.keySet()));
+    }
+
+    synchronized boolean contains(@NonNull String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * @return the options of the collection, or null if the collection is not in the catalog
+     */
+    synchronized CollectionOptions options(@NonNull String name) {
+        Entry entry = entries.get(name);
+        return entry != null ? entry.options : null;
+    }
+
+    /**
+     * @return the known indexes of the collection, empty if the collection is not in the catalog
+     */
+    synchronized Set<String> indexes(@NonNull String name) {
+        Entry entry = entries.get(name);
+        return entry != null ? Collections.unmodifiableSet(new LinkedHashSet<>(entry.indexes)) : Collections.emptySet();
+    }
+
+    /**
+     * Adds a created collection.
+     */
+    synchronized void add(@NonNull String name, @NonNull CollectionOptions options) {
+        entries.put(name, new Entry(options));
+        store();
+    }
+
+    /**
+     * Removes a collection before it's dropped.
+     */
+    synchronized void remove(@NonNull String name) {
+        if (entries.remove(name) != null) {
+            store();
+        }
+    }
+
+    /**
+     * Adds a created index of the collection.
+     */
+    synchronized void addIndex(@NonNull String name, @NonNull String index) {
+        Entry entry = entries.get(name);
+        if (entry != null && entry.indexes.add(index)) {
+            store();
+        }
+    }
+
+    /**
+     * Removes an index of the collection before it's dropped.
+     */
+    synchronized void removeIndex(@NonNull String name, @NonNull String index) {
+        Entry entry = entries.get(name);
+        if (entry != null && entry.indexes.remove(index)) {
+            store();
+        }
+    }
+
+    private boolean load() {
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try (InputStream in = Files.newInputStream(path)) {
+            Properties properties = new Properties();
+            properties.load(in);
+
+            properties.stringPropertyNames().stream()
+                    .filter(Catalog::isCollectionFile)
+                    .forEach(name -> entries.put(name, new Entry(CollectionOptions.DEFAULT)));
+
+            Map<String, Map<String, String>> options = new HashMap<>();
+            for (String key : properties.stringPropertyNames()) {
+                String value = properties.getProperty(key);
+                if (key.endsWith(INDEXES)) {
+                    Arrays.stream(value.split(INDEX_SEPARATOR))
+                            .filter(index -> !index.isEmpty())
+                            .forEach(entry(key.substring(0, key.length() - INDEXES.length())).indexes::add);
+
+                } else if (key.contains(OPTIONS)) {
+                    int separator = key.indexOf(OPTIONS);
+                    entry(key.substring(0, separator));
+                    options.computeIfAbsent(key.substring(0, separator), name -> new HashMap<>())
+                            .put(key.substring(separator + OPTIONS.length()), value);
+                }
+            }
+            for (Map.Entry<String, Map<String, String>> collectionOptions : options.entrySet()) {
+                entry(collectionOptions.getKey()).options = CollectionOptions.fromMap(collectionOptions.getValue());
+            }
+
+            if (!String.valueOf(entries.size()).equals(properties.getProperty(COUNT))) {
+                throw new IOException("Count of collections doesn't match.");
+            }
+            return true;
+
+        } catch (Exception e) {
+            log.warn("Catalog corrupted, will be rebuilt: " + path, e);
+            entries.clear();
+            return false;
+        }
+    }
+
+    private Entry entry(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            throw new IOException("Unknown collection '" + name + "'.");
+        }
+        return entry;
+    }
+
+    private void rebuild(Path dataDir) {
+        try (Stream<Path> files = Files.list(dataDir)) {
+            files.filter(Files::isRegularFile)
+                    .map(file -> file.getFileName().toString())
+                    .filter(Catalog::isCollectionFile)
+                    .forEach(name -> entries.put(name, new Entry(DbCollectionFile.loadOptions(dataDir.resolve(name)))));
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot read a data directory '" + dataDir.toAbsolutePath() + "': " + e.getMessage(), e);
+        }
+        store();
+        log.info("Catalog of " + entries.size() + " collections rebuilt: " + path);
+    }
+
+    private void store() {
+        Properties properties = new Properties();
+        properties.setProperty(COUNT, String.valueOf(entries.size()));
+        entries.forEach((name, entry) -> {
+            properties.setProperty(name, "");
+            if (!entry.indexes.isEmpty()) {
+                properties.setProperty(name + INDEXES, String.join(INDEX_SEPARATOR, entry.indexes));
+            }
+            entry.options.toMap().forEach((key, value) -> properties.setProperty(name + OPTIONS + key, value));
+        });
+
+        Path tmp = Paths.get(path + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                properties.store(Channels.newOutputStream(channel), null);
+                channel.force(true);    // the catalog must be durable before it replaces the old one
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot store a catalog: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A collection in the catalog.
+     */
+    private static final class Entry {
+
+        private CollectionOptions options;
+        private final Set<String> indexes = new LinkedHashSet<>();
+
+        Entry(CollectionOptions options) {
+            this.options = options;
+        }
+    }
+}
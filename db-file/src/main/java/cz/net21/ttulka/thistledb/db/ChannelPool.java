@@ -0,0 +1,111 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lombok.extern.apachecommons.CommonsLog;
+
+/**
+ * Pool of open channels of files for reading and writing, the least recently used channel is closed
+ * when more than the maximum of channels is open.
+ * <p>
+ * A channel must be closed by the pool before its file is deleted or replaced.
+ *
+ * @author ttulka
+ */
+@CommonsLog
+final class ChannelPool implements AutoCloseable {
+
+    static final int DEFAULT_MAX_OPEN = 64;
+
+    private final int maxOpen;
+
+    // open channels in the order of access
+    private final Map<Path, FileChannel> channels = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param maxOpen the maximal count of open channels
+     */
+    public ChannelPool(int maxOpen) {
+        this.maxOpen = maxOpen;
+    }
+
+    /**
+     * @return the open channel of the file, the file is created when not existing
+     */
+    synchronized FileChannel channel(Path file) throws IOException {
+        FileChannel channel = channels.get(file);
+        if (channel == null || !channel.isOpen()) {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channels.put(file, channel);
+            evict();
+        }
+        return channel;
+    }
+
+    /**
+     * @return the open channel of the file, or null if not open
+     */
+    synchronized FileChannel opened(Path file) {
+        FileChannel channel = channels.get(file);
+        return channel != null && channel.isOpen() ? channel : null;
+    }
+
+    private void evict() {
+        Iterator<FileChannel> open = channels.values().iterator();
+        while (channels.size() > maxOpen && open.hasNext()) {
+            closeQuietly(open.next());
+            open.remove();
+        }
+    }
+
+    /**
+     * Closes the channel of the file, if open.
+     */
+    synchronized void close(Path file) {
+        FileChannel channel = channels.remove(file);
+        if (channel != null) {
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Closes channels of files in the directory.
+     */
+    synchronized void closeAll(Path dir) {
+        Iterator<Map.Entry<Path, FileChannel>> open = channels.entrySet().iterator();
+        while (open.hasNext()) {
+            Map.Entry<Path, FileChannel> channel = open.next();
+            if (channel.getKey().startsWith(dir)) {
+                closeQuietly(channel.getValue());
+                open.remove();
+            }
+        }
+    }
+
+    synchronized int size() {
+        return channels.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        channels.values().forEach(ChannelPool::closeQuietly);
+        channels.clear();
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+
+        } catch (IOException e) {
+            log.warn("Cannot close a channel.", e);
+        }
+    }
+}
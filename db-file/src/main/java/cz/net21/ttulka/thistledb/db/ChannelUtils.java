@@ -1,7 +1,6 @@
 package cz.net21.ttulka.thistledb.db;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -33,6 +32,9 @@ public final class ChannelUtils {
     /**
      * Returns a next record from the channel based on separator- and deleted-flags.
      * The next record starts from the current position in the channel.
+     * After the call the channel is positioned right behind the returned record.
+     * <p>
+     * This method allocates a new decoder for every call, use {@link RecordDecoder} directly to read more records.
      *
      * @param channel       the channel
      * @param separatorFlag the separator flag separating records
@@ -40,58 +42,20 @@ public final class ChannelUtils {
      * @param maxPosition   the maximum of bytes to read if not null
      * @return the next record
      * @throws IOException
+     * @see RecordDecoder
      */
     public static String next(final SeekableByteChannel channel,
                               final char separatorFlag,
                               final char deletedFlag,
                               final Long maxPosition) throws IOException {
-        long position = channel.position();
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-        StringBuilder sb = new StringBuilder();
+        RecordDecoder decoder = new RecordDecoder(channel, separatorFlag, deletedFlag, BUFFER_SIZE);
+        decoder.setMaxPosition(maxPosition);
 
-        boolean deleted = false;
-        boolean newRecord = true;
-        int read;
-        while ((read = channel.read(buffer)) > 0) {
-            buffer.flip();
-
-            for (int i = 0; i < read; i++) {
-                if (maxPosition != null && ++position > maxPosition) {
-                    return null;
-                }
-
-                char ch = (char) buffer.get();
-
-                if (deleted) {
-                    if (ch == separatorFlag) {
-                        deleted = false;
-                        newRecord = true;
-                    }
-                    continue;
-                }
-
-                if (newRecord && ch == deletedFlag) {
-                    deleted = true;
-                    continue;
-                }
-
-                newRecord = false;
-
-                if (ch == separatorFlag) {
-                    channel.position(channel.position() - (read - i - 1));
-
-                    return sb.toString();
-
-                } else if (!deleted) {
-                    sb.append(ch);
-                }
-            }
-            buffer = ByteBuffer.allocate(BUFFER_SIZE);
-        }
-        if (read <= 0) {
-            return null;
+        String next = decoder.next();
+        if (next != null) {
+            channel.position(decoder.position());
         }
-        return next(channel, separatorFlag, deletedFlag);
+        return next;
     }
 
     /**
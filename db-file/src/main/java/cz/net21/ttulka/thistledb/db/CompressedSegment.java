@@ -0,0 +1,432 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Sealed segment compressed in blocks.
+ * <p>
+ * Records of the segment are grouped into blocks of about {@link #BLOCK_SIZE} bytes, every block is compressed
+ * with {@link Deflater}. A record never spans two blocks. Records keep their positions: a position is the offset
+ * in the uncompressed segment and a block index maps uncompressed offsets to compressed blocks, so reading a record
+ * on a position decompresses only one block. Data of records deleted before the compression are zeroed.
+ * <p>
+ * The file has the form `[header][blocks][block index][deletions]`. The header holds the magic bytes, the version
+ * of the record format, the uncompressed size, the count of blocks and the offset of the block index. An entry
+ * of the block index holds the uncompressed offset of the block, its offset in the file, its compressed length
+ * and its uncompressed length. Blocks are never rewritten: positions of records deleted after the compression
+ * are appended at the end of the file.
+ *
+ * @author ttulka
+ */
+class CompressedSegment {
+
+    static final byte[] MAGIC = {'T', 'D', 'B', 'Z'};
+    static final int HEADER_SIZE = MAGIC.length + Integer.BYTES + Long.BYTES + Integer.BYTES + Long.BYTES;
+
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int INDEX_ENTRY_SIZE = Long.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+    private final FileChannel channel;
+    private final FileFormat format;
+
+    private final long size;
+
+    private final long[] blockStarts;
+    private final long[] blockOffsets;
+    private final int[] compressedLengths;
+    private final int[] rawLengths;
+
+    private final long deletionsOffset;
+    private final Set<Long> deleted = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param channel the channel of a compressed segment file
+     * @throws IOException
+     * @throws DatabaseException if the file is not a compressed segment
+     */
+    public CompressedSegment(FileChannel channel) throws IOException {
+        this.channel = channel;
+
+        ByteBuffer header = read(0, HEADER_SIZE);
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new DatabaseException("Not a compressed segment.");
+        }
+        this.format = FileFormat.forVersion(header.getInt());
+        this.size = header.getLong();
+        int blocks = header.getInt();
+        long indexOffset = header.getLong();
+
+        blockStarts = new long[blocks];
+        blockOffsets = new long[blocks];
+        compressedLengths = new int[blocks];
+        rawLengths = new int[blocks];
+
+        ByteBuffer index = read(indexOffset, blocks * INDEX_ENTRY_SIZE);
+        for (int i = 0; i < blocks; i++) {
+            blockStarts[i] = index.getLong();
+            blockOffsets[i] = index.getLong();
+            compressedLengths[i] = index.getInt();
+            rawLengths[i] = index.getInt();
+        }
+
+        deletionsOffset = indexOffset + (long) blocks * INDEX_ENTRY_SIZE;
+        int deletions = (int) ((channel.size() - deletionsOffset) / Long.BYTES);   // a torn last deletion is ignored
+        ByteBuffer positions = read(deletionsOffset, deletions * Long.BYTES);
+        while (positions.hasRemaining()) {
+            deleted.add(positions.getLong());
+        }
+    }
+
+    /**
+     * @return true if the channel is a compressed segment
+     */
+    static boolean isCompressed(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+        while (magic.hasRemaining()) {
+            if (channel.read(magic, magic.position()) <= 0) {
+                return false;
+            }
+        }
+        return Arrays.equals(magic.array(), MAGIC);
+    }
+
+    /**
+     * @return the uncompressed size of the segment
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return the count of blocks
+     */
+    int blocks() {
+        return blockStarts.length;
+    }
+
+    /**
+     * Marks the record on the position as deleted.
+     */
+    void delete(long recordPosition) throws IOException {
+        if (deleted.add(recordPosition)) {
+            // append behind the last complete deletion, a torn one is overwritten
+            long offset = deletionsOffset + (channel.size() - deletionsOffset) / Long.BYTES * Long.BYTES;
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+            buffer.putLong(recordPosition).flip();
+            while (buffer.hasRemaining()) {
+                offset += channel.write(buffer, offset);
+            }
+        }
+    }
+
+    /**
+     * Creates a new reader positioned at the first record.
+     */
+    RecordReader reader() {
+        Reader reader = new Reader();
+        reader.position(format.dataOffset());
+        return reader;
+    }
+
+    /**
+     * @return the block containing the position or -1 if there is no such block
+     */
+    private int blockOf(long position) {
+        int block = Arrays.binarySearch(blockStarts, position);
+        if (block < 0) {
+            block = -block - 2;
+        }
+        if (block < 0 || position >= blockStarts[block] + rawLengths[block]) {
+            return -1;
+        }
+        return block;
+    }
+
+    private byte[] decompress(int block, byte[] buffer) throws IOException {
+        if (buffer.length < rawLengths[block]) {
+            buffer = new byte[Math.max(rawLengths[block], BLOCK_SIZE)];
+        }
+        ByteBuffer compressed = read(blockOffsets[block], compressedLengths[block]);
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array(), 0, compressedLengths[block]);
+            int length = 0;
+            while (length < rawLengths[block] && !inflater.finished()) {
+                int inflated = inflater.inflate(buffer, length, rawLengths[block] - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != rawLengths[block]) {
+                throw new DatabaseException("Corrupted compressed block at the position " + blockStarts[block] + ".");
+            }
+        } catch (DataFormatException e) {
+            throw new DatabaseException("Corrupted compressed block at the position " + blockStarts[block] + ": " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+        return buffer;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) <= 0) {
+                throw new EOFException("Unexpected end of a compressed segment.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Compresses a segment in the {@link FileFormat#FRAMED} format into a new file.
+     *
+     * @param source the channel of the segment
+     * @param format the format of the segment
+     * @param target the compressed file to create
+     * @return the uncompressed size of the segment
+     * @throws IOException
+     */
+    static long compress(FileChannel source, FileFormat format, Path target) throws IOException {
+        if (format != FileFormat.FRAMED) {
+            throw new DatabaseException("Only segments in the format " + FileFormat.FRAMED + " can be compressed.");
+        }
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            BlockWriter writer = new BlockWriter(channel, format.dataOffset());
+
+            source.position(format.dataOffset());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(source), BLOCK_SIZE));
+            byte[] record = new byte[FileFormat.RECORD_HEADER_SIZE];
+            try {
+                while (true) {
+                    in.readFully(record, 0, FileFormat.RECORD_HEADER_SIZE);
+                    int length = ByteBuffer.wrap(record).getInt();
+                    if (length < 0 || length > source.size()) {
+                        break;  // torn record
+                    }
+                    if (record.length < FileFormat.RECORD_HEADER_SIZE + length) {
+                        record = Arrays.copyOf(record, Math.max(FileFormat.RECORD_HEADER_SIZE + length, record.length * 2));
+                    }
+                    in.readFully(record, FileFormat.RECORD_HEADER_SIZE, length);
+
+                    if ((record[FileFormat.RECORD_FLAGS_OFFSET] & FileFormat.FLAG_DELETED) != 0) {
+                        Arrays.fill(record, FileFormat.RECORD_HEADER_SIZE, FileFormat.RECORD_HEADER_SIZE + length, (byte) 0);
+                    }
+                    writer.add(record, FileFormat.RECORD_HEADER_SIZE + length);
+                }
+            } catch (EOFException e) {
+                // end of the segment or a torn record
+            }
+            long size = writer.finish(format);
+            channel.force(true);
+            return size;
+        }
+    }
+
+    /**
+     * Collects records into blocks and writes them compressed.
+     */
+    private static class BlockWriter {
+
+        private final FileChannel channel;
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+        private ByteBuffer blockIndex = ByteBuffer.allocate(1024 * INDEX_ENTRY_SIZE);
+
+        private byte[] block = new byte[BLOCK_SIZE * 2];
+        private byte[] compressed = new byte[BLOCK_SIZE];
+        private int blockLength = 0;
+
+        private long blockStart;
+        private long offset = HEADER_SIZE;
+        private int blocks = 0;
+
+        BlockWriter(FileChannel channel, long dataOffset) {
+            this.channel = channel;
+            this.blockStart = dataOffset;
+        }
+
+        void add(byte[] record, int length) throws IOException {
+            if (blockLength + length > block.length) {
+                block = Arrays.copyOf(block, Math.max(blockLength + length, block.length * 2));
+            }
+            System.arraycopy(record, 0, block, blockLength, length);
+            blockLength += length;
+
+            if (blockLength >= BLOCK_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (blockLength == 0) {
+                return;
+            }
+            deflater.reset();
+            deflater.setInput(block, 0, blockLength);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            write(ByteBuffer.wrap(compressed, 0, length), offset);
+
+            if (blockIndex.remaining() < INDEX_ENTRY_SIZE) {
+                ByteBuffer bigger = ByteBuffer.allocate(blockIndex.capacity() * 2);
+                blockIndex.flip();
+                blockIndex = bigger.put(blockIndex);
+            }
+            blockIndex.putLong(blockStart).putLong(offset).putInt(length).putInt(blockLength);
+
+            offset += length;
+            blockStart += blockLength;
+            blockLength = 0;
+            blocks++;
+        }
+
+        /**
+         * Writes the last block, the block index and the header.
+         *
+         * @return the uncompressed size
+         */
+        long finish(FileFormat format) throws IOException {
+            flush();
+            deflater.end();
+
+            long indexOffset = offset;
+            blockIndex.flip();
+            write(blockIndex, indexOffset);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC).putInt(format.getVersion()).putLong(blockStart).putInt(blocks).putLong(indexOffset).flip();
+            write(header, 0);
+
+            return blockStart;
+        }
+
+        private void write(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Reads records of the compressed segment. The last decompressed block is kept.
+     */
+    private class Reader implements RecordReader {
+
+        private byte[] block = new byte[0];
+        private int blockNumber = -1;
+
+        private long position = 0;
+        private long recordPosition = -1;
+
+        private Long maxPosition = null;
+
+        private long skippedRecords = 0;
+
+        @Override
+        public long skippedRecords() {
+            return skippedRecords;
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public void position(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public long recordPosition() {
+            return recordPosition;
+        }
+
+        @Override
+        public void setMaxPosition(Long maxPosition) {
+            this.maxPosition = maxPosition;
+        }
+
+        @Override
+        public ByteBuffer nextBytes() throws IOException {
+            long limit = maxPosition != null ? Math.min(size, maxPosition) : size;
+
+            while (position + FileFormat.RECORD_HEADER_SIZE <= limit) {
+                int current = blockOf(position);
+                if (current == -1) {
+                    return null;
+                }
+                if (current != blockNumber) {
+                    block = decompress(current, block);
+                    blockNumber = current;
+                }
+                int offset = (int) (position - blockStarts[current]);
+                ByteBuffer header = ByteBuffer.wrap(block, offset, FileFormat.RECORD_HEADER_SIZE);
+                int length = header.getInt();
+                byte flags = header.get();
+                int crc = header.getInt();
+
+                long recordStart = position;
+                long recordEnd = recordStart + FileFormat.RECORD_HEADER_SIZE + length;
+                if (length < 0 || recordEnd > blockStarts[current] + rawLengths[current]) {
+                    throw new DatabaseException("Corrupted record at the position " + recordStart + ": record exceeds its block.");
+                }
+                if (recordEnd > limit) {
+                    return null;
+                }
+                position = recordEnd;
+
+                if ((flags & FileFormat.FLAG_DELETED) != 0 || deleted.contains(recordStart)) {
+                    skippedRecords++;
+                    continue;
+                }
+                int dataOffset = offset + FileFormat.RECORD_HEADER_SIZE;
+                int dataLength = length;
+                if ((flags & FileFormat.FLAG_PADDED) != 0) {
+                    dataLength = length >= FileFormat.PADDED_DATA_OFFSET ? ByteBuffer.wrap(block).getInt(dataOffset) : -1;
+                    if (dataLength < 0 || FileFormat.PADDED_DATA_OFFSET + dataLength > length
+                        || Crc32c.compute(block, dataOffset, FileFormat.PADDED_DATA_OFFSET + dataLength) != crc) {
+                        throw new DatabaseException("Corrupted record at the position " + recordStart + ": checksum mismatch.");
+                    }
+                    dataOffset += FileFormat.PADDED_DATA_OFFSET;
+
+                } else if (Crc32c.compute(block, dataOffset, length) != crc) {
+                    throw new DatabaseException("Corrupted record at the position " + recordStart + ": checksum mismatch.");
+                }
+                recordPosition = recordStart;
+                return ByteBuffer.wrap(block, dataOffset, dataLength);
+            }
+            return null;
+        }
+    }
+}
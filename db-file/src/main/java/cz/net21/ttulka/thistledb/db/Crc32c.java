@@ -0,0 +1,105 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksum.
+ * <p>
+ * Java 8 doesn't offer the CRC32C implementation, so here is a table-driven one processing eight bytes per step.
+ *
+ * @author ttulka
+ */
+final class Crc32c implements Checksum {
+
+    private static final int POLYNOMIAL = 0x82F63B78;   // reversed 0x1EDC6F41
+
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int t = 1; t < 8; t++) {
+                int prev = TABLES[t - 1][i];
+                TABLES[t][i] = (prev >>> 8) ^ TABLES[0][prev & 0xFF];
+            }
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        int i = off;
+        int end = off + len;
+
+        for (; end - i >= 8; i += 8) {
+            int lo = c ^ ((b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24);
+            c = TABLES[7][lo & 0xFF]
+                ^ TABLES[6][(lo >>> 8) & 0xFF]
+                ^ TABLES[5][(lo >>> 16) & 0xFF]
+                ^ TABLES[4][lo >>> 24]
+                ^ TABLES[3][b[i + 4] & 0xFF]
+                ^ TABLES[2][b[i + 5] & 0xFF]
+                ^ TABLES[1][b[i + 6] & 0xFF]
+                ^ TABLES[0][b[i + 7] & 0xFF];
+        }
+        for (; i < end; i++) {
+            c = (c >>> 8) ^ TABLES[0][(c ^ b[i]) & 0xFF];
+        }
+        crc = c;
+    }
+
+    /**
+     * Updates the checksum with the remaining bytes of the buffer. The position of the buffer is not changed.
+     *
+     * @param buffer the buffer
+     */
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        int c = crc;
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            c = (c >>> 8) ^ TABLES[0][(c ^ buffer.get(i)) & 0xFF];
+        }
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+
+    /**
+     * Convenient method.
+     *
+     * @param b   the bytes
+     * @param off the offset
+     * @param len the length
+     * @return the checksum as an int
+     */
+    static int compute(byte[] b, int off, int len) {
+        Crc32c crc32c = new Crc32c();
+        crc32c.update(b, off, len);
+        return (int) crc32c.getValue();
+    }
+}
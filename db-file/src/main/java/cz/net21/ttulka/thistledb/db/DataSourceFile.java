@@ -5,107 +5,241 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import lombok.NonNull;
 import lombok.extern.apachecommons.CommonsLog;
 import reactor.core.publisher.Flux;
-import reactor.core.scheduler.Schedulers;
 
 /**
  * Service to the database access.
+ * <p>
+ * Every collection has its own write-ahead log. Operations without an explicit durability use the default durability
+ * of the data source.
+ * <p>
+ * With the read mode {@link ReadMode#ASYNC}, selects read collections asynchronously on a shared I/O pool and emit
+ * documents as requested, threads of subscribers are not blocked by the disk.
+ * <p>
+ * Collections are listed in the catalog of the data directory (@see Catalog) and opened on the first access.
+ * Collections not accessed for the idle time are closed in background, their caches are evicted.
  *
  * @author ttulka
  */
 @CommonsLog
 public class DataSourceFile implements DataSource {
 
+    public static final Durability DEFAULT_DURABILITY = Durability.BATCHED;
+    public static final long DEFAULT_BATCH_INTERVAL = 100;
+    public static final long DEFAULT_MAINTENANCE_RATE = 0;
+    public static final long DEFAULT_DOCUMENT_CACHE_SIZE = DbCollectionFile.DEFAULT_DOCUMENT_CACHE_SIZE;
+    public static final long DEFAULT_COLLECTION_IDLE_TIME = 10 * 60 * 1000;
+
+    private static final ExecutorService CLOSER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "thistledb-closer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // time in milliseconds after which collections not accessed are closed, zero for never
+    private static volatile long collectionIdleTime = DEFAULT_COLLECTION_IDLE_TIME;
+
     protected final Path dataDir;
     protected final int cacheExpirationTime;
+    protected final ReadMode readMode;
+    protected final Durability durability;
+    protected final long batchInterval;
+
+    final Catalog catalog;
 
-    protected final Map<String, DbCollection> collections = new HashMap<>();
+    // collections not in the catalog
+    protected final Map<String, DbCollection> collections = new ConcurrentHashMap<>();
+
+    // collections from the catalog opened so far
+    private final Map<String, OpenCollection> opened = new ConcurrentHashMap<>();
+
+    private final AtomicLong lastIdleCheck = new AtomicLong(System.currentTimeMillis());
 
     public DataSourceFile(@NonNull Path dataDir, int cacheExpirationTime) {
+        this(dataDir, cacheExpirationTime, ReadMode.CHANNEL);
+    }
+
+    public DataSourceFile(@NonNull Path dataDir, int cacheExpirationTime, @NonNull ReadMode readMode) {
+        this(dataDir, cacheExpirationTime, readMode, DEFAULT_DURABILITY, DEFAULT_BATCH_INTERVAL);
+    }
+
+    /**
+     * @param durability    the default durability of write operations
+     * @param batchInterval the interval of forcing batched changes in milliseconds
+     */
+    public DataSourceFile(@NonNull Path dataDir, int cacheExpirationTime, @NonNull ReadMode readMode,
+                          @NonNull Durability durability, long batchInterval) {
         this.dataDir = dataDir;
         this.cacheExpirationTime = cacheExpirationTime;
+        this.readMode = readMode;
+        this.durability = durability;
+        this.batchInterval = batchInterval;
 
-        if (Files.exists(dataDir)) {
-            loadCollections(dataDir);
-        } else {
+        if (!Files.exists(dataDir)) {
             try {
                 Files.createDirectories(dataDir);
             } catch (IOException e) {
                 throw new DatabaseException("Cannot create a data directory '" + dataDir.toAbsolutePath() + "': " + e.getMessage(), e);
             }
         }
-    }
-
-    void loadCollections(Path dataDir) {
-        try {
-            Files.list(dataDir)
-                    .filter(Files::isRegularFile)
-                    .forEach(path -> collections.put(
-                            path.getFileName().toString(),
-                            new DbCollectionFile(path, cacheExpirationTime)));
+        this.catalog = new Catalog(dataDir);
 
-        } catch (IOException e) {
-            throw new DatabaseException("Cannot read a data directory '" + dataDir.toAbsolutePath() + "': " + e.getMessage(), e);
-        }
         // add the dual table
         collections.put(DualCollection.NAME.toLowerCase(), DualCollection.getInstance());
     }
 
+    /**
+     * Limits the I/O of the background maintenance of collections (compaction, compression and clean-up of indexes).
+     *
+     * @param bytesPerSecond the maximal amount of bytes read and written per second, zero for no limit
+     */
+    public static void setMaintenanceRate(long bytesPerSecond) {
+        DbCollectionFile.setMaintenanceRate(bytesPerSecond);
+    }
+
+    /**
+     * Sets the size of the cache of decoded documents read by indexes, shared by all the collections.
+     *
+     * @param bytes the maximal estimated size of the cached documents in bytes, zero for no caching
+     */
+    public static void setDocumentCacheSize(long bytes) {
+        DbCollectionFile.setDocumentCacheSize(bytes);
+    }
+
+    /**
+     * Sets the time after which collections not accessed are closed, they are opened again on the next access.
+     *
+     * @param millis the idle time in milliseconds, zero for never closing collections
+     */
+    public static void setCollectionIdleTime(long millis) {
+        collectionIdleTime = millis;
+    }
+
+    private DbCollectionFile openCollection(String name) {
+        DbCollectionFile collection = new DbCollectionFile(resolveCollection(name), cacheExpirationTime, readMode);
+        collection.existingIndexes(catalog.indexes(name));
+        collection.enableWriteAheadLog(batchInterval);
+        return collection;
+    }
+
     Path resolveCollection(@NonNull String collectionName) {
         return dataDir.resolve(collectionName.toLowerCase());
     }
 
     DbCollection getCollection(@NonNull String collectionName) {
-        return collections.get(collectionName.toLowerCase());
+        try (Access access = access(collectionName)) {
+            return access.collection;
+        }
     }
 
     boolean collectionExists(@NonNull String collectionName) {
-        return collections.containsKey(collectionName.toLowerCase());
+        String name = collectionName.toLowerCase();
+        return collections.containsKey(name) || catalog.contains(name);
     }
 
-    boolean addCollection(@NonNull String collectionName, @NonNull DbCollection collection) {
-        return collections.putIfAbsent(collectionName.toLowerCase(), collection) == null;
+    /**
+     * @return the count of collections currently open
+     */
+    int openCollections() {
+        return opened.size();
     }
 
-    boolean removeCollection(@NonNull String collectionName) {
-        return collections.remove(collectionName.toLowerCase()) != null;
+    /**
+     * Accesses the collection, the collection is opened if not open yet and stays open until the access is released.
+     */
+    private Access access(String collectionName) {
+        String name = collectionName.toLowerCase();
+        DbCollection collection = collections.get(name);
+        if (collection != null) {
+            return new Access(collection, null);
+        }
+        scheduleIdleCheckIfNeeded();
+        while (true) {
+            if (!catalog.contains(name)) {
+                throw new DatabaseException("Collection '" + collectionName + "' doesn't exist.");
+            }
+            OpenCollection open = opened.computeIfAbsent(name, key -> new OpenCollection(key, openCollection(key)));
+            if (open.acquire()) {
+                return new Access(open.collection, open);
+            }
+        }
+    }
+
+    private <T> T access(String collectionName, Function<DbCollection, T> operation) {
+        try (Access access = access(collectionName)) {
+            return operation.apply(access.collection);
+        }
     }
 
     @Override
     public boolean createCollection(@NonNull String collectionName) {
-        if (!collectionExists(collectionName)) {
-            Path path = resolveCollection(collectionName);
+        return createCollection(collectionName, CollectionOptions.DEFAULT);
+    }
+
+    @Override
+    public boolean createCollection(@NonNull String collectionName, @NonNull CollectionOptions options) {
+        String name = collectionName.toLowerCase();
+        synchronized (catalog) {
+            if (collectionExists(name)) {
+                return false;
+            }
+            Path path = resolveCollection(name);
             try {
+                if (Files.exists(path)) {
+                    // left by a create or drop interrupted by a crash
+                    log.warn("Dropping files of the uncatalogued collection '" + path + "'.");
+                    openCollection(name).drop();
+                }
                 Files.createFile(path);
 
-                addCollection(collectionName, new DbCollectionFile(path, cacheExpirationTime));
+                DbCollectionFile collection = openCollection(name);
+                collection.setOptions(options);
+
+                opened.put(name, new OpenCollection(name, collection));
+                catalog.add(name, options);
                 return true;
 
             } catch (IOException e) {
                 throw new DatabaseException("Cannot create collection '" + collectionName + "': " + e.getMessage(), e);
             }
         }
-        return false;
     }
 
     @Override
     public boolean dropCollection(@NonNull String collectionName) {
-        if (collectionExists(collectionName)) {
-            DbCollection collection = getCollection(collectionName);
-            removeCollection(collectionName);
-
-            if (collection instanceof DbCollectionFile) {
-                ((DbCollectionFile) collection).drop();
+        String name = collectionName.toLowerCase();
+        synchronized (catalog) {
+            if (collections.remove(name) != null) {
+                return true;
+            }
+            if (!catalog.contains(name)) {
+                return false;
+            }
+            catalog.remove(name);
+
+            OpenCollection open = opened.remove(name);
+            if (open != null && open.acquire()) {
+                try {
+                    open.collection.drop();
+                } finally {
+                    open.release();
+                }
+            } else {
+                openCollection(name).drop();
             }
             return true;
         }
-        return false;
     }
 
     @Override
@@ -115,9 +249,16 @@ public class DataSourceFile implements DataSource {
 
     @Override
     public int add(String collectionName, String element, String where) {
-        checkIfCollectionExists(collectionName);
+        return add(collectionName, element, where, durability);
+    }
 
-        return getCollection(collectionName).add(element, where);
+    @Override
+    public int add(String collectionName, String element, String where, @NonNull Durability durability) {
+        return access(collectionName, collection -> {
+            int altered = collection.add(element, where);
+            commit(collection, durability);
+            return altered;
+        });
     }
 
     @Override
@@ -127,26 +268,49 @@ public class DataSourceFile implements DataSource {
 
     @Override
     public int remove(String collectionName, String element, String where) {
-        checkIfCollectionExists(collectionName);
+        return remove(collectionName, element, where, durability);
+    }
 
-        return getCollection(collectionName).remove(element, where);
+    @Override
+    public int remove(String collectionName, String element, String where, @NonNull Durability durability) {
+        return access(collectionName, collection -> {
+            int altered = collection.remove(element, where);
+            commit(collection, durability);
+            return altered;
+        });
     }
 
     @Override
     public Flux<String> select(@NonNull String collectionName, @NonNull String columns, String where) {
-        checkIfCollectionExists(collectionName);
+        return select(collectionName, columns, where, false);
+    }
 
-        Iterator<String> select = getCollection(collectionName).select(columns, where);
+    @Override
+    public Flux<String> select(@NonNull String collectionName, @NonNull String columns, String where, boolean ordered) {
+        checkIfCollectionExists(collectionName);
 
-        Flux<String> stream = Flux.generate(sink -> {
-            if (select.hasNext()) {
-                String json = select.next();
-                sink.next(json);
-            } else {
-                sink.complete();
-            }
-        });
-        return stream.parallel().runOn(Schedulers.parallel()).sequential();
+        if (readMode == ReadMode.ASYNC && !collections.containsKey(collectionName.toLowerCase())) {
+            // read ahead asynchronously, emitted as requested, the scan holds a snapshot so the collection is not closed
+            return Flux.create(sink -> access(collectionName, collection -> {
+                ((DbCollectionFile) collection).selectAsync(columns, where, ordered, sink);
+                return null;
+            }));
+        }
+        // the select holds a snapshot of the collection from the subscription on and the collection stays open until closed
+        return Flux.<String, Access>using(() -> access(collectionName), access -> Flux.<String, Iterator<String>>generate(
+                () -> access.collection instanceof DbCollectionFile
+                      ? ((DbCollectionFile) access.collection).select(columns, where, ordered)
+                      : access.collection.select(columns, where),
+                (iterator, sink) -> {
+                    if (iterator.hasNext()) {
+                        String json = iterator.next();
+                        sink.next(json);
+                    } else {
+                        sink.complete();
+                    }
+                    return iterator;
+                },
+                DataSourceFile::close), Access::close);
     }
 
     @Override
@@ -161,16 +325,31 @@ public class DataSourceFile implements DataSource {
 
     @Override
     public void insert(@NonNull String collectionName, @NonNull Collection<String> data) {
-        checkIfCollectionExists(collectionName);
+        insert(collectionName, data, durability);
+    }
 
-        getCollection(collectionName).insert(data);
+    @Override
+    public void insert(@NonNull String collectionName, @NonNull Collection<String> data, @NonNull Durability durability) {
+        access(collectionName, collection -> {
+            collection.insert(data);
+            commit(collection, durability);
+            return null;
+        });
     }
 
     @Override
     public int update(@NonNull String collectionName, @NonNull String[] columns, @NonNull String[] values, String where) {
-        checkIfCollectionExists(collectionName);
+        return update(collectionName, columns, values, where, durability);
+    }
 
-        return getCollection(collectionName).update(columns, values, where);
+    @Override
+    public int update(@NonNull String collectionName, @NonNull String[] columns, @NonNull String[] values, String where,
+                      @NonNull Durability durability) {
+        return access(collectionName, collection -> {
+            int updated = collection.update(columns, values, where);
+            commit(collection, durability);
+            return updated;
+        });
     }
 
     @Override
@@ -180,9 +359,16 @@ public class DataSourceFile implements DataSource {
 
     @Override
     public int delete(@NonNull String collectionName, String where) {
-        checkIfCollectionExists(collectionName);
+        return delete(collectionName, where, durability);
+    }
 
-        return getCollection(collectionName).delete(where);
+    @Override
+    public int delete(@NonNull String collectionName, String where, @NonNull Durability durability) {
+        return access(collectionName, collection -> {
+            int deleted = collection.delete(where);
+            commit(collection, durability);
+            return deleted;
+        });
     }
 
     @Override
@@ -192,14 +378,50 @@ public class DataSourceFile implements DataSource {
 
     @Override
     public boolean createIndex(@NonNull String collectionName, @NonNull String column) {
-        checkIfCollectionExists(collectionName);
-        return getCollection(collectionName).createIndex(column);
+        return access(collectionName, collection -> {
+            boolean created = collection.createIndex(column);
+            if (created) {
+                catalog.addIndex(collectionName.toLowerCase(), column);
+            }
+            return created;
+        });
+    }
+
+    @Override
+    public boolean createIndex(@NonNull String collectionName, @NonNull String column, @NonNull IndexType type) {
+        return access(collectionName, collection -> {
+            // a migrated index doesn't exist for a while, listed indexes must exist
+            catalog.removeIndex(collectionName.toLowerCase(), column);
+            boolean created = collection.createIndex(column, type);
+            catalog.addIndex(collectionName.toLowerCase(), column);
+            return created;
+        });
     }
 
     @Override
     public boolean dropIndex(@NonNull String collectionName, @NonNull String column) {
-        checkIfCollectionExists(collectionName);
-        return getCollection(collectionName).dropIndex(column);
+        return access(collectionName, collection -> {
+            // listed indexes must exist
+            catalog.removeIndex(collectionName.toLowerCase(), column);
+            return collection.dropIndex(column);
+        });
+    }
+
+    private void commit(DbCollection collection, Durability durability) {
+        if (collection instanceof DbCollectionFile) {
+            ((DbCollectionFile) collection).commit(durability);
+        }
+    }
+
+    private static void close(Iterator<String> select) {
+        if (select instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) select).close();
+
+            } catch (Exception e) {
+                log.warn("Cannot close a select.", e);
+            }
+        }
     }
 
     private void checkIfCollectionExists(String collectionName) {
@@ -210,6 +432,130 @@ public class DataSourceFile implements DataSource {
 
     @Override
     public void cleanUpData() {
-        collections.values().stream().forEach(DbCollection::cleanUp);
+        collections.values().forEach(DbCollection::cleanUp);
+        // only the open collections are changed, the closed ones are not opened again
+        for (OpenCollection open : opened.values()) {
+            if (open.acquire()) {
+                try (Access access = new Access(open.collection, open)) {
+                    access.collection.cleanUp();
+                }
+            }
+        }
+    }
+
+    private void scheduleIdleCheckIfNeeded() {
+        long idleTime = collectionIdleTime;
+        long now = System.currentTimeMillis();
+        long last = lastIdleCheck.get();
+        if (idleTime > 0 && now - last >= idleTime / 2 && lastIdleCheck.compareAndSet(last, now)) {
+            CLOSER.execute(() -> closeIdleCollections(now - idleTime));
+        }
+    }
+
+    /**
+     * Closes open collections not accessed since the time, in use collections are not closed.
+     *
+     * @param idleSince the time in milliseconds
+     * @return the count of closed collections
+     */
+    int closeIdleCollections(long idleSince) {
+        int closed = 0;
+        for (OpenCollection open : opened.values()) {
+            try {
+                if (open.closeIfIdle(idleSince)) {
+                    closed++;
+                }
+            } catch (Exception e) {
+                log.warn("Cannot close the collection '" + open.name + "'.", e);
+            }
+        }
+        if (closed > 0) {
+            log.debug("Closed " + closed + " idle collections.");
+        }
+        return closed;
+    }
+
+    /**
+     * A collection from the catalog opened on the first access. The collection is closed when idle and no operation
+     * uses it, the next access opens it again.
+     */
+    private final class OpenCollection {
+
+        private static final int CLOSED = -1;
+
+        private final String name;
+        private final DbCollectionFile collection;
+
+        // count of running accesses, closed when negative
+        private final AtomicInteger users = new AtomicInteger();
+
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        OpenCollection(String name, DbCollectionFile collection) {
+            this.name = name;
+            this.collection = collection;
+        }
+
+        /**
+         * @return false if the collection was closed
+         */
+        boolean acquire() {
+            while (true) {
+                int count = users.get();
+                if (count == CLOSED) {
+                    synchronized (this) {   // waits for a running close
+                        if (users.get() == CLOSED) {
+                            return false;
+                        }
+                    }
+                } else if (users.compareAndSet(count, count + 1)) {
+                    lastAccess = System.currentTimeMillis();
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            lastAccess = System.currentTimeMillis();
+            users.decrementAndGet();
+        }
+
+        synchronized boolean closeIfIdle(long idleSince) {
+            if (lastAccess > idleSince || !users.compareAndSet(0, CLOSED)) {
+                return false;
+            }
+            boolean closed = false;
+            try {
+                closed = collection.close();
+            } finally {
+                if (closed || !catalog.contains(name)) {
+                    opened.remove(name, this);
+                } else {
+                    users.set(0);
+                }
+            }
+            return closed;
+        }
+    }
+
+    /**
+     * An access to a collection, the collection is not closed until the access is released.
+     */
+    private static final class Access implements AutoCloseable {
+
+        private final DbCollection collection;
+        private final OpenCollection open;
+
+        Access(DbCollection collection, OpenCollection open) {
+            this.collection = collection;
+            this.open = open;
+        }
+
+        @Override
+        public void close() {
+            if (open != null) {
+                open.release();
+            }
+        }
     }
 }
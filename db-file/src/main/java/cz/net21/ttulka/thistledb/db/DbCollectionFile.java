@@ -1,30 +1,82 @@
 package cz.net21.ttulka.thistledb.db;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.commons.io.FileUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import cz.net21.ttulka.thistledb.tson.TSONBinary;
 import cz.net21.ttulka.thistledb.tson.TSONObject;
 import lombok.NonNull;
 import lombok.extern.apachecommons.CommonsLog;
+import reactor.core.publisher.FluxSink;
 
 /**
  * Collection implementation for the file-access.
+ * <p>
+ * The collection is stored in size-bounded segments (@see Segments). Sealed segments with too many deleted records
+ * are compacted in the background, index files with too many deleted positions are cleaned up in the background too.
+ * The I/O of the background maintenance can be limited (@see #setMaintenanceRate).
+ * <p>
+ * Sealed segments get zone maps of frequently filtered elements in the background (@see ZoneMaps),
+ * full scans skip blocks of records not matching the condition by them. Elements set in the options get
+ * bloom filters in the zone maps, so equality conditions on rare values skip most of the blocks.
+ * <p>
+ * Documents found by indexes are cached decoded, the cache is shared by all the collections (@see #setDocumentCacheSize).
+ * <p>
+ * Selects read a snapshot of the collection pinned at their start (@see Snapshots), writers don't wait for them.
+ * A clean-up rewriting the collection files waits until the pinned snapshots are released.
+ * Reactive selects can read the collection asynchronously with read-ahead (@see AsyncScan).
+ * <p>
+ * Inserts run concurrently under the read lock, they append into ranges reserved at the end of the active segment
+ * (@see Appends). Snapshots end at the published end of the appends. Other writes take the write lock.
+ * <p>
+ * When the write-ahead log is enabled, changes are logged before written into the collection files (@see WriteAheadLog).
+ * The collection files and indexes are forced to the disk only by a checkpoint.
+ * <p>
+ * Options of the collection are stored in the file `<collectionName>_meta/options`. With compression enabled,
+ * sealed segments are compressed in the background (@see CompressedSegment). With the binary encoding, documents are
+ * stored as binary TSON (@see TSONBinary) and where clauses and selects decode only the elements they need.
+ * With the identity enabled, documents have a unique element `_id` indexed in the hash table `<collectionName>_meta/id`
+ * (@see IdIndex), a document is found by its id with a single read.
  *
  * @author ttulka
  */
@@ -34,44 +86,586 @@ public class DbCollectionFile implements DbCollection {
     static final char RECORD_SEPARATOR = '\1';
     static final char RECORD_DELETED = '\2';
 
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    public static final IndexType DEFAULT_INDEX_TYPE = IndexType.BTREE;
+
+    static final int COMPACTION_BATCH_SIZE = 1_000;
+
+    static final long CHECKPOINT_LOG_SIZE = 16 * 1024 * 1024;
+
+    static final int BULK_BUFFER_SIZE = 1024 * 1024;
+
+    public static final long DEFAULT_SCAN_PARTITION_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_DOCUMENT_CACHE_SIZE = 32 * 1024 * 1024;
+
+    // size of chunks read ahead by asynchronous scans
+    static final long ASYNC_CHUNK_SIZE = 1024 * 1024;
+
+    // minimal space in percents reserved in records moved by an update, they are likely to be updated again
+    static final int UPDATE_PADDING = 25;
+
+    // maximal time in milliseconds a clean-up waits for readers of pinned snapshots
+    static final long SNAPSHOT_TIMEOUT = 60_000;
+
+    private static final ExecutorService MAINTENANCE = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "thistledb-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // limits the I/O of the maintenance, null for no limit
+    private static volatile RateLimiter maintenanceRateLimiter = null;
+
+    // decoded documents read by indexes, null for no caching
+    private static volatile DocumentCache documentCache = new DocumentCache(DEFAULT_DOCUMENT_CACHE_SIZE);
+
+    // memory of (value, position) pairs sorted in memory when an index is built
+    private static volatile long indexBuildMemory = ExternalSort.DEFAULT_MAX_MEMORY;
+
+    // estimated bytes of changes of hash indexes of a collection buffered in memory
+    private static volatile long indexBufferSize = IndexingFile.DEFAULT_BUFFER_SIZE;
+
     protected final Path path;
 
-    final Indexing indexing;
+    final IdIndexing indexing;
+
+    final Segments segments;
+
+    final ZoneMaps zoneMaps;
+
+    private final ReadMode readMode;
 
-    // For performance reasons we hold the last opened writer in the memory. This is handy when a lot of same operations are proceed together.
-    private Insert insertHolder;
+    private FileFormat format;
+
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private long scanPartitionSize = DEFAULT_SCAN_PARTITION_SIZE;
+    private long zoneMapBlockSize = ZoneMap.DEFAULT_BLOCK_SIZE;
+
+    WriteAheadLog wal;
+
+    private CollectionOptions options;
+
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean checkpointScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean compressionScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean indexCleanUpScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean zoneMapsScheduled = new AtomicBoolean(false);
+    private volatile boolean compactionNeeded = false;
+    private volatile boolean compressionNeeded = false;
+    private volatile boolean zoneMapsNeeded = false;
+
+    // segments are compressed one at a time, temporary files of the compression are shared
+    private final Object compression = new Object();
+
+    // changed when the segments are replaced, a running compaction must stop then
+    private volatile int generation = 0;
+
+    // changed with every invalidation of cached documents, a document read meanwhile must not stay cached
+    private final AtomicLong cacheStamp = new AtomicLong();
+
+    // snapshots pinned by selects and versions of records changed since
+    final Snapshots snapshots = new Snapshots();
+
+    // ranges reserved at the end of the active segment by concurrent appenders
+    final Appends appends = new Appends();
+
+    // ids of documents being inserted, a concurrent insert of the same id is a duplicate
+    private final Set<String> pendingIds = ConcurrentHashMap.newKeySet();
+
+    // For performance reasons we hold idle writers in the memory. This is handy when a lot of same operations are proceed together.
+    private final Deque<Insert> idleInserts = new ConcurrentLinkedDeque<>();
 
     public DbCollectionFile(@NonNull Path path, int cacheExpirationTime) {
+        this(path, cacheExpirationTime, ReadMode.CHANNEL);
+    }
+
+    public DbCollectionFile(@NonNull Path path, int cacheExpirationTime, @NonNull ReadMode readMode) {
+        this(path, cacheExpirationTime, readMode, FileFormat.DEFAULT);
+    }
+
+    /**
+     * @param format the format of the collection file if the file is empty, otherwise the format is detected from the file
+     */
+    DbCollectionFile(@NonNull Path path, int cacheExpirationTime, @NonNull ReadMode readMode, @NonNull FileFormat format) {
         this.path = path;
-        this.indexing = new IndexingFile(path, cacheExpirationTime);
+        BTreeIndexing trees = new BTreeIndexing(new IndexingFile(path, cacheExpirationTime, indexBufferSize));
+        this.indexing = new IdIndexing(trees, idsPath(), this::hasIdentity);
+        this.readMode = readMode;
+        this.format = FileFormat.initialize(path, format);
+        this.segments = new Segments(path);
+        this.zoneMaps = new ZoneMaps(path);
+        this.options = loadOptions(path);
+        this.compressionNeeded = options.getCompression() != Compression.NONE;
+        this.zoneMaps.setBloomFilters(options.getBloomFilters());
+        this.compactionNeeded = segments.sealed().stream()
+                .map(segments::stats)
+                .anyMatch(stats -> stats != null && stats.deadRatio() >= compactionThreshold);
+        this.zoneMapsNeeded = segments.sealed().stream().anyMatch(zoneMaps::needed);
+        loadIds();
+        loadTrees(trees.damaged());
+    }
+
+    /**
+     * Opens the id index of the collection, a missing or corrupted index is rebuilt.
+     */
+    private void loadIds() {
+        if (!hasIdentity() || indexing.load()) {
+            return;
+        }
+        try {
+            if (!isEmpty()) {
+                log.info("Rebuilding the id index of the collection '" + path + "'.");
+                new CreateIndex(Identity.ID, IndexType.HASH).close();
+            }
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot rebuild the id index of a collection: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Rebuilds B+tree indexes not synced after their last change, their pages could be lost.
+     */
+    private void loadTrees(Set<String> damaged) {
+        try {
+            for (String index : damaged) {
+                log.info("Rebuilding the index '" + index + "' of the collection '" + path + "'.");
+                indexing.drop(index);
+                new CreateIndex(index, IndexType.BTREE).close();
+            }
+            if (!damaged.isEmpty()) {
+                indexing.sync();
+            }
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot rebuild an index of a collection: " + e.getMessage(), e);
+        }
+    }
+
+    private boolean hasIdentity() {
+        return options.getIdentity() != Identity.NONE;
+    }
+
+    FileFormat getFormat() {
+        return format;
+    }
+
+    public CollectionOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Sets and stores the options of the collection.
+     *
+     * @param options the options
+     */
+    public void setOptions(@NonNull CollectionOptions options) {
+        lock.writeLock().lock();
+        try {
+            if (options.getEncoding() != this.options.getEncoding()) {
+                if (options.getEncoding() == Encoding.BINARY && format != FileFormat.FRAMED) {
+                    throw new DatabaseException("The binary encoding requires the " + FileFormat.FRAMED + " format of the collection file.");
+                }
+                if (!isEmpty()) {
+                    throw new DatabaseException("The encoding of a non-empty collection cannot be changed.");
+                }
+            }
+            if (options.getIdentity() != this.options.getIdentity()) {
+                if (!isEmpty()) {
+                    throw new DatabaseException("The identity of a non-empty collection cannot be changed.");
+                }
+                indexing.dropIds();
+            }
+            Properties properties = new Properties();
+            properties.putAll(options.toMap());
+
+            Files.createDirectories(optionsPath().getParent());
+            try (OutputStream out = Files.newOutputStream(optionsPath())) {
+                properties.store(out, null);
+            }
+            this.options = options;
+            this.compressionNeeded = options.getCompression() != Compression.NONE;
+            this.zoneMaps.setBloomFilters(options.getBloomFilters());
+            this.zoneMapsNeeded = segments.sealed().stream().anyMatch(zoneMaps::needed);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot store options of a collection: " + e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        scheduleMaintenanceIfNeeded();
+    }
+
+    /**
+     * Loads the stored options of a collection without opening it.
+     *
+     * @param path the path to the collection file
+     * @return the options, the default options if not stored
+     */
+    static CollectionOptions loadOptions(@NonNull Path path) {
+        Path optionsPath = optionsPath(path);
+        if (!Files.exists(optionsPath)) {
+            return CollectionOptions.DEFAULT;
+        }
+        try (InputStream in = Files.newInputStream(optionsPath)) {
+            Properties properties = new Properties();
+            properties.load(in);
+
+            Map<String, String> map = new HashMap<>();
+            properties.stringPropertyNames().forEach(key -> map.put(key, properties.getProperty(key)));
+            return CollectionOptions.fromMap(map);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot load options of a collection: " + e.getMessage(), e);
+        }
+    }
+
+    private Path optionsPath() {
+        return optionsPath(path);
+    }
+
+    private static Path optionsPath(Path path) {
+        return Paths.get(path + "_meta").resolve("options");
+    }
+
+    private Path idsPath() {
+        return Paths.get(path + "_meta").resolve("id");
+    }
+
+    private boolean isEmpty() throws IOException {
+        for (int segment : segments.all()) {
+            if (Files.size(segments.path(segment)) > format.dataOffset()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param segmentSize the size of a segment file, when reached a new segment is started
+     */
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * @param compactionThreshold the ratio of dead bytes in a sealed segment to start a background compaction
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * @param scanPartitionSize the size of a part of the collection read by one worker in a parallel scan
+     */
+    public void setScanPartitionSize(long scanPartitionSize) {
+        this.scanPartitionSize = scanPartitionSize;
+    }
+
+    /**
+     * @param zoneMapBlockSize the size of a block of records with own statistics in zone maps
+     */
+    void setZoneMapBlockSize(long zoneMapBlockSize) {
+        this.zoneMapBlockSize = zoneMapBlockSize;
+    }
+
+    /**
+     * Enables the write-ahead log of the collection. Changes left in the log by a crash are replayed.
+     *
+     * @param batchInterval the interval of forcing batched changes in milliseconds
+     */
+    public void enableWriteAheadLog(long batchInterval) {
+        lock.writeLock().lock();
+        try {
+            if (wal == null) {
+                wal = new WriteAheadLog(Paths.get(path + "_wal").resolve("log"), batchInterval);
+                try (Recovery recovery = new Recovery()) {
+                    int replayed = recovery.recover();
+                    if (replayed > 0) {
+                        log.info("Replayed " + replayed + " changes of the collection '" + path + "' from the write-ahead log.");
+                    }
+                }
+                checkpoint();
+            }
+        } catch (Exception e) {
+            throw new DatabaseException("Cannot recover a collection: " + e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Makes the changes done so far as durable as required.
+     *
+     * @param durability the durability
+     */
+    public void commit(@NonNull Durability durability) {
+        if (wal != null) {
+            wal.commit(durability);
+        }
     }
 
     private ReadWriteLock lock = new ReentrantReadWriteLock();
 
+    /**
+     * Selects documents from a snapshot of the collection: documents inserted, updated or deleted after the select
+     * was created are seen as they were before the change.
+     * <p>
+     * The snapshot is pinned until the select is read to the end or closed, a clean-up of the collection waits for it.
+     */
     @Override
     public Iterator<String> select(@NonNull String element, String where) {
         lock.readLock().lock();
+        Snapshots.Snapshot snapshot = null;
+        try {
+            countFilters(Where.create(where));
+            snapshot = pinSnapshot();
+            return new Select(element, where, snapshot, true);
+
+        } catch (Exception e) {
+            releaseSnapshot(snapshot);
+            throw new DatabaseException("Cannot work with a collection: " + e.getMessage(), e);
+        } finally {
+            lock.readLock().unlock();
+            scheduleZoneMapsIfNeeded();
+        }
+    }
+
+    /**
+     * Selects documents with a parallel scan when the condition cannot use indexes.
+     * <p>
+     * The collection is split into partitions of records, every partition is scanned by a worker.
+     * A small collection is scanned sequentially.
+     *
+     * @param ordered true if the documents should come in the order of the collection file
+     */
+    public Iterator<String> select(@NonNull String element, String where, boolean ordered) {
+        lock.readLock().lock();
+        Snapshots.Snapshot snapshot = null;
         try {
-            return new Select(element, where);
+            snapshot = pinSnapshot();
+            if (countFilters(Where.create(where))) {
+                List<Supplier<Iterator<String>>> partitions = scanPartitions(element, where, snapshot);
+                if (partitions.size() > 1) {
+                    Snapshots.Snapshot pinned = snapshot;
+                    return new ParallelScan(partitions, ordered, () -> snapshots.release(pinned));
+                }
+            }
+            return new Select(element, where, snapshot, true);
 
         } catch (Exception e) {
+            releaseSnapshot(snapshot);
             throw new DatabaseException("Cannot work with a collection: " + e.getMessage(), e);
         } finally {
             lock.readLock().unlock();
+            scheduleZoneMapsIfNeeded();
+        }
+    }
+
+    /**
+     * Selects asynchronously into the sink, the results are emitted as requested by the downstream (@see AsyncScan).
+     * <p>
+     * Full scans of framed segments read chunks of the collection ahead, other selects run on the I/O pool as they are.
+     *
+     * @param ordered true if the results of a full scan should come in the order of the collection
+     * @param sink    the sink to emit the results into
+     */
+    void selectAsync(@NonNull String element, String where, boolean ordered, @NonNull FluxSink<String> sink) {
+        lock.readLock().lock();
+        Snapshots.Snapshot snapshot = null;
+        try {
+            snapshot = pinSnapshot();
+            Snapshots.Snapshot pinned = snapshot;
+
+            List<AsyncScan.Chunk> chunks;
+            if (countFilters(Where.create(where))) {
+                chunks = scanPartitions(snapshot, ASYNC_CHUNK_SIZE, (segment, start, end, compressed) -> new AsyncScan.Chunk(
+                        compressed || format != FileFormat.FRAMED ? null : segments.path(segment), start, end,
+                        bytes -> chunkSelect(element, where, pinned, segment, start, end, bytes)));
+            } else {
+                chunks = Collections.singletonList(new AsyncScan.Chunk(null, 0, 0, bytes -> {
+                    try {
+                        return new Select(element, where, pinned, false);
+
+                    } catch (IOException e) {
+                        throw new DatabaseException("Cannot read a collection: " + e.getMessage(), e);
+                    }
+                }));
+            }
+            new AsyncScan(chunks, ordered, sink, () -> snapshots.release(pinned)).start();
+
+        } catch (Exception e) {
+            releaseSnapshot(snapshot);
+            sink.error(new DatabaseException("Cannot work with a collection: " + e.getMessage(), e));
+        } finally {
+            lock.readLock().unlock();
+            scheduleZoneMapsIfNeeded();
+        }
+    }
+
+    private Iterator<String> chunkSelect(String element, String where, Snapshots.Snapshot snapshot, int segment, long start, long end, ByteBuffer bytes) {
+        try {
+            return new Select(element, where, snapshot, false, Segments.position(segment, start), Segments.position(segment, end), bytes);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot read a collection: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Counts elements filtered by a full scan, zone maps are built for frequently filtered elements.
+     *
+     * @return true if the condition needs a full scan
+     */
+    private boolean countFilters(Where where) {
+        if (IndexingWhere.isIndexed(where, indexing)) {
+            return false;
+        }
+        if (zoneMaps.filtered(where)) {
+            zoneMapsNeeded = true;
+        }
+        return true;
+    }
+
+    /**
+     * Pins a snapshot of the collection at its current end. Must be called under the read lock.
+     */
+    private Snapshots.Snapshot pinSnapshot() throws IOException {
+        synchronized (appends) {
+            if (appends.isOpen()) {
+                return snapshots.pin(appends.published(), generation);
+            }
+        }
+        int active = segments.active();
+        Path activePath = segments.path(active);
+        long size = Files.exists(activePath) ? Files.size(activePath) : 0;
+        return snapshots.pin(Segments.position(active, size), generation);
+    }
+
+    private void releaseSnapshot(Snapshots.Snapshot snapshot) {
+        if (snapshot != null) {
+            snapshots.release(snapshot);
+        }
+    }
+
+    /**
+     * Takes the write lock when no snapshot is pinned. The readers of pinned snapshots are awaited without the lock,
+     * so other operations continue meanwhile. When they don't finish in time, the lock is taken anyway
+     * and their further reading fails.
+     */
+    private void lockWithoutSnapshots() {
+        long deadline = System.currentTimeMillis() + SNAPSHOT_TIMEOUT;
+        while (true) {
+            boolean released;
+            try {
+                released = snapshots.await(Math.max(deadline - System.currentTimeMillis(), 0));
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DatabaseException("Interrupted while waiting for snapshots of a collection.", e);
+            }
+            lock.writeLock().lock();
+            if (!released) {
+                log.warn("Snapshots of the collection '" + path + "' not released in " + SNAPSHOT_TIMEOUT + " ms, their readers will fail.");
+                return;
+            }
+            if (snapshots.pinned() == 0) {
+                return;
+            }
+            lock.writeLock().unlock();  // pinned meanwhile
+        }
+    }
+
+    /**
+     * Splits the snapshot of the collection into partitions aligned to records.
+     */
+    private List<Supplier<Iterator<String>>> scanPartitions(String element, String where, Snapshots.Snapshot snapshot) throws IOException {
+        return scanPartitions(snapshot, scanPartitionSize,
+                              (segment, start, end, compressed) -> scanPartition(element, where, snapshot, segment, start, end));
+    }
+
+    /**
+     * Splits the snapshot of the collection into partitions aligned to records. A compressed segment is one partition.
+     *
+     * @param partitionSize the maximal size of a partition
+     * @param partition     creates a partition
+     */
+    private <T> List<T> scanPartitions(Snapshots.Snapshot snapshot, long partitionSize, ScanPartition<T> partition) throws IOException {
+        List<T> partitions = new ArrayList<>();
+        int last = Segments.segment(snapshot.end());
+        for (int segment : new ArrayList<>(segments.all())) {
+            if (segment > last) {
+                break;
+            }
+            try (FileChannel channel = FileChannel.open(segments.path(segment), StandardOpenOption.READ)) {
+                long start = format.dataOffset();
+                long size = channel.size();
+
+                boolean compressed = CompressedSegment.isCompressed(channel);
+                if (compressed) {
+                    size = new CompressedSegment(channel).size();
+                } else {
+                    if (segment == last) {
+                        size = Segments.offset(snapshot.end());
+                    }
+                    while (size - start > partitionSize) {
+                        long end = format.nextRecordPosition(channel, start + partitionSize, size);
+                        partitions.add(partition.create(segment, start, end, false));
+                        start = end;
+                    }
+                }
+                if (size > start) {
+                    partitions.add(partition.create(segment, start, size, compressed));
+                }
+            } catch (NoSuchFileException e) {
+                // removed by compaction
+            }
         }
+        return partitions;
+    }
+
+    @FunctionalInterface
+    private interface ScanPartition<T> {
+
+        /**
+         * @param segment    the segment of the partition
+         * @param start      the offset of the first record
+         * @param end        the offset behind the last record
+         * @param compressed true if the segment is compressed
+         */
+        T create(int segment, long start, long end, boolean compressed);
+    }
+
+    private Supplier<Iterator<String>> scanPartition(String element, String where, Snapshots.Snapshot snapshot, int segment, long start, long end) {
+        return () -> {
+            try {
+                return new Select(element, where, snapshot, false, Segments.position(segment, start), Segments.position(segment, end));
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot read a collection: " + e.getMessage(), e);
+            }
+        };
     }
 
     @Override
     public void insert(@NonNull Collection<String> jsonData) {
-        lock.writeLock().lock();
+        // inserts only append, they run concurrently under the read lock (@see Appends)
+        lock.readLock().lock();
+        Insert insert = idleInserts.poll();
         try {
-            Insert insert = insertHolder != null ? insertHolder : (insertHolder = new Insert());
+            if (insert == null) {
+                insert = new Insert();
+            }
             insert.insert(jsonData);
 
         } catch (Exception e) {
             throw new DatabaseException("Cannot insertRecord into a collection: " + e.getMessage(), e);
         } finally {
-            lock.writeLock().unlock();
+            if (insert != null) {
+                idleInserts.push(insert);
+            }
+            lock.readLock().unlock();
+            scheduleMaintenanceIfNeeded();
         }
     }
 
@@ -89,6 +683,7 @@ public class DbCollectionFile implements DbCollection {
             throw new DatabaseException("Cannot delete from a collection: " + e.getMessage(), e);
         } finally {
             lock.writeLock().unlock();
+            scheduleMaintenanceIfNeeded();
         }
     }
 
@@ -102,16 +697,34 @@ public class DbCollectionFile implements DbCollection {
             throw new DatabaseException("Cannot update a collection: " + e.getMessage(), e);
         } finally {
             lock.writeLock().unlock();
+            scheduleMaintenanceIfNeeded();
         }
     }
 
     @Override
     public boolean createIndex(String column) {
-        if (!indexing.exists(column)) {
-            lock.writeLock().lock();
-            try (CreateIndex createIndex = new CreateIndex(column)) {
-                return true;
+        return !indexing.exists(column) && createIndex(column, DEFAULT_INDEX_TYPE);
+    }
 
+    /**
+     * Creates an index of the type, an existing index of another type is migrated: dropped and built again in the type.
+     */
+    @Override
+    public boolean createIndex(@NonNull String column, @NonNull IndexType type) {
+        if (indexing.type(column) != type) {
+            lock.writeLock().lock();
+            try {
+                IndexType existing = indexing.type(column);
+                if (existing == type) {
+                    return false;
+                }
+                if (existing != null) {
+                    log.info("Migrating the index '" + column + "' of the collection '" + path + "' from " + existing + " to " + type + ".");
+                    new DropIndex(column);
+                }
+                try (CreateIndex createIndex = new CreateIndex(column, type)) {
+                    return true;
+                }
             } catch (Exception e) {
                 throw new DatabaseException("Cannot create an insertRecord for a collection: " + e.getMessage(), e);
             } finally {
@@ -121,6 +734,13 @@ public class DbCollectionFile implements DbCollection {
         return false;
     }
 
+    /**
+     * @return the type of the index, or null if the index doesn't exist
+     */
+    IndexType indexType(@NonNull String column) {
+        return indexing.type(column);
+    }
+
     @Override
     public boolean dropIndex(String column) {
         if (indexing.exists(column)) {
@@ -138,6 +758,13 @@ public class DbCollectionFile implements DbCollection {
         return false;
     }
 
+    /**
+     * Marks the indexes as existing, e.g. when they are known from the catalog, their existence is not checked on the disk.
+     */
+    void existingIndexes(@NonNull Collection<String> indexes) {
+        indexing.existing(indexes);
+    }
+
     @Override
     public int add(String element, String where) {
         lock.writeLock().lock();
@@ -148,6 +775,7 @@ public class DbCollectionFile implements DbCollection {
             throw new DatabaseException("Cannot alter (add) a collection: " + e.getMessage(), e);
         } finally {
             lock.writeLock().unlock();
+            scheduleMaintenanceIfNeeded();
         }
     }
 
@@ -161,46 +789,615 @@ public class DbCollectionFile implements DbCollection {
             throw new DatabaseException("Cannot alter (add) a collection: " + e.getMessage(), e);
         } finally {
             lock.writeLock().unlock();
+            scheduleMaintenanceIfNeeded();
         }
     }
 
     @Override
     public void cleanUp() {
-        lock.writeLock().lock();
+        lockWithoutSnapshots();
         closeInsertHolder();
-        try (CleanUp cleanUp = new CleanUp()) {
+        try (CleanUp cleanUp = new CleanUp(format)) {
             indexing.cleanUp();
+            checkpoint();
 
         } catch (Exception e) {
             throw new DatabaseException("Cannot clean up a collection: " + e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+            scheduleMaintenanceIfNeeded();
+        }
+    }
+
+    /**
+     * Rewrites the collection file into the format. The collection is cleaned up by the way.
+     *
+     * @param format the new format
+     * @return true if the collection was converted, false if the collection is already in the format
+     */
+    boolean convert(@NonNull FileFormat format) {
+        if (this.format == format) {
+            return false;
+        }
+        if (format != FileFormat.FRAMED && options.getEncoding() == Encoding.BINARY) {
+            throw new DatabaseException("The binary encoding requires the " + FileFormat.FRAMED + " format of the collection file.");
+        }
+        lockWithoutSnapshots();
+        closeInsertHolder();
+        try (CleanUp cleanUp = new CleanUp(format)) {
+            this.format = format;
+            indexing.cleanUp();
+            checkpoint();
+            return true;
+
+        } catch (Exception e) {
+            throw new DatabaseException("Cannot convert a collection: " + e.getMessage(), e);
         } finally {
             lock.writeLock().unlock();
         }
     }
 
     protected void drop() {
+        lock.writeLock().lock();
         closeInsertHolder();
         try {
+            generation++;
+            invalidateAllCached();
             Files.delete(path);
+            segments.drop();
+            appends.close();
+            zoneMaps.drop();
             indexing.dropAll();
+            dropWriteAheadLog();
+            FileUtils.deleteDirectory(optionsPath().getParent().toFile());
 
         } catch (Exception e) {
             throw new DatabaseException("Cannot drop a collection: " + e.getMessage(), e);
-        }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if no select holds a snapshot, no insert is being written and no background maintenance is scheduled
+     */
+    boolean isIdle() {
+        return snapshots.pinned() == 0 && (!appends.isOpen() || appends.isPublished())
+               && !compactionScheduled.get() && !checkpointScheduled.get() && !compressionScheduled.get()
+               && !indexCleanUpScheduled.get() && !zoneMapsScheduled.get();
+    }
+
+    /**
+     * Closes the idle collection: the changes are checkpointed, open files are closed and cached documents
+     * and positions are evicted. The collection must not be accessed after closing, it can be opened again.
+     *
+     * @return true if the collection was closed, false if it is not idle
+     */
+    boolean close() {
+        lock.writeLock().lock();
+        try {
+            if (!isIdle()) {
+                return false;
+            }
+            checkpoint();
+            closeInsertHolder();
+            appends.close();
+            if (wal != null) {
+                wal.close();
+                wal = null;
+            }
+            indexing.close();
+            invalidateAllCached();
+            return true;
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot close a collection: " + e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts sealed segments with the ratio of dead bytes reaching the compaction threshold.
+     * <p>
+     * Live records of a segment are moved into the active segment in batches, each batch under the write lock,
+     * so reads and writes continue meanwhile. The emptied segment is removed at the end.
+     *
+     * @return the count of compacted segments
+     */
+    int compact() {
+        int compacted = 0;
+        for (int segment : new ArrayList<>(segments.sealed())) {
+            if (deadRatio(segment) >= compactionThreshold && compactSegment(segment)) {
+                compacted++;
+            }
+        }
+        return compacted;
+    }
+
+    private boolean compactSegment(int segment) {
+        final int compactionGeneration = generation;
+        long offset = -1;
+        do {
+            long movedBytes = 0;
+            lock.writeLock().lock();
+            try {
+                if (compactionGeneration != generation || !segments.exists(segment)) {
+                    return false;
+                }
+                try (Compaction compaction = new Compaction(segment, offset)) {
+                    offset = compaction.moveRecords(COMPACTION_BATCH_SIZE);
+                    movedBytes = compaction.getMovedBytes();
+                }
+                if (offset == -1) {
+                    // the moved records must be durable before their origin disappears
+                    checkpoint();
+                    segments.remove(segment, format);
+                    zoneMaps.remove(segment);
+                    log.debug("Segment " + segment + " of the collection '" + path + "' compacted.");
+                }
+            } catch (Exception e) {
+                throw new DatabaseException("Cannot compact a collection: " + e.getMessage(), e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            throttleMaintenance(2 * movedBytes);    // read and written
+        } while (offset != -1);
+
+        return true;
+    }
+
+    private double deadRatio(int segment) {
+        lock.writeLock().lock();
+        try {
+            // the segment could be compacted meanwhile
+            return segments.exists(segment) ? stats(segment).deadRatio() : 0;
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot read a collection: " + e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the stats of live and dead records of all the segments
+     */
+    StorageStats stats() {
+        lock.writeLock().lock();
+        try {
+            StorageStats stats = StorageStats.EMPTY;
+            for (int segment : segments.all()) {
+                stats = stats.add(stats(segment));
+            }
+            return stats;
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot read a collection: " + e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the stats of the segment. When not known yet, the records of the segment are counted.
+     * Must be called under the write lock.
+     */
+    private StorageStats stats(int segment) throws IOException {
+        StorageStats stats = segments.stats(segment);
+        if (stats != null) {
+            return stats;
+        }
+        try (SegmentAccess access = new SegmentAccess(FileChannel.open(segments.path(segment), StandardOpenOption.READ))) {
+            RecordReader reader = access.reader();
+            reader.position(format.dataOffset());
+            long liveRecords = 0;
+            long liveBytes = 0;
+            while (reader.nextBytes() != null) {
+                liveRecords++;
+                liveBytes += reader.position() - reader.recordPosition();
+            }
+            long deadBytes = Math.max(access.size() - format.dataOffset() - liveBytes, 0);
+            stats = new StorageStats(liveRecords, liveBytes, reader.skippedRecords(), deadBytes);
+        }
+        segments.setStats(segment, stats);
+        return stats;
+    }
+
+    /**
+     * Forces the collection files and indexes to the disk and truncates the write-ahead log.
+     * Must be called under the write lock.
+     */
+    void checkpoint() throws IOException {
+        forceData();
+        indexing.sync();
+        if (wal != null) {
+            wal.truncate();
+        }
+        segments.storeStats();
+        zoneMaps.store();
+        if (!zoneMaps.bloomFilters().isEmpty() && log.isDebugEnabled()) {
+            log.debug("Bloom filters of the collection '" + path + "': " + zoneMaps.bloomFilterStats());
+        }
+    }
+
+    /**
+     * @return the counters of blocks checked by bloom filters since the collection was opened
+     */
+    BloomFilterStats bloomFilterStats() {
+        return zoneMaps.bloomFilterStats();
+    }
+
+    private void forceData() throws IOException {
+        for (int segment : segments.all()) {
+            try (FileChannel channel = FileChannel.open(segments.path(segment), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+    }
+
+    private void dropWriteAheadLog() throws IOException {
+        if (wal != null) {
+            wal.close();
+            FileUtils.deleteDirectory(wal.getPath().getParent().toFile());
+            wal = null;
+        }
+    }
+
+    /**
+     * Compresses sealed segments not compressed yet, when the compression is enabled.
+     *
+     * @return the count of compressed segments
+     */
+    int compress() {
+        if (options.getCompression() == Compression.NONE || format != FileFormat.FRAMED) {
+            return 0;
+        }
+        int compressed = 0;
+        synchronized (compression) {
+            for (int segment : new ArrayList<>(segments.sealed())) {
+                if (compressSegment(segment)) {
+                    compressed++;
+                }
+            }
+        }
+        return compressed;
+    }
+
+    /**
+     * The segment is compressed into a temporary file without holding a lock of the collection. The file replaces the segment
+     * under the write lock only when the segment was not modified meanwhile.
+     */
+    private boolean compressSegment(int segment) {
+        final int compressionGeneration = generation;
+        Path source = segments.path(segment);
+        Path target = segments.getDir().resolve(String.format("%08d.z.tmp", segment));
+        try {
+            long version;
+            lock.readLock().lock();
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                if (compressionGeneration != generation || !segments.isSealed(segment) || CompressedSegment.isCompressed(channel)) {
+                    return false;
+                }
+                version = segments.version(segment);
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            long size;
+            Files.createDirectories(target.getParent());
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                size = CompressedSegment.compress(channel, format, target);
+            }
+            throttleMaintenance(size + Files.size(target));
+
+            lock.writeLock().lock();
+            try {
+                if (compressionGeneration != generation || !segments.exists(segment) || segments.version(segment) != version) {
+                    Files.deleteIfExists(target);
+                    return false;
+                }
+                checkpoint();
+                Files.move(target, source, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                log.debug("Segment " + segment + " of the collection '" + path + "' compressed from " + size + " to " + Files.size(source) + " bytes.");
+                return true;
+
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (NoSuchFileException e) {
+            return false;   // removed meanwhile
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot compress a collection: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Builds zone maps of the tracked elements for sealed segments without them.
+     *
+     * @return the count of built zone maps
+     */
+    int buildZoneMaps() {
+        int built = 0;
+        for (int segment : new ArrayList<>(segments.sealed())) {
+            if (zoneMaps.needed(segment) && buildZoneMap(segment)) {
+                built++;
+            }
+        }
+        return built;
+    }
+
+    /**
+     * The zone map is built without holding a lock. It's set under the write lock only when the segment
+     * was not modified meanwhile, a later update in place widens it.
+     */
+    private boolean buildZoneMap(int segment) {
+        final int buildGeneration = generation;
+        try {
+            long version;
+            lock.readLock().lock();
+            try {
+                if (buildGeneration != generation || !segments.isSealed(segment)) {
+                    return false;
+                }
+                version = segments.version(segment);
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            ZoneMap zoneMap;
+            long size;
+            try (SegmentAccess access = new SegmentAccess(FileChannel.open(segments.path(segment), StandardOpenOption.READ))) {
+                RecordReader reader = access.reader();
+                reader.position(format.dataOffset());
+                size = access.size();
+
+                ZoneMap.Builder builder = new ZoneMap.Builder(zoneMaps.elements(), zoneMaps.bloomFilters(), format.dataOffset(), zoneMapBlockSize);
+                ByteBuffer data;
+                while ((data = reader.nextBytes()) != null) {
+                    if (options.getEncoding() == Encoding.BINARY) {
+                        builder.add(reader.recordPosition(), new TSONBinary(data)::findByPath);
+                    } else {
+                        builder.add(reader.recordPosition(), new TSONObject(reader.decode(data))::findByPath);
+                    }
+                }
+                zoneMap = builder.build(size);
+            }
+            throttleMaintenance(size);
+
+            lock.writeLock().lock();
+            try {
+                if (buildGeneration != generation || !segments.exists(segment) || segments.version(segment) != version) {
+                    zoneMapsNeeded = true;  // try again later
+                    return false;
+                }
+                zoneMaps.put(segment, zoneMap);
+                log.debug("Zone map of the segment " + segment + " of the collection '" + path + "' built with " + zoneMap.blocks() + " blocks.");
+                return true;
+
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (NoSuchFileException e) {
+            return false;   // removed meanwhile
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot build a zone map of a collection: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Cleans up index files with the ratio of dead bytes reaching the compaction threshold.
+     * <p>
+     * Every file is cleaned up under the write lock, so reads and writes continue between them.
+     *
+     * @return the count of cleaned-up index files
+     */
+    int cleanUpIndexes() {
+        final int cleanUpGeneration = generation;
+        int cleaned = 0;
+        while (true) {
+            long size;
+            lock.writeLock().lock();
+            try {
+                if (cleanUpGeneration != generation) {
+                    return cleaned;
+                }
+                size = indexing.cleanUpNext(compactionThreshold);
+
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (size < 0) {
+                return cleaned;
+            }
+            cleaned++;
+            throttleMaintenance(2 * size);  // read and written
+        }
+    }
+
+    /**
+     * Limits the I/O of the background maintenance (compaction, compression and clean-up of indexes) of all the collections,
+     * so the maintenance doesn't slow down foreground operations too much.
+     *
+     * @param bytesPerSecond the maximal amount of bytes read and written per second, zero for no limit
+     */
+    public static void setMaintenanceRate(long bytesPerSecond) {
+        maintenanceRateLimiter = bytesPerSecond > 0 ? RateLimiter.create(bytesPerSecond) : null;
+    }
+
+    /**
+     * Sets the size of the cache of decoded documents read by indexes, shared by all the collections.
+     * The cached documents are dropped.
+     *
+     * @param bytes the maximal estimated size of the cached documents in bytes, zero for no caching
+     */
+    public static void setDocumentCacheSize(long bytes) {
+        documentCache = bytes > 0 ? new DocumentCache(bytes) : null;
+    }
+
+    /**
+     * Sets the memory for sorting values of a new index, more values are sorted in spill files next to the collection.
+     *
+     * @param bytes the maximal estimated size of values with positions held in memory in bytes
+     */
+    public static void setIndexBuildMemory(long bytes) {
+        indexBuildMemory = bytes;
+    }
+
+    /**
+     * Sets the size of the buffer of changes of hash indexes of collections opened later, the changes are written into
+     * the index files in batches when the buffer is full or by a checkpoint.
+     *
+     * @param bytes the maximal estimated size of the buffered changes of a collection in bytes, zero for no buffering
+     */
+    public static void setIndexBufferSize(long bytes) {
+        indexBufferSize = bytes;
+    }
+
+    /**
+     * @return the hits and misses of the document cache since its size was set
+     */
+    public static CacheStats getDocumentCacheStats() {
+        DocumentCache cache = documentCache;
+        return cache != null ? cache.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Removes the document on the position from the cache. Must be called under the write lock before and after the record is changed,
+     * a document read while the record is being changed is not cached then.
+     */
+    private void invalidateCached(long position) {
+        DocumentCache cache = documentCache;
+        if (cache != null) {
+            cacheStamp.incrementAndGet();
+            cache.invalidate(path, position);
+        }
+    }
+
+    private void invalidateAllCached() {
+        DocumentCache cache = documentCache;
+        if (cache != null) {
+            cacheStamp.incrementAndGet();
+            cache.invalidateAll(path);
+        }
+    }
+
+    /**
+     * Waits until the background maintenance may continue after processing the bytes.
+     */
+    private static void throttleMaintenance(long bytes) {
+        RateLimiter limiter = maintenanceRateLimiter;
+        if (limiter != null && bytes > 0) {
+            limiter.acquire((int) Math.min(bytes, Integer.MAX_VALUE));
+        }
+    }
+
+    private void scheduleMaintenanceIfNeeded() {
+        scheduleCheckpointIfNeeded();
+        scheduleCompactionIfNeeded();
+        scheduleIndexCleanUpIfNeeded();
+        scheduleCompressionIfNeeded();
+        scheduleZoneMapsIfNeeded();
+    }
+
+    private void scheduleZoneMapsIfNeeded() {
+        if (zoneMapsNeeded && zoneMapsScheduled.compareAndSet(false, true)) {
+            zoneMapsNeeded = false;
+            MAINTENANCE.execute(() -> {
+                try {
+                    buildZoneMaps();
+
+                } catch (Exception e) {
+                    log.error("Cannot build zone maps of the collection '" + path + "'.", e);
+                } finally {
+                    zoneMapsScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    private void scheduleIndexCleanUpIfNeeded() {
+        if (indexing.cleanUpNeeded(compactionThreshold) && indexCleanUpScheduled.compareAndSet(false, true)) {
+            MAINTENANCE.execute(() -> {
+                try {
+                    cleanUpIndexes();
+
+                } catch (Exception e) {
+                    log.error("Cannot clean up indexes of the collection '" + path + "'.", e);
+                } finally {
+                    indexCleanUpScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    private void scheduleCompressionIfNeeded() {
+        if (compressionNeeded && compressionScheduled.compareAndSet(false, true)) {
+            compressionNeeded = false;
+            MAINTENANCE.execute(() -> {
+                try {
+                    compress();
+
+                } catch (Exception e) {
+                    log.error("Cannot compress the collection '" + path + "'.", e);
+                } finally {
+                    compressionScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    private void scheduleCheckpointIfNeeded() {
+        if (wal != null && wal.size() >= CHECKPOINT_LOG_SIZE && checkpointScheduled.compareAndSet(false, true)) {
+            MAINTENANCE.execute(() -> {
+                lock.writeLock().lock();
+                try {
+                    checkpoint();
+
+                } catch (Exception e) {
+                    log.error("Cannot checkpoint the collection '" + path + "'.", e);
+                } finally {
+                    lock.writeLock().unlock();
+                    checkpointScheduled.set(false);
+                }
+            });
+        }
     }
 
-    String serialize(String tson) {
-        return tson;
+    private void scheduleCompactionIfNeeded() {
+        if (compactionNeeded && compactionScheduled.compareAndSet(false, true)) {
+            compactionNeeded = false;
+            MAINTENANCE.execute(() -> {
+                try {
+                    compact();
+
+                } catch (Exception e) {
+                    log.error("Cannot compact the collection '" + path + "'.", e);
+                } finally {
+                    compactionScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    byte[] serialize(String json) {
+        if (options.getEncoding() == Encoding.BINARY) {
+            return TSONBinary.encode(new TSONObject(json));
+        }
+        return json.getBytes(StandardCharsets.UTF_8);
     }
 
-    String deserialize(String tson) {
-        return tson;
+    String deserialize(byte[] data) {
+        if (options.getEncoding() == Encoding.BINARY) {
+            return new TSONBinary(ByteBuffer.wrap(data)).toString();
+        }
+        return new String(data, StandardCharsets.UTF_8);
     }
 
     private void closeInsertHolder() {
-        if (insertHolder != null) {
-            insertHolder.close();
-            insertHolder = null;
+        Insert insert;
+        while ((insert = idleInserts.poll()) != null) {
+            insert.close();
         }
     }
 
@@ -209,110 +1406,828 @@ public class DbCollectionFile implements DbCollection {
      */
     abstract class DbAccess implements AutoCloseable {
 
-        protected final SeekableByteChannel channel;
+        // open segments of this access
+        private final Map<Integer, SegmentAccess> openSegments = new HashMap<>();
+
+        protected final Encoding encoding = options.getEncoding();
+
+        // segment of the sequential reading
+        private int segment = 0;
+
+        // reader of the last read record
+        private RecordReader actualReader;
+
+        private long positionOfActualRecord = 0;
+        private long sizeOfActualRecord = 0;
+        private Long maxPosition = null;
+
+        private boolean finished = false;
+
+        private Map<Where, IndexingWhere> indexingWheres = new HashMap<>();
+
+        // the scan is known not to be skippable by zone maps until this position
+        private long zoneCheckedUntil = -1;
+
+        // the block being read was let through by a bloom filter, it's a false positive if no record matches
+        private boolean bloomFilterPassed = false;
+        private boolean blockMatched = false;
+
+        // buffer for bulk appends, allocated on demand
+        private ByteBuffer bulkBuffer;
+
+        // records logged to be overwritten in place by their positions, written after the log is forced
+        private final Map<Long, ByteBuffer> overwrites = new TreeMap<>();
+        private long overwritesBytes = 0;
+
+        // the snapshot read by this access, null for reading the actual state
+        private Snapshots.Snapshot snapshot;
+        // preserved versions from this position on are not read yet
+        private long versionsFrom = 0;
+        // positions read from indexes, their preserved versions are read already
+        private Set<Long> indexedPositions;
+        // the last read record is a preserved version
+        private boolean actualPreserved = false;
+
+        // bytes read ahead from the position, null if nothing is read ahead
+        private ByteBuffer prefetched;
+        private long prefetchedPosition;
+
+        protected DbAccess() throws IOException {
+            super();
+        }
+
+        protected long getPositionOfActualRecord() {
+            return positionOfActualRecord;
+        }
+
+        protected long getSizeOfActualRecord() {
+            return sizeOfActualRecord;
+        }
+
+        /**
+         * Sets the bytes read ahead, the segment must not be open yet.
+         *
+         * @param position the position of the bytes
+         * @param bytes    the bytes read ahead
+         */
+        protected void prefetched(long position, ByteBuffer bytes) {
+            prefetched = bytes;
+            prefetchedPosition = position;
+        }
+
+        /**
+         * Sets the sequential reading to start at the position.
+         */
+        protected void startAt(long position) throws IOException {
+            segment = Segments.segment(position);
+            versionsFrom = position;
+            zoneCheckedUntil = -1;
+            finishBlock(false);
+            SegmentAccess access = open(segment);
+            if (access != null) {
+                access.reader().position(Segments.offset(position));
+            }
+        }
+
+        protected void setUpMaxPosition() {
+            try {
+                int active = segments.active();
+                SegmentAccess access = open(active);
+                maxPosition = Segments.position(active, access != null ? access.channel.size() : 0);
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot read a collection: " + e.getMessage(), e);
+            }
+        }
+
+        protected void setUpMaxPosition(long maxPosition) {
+            this.maxPosition = maxPosition;
+        }
+
+        /**
+         * Sets the access to read the snapshot: records behind its end are not read,
+         * records changed since the snapshot was pinned are read in their preserved versions.
+         */
+        protected void readSnapshot(Snapshots.Snapshot snapshot) {
+            this.snapshot = snapshot;
+            this.maxPosition = maxPosition != null ? Math.min(maxPosition, snapshot.end()) : snapshot.end();
+            this.indexedPositions = new HashSet<>();
+        }
+
+        private void checkSnapshot() {
+            if (snapshot != null && snapshot.generation() != generation) {
+                throw new DatabaseException("The snapshot of the collection is not valid anymore, the collection was cleaned up.");
+            }
+        }
+
+        /**
+         * Reads a next preserved version of a record changed since the snapshot, positioned before the position.
+         *
+         * @return the serialized record or null if there is no such version
+         */
+        private ByteBuffer nextPreserved(long position) {
+            Iterator<Map.Entry<Long, byte[]>> versions = snapshots.versions(versionsFrom, Math.min(position, maxPosition), snapshot);
+            while (versions.hasNext()) {
+                Map.Entry<Long, byte[]> version = versions.next();
+                versionsFrom = version.getKey() + 1;
+                if (!indexedPositions.contains(version.getKey())) {
+                    return preserved(version.getKey(), version.getValue());
+                }
+            }
+            return null;
+        }
+
+        private ByteBuffer preserved(long position, byte[] data) {
+            actualPreserved = true;
+            positionOfActualRecord = position;
+            sizeOfActualRecord = data.length;
+            return ByteBuffer.wrap(data);
+        }
+
+        /**
+         * Reads a record found by an index as seen in the snapshot.
+         *
+         * @return the serialized record or null if there is no such record
+         */
+        private ByteBuffer readIndexedDataAt(long position) {
+            if (snapshot != null) {
+                if (position >= maxPosition) {
+                    return null;
+                }
+                indexedPositions.add(position);
+                byte[] version = snapshots.version(position, snapshot);
+                if (version != null) {
+                    return preserved(position, version);
+                }
+            }
+            return readDataAt(position);
+        }
+
+        protected void freeMaxPosition() {
+            maxPosition = null;
+        }
+
+        /**
+         * Reads a next record matching the where clause.
+         *
+         * @return the record as JSON or null if there is no such record anymore
+         */
+        protected String readNextRecord(Where where) {
+            ByteBuffer data;
+            if (encoding == Encoding.BINARY) {
+                data = readNextData(where);
+                return data != null ? decode(data) : null;
+            }
+            while ((data = nextCandidate(where)) != null) {
+                String json = decode(data);
+                if (where.matches(json)) {
+                    blockMatched = true;
+                    return json;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Reads a next record in the binary encoding matching the where clause. Only the elements in conditions are decoded.
+         *
+         * @return the serialized record valid only until the next read, or null if there is no such record anymore
+         */
+        protected ByteBuffer readNextData(Where where) {
+            ByteBuffer data;
+            while ((data = nextCandidate(where)) != null) {
+                if (Where.EMPTY.equals(where) || where.matches(new TSONBinary(data))) {
+                    blockMatched = true;
+                    return data;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Reads a next record to be matched with the where clause, from indexes when possible.
+         */
+        private ByteBuffer nextCandidate(Where where) {
+            // first, try indexes
+            if (!Where.EMPTY.equals(where)) {
+                IndexingWhere indexingWhere = indexingWhere(where);
+                if (indexingWhere.isIndexed()) {
+                    long position;
+                    while ((position = indexingWhere.nextPosition()) != -1) {
+                        readAhead(position, indexingWhere.runEnd());
+                        ByteBuffer data = readIndexedDataAt(position);
+                        if (data != null) {
+                            return data;
+                        }
+                    }
+                    // records changed since the snapshot are not in the indexes anymore
+                    return snapshot != null ? nextPreserved(maxPosition) : null;
+                }
+            }
+
+            // full search
+            return readNextData(where, true);
+        }
+
+        /**
+         * Hints the reader of the position found by an index to read the records of the run at once,
+         * positions are found in the ascending order.
+         *
+         * @param runEnd the last position of the run
+         */
+        private void readAhead(long position, long runEnd) {
+            int recordSegment = Segments.segment(position);
+            if (runEnd <= position || Segments.segment(runEnd) != recordSegment) {
+                return;
+            }
+            try {
+                SegmentAccess access = segments.exists(recordSegment) ? open(recordSegment) : null;
+                if (access != null) {
+                    access.reader().readAhead(Segments.offset(runEnd));
+                }
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot read a collection: " + e.getMessage(), e);
+            }
+        }
+
+        private IndexingWhere indexingWhere(Where where) {
+            return indexingWheres.computeIfAbsent(where, w -> new IndexingWhere(w, indexing));
+        }
+
+        /**
+         * @return true if records matching the where clause are found by indexes
+         */
+        protected boolean isIndexed(Where where) {
+            return !Where.EMPTY.equals(where) && indexingWhere(where).isIndexed();
+        }
+
+        /**
+         * Reads a next document matching the indexed where clause. Documents are read through the document cache,
+         * so hot documents are neither read nor parsed again.
+         *
+         * @return the document or null if there is no such document anymore
+         */
+        protected DocumentCache.Document readNextIndexedDocument(Where where) {
+            IndexingWhere indexingWhere = indexingWhere(where);
+            long position;
+            while ((position = indexingWhere.nextPosition()) != -1) {
+                readAhead(position, indexingWhere.runEnd());
+                DocumentCache.Document document = readDocumentAt(position);
+                if (document != null && where.matches(document.object())) {
+                    return document;
+                }
+            }
+            if (snapshot != null) {
+                // records changed since the snapshot are not in the indexes anymore
+                ByteBuffer data;
+                while ((data = nextPreserved(maxPosition)) != null) {
+                    DocumentCache.Document document = new DocumentCache.Document(decode(data));
+                    if (where.matches(document.object())) {
+                        return document;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private DocumentCache.Document readDocumentAt(long position) {
+            if (maxPosition != null && position >= maxPosition) {
+                return null;
+            }
+            if (snapshot != null) {
+                checkSnapshot();
+                indexedPositions.add(position);
+                byte[] version = snapshots.version(position, snapshot);
+                if (version != null) {
+                    return new DocumentCache.Document(decode(preserved(position, version)));
+                }
+            }
+            DocumentCache cache = documentCache;
+            if (cache == null) {
+                ByteBuffer data = readDataAt(position);
+                return data != null ? new DocumentCache.Document(decode(data)) : null;
+            }
+            DocumentCache.Document document = cache.get(path, position);
+            if (document == null) {
+                long stamp = cacheStamp.get();
+                ByteBuffer data = readDataAt(position);
+                if (data == null) {
+                    return null;
+                }
+                document = new DocumentCache.Document(decode(data));
+                cache.put(path, position, document);
+                if (cacheStamp.get() != stamp) {
+                    cache.invalidate(path, position);   // possibly changed meanwhile
+                }
+            }
+            return document;
+        }
+
+        protected String readNextRecord() {
+            ByteBuffer data = readNextData();
+            return data != null ? decode(data) : null;
+        }
+
+        /**
+         * Decodes a serialized record returned by the last read as JSON.
+         */
+        protected String decode(ByteBuffer data) {
+            if (encoding == Encoding.BINARY) {
+                return new TSONBinary(data).toString();
+            }
+            if (actualPreserved) {
+                return new String(data.array(), data.arrayOffset() + data.position(), data.remaining(), StandardCharsets.UTF_8);
+            }
+            return actualReader.decode(data);
+        }
+
+        /**
+         * Finds an element in a serialized record returned by the last read.
+         */
+        protected Object findByPath(ByteBuffer data, String path) {
+            return encoding == Encoding.BINARY ? new TSONBinary(data).findByPath(path) : new TSONObject(decode(data)).findByPath(path);
+        }
+
+        /**
+         * Reads a next serialized record sequentially.
+         *
+         * @return the record valid only until the next read, or null if there is no record anymore
+         */
+        protected ByteBuffer readNextData() {
+            return readNextData(Where.EMPTY, false);
+        }
+
+        /**
+         * Reads a next serialized record sequentially, blocks of records not matching the where clause
+         * by their zone maps are skipped.
+         */
+        private ByteBuffer readNextData(Where where, boolean skipBlocks) {
+            if (finished) {
+                return null;
+            }
+            try {
+                while (true) {
+                    SegmentAccess access = open(segment);
+                    if (access != null) {
+                        RecordReader reader = access.reader();
+                        reader.setMaxPosition(maxOffset(segment));
+                        if (skipBlocks) {
+                            skipBlocks(reader, where);
+                        }
+
+                        ByteBuffer next = reader.nextBytes();
+                        if (next != null) {
+                            if (snapshot != null) {
+                                ByteBuffer version = readVersion(reader);
+                                if (version != null) {
+                                    return version;
+                                }
+                            }
+                            setActualRecord(segment, reader);
+                            return next;
+                        }
+                    }
+                    Integer nextSegment = segments.next(segment);
+                    boolean last = nextSegment == null || maxPosition != null && nextSegment > Segments.segment(maxPosition);
+                    if (snapshot != null) {
+                        // records of a segment removed meanwhile are preserved, as well as deleted records at its end
+                        ByteBuffer version = nextPreserved(last ? maxPosition : Segments.position(nextSegment, 0));
+                        if (version != null) {
+                            return version;
+                        }
+                    }
+                    if (last) {
+                        finished = true;
+                        finishBlock(false);
+                        return null;
+                    }
+                    finishBlock(maxOffset(segment) == null);
+                    closeSegment(segment);
+                    segment = nextSegment;
+                    zoneCheckedUntil = -1;
+                }
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot read a collection: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Reads a preserved version instead of the record just read, or a version of a record deleted
+         * since the snapshot positioned before it. The record is read again then.
+         *
+         * @return the preserved version or null if the record is to be read as it is
+         */
+        private ByteBuffer readVersion(RecordReader reader) {
+            long position = Segments.position(segment, reader.recordPosition());
+            ByteBuffer version = nextPreserved(position);
+            if (version != null) {
+                reader.position(reader.recordPosition());
+                return version;
+            }
+            versionsFrom = position + 1;
+            byte[] data = snapshots.version(position, snapshot);
+            return data != null ? preserved(position, data) : null;
+        }
+
+        private void skipBlocks(RecordReader reader, Where where) {
+            long position = reader.position();
+            if (position < zoneCheckedUntil || Where.EMPTY.equals(where)) {
+                return;
+            }
+            finishBlock(true);
+            ZoneMap zoneMap = zoneMaps.get(segment);
+            if (zoneMap == null) {
+                zoneCheckedUntil = Long.MAX_VALUE;
+                return;
+            }
+            long next = zoneMap.skip(position, where, zoneMaps::bloomFilterNegative);
+            if (next != position) {
+                reader.position(next);
+            }
+            zoneCheckedUntil = zoneMap.blockEnd(next);
+            bloomFilterPassed = zoneMap.bloomFiltered(next, where);
+        }
+
+        /**
+         * Counts the block let through by a bloom filter, unless it's unknown whether it contains a matching record.
+         *
+         * @param read true if the whole block was read
+         */
+        private void finishBlock(boolean read) {
+            if (bloomFilterPassed && (read || blockMatched)) {
+                zoneMaps.bloomFilterPositive(blockMatched);
+            }
+            bloomFilterPassed = false;
+            blockMatched = false;
+        }
+
+        /**
+         * Reads a not-deleted serialized record on the position.
+         *
+         * @return the record or null if there is no such record
+         */
+        private ByteBuffer readDataAt(long position) {
+            if (maxPosition != null && position >= maxPosition) {
+                return null;
+            }
+            int recordSegment = Segments.segment(position);
+            long offset = Segments.offset(position);
+            try {
+                SegmentAccess access = segments.exists(recordSegment) ? open(recordSegment) : null;
+                if (access == null) {
+                    return null;
+                }
+                RecordReader reader = access.reader();
+                reader.setMaxPosition(null);
+                reader.position(offset);
+
+                ByteBuffer data = reader.nextBytes();
+                if (data == null || reader.recordPosition() != offset) {
+                    return null;
+                }
+                setActualRecord(recordSegment, reader);
+                return data;
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot read a collection: " + e.getMessage(), e);
+            }
+        }
+
+        private Long maxOffset(int segment) {
+            if (maxPosition == null || segment < Segments.segment(maxPosition)) {
+                return null;
+            }
+            return Segments.offset(maxPosition);
+        }
+
+        private void setActualRecord(int segment, RecordReader reader) {
+            actualReader = reader;
+            actualPreserved = false;
+            positionOfActualRecord = Segments.position(segment, reader.recordPosition());
+            sizeOfActualRecord = reader.position() - reader.recordPosition();
+        }
+
+        /**
+         * Opens the segment or returns an already open one.
+         *
+         * @return the segment access or null if the segment doesn't exist anymore
+         */
+        protected SegmentAccess open(int segment) throws IOException {
+            SegmentAccess access = openSegments.get(segment);
+            if (access == null) {
+                checkSnapshot();
+                try {
+                    FileChannel channel = FileChannel.open(segments.path(segment), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    access = new SegmentAccess(channel);
+                    if (prefetched != null && Segments.segment(prefetchedPosition) == segment) {
+                        access.prefetched(Segments.offset(prefetchedPosition), prefetched);
+                    }
+                    openSegments.put(segment, access);
+
+                } catch (NoSuchFileException e) {
+                    return null;    // removed by compaction
+                }
+            }
+            return access;
+        }
+
+        private void closeSegment(int segment) {
+            SegmentAccess access = openSegments.remove(segment);
+            if (access != null) {
+                access.close();
+            }
+        }
+
+        protected void insertRecord(String jsonData) throws IOException {
+            byte[] data = serialize(jsonData);
+            long position = append(data, format.slotLength(data.length, options.getPadding()));
+
+            insertIntoIndexes(jsonData, position);
+        }
+
+        /**
+         * Replaces the actual record with the updated document.
+         * <p>
+         * The record is overwritten in place when the new data fit into its slot and only the index entries
+         * of changed values are updated. Otherwise the record is moved to the end of the collection into a slot
+         * with reserved space for further updates.
+         * <p>
+         * With the write-ahead log, a record to be overwritten in place is only logged, the overwrites of a statement are
+         * written together after the log is forced once regardless of the durability (@see #flushOverwrites).
+         */
+        protected void updateRecord(String json, String updatedJson) throws IOException {
+            byte[] data = serialize(updatedJson);
+            int recordSegment = Segments.segment(positionOfActualRecord);
+            int slotLength = format.slotLength(sizeOfActualRecord);
+            SegmentAccess access = open(recordSegment);
+
+            if (format.fits(data.length, slotLength) && access.compressed() == null) {
+                invalidateCached(positionOfActualRecord);
+                preserve(json);
+                ByteBuffer record = format.encode(data, slotLength);
+                if (wal != null) {
+                    wal.logUpdate(positionOfActualRecord, json.getBytes(StandardCharsets.UTF_8), data, slotLength);
+                    overwrites.put(positionOfActualRecord, record);
+                    overwritesBytes += record.remaining();
+                    if (overwritesBytes >= BULK_BUFFER_SIZE) {
+                        flushOverwrites();
+                    }
+                } else {
+                    write(access.channel, record, Segments.offset(positionOfActualRecord));
+                    invalidateCached(positionOfActualRecord);
+                }
+                segments.touch(recordSegment);
+                zoneMaps.update(recordSegment, Segments.offset(positionOfActualRecord), new TSONObject(updatedJson)::findByPath);
+
+                updateIndexes(json, updatedJson, positionOfActualRecord);
+            } else {
+                deleteRecord(json);
+                long position = append(data, format.slotLength(data.length, Math.max(options.getPadding(), UPDATE_PADDING)));
+
+                insertIntoIndexes(updatedJson, position);
+            }
+        }
 
-        protected DbAccess() throws IOException {
-            channel = Files.newByteChannel(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        /**
+         * Writes the logged overwrites in place. The log is forced first: a torn slot loses both the old
+         * and the new record, only a durable entry can restore it. Must be called before the statement ends.
+         */
+        protected void flushOverwrites() throws IOException {
+            if (overwrites.isEmpty()) {
+                return;
+            }
+            wal.sync();
+            for (Map.Entry<Long, ByteBuffer> overwrite : overwrites.entrySet()) {
+                long position = overwrite.getKey();
+                write(open(Segments.segment(position)).channel, overwrite.getValue(), Segments.offset(position));
+                invalidateCached(position);
+            }
+            overwrites.clear();
+            overwritesBytes = 0;
         }
 
-        private long positionOfActualRecord = 0;
-        private Long maxPosition = null;
+        /**
+         * Moves the actual record to the end of the collection. The slot of the record is preserved.
+         */
+        protected void moveRecord(String json) throws IOException {
+            byte[] data = serialize(json);
+            int slotLength = format.slotLength(sizeOfActualRecord);
+            if (!format.fits(data.length, slotLength)) {
+                slotLength = format.slotLength(data.length, options.getPadding());
+            }
+            deleteRecord(json);
+            long position = append(data, slotLength);
 
-        private boolean finished = false;
+            insertIntoIndexes(json, position);
+        }
 
-        private Map<Where, IndexingWhere> indexingWheres = new HashMap<>();
+        /**
+         * Inserts the records in bulk: the records are appended with as few writes as possible
+         * and their index entries are inserted grouped by indexes.
+         */
+        protected void insertRecords(Collection<String> jsonData) throws IOException {
+            List<byte[]> data = new ArrayList<>(jsonData.size());
+            for (String json : jsonData) {
+                data.add(serialize(json));
+            }
+            long[] positions = appendAll(data);
 
-        protected long getPositionOfActualRecord() {
-            return positionOfActualRecord;
+            Map<String, Map<String, List<Long>>> indexEntries = new HashMap<>();
+            int i = 0;
+            for (String json : jsonData) {
+                collectIndexEntries(json, positions[i++], indexEntries);
+            }
+            indexEntries.forEach(indexing::insertAll);
         }
 
-        protected void setUpMaxPosition() {
-            try {
-                maxPosition = channel.size();
+        /**
+         * Appends the records into the active segment. The records are encoded into one buffer and written at once
+         * into a reserved range, the buffer is flushed when full or when the active segment is full and a new one must be started.
+         *
+         * @return the positions of the appended records
+         */
+        private long[] appendAll(List<byte[]> data) throws IOException {
+            List<ByteBuffer> records = new ArrayList<>(data.size());
+            int[] slotLengths = new int[data.size()];
+            for (byte[] record : data) {
+                int slotLength = format.slotLength(record.length, options.getPadding());
+                slotLengths[records.size()] = slotLength;
+                records.add(format.encode(record, slotLength));
+            }
+            long[] positions = new long[records.size()];
 
-            } catch (IOException e) {
-                throw new DatabaseException("Cannot read a collection: " + e.getMessage(), e);
+            int i = 0;
+            while (i < records.size()) {
+                Appends.Range range = reserve(records, i);
+                try {
+                    int first = i;
+                    long end = range.start();
+                    for (; i < first + range.count(); i++) {
+                        positions[i] = end;
+                        end += records.get(i).remaining();
+                    }
+                    if (wal != null) {
+                        wal.logWrites(positions, data, slotLengths, first, i);
+                    }
+                    int segment = Segments.segment(range.start());
+                    int size = (int) (range.end() - range.start());
+                    write(open(segment).channel, gather(records, first, i, size), Segments.offset(range.start()));
+                    segments.addStats(segment, StorageStats.live(i - first, size));
+
+                } catch (IOException | RuntimeException e) {
+                    fillUnused(range, e);
+                    throw e;
+                } finally {
+                    appends.complete(range);
+                }
             }
+            return positions;
         }
 
-        protected void freeMaxPosition() {
-            maxPosition = null;
+        /**
+         * Copies the records into the bulk buffer. A single record bigger than the buffer is returned as it is.
+         */
+        private ByteBuffer gather(List<ByteBuffer> records, int from, int to, int size) {
+            if (size > BULK_BUFFER_SIZE) {
+                return records.get(from);
+            }
+            if (bulkBuffer == null) {
+                bulkBuffer = ByteBuffer.allocateDirect(BULK_BUFFER_SIZE);
+            }
+            bulkBuffer.clear();
+            for (int i = from; i < to; i++) {
+                bulkBuffer.put(records.get(i));
+            }
+            bulkBuffer.flip();
+            return bulkBuffer;
         }
 
-        protected String readNextRecord(Where where) {
-            // first, try indexes
-            if (!Where.EMPTY.equals(where)) {
-                indexingWheres.putIfAbsent(where, new IndexingWhere(where, indexing));
-                IndexingWhere indexingWhere = indexingWheres.get(where);
-                if (indexingWhere.isIndexed()) {
-                    try {
-                        String json;
-                        do {
-                            long position = indexingWhere.nextPosition();
-                            if (position != -1) {
-                                channel.position(position);
-                                json = readNextRecord();
-
-                                if (where.matches(json)) {
-                                    return json;
-                                }
-                            } else {
-                                return null;
-                            }
-                        } while (json != null);
-
-                    } catch (IOException e) {
-                        throw new DatabaseException("Cannot read a collection: " + e.getMessage(), e);
+        /**
+         * Reserves a range at the end of the active segment for the records from the index on, as many of them as fit
+         * into the bulk buffer and the segment. At least one record is reserved.
+         * <p>
+         * A new segment is started when the active one is full, after all the ranges reserved in it are written,
+         * so a sealed segment is always complete.
+         */
+        private Appends.Range reserve(List<ByteBuffer> records, int from) throws IOException {
+            synchronized (appends) {
+                if (!appends.isOpen()) {
+                    int active = segments.active();
+                    appends.open(Segments.position(active, open(active).channel.size()));
+                }
+                long offset = Segments.offset(appends.reserved());
+                while (offset >= segmentSize && offset > format.dataOffset()) {
+                    if (appends.isPublished()) {
+                        appends.moveTo(Segments.position(rollSegment(), format.dataOffset()));
+                    } else {
+                        try {
+                            appends.awaitPublished();
+
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new DatabaseException("Interrupted while waiting for appends into a full segment.", e);
+                        }
                     }
+                    offset = Segments.offset(appends.reserved());
                 }
-            }
-
-            // full search
-            String json;
-            while ((json = readNextRecord()) != null) {
-                if (where.matches(json)) {
-                    return json;
+                int to = from;
+                long size = 0;
+                while (to < records.size()) {
+                    int recordSize = records.get(to).remaining();
+                    if (to > from && (offset + size >= segmentSize || size + recordSize > BULK_BUFFER_SIZE)) {
+                        break;
+                    }
+                    size += recordSize;
+                    to++;
                 }
+                return appends.reserve(size, to - from);
             }
-            return null;
         }
 
-        protected String readNextRecord() {
-            if (finished) {
-                return null;
+        /**
+         * Seals the full active segment and starts a new one.
+         *
+         * @return the new active segment
+         */
+        private int rollSegment() throws IOException {
+            int active = segments.active();
+            StorageStats stats = segments.stats(active);
+            if (stats != null && stats.deadRatio() >= compactionThreshold) {
+                compactionNeeded = true;
             }
+            active = segments.roll(format);
+            compressionNeeded = options.getCompression() != Compression.NONE;
+            zoneMapsNeeded = zoneMaps.hasElements();
+            return active;
+        }
+
+        /**
+         * Appends the record into the active segment. A new segment is started when the active one is full.
+         *
+         * @param data       the record
+         * @param slotLength the length of the slot for the record
+         * @return the position of the appended record
+         */
+        private long append(byte[] data, int slotLength) throws IOException {
+            ByteBuffer record = format.encode(data, slotLength);
+            Appends.Range range = reserve(Collections.singletonList(record), 0);
             try {
-                String next = ChannelUtils.next(channel, RECORD_SEPARATOR, RECORD_DELETED, maxPosition);
-                if (next == null) {
-                    finished = true;
-                    positionOfActualRecord = channel.size();
-                } else {
-                    positionOfActualRecord = channel.position() - next.length() - 1;
+                long position = range.start();
+                if (wal != null) {
+                    wal.logWrite(position, data, slotLength);
                 }
-                return next;
+                int segment = Segments.segment(position);
+                int size = record.remaining();
+                write(open(segment).channel, record, Segments.offset(position));
 
-            } catch (IOException e) {
-                throw new DatabaseException("Cannot read a collection: " + e.getMessage(), e);
+                segments.addStats(segment, StorageStats.live(1, size));
+                return position;
+
+            } catch (IOException | RuntimeException e) {
+                fillUnused(range, e);
+                throw e;
+            } finally {
+                appends.complete(range);
             }
         }
 
-        protected void insertRecord(String jsonData) throws IOException {
-            long currentPosition = channel.position();
+        /**
+         * Fills the reserved range of a failed append with a deleted record, so readers skip the range after it's completed.
+         * If the range cannot be filled, its records may be lost or incomplete and the error is added to the failure.
+         */
+        private void fillUnused(Appends.Range range, Exception failure) {
+            int segment = Segments.segment(range.start());
+            int size = (int) (range.end() - range.start());
+            try {
+                write(open(segment).channel, format.encodeUnused(size), Segments.offset(range.start()));
+                segments.addStats(segment, new StorageStats(0, 0, 1, size));
 
-            // append
-            channel.position(channel.size());
-            writeData(jsonData);
+            } catch (IOException | RuntimeException e) {
+                log.error("Cannot fill a range of a failed append in '" + path + "' at " + range.start() + ".", e);
+                failure.addSuppressed(e);
+            }
+        }
 
-            channel.position(currentPosition);
+        protected void write(FileChannel channel, ByteBuffer record, long offset) throws IOException {
+            while (record.hasRemaining()) {
+                offset += channel.write(record, offset);
+            }
         }
 
-        private void writeData(String json) throws IOException {
-            long position = channel.position();
+        private void collectIndexEntries(String json, long position, Map<String, Map<String, List<Long>>> indexEntries) {
+            TSONObject tson = new TSONObject(json);
+            Iterator<String> columns = new ColumnsIterator(tson);
 
-            String data = serialize(json) + RECORD_SEPARATOR;
-            channel.write(ByteBuffer.wrap(data.getBytes()));
+            while (columns.hasNext()) {
+                String column = columns.next();
+                if (indexing.exists(column)) {
+                    Object value = tson.findByPath(column);
 
-            insertIntoIndexes(json, position);
+                    indexEntries.computeIfAbsent(column, c -> new HashMap<>())
+                            .computeIfAbsent(value.toString(), v -> new ArrayList<>())
+                            .add(position);
+                }
+            }
         }
 
         private void insertIntoIndexes(String json, long position) {
@@ -323,40 +2238,198 @@ public class DbCollectionFile implements DbCollection {
                 String column = columns.next();
                 Object value = tson.findByPath(column);
 
-                indexing.insert(column, value, position);
+                insertIntoIndex(column, value, position);
+            }
+        }
+
+        protected void insertIntoIndex(String column, Object value, long position) {
+            indexing.insert(column, value, position);
+        }
+
+        /**
+         * Updates the index entries of the record on the position whose values were changed by an update.
+         */
+        protected void updateIndexes(String json, String updatedJson, long position) {
+            Map<String, Object> values = indexedValues(json);
+            Map<String, Object> updatedValues = indexedValues(updatedJson);
+
+            values.forEach((column, value) -> {
+                if (!sameValue(value, updatedValues.get(column))) {
+                    indexing.delete(column, value, position);
+                }
+            });
+            updatedValues.forEach((column, value) -> {
+                if (!sameValue(value, values.get(column))) {
+                    insertIntoIndex(column, value, position);
+                }
+            });
+        }
+
+        private Map<String, Object> indexedValues(String json) {
+            TSONObject tson = new TSONObject(json);
+            Iterator<String> columns = new ColumnsIterator(tson);
+
+            Map<String, Object> values = new HashMap<>();
+            while (columns.hasNext()) {
+                String column = columns.next();
+                if (indexing.exists(column)) {
+                    values.put(column, tson.findByPath(column));
+                }
             }
+            return values;
+        }
+
+        private boolean sameValue(Object value, Object other) {
+            return other != null && String.valueOf(value).equals(String.valueOf(other));
         }
 
         protected void deleteRecord(String json) throws IOException {
-            // write a "deleted" flag as the first byte
-            long position = channel.position();
-            channel.position(positionOfActualRecord);
-            channel.write(ByteBuffer.wrap(new byte[]{RECORD_DELETED}));
-            channel.position(position);
+            int recordSegment = Segments.segment(positionOfActualRecord);
+            invalidateCached(positionOfActualRecord);
+            preserve(json);
+            if (wal != null) {
+                wal.logDelete(positionOfActualRecord, json.getBytes(StandardCharsets.UTF_8));
+            }
+            open(recordSegment).delete(Segments.offset(positionOfActualRecord));
+            invalidateCached(positionOfActualRecord);
 
-            deleteFromIndexes(json);
+            countDeleted(recordSegment);
+            deleteFromIndexes(json, positionOfActualRecord);
         }
 
-        private void deleteFromIndexes(String json) throws IOException {
+        /**
+         * Preserves the actual record for the pinned snapshots before it's changed.
+         */
+        private void preserve(String json) {
+            if (snapshots.active()) {
+                snapshots.preserve(positionOfActualRecord, serialize(json));
+            }
+        }
+
+        private void countDeleted(int segment) throws IOException {
+            segments.touch(segment);
+            segments.addStats(segment, StorageStats.deleted(1, sizeOfActualRecord));
+            if (segments.isSealed(segment) && deadRatio(segment) >= compactionThreshold) {
+                compactionNeeded = true;
+            }
+        }
+
+        /**
+         * @return true if a document with the id exists
+         */
+        protected boolean idExists(String id) {
+            String key = IdIndex.key(id);
+            for (long position : indexing.positions(Identity.ID, id)) {
+                ByteBuffer data = readDataAt(position);
+                if (data != null) {
+                    Object existing = findByPath(data, Identity.ID);
+                    if (existing != null && key.equals(IdIndex.key(existing.toString()))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @throws DatabaseException if the element is the id
+         */
+        protected void checkNotId(String element) {
+            if (hasIdentity() && Identity.ID.equals(element)) {
+                throw new DatabaseException("The " + Identity.ID + " of a document cannot be changed.");
+            }
+        }
+
+        protected void deleteFromIndexes(String json, long position) throws IOException {
             TSONObject tson = new TSONObject(json);
             Iterator<String> columns = new ColumnsIterator(tson);
             while (columns.hasNext()) {
                 String column = columns.next();
                 Object value = tson.findByPath(column);
 
-                indexing.delete(column, value, positionOfActualRecord);
+                indexing.delete(column, value, position);
             }
         }
 
         @Override
         public void close() {
-            if (channel != null) {
-                try {
-                    channel.close();
-                } catch (IOException ignore) {
-                    log.warn("Cannot close a channel.", ignore);
+            openSegments.values().forEach(SegmentAccess::close);
+            openSegments.clear();
+        }
+    }
+
+    /**
+     * An open segment: the channel and a reader created on demand. A compressed segment is detected on demand too.
+     */
+    private class SegmentAccess implements AutoCloseable {
+
+        private final FileChannel channel;
+        private RecordReader reader;
+
+        private Boolean isCompressed;
+        private CompressedSegment compressed;
+
+        // bytes of the segment read ahead
+        private ByteBuffer prefetched;
+        private long prefetchedOffset;
+
+        SegmentAccess(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void prefetched(long offset, ByteBuffer bytes) {
+            prefetched = bytes;
+            prefetchedOffset = offset;
+        }
+
+        RecordReader reader() throws IOException {
+            if (reader == null) {
+                if (compressed() != null) {
+                    reader = compressed.reader();
+                } else if (prefetched != null) {
+                    reader = format.reader(channel, prefetched, prefetchedOffset);
+                } else {
+                    reader = format.reader(channel, readMode);
+                }
+            }
+            return reader;
+        }
+
+        /**
+         * Marks the record on the offset as deleted.
+         */
+        void delete(long offset) throws IOException {
+            if (compressed() != null) {
+                compressed.delete(offset);
+            } else {
+                format.delete(channel, offset);
+            }
+        }
+
+        /**
+         * @return the size of the segment, uncompressed
+         */
+        long size() throws IOException {
+            return compressed() != null ? compressed.size() : channel.size();
+        }
+
+        private CompressedSegment compressed() throws IOException {
+            if (isCompressed == null) {
+                isCompressed = CompressedSegment.isCompressed(channel);
+                if (isCompressed) {
+                    compressed = new CompressedSegment(channel);
                 }
             }
+            return compressed;
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+                log.warn("Cannot close a channel.", ignore);
+            }
         }
     }
 
@@ -365,13 +2438,50 @@ public class DbCollectionFile implements DbCollection {
         private final Where where;
         private final String elementKey;
 
+        // the snapshot is released by this select
+        private final Snapshots.Snapshot ownSnapshot;
+
         private String next;
 
-        public Select(String elementKey, String where) throws IOException {
+        /**
+         * @param snapshot the snapshot to read
+         * @param owner    true if the snapshot should be released when the select is finished or closed
+         */
+        public Select(String elementKey, String where, @NonNull Snapshots.Snapshot snapshot, boolean owner) throws IOException {
+            this(elementKey, where, snapshot, owner, null, null);
+        }
+
+        /**
+         * Selects from a part of the collection only.
+         *
+         * @param from the position of the first record, or null for the beginning of the collection
+         * @param to   the position behind the last record, or null for the end of the collection
+         */
+        Select(String elementKey, String where, @NonNull Snapshots.Snapshot snapshot, boolean owner, Long from, Long to) throws IOException {
+            this(elementKey, where, snapshot, owner, from, to, null);
+        }
+
+        /**
+         * Selects from a part of the collection read ahead.
+         *
+         * @param prefetched the bytes of the part read ahead from the position `from`, or null
+         */
+        Select(String elementKey, String where, @NonNull Snapshots.Snapshot snapshot, boolean owner, Long from, Long to, ByteBuffer prefetched) throws IOException {
             super();
             this.where = Where.create(where);
             this.elementKey = elementKey;
+            this.ownSnapshot = owner ? snapshot : null;
 
+            if (from != null && prefetched != null) {
+                prefetched(from, prefetched);
+            }
+            if (from != null) {
+                startAt(from);
+            }
+            if (to != null) {
+                setUpMaxPosition(to);
+            }
+            readSnapshot(snapshot);
             next = getNext();
         }
 
@@ -391,21 +2501,65 @@ public class DbCollectionFile implements DbCollection {
         }
 
         private String getNext() {
-            String json = readNextRecord(where);
-
-            if (json != null) {
-                return selectElement(deserialize(json));
+            try {
+                if (isIndexed(where)) {
+                    DocumentCache.Document document = readNextIndexedDocument(where);
+                    if (document != null) {
+                        return selectElement(document);
+                    }
+                } else if (encoding == Encoding.BINARY) {
+                    ByteBuffer data = readNextData(where);
+                    if (data != null) {
+                        return selectElement(new TSONBinary(data));
+                    }
+                } else {
+                    String json = readNextRecord(where);
+                    if (json != null) {
+                        return selectElement(json);
+                    }
+                }
+            } catch (RuntimeException e) {
+                close();
+                throw e;
             }
             close();
             return null;
         }
 
+        @Override
+        public void close() {
+            super.close();
+            if (ownSnapshot != null) {
+                snapshots.release(ownSnapshot);
+            }
+        }
+
+        private boolean selectsAll() {
+            return "*".equals(elementKey) || elementKey == null || elementKey.isEmpty();
+        }
+
         private String selectElement(String jsonObject) {
-            if ("*".equals(elementKey) || elementKey == null || elementKey.isEmpty()) {
+            if (selectsAll()) {
                 return jsonObject;
             }
-            Object o = new TSONObject(jsonObject).findByPath(elementKey);
+            return element(new TSONObject(jsonObject).findByPath(elementKey));
+        }
+
+        private String selectElement(DocumentCache.Document document) {
+            if (selectsAll()) {
+                return document.json();
+            }
+            return element(document.object().findByPath(elementKey));
+        }
+
+        private String selectElement(TSONBinary binary) {
+            if (selectsAll()) {
+                return binary.toString();
+            }
+            return element(binary.findByPath(elementKey));
+        }
 
+        private String element(Object o) {
             if (o == null) {
                 return new TSONObject().toString();
             }
@@ -433,9 +2587,57 @@ public class DbCollectionFile implements DbCollection {
         }
 
         public void insert(Collection<String> jsonData) throws IOException {
+            if (!hasIdentity()) {
+                insertRecords(jsonData);
+                return;
+            }
+            Set<String> ids = new HashSet<>();
+            try {
+                insertRecords(identified(jsonData, ids));
+            } finally {
+                pendingIds.removeAll(ids);
+            }
+        }
+
+        /**
+         * Checks the ids of the documents, documents without an id get a generated one with the auto identity.
+         * The ids are pending until the documents are inserted, concurrent inserts of the same id fail.
+         *
+         * @param ids the keys of pending ids of the documents
+         * @return the documents with ids
+         * @throws DatabaseException if an id is missing, not a simple value or already existing
+         */
+        private Collection<String> identified(Collection<String> jsonData, Set<String> ids) {
+            List<String> identified = new ArrayList<>(jsonData.size());
             for (String json : jsonData) {
-                insertRecord(json);
+                TSONObject tson = new TSONObject(json);
+                Object id = tson.opt(Identity.ID);
+                if (id == null) {
+                    if (options.getIdentity() != Identity.AUTO) {
+                        throw new DatabaseException("Document has no " + Identity.ID + ": " + json);
+                    }
+                    id = UUID.randomUUID().toString();
+                    json = withId(tson, id.toString());
+                } else if (!(id instanceof String) && !(id instanceof Number)) {
+                    throw new DatabaseException("The " + Identity.ID + " must be a string or a number: " + json);
+                }
+                String key = IdIndex.key(id.toString());
+                if (ids.contains(key) || !pendingIds.add(key)) {
+                    throw new DatabaseException("Duplicate " + Identity.ID + ": " + id);
+                }
+                ids.add(key);
+                if (idExists(id.toString())) {
+                    throw new DatabaseException("Duplicate " + Identity.ID + ": " + id);
+                }
+                identified.add(json);
             }
+            return identified;
+        }
+
+        private String withId(TSONObject tson, String id) {
+            String json = tson.toString();
+            String idElement = JSONObject.quote(Identity.ID) + ":" + JSONObject.quote(id);
+            return "{" + idElement + (tson.length() > 0 ? "," : "") + json.substring(1);
         }
     }
 
@@ -447,6 +2649,9 @@ public class DbCollectionFile implements DbCollection {
 
         public Update(String[] columns, String[] values, String where) throws IOException {
             super();
+            for (String column : columns) {
+                checkNotId(column);
+            }
             this.where = Where.create(where);
             this.columns = columns;
             this.values = values;
@@ -456,15 +2661,18 @@ public class DbCollectionFile implements DbCollection {
             setUpMaxPosition();
 
             int updated = 0;
-            String json;
-            while ((json = readNextRecord(where)) != null) {
-                String updatedJson = updateData(json, columns, values);
-                if (updatedJson != null && !updatedJson.equals(json)) {
-                    deleteRecord(json);
-                    insertRecord(updatedJson);
+            try {
+                String json;
+                while ((json = readNextRecord(where)) != null) {
+                    String updatedJson = updateData(json, columns, values);
+                    if (updatedJson != null && !updatedJson.equals(json)) {
+                        updateRecord(json, updatedJson);
 
-                    updated++;
+                        updated++;
+                    }
                 }
+            } finally {
+                flushOverwrites();
             }
             freeMaxPosition();
 
@@ -541,10 +2749,12 @@ public class DbCollectionFile implements DbCollection {
         }
 
         public int add(String element) throws IOException {
+            checkNotId(element);
             return alter(element, this::addData);
         }
 
         public int remove(String element) throws IOException {
+            checkNotId(element);
             return alter(element, this::removeData);
         }
 
@@ -552,15 +2762,18 @@ public class DbCollectionFile implements DbCollection {
             setUpMaxPosition();
 
             int updated = 0;
-            String json;
-            while ((json = readNextRecord(where)) != null) {
-                String updatedJson = alterFnc.apply(json, element);
-                if (updatedJson != null) {
-                    deleteRecord(json);
-                    insertRecord(updatedJson);
+            try {
+                String json;
+                while ((json = readNextRecord(where)) != null) {
+                    String updatedJson = alterFnc.apply(json, element);
+                    if (updatedJson != null) {
+                        updateRecord(json, updatedJson);
 
-                    updated++;
+                        updated++;
+                    }
                 }
+            } finally {
+                flushOverwrites();
             }
             freeMaxPosition();
 
@@ -586,20 +2799,25 @@ public class DbCollectionFile implements DbCollection {
         }
     }
 
+    /**
+     * Builds a new index in one pass through the collection: values with positions are sorted (@see ExternalSort)
+     * and written into the index at once.
+     */
     final class CreateIndex extends DbAccess {
 
-        public CreateIndex(String column) throws IOException {
+        public CreateIndex(String column, IndexType type) throws IOException {
             super();
-            if (indexing.create(column)) {
-                String json;
-                while ((json = readNextRecord()) != null) {
-                    TSONObject tson = new TSONObject(json);
-                    Object value = tson.findByPath(column);
-                    if (value != null && !(value instanceof TSONObject)) {
-                        indexing.insert(column, value, getPositionOfActualRecord());
+            if (indexing.create(column, type)) {
+                try (ExternalSort sort = new ExternalSort(Paths.get(path + "_sort"), indexBuildMemory)) {
+                    ByteBuffer data;
+                    while ((data = readNextData()) != null) {
+                        Object value = findByPath(data, column);
+                        if (value != null && !(value instanceof TSONObject)) {
+                            sort.add(indexing.buildKey(column, value), getPositionOfActualRecord());
+                        }
                     }
+                    indexing.build(column, sort.sorted());
                 }
-                indexing.cleanUp(column);
             }
         }
     }
@@ -614,12 +2832,19 @@ public class DbCollectionFile implements DbCollection {
 
     final class CleanUp extends DbAccess {
 
-        public CleanUp() throws IOException {
+        public CleanUp(FileFormat targetFormat) throws IOException {
             super();
+            // positions of records change, readers of snapshots must have finished (@see lockWithoutSnapshots)
+            // the log must not be replayed into the new files
+            checkpoint();
+
             // create a temp empty collection
             Path tempCollectionPath = Paths.get(path + ".tmp");
             ChannelUtils.createNewFileOrTruncateExisting(tempCollectionPath);
-            DbCollectionFile tmpCollection = new DbCollectionFile(tempCollectionPath, 0);
+            DbCollectionFile tmpCollection = new DbCollectionFile(tempCollectionPath, 0, readMode, targetFormat);
+            tmpCollection.segments.drop();
+            tmpCollection.setSegmentSize(segmentSize);
+            tmpCollection.options = options;
 
             // drop real indexing data and copy the indexing structure to the temp collection
             if (Files.exists(indexing.getPath())) {
@@ -631,17 +2856,178 @@ public class DbCollectionFile implements DbCollection {
             // fetch all data from the collection and insertRecord into the temp collection
             // new indexes will be written automatically with the insertRecord
             try (Insert tmpInsert = tmpCollection.newInsert()) {
+                List<String> records = new ArrayList<>(COMPACTION_BATCH_SIZE);
                 String record;
                 while ((record = readNextRecord()) != null) {
-                    tmpInsert.insertRecord(record);
+                    records.add(record);
+                    if (records.size() == COMPACTION_BATCH_SIZE) {
+                        tmpInsert.insertRecords(records);
+                        records.clear();
+                    }
                 }
+                tmpInsert.insertRecords(records);
             }
+            // the new files must be durable before the old ones and the log are gone
+            tmpCollection.checkpoint();
+            tmpCollection.indexing.close();
+
             // exchange the data and indexing
             close();
+            generation++;
+            invalidateAllCached();
             Files.move(tmpCollection.path, path, StandardCopyOption.REPLACE_EXISTING);
+            segments.drop();
+            if (Files.exists(tmpCollection.segments.getDir())) {
+                Files.move(tmpCollection.segments.getDir(), segments.getDir());
+            }
+            segments.load();
+            appends.close();
+            for (int segment : segments.all()) {
+                StorageStats stats = tmpCollection.segments.stats(segment);
+                if (stats != null) {
+                    segments.setStats(segment, stats);
+                }
+            }
+            zoneMaps.clear();
+            zoneMapsNeeded = true;
+            indexing.replaceIds(tmpCollection.indexing);
+            FileUtils.deleteDirectory(Paths.get(tempCollectionPath + "_meta").toFile());
             if (Files.exists(tmpCollection.indexing.getPath())) {
                 Files.move(tmpCollection.indexing.getPath(), indexing.getPath(), StandardCopyOption.REPLACE_EXISTING);
             }
         }
     }
+
+    /**
+     * Replays the write-ahead log into the collection files and indexes.
+     * <p>
+     * Log entries are idempotent: a record is written again on its position, a deletion mark is set again.
+     * Index entries are inserted only when missing, index entries of values changed by an update in place are replaced.
+     */
+    final class Recovery extends DbAccess {
+
+        public Recovery() throws IOException {
+            super();
+        }
+
+        public int recover() throws IOException {
+            invalidateAllCached();
+            try {
+                return wal.replay(this::apply);
+            } finally {
+                // the end of the collection could be moved by the replay
+                appends.close();
+            }
+        }
+
+        private void apply(byte type, long position, byte[] data) throws IOException {
+            int recordSegment = Segments.segment(position);
+            if (!segments.exists(recordSegment)) {
+                if ((type != WriteAheadLog.WRITE && type != WriteAheadLog.PADDED_WRITE) || recordSegment < segments.active()) {
+                    return;     // removed by compaction meanwhile
+                }
+                segments.create(recordSegment, format);
+            }
+            SegmentAccess access = open(recordSegment);
+            if (access == null) {
+                return;
+            }
+            segments.resetStats(recordSegment);
+            zoneMaps.remove(recordSegment);
+
+            ByteBuffer entry = ByteBuffer.wrap(data);
+            switch (type) {
+                case WriteAheadLog.WRITE:
+                    write(access.channel, format.encode(data), Segments.offset(position));
+                    restoreIndexes(deserialize(data), position);
+                    break;
+                case WriteAheadLog.PADDED_WRITE: {
+                    int slotLength = entry.getInt();
+                    byte[] record = Arrays.copyOfRange(data, entry.position(), data.length);
+                    write(access.channel, format.encode(record, slotLength), Segments.offset(position));
+                    restoreIndexes(deserialize(record), position);
+                    break;
+                }
+                case WriteAheadLog.UPDATE: {
+                    int slotLength = entry.getInt();
+                    int oldLength = entry.getInt();
+                    String json = new String(data, entry.position(), oldLength, StandardCharsets.UTF_8);
+                    byte[] record = Arrays.copyOfRange(data, entry.position() + oldLength, data.length);
+                    write(access.channel, format.encode(record, slotLength), Segments.offset(position));
+                    updateIndexes(json, deserialize(record), position);
+                    break;
+                }
+                case WriteAheadLog.DELETE:
+                    access.delete(Segments.offset(position));
+                    deleteFromIndexes(new String(data, StandardCharsets.UTF_8), position);
+                    break;
+                default:
+                    throw new DatabaseException("Unknown write-ahead log entry type: " + type);
+            }
+        }
+
+        private void restoreIndexes(String json, long position) {
+            TSONObject tson = new TSONObject(json);
+            Iterator<String> columns = new ColumnsIterator(tson);
+
+            while (columns.hasNext()) {
+                String column = columns.next();
+                Object value = tson.findByPath(column);
+
+                insertIntoIndex(column, value, position);
+            }
+        }
+
+        @Override
+        protected void insertIntoIndex(String column, Object value, long position) {
+            Positions positions = indexing.positions(column, String.valueOf(value));
+            if (positions != null && !positions.contains(position)) {
+                indexing.insert(column, value, position);
+            }
+        }
+    }
+
+    /**
+     * Moves live records of a sealed segment into the active segment.
+     */
+    final class Compaction extends DbAccess {
+
+        private long movedBytes = 0;
+
+        /**
+         * @param segment the segment to compact
+         * @param offset  the offset to continue from, or -1 to start at the beginning
+         */
+        public Compaction(int segment, long offset) throws IOException {
+            super();
+            startAt(Segments.position(segment, offset != -1 ? offset : format.dataOffset()));
+            SegmentAccess access = open(segment);
+            setUpMaxPosition(Segments.position(segment, access != null ? access.size() : 0));
+        }
+
+        /**
+         * @return the size of the records moved so far in bytes
+         */
+        public long getMovedBytes() {
+            return movedBytes;
+        }
+
+        /**
+         * @param batchSize the maximal count of records to move
+         * @return the offset to continue from, or -1 if there is no record left in the segment
+         */
+        public long moveRecords(int batchSize) throws IOException {
+            int moved = 0;
+            String json;
+            while ((json = readNextRecord()) != null) {
+                moveRecord(json);
+                movedBytes += getSizeOfActualRecord();
+
+                if (++moved == batchSize) {
+                    return Segments.offset(getPositionOfActualRecord()) + getSizeOfActualRecord();
+                }
+            }
+            return -1;
+        }
+    }
 }
@@ -0,0 +1,121 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.nio.file.Path;
+import java.util.Objects;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import cz.net21.ttulka.thistledb.tson.TSONObject;
+
+/**
+ * Cache of decoded documents shared by all the collections, keyed by the collection and the position of the record.
+ * <p>
+ * The cache is bounded by an estimated size of the documents in bytes, the least recently used documents are evicted first.
+ * Cached documents must not be modified.
+ *
+ * @author ttulka
+ */
+final class DocumentCache {
+
+    // estimated bytes of a cached document per character of its JSON: the text and the parsed tree
+    private static final int BYTES_PER_CHAR = 8;
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final Cache<Key, Document> cache;
+
+    /**
+     * @param maxSize the maximal estimated size of the cached documents in bytes
+     */
+    public DocumentCache(long maxSize) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSize)
+                .weigher((Key key, Document document) -> document.size())
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return the cached document or null if there is no such document
+     */
+    Document get(Path collection, long position) {
+        return cache.getIfPresent(new Key(collection, position));
+    }
+
+    void put(Path collection, long position, Document document) {
+        cache.put(new Key(collection, position), document);
+    }
+
+    void invalidate(Path collection, long position) {
+        cache.invalidate(new Key(collection, position));
+    }
+
+    /**
+     * Removes all the documents of the collection.
+     */
+    void invalidateAll(Path collection) {
+        cache.asMap().keySet().removeIf(key -> key.collection.equals(collection));
+    }
+
+    /**
+     * @return the hit and miss counters
+     */
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * Decoded document: the JSON and its parsed object.
+     */
+    static final class Document {
+
+        private final String json;
+        private final TSONObject object;
+
+        Document(String json) {
+            this.json = json;
+            this.object = new TSONObject(json);
+        }
+
+        String json() {
+            return json;
+        }
+
+        TSONObject object() {
+            return object;
+        }
+
+        int size() {
+            return ENTRY_OVERHEAD + json.length() * BYTES_PER_CHAR;
+        }
+    }
+
+    private static final class Key {
+
+        private final Path collection;
+        private final long position;
+
+        Key(Path collection, long position) {
+            this.collection = collection;
+            this.position = position;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return position == key.position && collection.equals(key.collection);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(collection, position);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.google.common.primitives.UnsignedBytes;
+import lombok.extern.apachecommons.CommonsLog;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Sorts pairs of a key and a position with bounded memory.
+ * <p>
+ * Pairs are collected in memory up to {@link #DEFAULT_MAX_MEMORY} estimated bytes, then they are sorted and spilled into
+ * a run file in the spill directory. The runs are merged at once when read, positions of a key are grouped together.
+ * The spill directory is created only when needed and deleted when the sort is closed.
+ * <p>
+ * Run file format: sorted entries `[short key length][key][long position]`.
+ *
+ * @author ttulka
+ */
+@CommonsLog
+final class ExternalSort implements AutoCloseable {
+
+    static final long DEFAULT_MAX_MEMORY = 64 * 1024 * 1024;
+
+    // estimated bytes of an entry in memory besides its key
+    private static final int ENTRY_OVERHEAD = 48;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Comparator<byte[]> KEYS = UnsignedBytes.lexicographicalComparator();
+
+    private final Path dir;
+    private final long maxMemory;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private long memory = 0;
+
+    private final List<Path> runs = new ArrayList<>();
+    private final List<DataInputStream> readers = new ArrayList<>();
+
+    /**
+     * @param dir       the spill directory
+     * @param maxMemory the maximal estimated bytes of pairs held in memory
+     */
+    public ExternalSort(Path dir, long maxMemory) {
+        this.dir = dir;
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Adds a pair, pairs are spilled when exceeding the memory.
+     *
+     * @param key      the key of at most {@link Short#MAX_VALUE} bytes
+     * @param position the position
+     */
+    void add(byte[] key, long position) throws IOException {
+        if (key.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Key too long: " + key.length);
+        }
+        entries.add(new Entry(key, position));
+        memory += key.length + ENTRY_OVERHEAD;
+        if (memory >= maxMemory) {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(entries);
+        Files.createDirectories(dir);
+        Path run = Files.createTempFile(dir, "sort", ".run");
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE))) {
+            for (Entry entry : entries) {
+                out.writeShort(entry.key.length);
+                out.write(entry.key);
+                out.writeLong(entry.position);
+            }
+        }
+        log.debug("Spilled " + entries.size() + " entries into " + run);
+        entries.clear();
+        memory = 0;
+    }
+
+    /**
+     * @return the count of spilled runs
+     */
+    int runs() {
+        return runs.size();
+    }
+
+    /**
+     * Reads the pairs once, added pairs are sorted by the unsigned bytes of the keys.
+     *
+     * @return positions grouped by keys in the ascending order of the keys
+     */
+    Iterator<Group> sorted() throws IOException {
+        Collections.sort(entries);
+        PriorityQueue<Run> queue = new PriorityQueue<>();
+        Run memoryRun = new Run(entries.iterator());
+        if (memoryRun.next()) {
+            queue.add(memoryRun);
+        }
+        for (Path path : runs) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE));
+            readers.add(in);
+            Run run = new Run(new RunIterator(in, path));
+            if (run.next()) {
+                queue.add(run);
+            }
+        }
+        return new Iterator<Group>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public Group next() {
+                if (queue.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                byte[] key = queue.peek().actual.key;
+                Positions.Builder positions = new Positions.Builder();
+                while (!queue.isEmpty() && Arrays.equals(queue.peek().actual.key, key)) {
+                    Run run = queue.poll();
+                    positions.add(run.actual.position);
+                    if (run.next()) {
+                        queue.add(run);
+                    }
+                }
+                return new Group(key, positions.build());
+            }
+        };
+    }
+
+    /**
+     * Deletes the spilled runs.
+     */
+    @Override
+    public void close() throws IOException {
+        entries.clear();
+        for (DataInputStream in : readers) {
+            in.close();
+        }
+        readers.clear();
+        runs.clear();
+        if (Files.exists(dir)) {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    /**
+     * Positions of a key in the ascending order.
+     */
+    static final class Group {
+
+        final byte[] key;
+        final Positions positions;
+
+        Group(byte[] key, Positions positions) {
+            this.key = key;
+            this.positions = positions;
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        private final byte[] key;
+        private final long position;
+
+        Entry(byte[] key, long position) {
+            this.key = key;
+            this.position = position;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int compared = KEYS.compare(key, other.key);
+            return compared != 0 ? compared : Long.compare(position, other.position);
+        }
+    }
+
+    /**
+     * Sorted entries with the actual one.
+     */
+    private static final class Run implements Comparable<Run> {
+
+        private final Iterator<Entry> entries;
+        private Entry actual;
+
+        Run(Iterator<Entry> entries) {
+            this.entries = entries;
+        }
+
+        boolean next() {
+            actual = entries.hasNext() ? entries.next() : null;
+            return actual != null;
+        }
+
+        @Override
+        public int compareTo(Run other) {
+            return actual.compareTo(other.actual);
+        }
+    }
+
+    /**
+     * Reads entries of a run file.
+     */
+    private static final class RunIterator implements Iterator<Entry> {
+
+        private final DataInputStream in;
+        private final Path path;
+        private Entry next;
+
+        RunIterator(DataInputStream in, Path path) {
+            this.in = in;
+            this.path = path;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = read();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry entry = next;
+            next = null;
+            return entry;
+        }
+
+        private Entry read() {
+            try {
+                int length;
+                try {
+                    length = in.readUnsignedShort();
+                } catch (EOFException e) {
+                    return null;
+                }
+                byte[] key = new byte[length];
+                in.readFully(key);
+                return new Entry(key, in.readLong());
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot read a sort run: " + path, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Formats of collection files.
+ * <p>
+ * A file in a versioned format starts with a header of {@link #HEADER_SIZE} bytes: the magic bytes followed by the version number.
+ * A file without the header is in the legacy {@link #TEXT} format. A compressed segment (@see CompressedSegment) has
+ * its own magic bytes followed by the version of the format of its records.
+ *
+ * @author ttulka
+ */
+public enum FileFormat {
+
+    /**
+     * Legacy format: records separated by a separator flag, a deleted record starts with a delete flag.
+     */
+    TEXT(1) {
+        @Override
+        long dataOffset() {
+            return 0;
+        }
+
+        @Override
+        void writeHeader(FileChannel channel) {
+            // no header
+        }
+
+        @Override
+        ByteBuffer encode(byte[] data) {
+            ByteBuffer buffer = ByteBuffer.allocate(data.length + 1);
+            buffer.put(data).put((byte) DbCollectionFile.RECORD_SEPARATOR).flip();
+            return buffer;
+        }
+
+        @Override
+        ByteBuffer encode(byte[] data, int slotLength) {
+            return encode(data);
+        }
+
+        @Override
+        ByteBuffer encodeUnused(int size) {
+            byte[] record = new byte[size];
+            Arrays.fill(record, (byte) DbCollectionFile.RECORD_DELETED);
+            record[size - 1] = DbCollectionFile.RECORD_SEPARATOR;
+            return ByteBuffer.wrap(record);
+        }
+
+        @Override
+        int slotLength(int dataLength, int padding) {
+            return dataLength;
+        }
+
+        @Override
+        int slotLength(long recordSize) {
+            return (int) recordSize - 1;
+        }
+
+        @Override
+        boolean fits(int dataLength, int slotLength) {
+            return false;
+        }
+
+        @Override
+        void delete(FileChannel channel, long recordPosition) throws IOException {
+            channel.write(ByteBuffer.wrap(new byte[]{DbCollectionFile.RECORD_DELETED}), recordPosition);
+        }
+
+        @Override
+        long nextRecordPosition(FileChannel channel, long position, long limit) throws IOException {
+            if (position <= dataOffset()) {
+                return dataOffset();
+            }
+            // a record starts behind a separator
+            ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+            long offset = position - 1;
+            while (offset < limit) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), limit - offset));
+                int read = channel.read(buffer, offset);
+                if (read <= 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == DbCollectionFile.RECORD_SEPARATOR) {
+                        return Math.min(offset + i + 1, limit);
+                    }
+                }
+                offset += read;
+            }
+            return limit;
+        }
+
+        @Override
+        RecordReader newReader(FileChannel channel, ReadMode readMode) throws IOException {
+            return readMode == ReadMode.MAPPED
+                   ? new MappedRecordReader(channel, DbCollectionFile.RECORD_SEPARATOR, DbCollectionFile.RECORD_DELETED)
+                   : new RecordDecoder(channel, DbCollectionFile.RECORD_SEPARATOR, DbCollectionFile.RECORD_DELETED);
+        }
+    },
+
+    /**
+     * Records framed with the length of data, a flags byte and the CRC32C checksum of data.
+     * Records can be skipped without reading their data and torn writes are detected.
+     * <p>
+     * A padded record occupies a slot bigger than its data, the length of data is stored at the beginning of the slot
+     * and covered by the checksum. The record can be overwritten in place by bigger data fitting into the slot.
+     */
+    FRAMED(2) {
+        @Override
+        long dataOffset() {
+            return HEADER_SIZE;
+        }
+
+        @Override
+        void writeHeader(FileChannel channel) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC).putInt(version).flip();
+            channel.write(header, 0);
+        }
+
+        @Override
+        ByteBuffer encode(byte[] data) {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+            buffer.putInt(data.length)
+                    .put((byte) 0)
+                    .putInt(Crc32c.compute(data, 0, data.length))
+                    .put(data)
+                    .flip();
+            return buffer;
+        }
+
+        @Override
+        ByteBuffer encode(byte[] data, int slotLength) {
+            if (slotLength == data.length) {
+                return encode(data);
+            }
+            if (!fits(data.length, slotLength)) {
+                throw new IllegalArgumentException("Data of " + data.length + " bytes don't fit into a slot of " + slotLength + " bytes.");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + slotLength);
+            buffer.putInt(slotLength)
+                    .put(FLAG_PADDED)
+                    .putInt(0)
+                    .putInt(data.length)
+                    .put(data);
+            buffer.putInt(RECORD_CRC_OFFSET, Crc32c.compute(buffer.array(), RECORD_HEADER_SIZE, PADDED_DATA_OFFSET + data.length));
+            buffer.clear();
+            return buffer;
+        }
+
+        @Override
+        ByteBuffer encodeUnused(int size) {
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            int length = size - RECORD_HEADER_SIZE;
+            buffer.putInt(length)
+                    .put(FLAG_DELETED)
+                    .putInt(Crc32c.compute(buffer.array(), RECORD_HEADER_SIZE, length));
+            buffer.clear();
+            return buffer;
+        }
+
+        @Override
+        int slotLength(int dataLength, int padding) {
+            if (padding <= 0) {
+                return dataLength;
+            }
+            return dataLength + PADDED_DATA_OFFSET + (int) ((long) dataLength * padding / 100);
+        }
+
+        @Override
+        int slotLength(long recordSize) {
+            return (int) recordSize - RECORD_HEADER_SIZE;
+        }
+
+        @Override
+        boolean fits(int dataLength, int slotLength) {
+            return dataLength == slotLength || dataLength + PADDED_DATA_OFFSET <= slotLength;
+        }
+
+        @Override
+        void delete(FileChannel channel, long recordPosition) throws IOException {
+            channel.write(ByteBuffer.wrap(new byte[]{FLAG_DELETED}), recordPosition + RECORD_FLAGS_OFFSET);
+        }
+
+        /**
+         * Records are recognized by their headers: a positive length within the limit, known flags and the checksum
+         * matching the data. Zero bytes of padding are never recognized as a record, because data are never empty.
+         */
+        @Override
+        long nextRecordPosition(FileChannel channel, long position, long limit) throws IOException {
+            if (position <= dataOffset()) {
+                return dataOffset();
+            }
+            ByteBuffer window = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+            long windowStart = -1;
+
+            for (long offset = position; offset + RECORD_HEADER_SIZE + 1 <= limit; offset++) {
+                if (windowStart < 0 || offset + RECORD_HEADER_SIZE + PADDED_DATA_OFFSET > windowStart + window.limit()) {
+                    windowStart = offset;
+                    window.clear().limit((int) Math.min(window.capacity(), limit - offset));
+                    while (window.hasRemaining() && channel.read(window, windowStart + window.position()) > 0) {
+                        // read the window
+                    }
+                    window.flip();
+                    if (window.limit() < RECORD_HEADER_SIZE + 1) {
+                        break;
+                    }
+                }
+                int i = (int) (offset - windowStart);
+                if (isRecord(channel, window, i, offset, limit)) {
+                    return offset;
+                }
+            }
+            return limit;
+        }
+
+        private boolean isRecord(FileChannel channel, ByteBuffer window, int i, long offset, long limit) throws IOException {
+            int length = window.getInt(i);
+            byte flags = window.get(i + RECORD_FLAGS_OFFSET);
+            if (length <= 0 || length > limit - offset - RECORD_HEADER_SIZE || (flags & ~(FLAG_DELETED | FLAG_PADDED)) != 0) {
+                return false;
+            }
+            int checked = length;
+            if ((flags & FLAG_PADDED) != 0) {
+                if (length < PADDED_DATA_OFFSET || i + RECORD_HEADER_SIZE + PADDED_DATA_OFFSET > window.limit()) {
+                    return false;
+                }
+                int dataLength = window.getInt(i + RECORD_HEADER_SIZE);
+                if (dataLength <= 0 || dataLength > length - PADDED_DATA_OFFSET) {
+                    return false;
+                }
+                checked = PADDED_DATA_OFFSET + dataLength;
+            }
+            int crc = window.getInt(i + RECORD_CRC_OFFSET);
+            if (i + RECORD_HEADER_SIZE + checked <= window.limit()) {
+                return crc == Crc32c.compute(window.array(), i + RECORD_HEADER_SIZE, checked);
+            }
+            ByteBuffer data = ByteBuffer.allocate(checked);
+            while (data.hasRemaining() && channel.read(data, offset + RECORD_HEADER_SIZE + data.position()) > 0) {
+                // read the data
+            }
+            return !data.hasRemaining() && crc == Crc32c.compute(data.array(), 0, checked);
+        }
+
+        @Override
+        RecordReader newReader(FileChannel channel, ReadMode readMode) throws IOException {
+            return new FramedRecordReader(channel, readMode == ReadMode.MAPPED);
+        }
+
+        @Override
+        RecordReader newReader(FileChannel channel, ByteBuffer prefetched, long prefetchedStart) throws IOException {
+            return new FramedRecordReader(channel, prefetched, prefetchedStart);
+        }
+    };
+
+    /**
+     * Format of new collections.
+     */
+    public static final FileFormat DEFAULT = FRAMED;
+
+    static final byte[] MAGIC = {'T', 'D', 'B', 'F'};
+    static final int HEADER_SIZE = MAGIC.length + Integer.BYTES;
+
+    // framed record: [int length][byte flags][int crc32c][data]
+    static final int RECORD_FLAGS_OFFSET = Integer.BYTES;
+    static final int RECORD_CRC_OFFSET = RECORD_FLAGS_OFFSET + 1;
+    static final int RECORD_HEADER_SIZE = RECORD_CRC_OFFSET + Integer.BYTES;
+
+    // padded record: [int slot length][byte flags][int crc32c][int data length][data][padding]
+    static final int PADDED_DATA_OFFSET = Integer.BYTES;
+
+    static final byte FLAG_DELETED = 1;
+    static final byte FLAG_PADDED = 2;
+
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    final int version;
+
+    FileFormat(int version) {
+        this.version = version;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the position of the first record in the file
+     */
+    abstract long dataOffset();
+
+    /**
+     * Writes the file header at the beginning of an empty file.
+     */
+    abstract void writeHeader(FileChannel channel) throws IOException;
+
+    /**
+     * Encodes the data to a record to be written into the file.
+     */
+    abstract ByteBuffer encode(byte[] data);
+
+    /**
+     * Encodes the data to a record occupying a slot of the length. A format without slots ignores the length.
+     *
+     * @param data       the data
+     * @param slotLength the length of the slot without the record header, the data must fit into it
+     */
+    abstract ByteBuffer encode(byte[] data, int slotLength);
+
+    /**
+     * Encodes a deleted record filling a range of the size, so the range is skipped by readers.
+     *
+     * @param size the size of the range including the record header, at least the size of the smallest record
+     */
+    abstract ByteBuffer encodeUnused(int size);
+
+    /**
+     * @param dataLength the length of data
+     * @param padding    the space to reserve in percents of the data length
+     * @return the length of a slot for the data with the reserved space
+     */
+    abstract int slotLength(int dataLength, int padding);
+
+    /**
+     * @param recordSize the size of a record including its header
+     * @return the length of the slot of the record
+     */
+    abstract int slotLength(long recordSize);
+
+    /**
+     * @return true if a record with data of the length can be written into the slot
+     */
+    abstract boolean fits(int dataLength, int slotLength);
+
+    /**
+     * Marks the record on the position as deleted.
+     */
+    abstract void delete(FileChannel channel, long recordPosition) throws IOException;
+
+    /**
+     * Finds the first record starting at the position or behind it. The position doesn't have to be a record boundary,
+     * so a file can be split into ranges to be read independently.
+     *
+     * @param channel  the channel of the file
+     * @param position the position to start searching from
+     * @param limit    the end of the searched area
+     * @return the position of the record or the limit if no record starts in the area
+     */
+    abstract long nextRecordPosition(FileChannel channel, long position, long limit) throws IOException;
+
+    /**
+     * Creates a new reader positioned at the first record.
+     */
+    RecordReader reader(FileChannel channel, ReadMode readMode) throws IOException {
+        RecordReader reader = newReader(channel, readMode);
+        reader.position(dataOffset());
+        return reader;
+    }
+
+    abstract RecordReader newReader(FileChannel channel, ReadMode readMode) throws IOException;
+
+    /**
+     * Creates a new reader positioned at the first record, reading from the bytes read ahead when possible.
+     *
+     * @param prefetched      bytes of the file read ahead
+     * @param prefetchedStart the position of the bytes in the file
+     */
+    RecordReader reader(FileChannel channel, ByteBuffer prefetched, long prefetchedStart) throws IOException {
+        RecordReader reader = newReader(channel, prefetched, prefetchedStart);
+        reader.position(dataOffset());
+        return reader;
+    }
+
+    RecordReader newReader(FileChannel channel, ByteBuffer prefetched, long prefetchedStart) throws IOException {
+        return newReader(channel, ReadMode.CHANNEL);
+    }
+
+    /**
+     * Detects the format of a collection file.
+     *
+     * @param channel the channel of the collection file
+     * @return the format of the file
+     * @throws IOException
+     * @throws DatabaseException if the version of the format is not supported
+     */
+    static FileFormat detect(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return TEXT;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) <= 0) {
+                return TEXT;
+            }
+        }
+        header.flip();
+
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC) && !Arrays.equals(magic, CompressedSegment.MAGIC)) {
+            return TEXT;
+        }
+        return forVersion(header.getInt());
+    }
+
+    /**
+     * @throws DatabaseException if the version of the format is not supported
+     */
+    static FileFormat forVersion(int version) {
+        for (FileFormat format : values()) {
+            if (format.version == version) {
+                return format;
+            }
+        }
+        throw new DatabaseException("Unsupported version of the collection file format: " + version);
+    }
+
+    /**
+     * Convenient method.
+     *
+     * @see #detect(FileChannel)
+     */
+    public static FileFormat detect(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return detect(channel);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot read a collection file '" + path + "': " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Initializes a collection file: an empty file gets the header of the format.
+     *
+     * @param path   the collection file
+     * @param format the format for an empty file
+     * @return the format of the file
+     */
+    static FileFormat initialize(Path path, FileFormat format) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() == 0) {
+                format.writeHeader(channel);
+                return format;
+            }
+            return detect(channel);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot initialize a collection file '" + path + "': " + e.getMessage(), e);
+        }
+    }
+}
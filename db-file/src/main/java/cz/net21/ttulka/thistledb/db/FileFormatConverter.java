@@ -0,0 +1,102 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lombok.NonNull;
+import lombok.extern.apachecommons.CommonsLog;
+
+/**
+ * Offline converter of collection files in a data directory into a file format.
+ * <p>
+ * The converter must not run while a server works with the data directory.
+ *
+ * @author ttulka
+ */
+@CommonsLog
+public final class FileFormatConverter {
+
+    // maximal time in milliseconds to wait for the maintenance of a converted collection
+    static final long CLOSE_TIMEOUT = 60_000;
+
+    private final Path dataDir;
+
+    public FileFormatConverter(@NonNull Path dataDir) {
+        this.dataDir = dataDir;
+    }
+
+    /**
+     * Converts all the collections into the default format.
+     *
+     * @return the count of converted collections
+     * @see FileFormat#DEFAULT
+     */
+    public int upgrade() {
+        return convert(FileFormat.DEFAULT);
+    }
+
+    /**
+     * Converts all the collections into the format. Indexes are rebuilt for converted collections.
+     *
+     * @param format the target format
+     * @return the count of converted collections
+     */
+    public int convert(@NonNull FileFormat format) {
+        if (!Files.isDirectory(dataDir)) {
+            throw new DatabaseException("Data directory '" + dataDir.toAbsolutePath() + "' doesn't exist.");
+        }
+        int converted = 0;
+        for (Path path : collectionFiles()) {
+            FileFormat current = FileFormat.detect(path);
+            if (current != format) {
+                log.info("Converting collection '" + path.getFileName() + "' from " + current + " to " + format + ".");
+
+                DbCollectionFile collection = new DbCollectionFile(path, 0, ReadMode.CHANNEL, current);
+                try {
+                    // changes left in the write-ahead log belong to the old file
+                    collection.enableWriteAheadLog(DataSourceFile.DEFAULT_BATCH_INTERVAL);
+                    collection.convert(format);
+                } finally {
+                    close(collection);
+                }
+                converted++;
+            }
+        }
+        return converted;
+    }
+
+    /**
+     * Closes the collection when the background maintenance scheduled by the conversion is done.
+     */
+    private static void close(DbCollectionFile collection) {
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        while (!collection.close()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new DatabaseException("Cannot close a converted collection: the collection is not idle.");
+            }
+            try {
+                Thread.sleep(10);
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DatabaseException("Interrupted while closing a converted collection.", e);
+            }
+        }
+    }
+
+    private List<Path> collectionFiles() {
+        try (Stream<Path> files = Files.list(dataDir)) {
+            return files
+                    .filter(Files::isRegularFile)
+                    .filter(path -> Catalog.isCollectionFile(path.getFileName().toString()))
+                    .collect(Collectors.toList());
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot read a data directory '" + dataDir.toAbsolutePath() + "': " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads records in the {@link FileFormat#FRAMED} format.
+ * <p>
+ * Deleted records are skipped by their length without reading their data.
+ * The data of a record is verified with its CRC32C checksum before decoding.
+ * A record cut by the end of the file (a torn write) is considered not existing.
+ * A record failing the checksum is read again a few times before considered corrupted, because it could be just
+ * overwritten in place by an update.
+ * <p>
+ * Bytes are read either via the channel into a reused heap buffer, or from memory-mapped windows of the file.
+ * A reader can start with bytes of the file read ahead, records inside them are not read again.
+ * Reading via the channel reads ahead up to {@link #MAX_READ_AHEAD} bytes when hinted (@see #readAhead(long)).
+ *
+ * @author ttulka
+ */
+class FramedRecordReader implements RecordReader {
+
+    static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    static final int MAX_READ_AHEAD = 1024 * 1024;
+
+    private static final int MAX_REREADS = 3;
+
+    private final FileChannel channel;
+    private final boolean mapped;
+    private final int windowSize;
+
+    private final Crc32c crc32c = new Crc32c();
+
+    private ByteBuffer window;
+    private long windowStart = 0;
+
+    private byte[] data = new byte[0];
+
+    private long position = 0;
+    private long recordPosition = -1;
+
+    private Long maxPosition = null;
+
+    private long readAhead = 0;
+
+    private long skippedRecords = 0;
+
+    public FramedRecordReader(FileChannel channel, boolean mapped) {
+        this(channel, mapped, mapped ? MappedRecordReader.MAX_WINDOW_SIZE : DEFAULT_BUFFER_SIZE);
+    }
+
+    FramedRecordReader(FileChannel channel, boolean mapped, int windowSize) {
+        this.channel = channel;
+        this.mapped = mapped;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @param prefetched      bytes of the file read ahead, a heap buffer
+     * @param prefetchedStart the position of the bytes in the file
+     */
+    FramedRecordReader(FileChannel channel, ByteBuffer prefetched, long prefetchedStart) {
+        this(channel, false, DEFAULT_BUFFER_SIZE);
+        this.window = prefetched;
+        this.windowStart = prefetchedStart;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void position(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public long recordPosition() {
+        return recordPosition;
+    }
+
+    @Override
+    public void setMaxPosition(Long maxPosition) {
+        this.maxPosition = maxPosition;
+    }
+
+    @Override
+    public ByteBuffer nextBytes() throws IOException {
+        long limit = limit();
+        long recordStart = position;
+        int rereads = 0;
+
+        while (ensure(recordStart, FileFormat.RECORD_HEADER_SIZE, limit)) {
+            int offset = (int) (recordStart - windowStart);
+            int length = window.getInt(offset);
+            byte flags = window.get(offset + FileFormat.RECORD_FLAGS_OFFSET);
+            int crc = window.getInt(offset + FileFormat.RECORD_CRC_OFFSET);
+
+            long dataStart = recordStart + FileFormat.RECORD_HEADER_SIZE;
+            if (length < 0 || dataStart + length > limit) {
+                return null;    // torn or incomplete record
+            }
+            if ((flags & FileFormat.FLAG_DELETED) != 0) {
+                recordStart = dataStart + length;
+                skippedRecords++;
+                continue;
+            }
+            if (!ensure(dataStart, length, limit)) {
+                return null;
+            }
+            int checkedOffset = readData(dataStart, length);
+            int checkedLength = length;
+            int dataOffset = checkedOffset;
+            int dataLength = length;
+
+            if ((flags & FileFormat.FLAG_PADDED) != 0) {
+                dataLength = length >= FileFormat.PADDED_DATA_OFFSET ? window.getInt((int) (dataStart - windowStart)) : -1;
+                checkedLength = FileFormat.PADDED_DATA_OFFSET + dataLength;
+                dataOffset += FileFormat.PADDED_DATA_OFFSET;
+            }
+            boolean valid = dataLength >= 0 && checkedLength <= length;
+            if (valid) {
+                crc32c.reset();
+                crc32c.update(data(), checkedOffset, checkedLength);
+                valid = (int) crc32c.getValue() == crc;
+            }
+            if (!valid) {
+                if (rereads++ < MAX_REREADS) {
+                    window.limit(0);    // read the record again
+                    continue;
+                }
+                throw new DatabaseException("Corrupted record at the position " + recordStart + ": checksum mismatch.");
+            }
+            position = dataStart + length;
+            recordPosition = recordStart;
+
+            return ByteBuffer.wrap(data(), dataOffset, dataLength);
+        }
+        return null;
+    }
+
+    @Override
+    public long skippedRecords() {
+        return skippedRecords;
+    }
+
+    @Override
+    public void readAhead(long position) {
+        readAhead = position;
+    }
+
+    private long limit() throws IOException {
+        long size = channel.size();
+        return maxPosition != null ? Math.min(size, maxPosition) : size;
+    }
+
+    /**
+     * Makes sure the window covers the bytes.
+     *
+     * @param from   the position of the first byte
+     * @param length the amount of bytes
+     * @param limit  the position to read until (exclusive)
+     * @return true if the bytes are available, false when the bytes are not in the file
+     * @throws IOException
+     */
+    private boolean ensure(long from, int length, long limit) throws IOException {
+        if (from + length > limit) {
+            return false;
+        }
+        if (window != null && from >= windowStart && from + length <= windowStart + window.limit()) {
+            return true;
+        }
+        int size = (int) Math.min(Math.max(windowSize, length), limit - from);
+
+        if (mapped) {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, from, size);
+        } else {
+            if (readAhead > from) {
+                // the last record read ahead is likely to fit into the default window
+                long readAheadSize = Math.min(readAhead + DEFAULT_BUFFER_SIZE - from, MAX_READ_AHEAD);
+                size = (int) Math.min(Math.max(size, readAheadSize), limit - from);
+            }
+            if (window == null || window.capacity() < size) {
+                window = ByteBuffer.allocate(Math.max(size, windowSize));
+            }
+            window.clear().limit(size);
+            while (window.hasRemaining()) {
+                if (channel.read(window, from + window.position()) <= 0) {
+                    break;
+                }
+            }
+            window.flip();
+        }
+        windowStart = from;
+        return window.limit() >= length;
+    }
+
+    /**
+     * Makes the record data accessible as an array.
+     *
+     * @return the offset of the data in the array
+     */
+    private int readData(long from, int length) {
+        int offset = (int) (from - windowStart);
+        if (window.hasArray()) {
+            return window.arrayOffset() + offset;
+        }
+        if (data.length < length) {
+            data = new byte[Math.max(length, data.length * 2)];
+        }
+        ByteBuffer slice = window.duplicate();
+        slice.position(offset);
+        slice.get(data, 0, length);
+        return 0;
+    }
+
+    private byte[] data() {
+        return window.hasArray() ? window.array() : data;
+    }
+}
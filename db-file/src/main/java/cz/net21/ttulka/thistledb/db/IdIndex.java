@@ -0,0 +1,365 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Index of document ids: a hash table with open addressing in a memory-mapped file.
+ * <p>
+ * A slot holds a 64-bit hash of an id and the position of the record. Positions are found by the hash, different ids
+ * with the same hash are told apart by reading the records. A lookup costs a few memory reads and one seek to the record.
+ * <p>
+ * File format: `[int magic][int version][long capacity][long size][long deleted]` followed by `capacity` slots
+ * `[long hash][long position]`. The position `0` marks an empty slot (there is always the header of a segment),
+ * `-1` marks a deleted one. The table grows twice when half full, a grown table is written into a new file
+ * and moved over the old one.
+ * <p>
+ * A mapped buffer is addressed by int, so the slots are mapped in regions of {@link #REGION_SLOTS} slots (1 GB).
+ *
+ * @author ttulka
+ */
+final class IdIndex implements AutoCloseable {
+
+    static final long INITIAL_CAPACITY = 1024;
+    static final int REGION_SLOTS = 1 << 26;
+
+    private static final int MAGIC = 0x54484944;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 16;
+
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+
+    // the size of the file must not overflow
+    private static final long MAX_CAPACITY = Long.highestOneBit((Long.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE);
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final Path path;
+    private final int regionSlots;
+
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private Slots slots;
+
+    private long capacity;
+    private long size;
+    private long deleted;
+
+    /**
+     * Opens the index file or creates an empty one when not existing.
+     *
+     * @throws IOException if the file is not a valid index
+     */
+    public IdIndex(Path path) throws IOException {
+        this(path, REGION_SLOTS);
+    }
+
+    /**
+     * @param regionSlots the count of slots mapped in one region, a power of two
+     */
+    IdIndex(Path path, int regionSlots) throws IOException {
+        this.path = path;
+        this.regionSlots = regionSlots;
+        if (Files.exists(path)) {
+            open();
+        } else {
+            Files.createDirectories(path.getParent());
+            create(path, INITIAL_CAPACITY);
+            open();
+        }
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Invalid id index: " + path);
+            }
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            capacity = header.getLong(8);
+            size = header.getLong(16);
+            deleted = header.getLong(24);
+
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                || capacity <= 0 || capacity > MAX_CAPACITY || Long.bitCount(capacity) != 1
+                || channel.size() != fileSize(capacity) || size < 0 || deleted < 0 || size + deleted > capacity) {
+                throw new IOException("Invalid id index: " + path);
+            }
+            slots = new Slots(channel, capacity, regionSlots);
+
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static void create(Path path, long capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the slots are zeros, the file is extended by the last byte
+            channel.write(ByteBuffer.allocate(1), fileSize(capacity) - 1);
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putLong(8, capacity);
+            header.force();
+        }
+    }
+
+    private static long fileSize(long capacity) {
+        return HEADER_SIZE + capacity * SLOT_SIZE;
+    }
+
+    /**
+     * Ids equal by a condition have the same key: numbers are equal as doubles, other values as strings.
+     */
+    static String key(String id) {
+        try {
+            return "#" + Long.toHexString(Double.doubleToLongBits(Double.valueOf(id)));
+
+        } catch (NumberFormatException e) {
+            return id;
+        }
+    }
+
+    static long hash(String id) {
+        return HASH.hashString(key(id), StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * @return the positions of records possibly having the id
+     */
+    synchronized Positions positions(String id) {
+        long hash = hash(id);
+        Positions.Builder positions = new Positions.Builder(1);
+        for (long i = 0, slot = slot(hash); i < capacity; i++, slot = next(slot)) {
+            long position = position(slot);
+            if (position == EMPTY) {
+                break;
+            }
+            if (position != DELETED && hash(slot) == hash) {
+                positions.add(position);
+            }
+        }
+        return positions.build();
+    }
+
+    /**
+     * Inserts the position of a record with the id, an already inserted position is not inserted again.
+     */
+    synchronized void insert(String id, long position) throws IOException {
+        if ((size + deleted + 1) * 2 > capacity) {
+            rehash(size * 4 >= capacity ? capacity * 2 : capacity);
+        }
+        long hash = hash(id);
+        long free = -1;
+        for (long i = 0, slot = slot(hash); i < capacity; i++, slot = next(slot)) {
+            long slotPosition = position(slot);
+            if (slotPosition == EMPTY) {
+                if (free == -1) {
+                    free = slot;
+                }
+                break;
+            }
+            if (slotPosition == DELETED) {
+                if (free == -1) {
+                    free = slot;
+                }
+            } else if (slotPosition == position && hash(slot) == hash) {
+                return;
+            }
+        }
+        if (position(free) == DELETED) {
+            deleted--;
+        }
+        put(free, hash, position);
+        size++;
+        writeHeader();
+    }
+
+    /**
+     * Deletes the position of a record with the id.
+     */
+    synchronized void delete(String id, long position) {
+        long hash = hash(id);
+        for (long i = 0, slot = slot(hash); i < capacity; i++, slot = next(slot)) {
+            long slotPosition = position(slot);
+            if (slotPosition == EMPTY) {
+                return;
+            }
+            if (slotPosition == position && hash(slot) == hash) {
+                put(slot, hash, DELETED);
+                size--;
+                deleted++;
+                writeHeader();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes all the positions.
+     */
+    synchronized void clear() throws IOException {
+        close();
+        create(path, INITIAL_CAPACITY);
+        open();
+    }
+
+    /**
+     * Rewrites the table without deleted slots.
+     */
+    synchronized void compact() throws IOException {
+        if (deleted > 0) {
+            rehash(capacity);
+        }
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    synchronized long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the stats of live and deleted slots
+     */
+    synchronized StorageStats stats() {
+        return new StorageStats(size, size * SLOT_SIZE, deleted, deleted * SLOT_SIZE);
+    }
+
+    synchronized void force() {
+        slots.force();
+        header.force();
+    }
+
+    private void rehash(long newCapacity) throws IOException {
+        if (newCapacity > MAX_CAPACITY) {
+            throw new DatabaseException("Too many ids in the index: " + path);
+        }
+        Path tmp = Paths.get(path + ".tmp");
+        create(tmp, newCapacity);
+        try (FileChannel tmpChannel = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Slots tmpSlots = new Slots(tmpChannel, newCapacity, regionSlots);
+            long mask = newCapacity - 1;
+            for (long slot = 0; slot < capacity; slot++) {
+                long position = position(slot);
+                if (position != EMPTY && position != DELETED) {
+                    long hash = hash(slot);
+                    long newSlot = hash & mask;
+                    while (tmpSlots.position(newSlot) != EMPTY) {
+                        newSlot = (newSlot + 1) & mask;
+                    }
+                    tmpSlots.put(newSlot, hash, position);
+                }
+            }
+            tmpSlots.force();
+            MappedByteBuffer tmpHeader = tmpChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            tmpHeader.putLong(16, size);
+            tmpHeader.force();
+        }
+        close();
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        open();
+    }
+
+    private long slot(long hash) {
+        return hash & (capacity - 1);
+    }
+
+    private long next(long slot) {
+        return (slot + 1) & (capacity - 1);
+    }
+
+    private long hash(long slot) {
+        return slots.hash(slot);
+    }
+
+    private long position(long slot) {
+        return slots.position(slot);
+    }
+
+    private void put(long slot, long hash, long position) {
+        slots.put(slot, hash, position);
+    }
+
+    private void writeHeader() {
+        header.putLong(16, size);
+        header.putLong(24, deleted);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        header = null;
+        slots = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Slots of a table mapped in regions behind the header, a slot is found by the region and the offset in it.
+     */
+    private static final class Slots {
+
+        private final MappedByteBuffer[] regions;
+        private final int regionShift;
+        private final long regionMask;
+
+        Slots(FileChannel channel, long capacity, int regionSlots) throws IOException {
+            long slotsInRegion = Math.min(capacity, regionSlots);
+            regions = new MappedByteBuffer[(int) (capacity / slotsInRegion)];
+            regionShift = Long.numberOfTrailingZeros(slotsInRegion);
+            regionMask = slotsInRegion - 1;
+            for (int i = 0; i < regions.length; i++) {
+                regions[i] = channel.map(FileChannel.MapMode.READ_WRITE, fileSize(i * slotsInRegion), slotsInRegion * SLOT_SIZE);
+            }
+        }
+
+        long hash(long slot) {
+            return region(slot).getLong(offset(slot));
+        }
+
+        long position(long slot) {
+            return region(slot).getLong(offset(slot) + 8);
+        }
+
+        void put(long slot, long hash, long position) {
+            MappedByteBuffer region = region(slot);
+            int offset = offset(slot);
+            region.putLong(offset, hash);
+            region.putLong(offset + 8, position);
+        }
+
+        void force() {
+            for (MappedByteBuffer region : regions) {
+                region.force();
+            }
+        }
+
+        private MappedByteBuffer region(long slot) {
+            return regions[(int) (slot >>> regionShift)];
+        }
+
+        private int offset(long slot) {
+            return (int) (slot & regionMask) * SLOT_SIZE;
+        }
+    }
+}
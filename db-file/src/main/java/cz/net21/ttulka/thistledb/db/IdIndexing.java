@@ -0,0 +1,329 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import lombok.extern.apachecommons.CommonsLog;
+
+/**
+ * Indexing with the document ids in a hash table (@see IdIndex), other indexes are delegated.
+ * <p>
+ * The id index `_id` exists whenever the identity of the collection is enabled, it cannot be dropped.
+ * The table is opened on the first access.
+ *
+ * @author ttulka
+ */
+@CommonsLog
+class IdIndexing implements Indexing {
+
+    private final Indexing indexing;
+    private final Path tablePath;
+    private final BooleanSupplier enabled;
+
+    private IdIndex table;
+
+    /**
+     * @param indexing  the indexing of other elements
+     * @param tablePath the path to the file of the id table
+     * @param enabled   true when the documents have ids
+     */
+    public IdIndexing(Indexing indexing, Path tablePath, BooleanSupplier enabled) {
+        this.indexing = indexing;
+        this.tablePath = tablePath;
+        this.enabled = enabled;
+    }
+
+    private boolean isId(String index) {
+        return Identity.ID.equals(index) && enabled.getAsBoolean();
+    }
+
+    private synchronized IdIndex table() {
+        if (table == null) {
+            try {
+                table = new IdIndex(tablePath);
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot open an id index: " + tablePath, e);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Opens the table, a corrupted table is replaced with an empty one.
+     *
+     * @return false if the table was missing or corrupted and must be rebuilt
+     */
+    synchronized boolean load() {
+        boolean existed = Files.exists(tablePath);
+        try {
+            table = new IdIndex(tablePath);
+            return existed;
+
+        } catch (IOException e) {
+            log.warn("Id index corrupted, will be rebuilt: " + tablePath, e);
+            try {
+                Files.delete(tablePath);
+                table = new IdIndex(tablePath);
+                return false;
+
+            } catch (IOException e2) {
+                throw new DatabaseException("Cannot create an id index: " + tablePath, e2);
+            }
+        }
+    }
+
+    /**
+     * Replaces the table with the table of the source indexing, the source table is moved.
+     */
+    synchronized void replaceIds(IdIndexing source) {
+        try {
+            closeTable();
+            source.closeTable();
+            if (Files.exists(source.tablePath)) {
+                Files.createDirectories(tablePath.getParent());
+                Files.move(source.tablePath, tablePath, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(tablePath);
+            }
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot replace an id index: " + tablePath, e);
+        }
+    }
+
+    /**
+     * Removes the table.
+     */
+    synchronized void dropIds() {
+        try {
+            closeTable();
+            Files.deleteIfExists(tablePath);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot delete an id index: " + tablePath, e);
+        }
+    }
+
+    private synchronized void closeTable() throws IOException {
+        if (table != null) {
+            table.close();
+            table = null;
+        }
+    }
+
+    @Override
+    public Path getPath() {
+        return indexing.getPath();
+    }
+
+    @Override
+    public boolean exists(String index) {
+        return isId(index) || indexing.exists(index);
+    }
+
+    @Override
+    public void existing(Collection<String> indexes) {
+        indexing.existing(indexes);
+    }
+
+    @Override
+    public Positions positions(String index, String value) {
+        if (isId(index)) {
+            return table().positions(value);
+        }
+        return indexing.positions(index, value);
+    }
+
+    @Override
+    public Positions range(String index, String from, String to) {
+        if (isId(index)) {
+            return null;
+        }
+        return indexing.range(index, from, to);
+    }
+
+    @Override
+    public Positions prefix(String index, String prefix) {
+        if (isId(index)) {
+            return null;
+        }
+        return indexing.prefix(index, prefix);
+    }
+
+    @Override
+    public void insert(String index, Object value, long position) {
+        if (isId(index)) {
+            insertId(String.valueOf(value), position);
+        } else {
+            indexing.insert(index, value, position);
+        }
+    }
+
+    private void insertId(String id, long position) {
+        try {
+            table().insert(id, position);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot insert into an id index: " + tablePath, e);
+        }
+    }
+
+    @Override
+    public void insertAll(String index, Map<String, List<Long>> valuePositions) {
+        if (isId(index)) {
+            valuePositions.forEach((id, positions) -> positions.forEach(position -> insertId(id, position)));
+        } else {
+            indexing.insertAll(index, valuePositions);
+        }
+    }
+
+    @Override
+    public byte[] buildKey(String index, Object value) {
+        if (isId(index)) {
+            return String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+        }
+        return indexing.buildKey(index, value);
+    }
+
+    /**
+     * Ids are inserted into the table one by one, the table is not sorted.
+     */
+    @Override
+    public void build(String index, Iterator<ExternalSort.Group> sorted) {
+        if (!isId(index)) {
+            indexing.build(index, sorted);
+            return;
+        }
+        while (sorted.hasNext()) {
+            ExternalSort.Group group = sorted.next();
+            String id = new String(group.key, StandardCharsets.UTF_8);
+            group.positions.forEach(position -> insertId(id, position));
+        }
+    }
+
+    @Override
+    public void delete(String index, Object value, long position) {
+        if (isId(index)) {
+            table().delete(String.valueOf(value), position);
+        } else {
+            indexing.delete(index, value, position);
+        }
+    }
+
+    @Override
+    public boolean create(String index) {
+        if (isId(index)) {
+            try {
+                table().clear();
+                return true;
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot create an id index: " + tablePath, e);
+            }
+        }
+        return indexing.create(index);
+    }
+
+    @Override
+    public boolean create(String index, IndexType type) {
+        if (isId(index)) {
+            return create(index);
+        }
+        return indexing.create(index, type);
+    }
+
+    @Override
+    public IndexType type(String index) {
+        if (isId(index)) {
+            return IndexType.HASH;
+        }
+        return indexing.type(index);
+    }
+
+    @Override
+    public void drop(String index) {
+        if (isId(index)) {
+            throw new DatabaseException("The index of ids cannot be dropped.");
+        }
+        indexing.drop(index);
+    }
+
+    @Override
+    public void dropAll() {
+        indexing.dropAll();
+        dropIds();
+    }
+
+    @Override
+    public void dropOnlyData() {
+        indexing.dropOnlyData();
+        dropIds();
+    }
+
+    @Override
+    public void cleanUp(String index) {
+        if (!isId(index)) {
+            indexing.cleanUp(index);
+        }
+    }
+
+    @Override
+    public void cleanUp() {
+        indexing.cleanUp();
+        if (enabled.getAsBoolean()) {
+            try {
+                table().compact();
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot clean up an id index: " + tablePath, e);
+            }
+        }
+    }
+
+    @Override
+    public void sync() {
+        indexing.sync();
+        synchronized (this) {
+            if (table != null) {
+                table.force();
+            }
+        }
+    }
+
+    @Override
+    public StorageStats stats(String index) {
+        if (isId(index)) {
+            return table().stats();
+        }
+        return indexing.stats(index);
+    }
+
+    @Override
+    public boolean cleanUpNeeded(double threshold) {
+        return indexing.cleanUpNeeded(threshold);
+    }
+
+    @Override
+    public long cleanUpNext(double threshold) {
+        return indexing.cleanUpNext(threshold);
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            closeTable();
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot close an id index: " + tablePath, e);
+        }
+        indexing.close();
+    }
+}
@@ -0,0 +1,212 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Changes of index files not written yet: positions inserted and deleted by values, grouped by the index files.
+ * <p>
+ * Changes are drained to be written in a batch, drained changes stay visible to lookups until they are written.
+ * Deleted positions are to be deleted from the index file before inserted positions are appended, so a position
+ * deleted and inserted again stays in the index once.
+ *
+ * @author ttulka
+ */
+final class IndexBuffer {
+
+    // estimated bytes of a buffered value besides its characters
+    private static final int VALUE_OVERHEAD = 128;
+    // estimated bytes of a buffered position
+    private static final int POSITION_BYTES = 16;
+
+    private Map<Path, Map<String, Changes>> active = new HashMap<>();
+    private Map<Path, Map<String, Changes>> drained = Collections.emptyMap();
+
+    private long bytes = 0;
+
+    synchronized void insert(Path file, String index, String value, long position) {
+        if (changes(file, index, value).inserted.add(position)) {
+            bytes += POSITION_BYTES;
+        }
+    }
+
+    synchronized void delete(Path file, String index, String value, long position) {
+        Changes changes = changes(file, index, value);
+        changes.inserted.remove(position);
+        if (changes.deleted.add(position)) {
+            bytes += POSITION_BYTES;
+        }
+    }
+
+    private Changes changes(Path file, String index, String value) {
+        Map<String, Changes> values = active.computeIfAbsent(file, f -> new HashMap<>());
+        Changes changes = values.get(value);
+        if (changes == null) {
+            changes = new Changes(index);
+            values.put(value, changes);
+            bytes += VALUE_OVERHEAD + 2L * value.length();
+        }
+        return changes;
+    }
+
+    /**
+     * @return the estimated size of the buffered changes in bytes
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Applies the changes of the value to the stored positions.
+     *
+     * @param pending the pending changes of the value, must be taken before the stored positions are read
+     * @param stored  the positions read from the index file
+     * @return the actual positions
+     */
+    static Positions apply(List<Changes> pending, Positions stored) {
+        Positions positions = stored;
+        for (Changes changes : pending) {
+            positions = positions.without(changes.deleted()).or(changes.inserted());
+        }
+        return positions;
+    }
+
+    /**
+     * @return copies of the drained and actual changes of the value from the oldest, empty if there are no changes
+     */
+    synchronized List<Changes> pending(Path file, String value) {
+        List<Changes> pending = new ArrayList<>(2);
+        for (Map<Path, Map<String, Changes>> changes : Arrays.asList(drained, active)) {
+            Map<String, Changes> values = changes.get(file);
+            Changes valueChanges = values != null ? values.get(value) : null;
+            if (valueChanges != null) {
+                pending.add(valueChanges.copy());
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Takes the changes to be written, they are still visible to lookups until {@link #written()} is called.
+     *
+     * @return changes of values by index files
+     */
+    synchronized Map<Path, Map<String, Changes>> drain() {
+        drained = active;
+        active = new HashMap<>();
+        bytes = 0;
+        return drained;
+    }
+
+    /**
+     * Forgets the drained changes, they are written.
+     */
+    synchronized void written() {
+        drained = Collections.emptyMap();
+    }
+
+    /**
+     * Forgets the changes of the index files in the directory.
+     */
+    synchronized void discard(Path dir) {
+        active.keySet().removeIf(file -> file.startsWith(dir));
+        drained.keySet().removeIf(file -> file.startsWith(dir));
+        if (active.isEmpty()) {
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Inserted and deleted positions of a value.
+     */
+    static final class Changes {
+
+        private final String index;
+        private final PositionSet inserted;
+        private final PositionSet deleted;
+
+        private Changes(String index) {
+            this(index, new PositionSet(), new PositionSet());
+        }
+
+        private Changes(String index, PositionSet inserted, PositionSet deleted) {
+            this.index = index;
+            this.inserted = inserted;
+            this.deleted = deleted;
+        }
+
+        String index() {
+            return index;
+        }
+
+        Positions inserted() {
+            return inserted.toPositions();
+        }
+
+        Positions deleted() {
+            return deleted.toPositions();
+        }
+
+        private Changes copy() {
+            return new Changes(index, inserted.copy(), deleted.copy());
+        }
+    }
+
+    /**
+     * Mutable set of positions in a sorted array, positions are mostly added in the ascending order.
+     */
+    private static final class PositionSet {
+
+        private long[] positions;
+        private int size;
+
+        PositionSet() {
+            this(new long[4], 0);
+        }
+
+        private PositionSet(long[] positions, int size) {
+            this.positions = positions;
+            this.size = size;
+        }
+
+        boolean add(long position) {
+            int index = Arrays.binarySearch(positions, 0, size, position);
+            if (index >= 0) {
+                return false;
+            }
+            index = -index - 1;
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            System.arraycopy(positions, index, positions, index + 1, size - index);
+            positions[index] = position;
+            size++;
+            return true;
+        }
+
+        void remove(long position) {
+            int index = Arrays.binarySearch(positions, 0, size, position);
+            if (index >= 0) {
+                System.arraycopy(positions, index + 1, positions, index, size - index - 1);
+                size--;
+            }
+        }
+
+        Positions toPositions() {
+            Positions.Builder builder = new Positions.Builder(size);
+            for (int i = 0; i < size; i++) {
+                builder.add(positions[i]);
+            }
+            return builder.build();
+        }
+
+        PositionSet copy() {
+            return new PositionSet(Arrays.copyOf(positions, Math.max(size, 1)), size);
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package cz.net21.ttulka.thistledb.db;
 
 import java.nio.file.Path;
-import java.util.Set;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
  * @author ttulka
@@ -12,14 +15,79 @@ interface Indexing {
 
     boolean exists(String index);
 
-    Set<Long> positions(String index, String value);
+    /**
+     * Marks the indexes as existing without checking the disk, e.g. when they are known from the catalog.
+     *
+     * @param indexes the existing indexes
+     */
+    void existing(Collection<String> indexes);
+
+    /**
+     * @return the positions of records possibly having the value, or null if the index doesn't exist
+     */
+    Positions positions(String index, String value);
+
+    /**
+     * Finds positions of values in a range, values equal to the bounds included. Values are compared as by conditions:
+     * as numbers when both values are numbers, otherwise as strings.
+     *
+     * @param index the index
+     * @param from  the lowest value, or null for no lower bound
+     * @param to    the highest value, or null for no upper bound
+     * @return the positions of records possibly having a value in the range,
+     * or null if the index doesn't exist or is not ordered
+     */
+    Positions range(String index, String from, String to);
+
+    /**
+     * Finds positions of values starting with the prefix, the case of ASCII letters is ignored as by `LIKE` conditions.
+     *
+     * @param index  the index
+     * @param prefix the prefix
+     * @return the positions of records possibly having a value with the prefix,
+     * or null if the index doesn't exist or is not ordered
+     */
+    Positions prefix(String index, String prefix);
 
     void insert(String index, Object value, long position);
 
+    /**
+     * Inserts positions of many values at once.
+     *
+     * @param index          the index
+     * @param valuePositions positions by values
+     */
+    void insertAll(String index, Map<String, List<Long>> valuePositions);
+
+    /**
+     * @return the key of the value to sort the values by for {@link #build(String, Iterator)}
+     */
+    byte[] buildKey(String index, Object value);
+
+    /**
+     * Writes positions of all values into a new empty index at once.
+     *
+     * @param index  the index
+     * @param sorted positions grouped by the keys of their values (@see #buildKey) in the ascending order of the keys
+     */
+    void build(String index, Iterator<ExternalSort.Group> sorted);
+
     void delete(String index, Object value, long position);
 
     boolean create(String index);
 
+    /**
+     * @param index the index
+     * @param type  the type of the index
+     * @return true if the index was created, false if it already exists
+     */
+    boolean create(String index, IndexType type);
+
+    /**
+     * @return the type of the index, or null if the index doesn't exist
+     */
+    IndexType type(String index);
+
     void drop(String index);
 
     void dropAll();
@@ -30,4 +98,32 @@ interface Indexing {
 
     void cleanUp();
 
+    /**
+     * Forces all the index files changed since the last call to the disk.
+     */
+    void sync();
+
+    /**
+     * @return the stats of live and dead positions of the index
+     */
+    StorageStats stats(String index);
+
+    /**
+     * @param threshold the ratio of dead bytes in an index file
+     * @return true if there is an index file with deleted positions reaching the threshold
+     */
+    boolean cleanUpNeeded(double threshold);
+
+    /**
+     * Cleans up a next index file with deleted positions reaching the threshold.
+     *
+     * @param threshold the ratio of dead bytes in an index file
+     * @return the size of the index file before the clean up in bytes, or -1 if there is no such file
+     */
+    long cleanUpNext(double threshold);
+
+    /**
+     * Closes open index files and evicts cached positions, they are loaded again on the next access.
+     */
+    void close();
 }
@@ -3,17 +3,26 @@ package cz.net21.ttulka.thistledb.db;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.Striped;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.extern.apachecommons.CommonsLog;
 import org.apache.commons.io.FileUtils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.stream.Stream;
@@ -33,6 +42,17 @@ import java.util.stream.Stream;
  * When a whole record is deleted (has only deleted positions), the record starts with `#RECORD_DELETED`.<br>
  * <p>
  * Clean up procedure collects all the positions for all values and puts them into one record.
+ * <p>
+ * Stats of live and deleted positions are kept for every index file and stored in the file `<collectionName>_idx/.stats`
+ * by the sync. Stored stats are valid until a next change, stats not known are counted from the index file on demand.
+ * <p>
+ * Inserted and deleted positions are buffered in memory (@see IndexBuffer) and written in batches when the buffer
+ * exceeds its size, by the sync or when the stats are read: deleted positions of an index file are marked in one scan
+ * of the file, inserted positions of a value are appended as one record. Lookups merge the buffered changes with
+ * the positions read from the index file. Index files are written through a pool of open channels (@see ChannelPool).
+ * <p>
+ * Buffered changes are written under striped locks of the files, a file is read under the read lock
+ * so a record being appended is never read partially.
  *
  * @author ttulka
  */
@@ -46,31 +66,78 @@ class IndexingFile implements Indexing {
     static final String POSITION_SEPARATOR = ",";
     static final String POSITION_DELETED = RECORD_DELETED + "";
 
+    // not a valid index name
+    static final String STATS_FILE = ".stats";
+
+    // length of the part of a value hash determining the index file
+    private static final int HASH_LENGTH = 5;
+
+    // minimal dead bytes of an index file to be cleaned up
+    static final long CLEAN_UP_MIN_DEAD_BYTES = 1024;
+
+    static final long DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
     final Path path;
 
-    private final Map<String, Boolean> existingIndexes = new HashMap<>();
-    private final Map<String, Path> cacheValuePaths = new WeakHashMap();
+    // locks of index files, appends are exclusive
+    static final int FILE_LOCK_STRIPES = 64;
+
+    private final Map<String, Boolean> existingIndexes = new ConcurrentHashMap<>();
+    private final Map<String, Path> cacheValuePaths = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Striped<ReadWriteLock> fileLocks = Striped.readWriteLock(FILE_LOCK_STRIPES);
+
+    // index files changed since the last sync
+    private final Set<Path> modifiedFiles = ConcurrentHashMap.newKeySet();
+
+    // stats of index files, a missing value means not known yet
+    private final Map<Path, StorageStats> fileStats = new ConcurrentHashMap<>();
+
+    // index files with positions deleted since their last clean-up check
+    private final Set<Path> filesWithDeletions = ConcurrentHashMap.newKeySet();
+
+    // true when the stored stats are up to date
+    private final AtomicBoolean statsStored = new AtomicBoolean(false);
+
+    // changes not written into the index files yet
+    private final IndexBuffer buffer = new IndexBuffer();
+    private final long bufferSize;
+
+    // written index files kept open
+    private final ChannelPool channels = new ChannelPool(ChannelPool.DEFAULT_MAX_OPEN);
 
-    private final LoadingCache<PositionsKey, Set<Long>> positionsCache;
-    private final BiFunction<String, String, Set<Long>> positionMethod =
+    // buffered changes are written one batch at a time, index files are not replaced meanwhile
+    private final Object flushes = new Object();
+
+    private final LoadingCache<PositionsKey, Positions> positionsCache;
+    private final BiFunction<String, String, Positions> positionMethod =
             (index, value) -> loadPositions(index, value);
 
 
     public IndexingFile(Path path, int cacheExpirationTime) {
+        this(path, cacheExpirationTime, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize the maximal estimated size of buffered changes in bytes, zero for writing every change at once
+     */
+    public IndexingFile(Path path, int cacheExpirationTime, long bufferSize) {
         this.path = Paths.get(path + "_idx");
+        this.bufferSize = bufferSize;
 
         if (cacheExpirationTime > 0) {
             positionsCache = CacheBuilder.newBuilder()
                     .expireAfterAccess(cacheExpirationTime, TimeUnit.MINUTES)
-                    .build(new CacheLoader<PositionsKey, Set<Long>>() {
+                    .build(new CacheLoader<PositionsKey, Positions>() {
                         @Override
-                        public Set<Long> load(PositionsKey key) {
+                        public Positions load(PositionsKey key) {
                             return positionMethod.apply(key.getIndex(), key.getValue());
                         }
                     });
         } else {
             positionsCache = null;
         }
+        loadStats();
     }
 
     @Data
@@ -90,20 +157,21 @@ class IndexingFile implements Indexing {
                 .reverse().toString();
     }
 
-    private Path getPathToIndex(String index) {
+    Path getPathToIndex(String index) {
         String hash = getIndexHash(index);
         return path.resolve(hash);
     }
 
     private Path getPathToIndexValue(String index, String value) {
-        return cacheValuePaths.computeIfAbsent(index + "/" + value, key -> {
-            String hash = getValueHash(value);
-            return getPathToIndex(index)
-                    .resolve(hash.substring(0, 2))
-                    .resolve(hash.substring(2, 4))
-                    .resolve(hash.substring(4, 5))
-                    .resolve("index");
-        });
+        return cacheValuePaths.computeIfAbsent(index + "/" + value, key -> getPathToIndexFile(index, getValueHash(value)));
+    }
+
+    private Path getPathToIndexFile(String index, String hash) {
+        return getPathToIndex(index)
+                .resolve(hash.substring(0, 2))
+                .resolve(hash.substring(2, 4))
+                .resolve(hash.substring(4, 5))
+                .resolve("index");
     }
 
     @Override
@@ -117,47 +185,120 @@ class IndexingFile implements Indexing {
     }
 
     @Override
-    public Set<Long> positions(String index, String value) {
+    public void existing(Collection<String> indexes) {
+        indexes.forEach(index -> existingIndexes.putIfAbsent(index, true));
+    }
+
+    /**
+     * The cached positions are read from the index file, the buffered changes are applied on them.
+     */
+    @Override
+    public Positions positions(String index, String value) {
         if (!exists(index)) {
             return null;
         }
-        if (positionsCache != null) {
-            return positionsCache.getUnchecked(new PositionsKey(index, value));
+        Path pathToIndexValue = getPathToIndexValue(index, value);
+        ReadWriteLock fileLock = fileLocks.get(pathToIndexValue);
+        // the file is not written meanwhile, the changes are either still buffered or already in the file
+        fileLock.readLock().lock();
+        try {
+            List<IndexBuffer.Changes> pending = buffer.pending(pathToIndexValue, value);
+            Positions stored = positionsCache != null
+                               ? positionsCache.getUnchecked(new PositionsKey(index, value))
+                               : positionMethod.apply(index, value);
+            return IndexBuffer.apply(pending, stored);
+
+        } finally {
+            fileLock.readLock().unlock();
         }
-        return positionMethod.apply(index, value);
     }
 
-    private Set<Long> loadPositions(String index, String value) {
+    /**
+     * Hashed values are not ordered.
+     */
+    @Override
+    public Positions range(String index, String from, String to) {
+        return null;
+    }
+
+    /**
+     * Hashed values are not ordered.
+     */
+    @Override
+    public Positions prefix(String index, String prefix) {
+        return null;
+    }
+
+    private Positions loadPositions(String index, String value) {
         Path pathToIndexValue = getPathToIndexValue(index, value);
 
         if (!Files.exists(pathToIndexValue)) {
-            return Collections.emptySet();
+            return Positions.EMPTY;
         }
-        Set<Long> positions = new TreeSet<>();
+        Positions.Builder positions = new Positions.Builder();
         try (SeekableByteChannel channel = Files.newByteChannel(pathToIndexValue, StandardOpenOption.READ)) {
-            int separator;
-            String val;
-            String positionList;
-
-            String record;
-            while ((record = ChannelUtils.next(channel, RECORD_SEPARATOR, RECORD_DELETED)) != null) {
-                separator = record.indexOf(VALUE_SEPARATOR);
-
-                val = record.substring(0, separator);
-                if (val.equals(value)) {
-                    positionList = record.substring(separator + 1);
-
-                    for (String tokenPosition : positionList.split(POSITION_SEPARATOR)) {
-                        if (!tokenPosition.startsWith(POSITION_DELETED)) {
-                            positions.add(Long.valueOf(tokenPosition));
-                        }
-                    }
+            byte[] prefix = (value + VALUE_SEPARATOR).getBytes(StandardCharsets.UTF_8);
+            RecordDecoder decoder = new RecordDecoder(channel, RECORD_SEPARATOR, RECORD_DELETED);
+
+            ByteBuffer record;
+            while ((record = decoder.nextBytes()) != null) {
+                // only records of the value are parsed, others are skipped without decoding
+                if (startsWith(record, prefix)) {
+                    record.position(record.position() + prefix.length);
+                    readPositions(record, positions);
                 }
             }
         } catch (IOException e) {
             throw new DatabaseException("Cannot read an index file: " + pathToIndexValue, e);
         }
-        return positions;
+        return positions.build();
+    }
+
+    private static boolean startsWith(ByteBuffer record, byte[] prefix) {
+        if (record.remaining() < prefix.length) {
+            return false;
+        }
+        int start = record.position();
+        for (int i = 0; i < prefix.length; i++) {
+            if (record.get(start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads not-deleted positions from a comma-separated list of positions.
+     */
+    private static void readPositions(ByteBuffer positionList, Positions.Builder positions) {
+        final byte separator = (byte) POSITION_SEPARATOR.charAt(0);
+        final byte deleted = (byte) POSITION_DELETED.charAt(0);
+
+        long position = 0;
+        boolean skip = false;
+        boolean empty = true;
+
+        while (positionList.hasRemaining()) {
+            byte b = positionList.get();
+            if (b == separator) {
+                if (!skip && !empty) {
+                    positions.add(position);
+                }
+                position = 0;
+                skip = false;
+                empty = true;
+
+            } else if (b == deleted) {
+                skip = true;
+
+            } else if (!skip) {
+                position = position * 10 + (b - '0');
+                empty = false;
+            }
+        }
+        if (!skip && !empty) {
+            positions.add(position);
+        }
     }
 
     @Override
@@ -165,87 +306,255 @@ class IndexingFile implements Indexing {
         if (!exists(index)) {
             return;
         }
-        Path pathToIndexValue = getPathToIndexValue(index, value.toString());
+        String string = value.toString();
+        buffer.insert(getPathToIndexValue(index, string), index, string, position);
+        flushIfFull();
+    }
+
+    @Override
+    public void insertAll(String index, Map<String, List<Long>> valuePositions) {
+        if (!exists(index)) {
+            return;
+        }
+        valuePositions.forEach((value, positions) -> {
+            Path file = getPathToIndexValue(index, value);
+            positions.forEach(position -> buffer.insert(file, index, value, position));
+        });
+        flushIfFull();
+    }
+
+    /**
+     * Appends records to the index file.
+     *
+     * @param pathToIndexValue the index file
+     * @param records          the records
+     * @param positions        the count of positions in the records
+     */
+    private void append(Path pathToIndexValue, CharSequence records, long positions) throws IOException {
+        ReadWriteLock fileLock = fileLocks.get(pathToIndexValue);
+        fileLock.writeLock().lock();
         try {
-            Files.createDirectories(pathToIndexValue.getParent());
+            append(channels.channel(pathToIndexValue), pathToIndexValue, records, positions);
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
 
-            try (SeekableByteChannel channel = Files.newByteChannel(pathToIndexValue, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
-                channel.position(channel.size());   // append
-                String insert = value + VALUE_SEPARATOR + position + RECORD_SEPARATOR;
-                channel.write(ByteBuffer.wrap(insert.getBytes()));
+    /**
+     * Appends records to the index file, must be called under the write lock of the file.
+     */
+    private void append(FileChannel channel, Path pathToIndexValue, CharSequence records, long positions) throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            fileStats.put(pathToIndexValue, StorageStats.EMPTY);
+        }
+        ByteBuffer data = ByteBuffer.wrap(records.toString().getBytes(StandardCharsets.UTF_8));
+        int bytes = data.remaining();
+        while (data.hasRemaining()) {
+            size += channel.write(data, size);
+        }
+        addStats(pathToIndexValue, StorageStats.live(positions, bytes));
+        modifiedFiles.add(pathToIndexValue);
+    }
+
+    /**
+     * The key is the hash of the value followed by the value, so the values of an index file are sorted together.
+     */
+    @Override
+    public byte[] buildKey(String index, Object value) {
+        String string = value.toString();
+        return (getValueHash(string).substring(0, HASH_LENGTH) + string).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Every index file is written once with all the positions of a value in one record.
+     */
+    @Override
+    public void build(String index, Iterator<ExternalSort.Group> sorted) {
+        if (!exists(index)) {
+            return;
+        }
+        synchronized (flushes) {
+            build(index, sorted, new StringBuilder());
+        }
+    }
+
+    private void build(String index, Iterator<ExternalSort.Group> sorted, StringBuilder records) {
+        String hash = null;
+        long positions = 0;
+        try {
+            while (sorted.hasNext()) {
+                ExternalSort.Group group = sorted.next();
+                String key = new String(group.key, StandardCharsets.UTF_8);
+
+                String keyHash = key.substring(0, HASH_LENGTH);
+                if (hash != null && !hash.equals(keyHash)) {
+                    append(getPathToIndexFile(index, hash), records, positions);
+                    records.setLength(0);
+                    positions = 0;
+                }
+                hash = keyHash;
+
+                records.append(key, HASH_LENGTH, key.length()).append(VALUE_SEPARATOR);
+                for (PrimitiveIterator.OfLong position = group.positions.iterator(); position.hasNext(); ) {
+                    records.append(position.nextLong()).append(POSITION_SEPARATOR);
+                }
+                records.setLength(records.length() - POSITION_SEPARATOR.length());
+                records.append(RECORD_SEPARATOR);
+                positions += group.positions.size();
+            }
+            if (hash != null) {
+                append(getPathToIndexFile(index, hash), records, positions);
             }
         } catch (IOException e) {
-            throw new DatabaseException("Cannot create an index file: " + pathToIndexValue, e);
+            throw new DatabaseException("Cannot build the index: " + index, e);
         } finally {
             if (positionsCache != null) {
-                positionsCache.refresh(new PositionsKey(index, value.toString()));
+                positionsCache.asMap().keySet().removeIf(key -> key.getIndex().equals(index));
             }
         }
     }
 
     @Override
     public void delete(String index, Object value, long position) {
-        Path pathToIndexValue = getPathToIndexValue(index, value.toString());
-        if (!Files.exists(pathToIndexValue)) {
+        if (!exists(index)) {
             return;
         }
-        String positionString = String.valueOf(position);
-        try (SeekableByteChannel channel = Files.newByteChannel(pathToIndexValue, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
-            int separator;
-            String val;
-            String positionList;
-            String[] positions;
-            int offset;
-
-            String record;
-            while ((record = ChannelUtils.next(channel, RECORD_SEPARATOR, RECORD_DELETED)) != null) {
-                separator = record.indexOf(VALUE_SEPARATOR);
-
-                val = record.substring(0, separator);
-                if (val.equals(value)) {
-                    // delete old positions
-                    positionList = record.substring(separator + 1);
-                    positions = positionList.split(POSITION_SEPARATOR);
-
-                    // only one position in the record
-                    if (positions.length == 1 && positionString.equals(positions[0])) {
-                        deleteRecord(channel, record);  // delete whole record
-                        return;
-                    }
+        String string = value.toString();
+        buffer.delete(getPathToIndexValue(index, string), index, string, position);
+        flushIfFull();
+    }
 
-                    // delete the position in the record
-                    offset = 0;
-                    for (String tokenPosition : positions) {
-                        if (positionString.equals(tokenPosition)) {
+    private void flushIfFull() {
+        if (buffer.bytes() > bufferSize) {
+            flush();
+        }
+    }
 
-                            deletePosition(channel, record, separator, offset);
-                            return; // active position can occur only once
-                        }
-                        offset += tokenPosition.length() + 1;
-                    }
+    /**
+     * Writes the buffered changes into the index files, the changes are visible to lookups until written.
+     */
+    void flush() {
+        synchronized (flushes) {
+            Map<Path, Map<String, IndexBuffer.Changes>> changes = buffer.drain();
+            for (Map.Entry<Path, Map<String, IndexBuffer.Changes>> file : changes.entrySet()) {
+                flush(file.getKey(), file.getValue());
+            }
+            buffer.written();
+        }
+    }
+
+    /**
+     * Deleted positions are marked before inserted positions are appended.
+     */
+    private void flush(Path pathToIndexValue, Map<String, IndexBuffer.Changes> changes) {
+        String index = changes.values().iterator().next().index();
+        if (!exists(index)) {
+            return; // dropped meanwhile
+        }
+        ReadWriteLock fileLock = fileLocks.get(pathToIndexValue);
+        fileLock.writeLock().lock();
+        try {
+            if (Files.exists(pathToIndexValue)) {
+                deleteAll(pathToIndexValue, changes);
+            }
+            StringBuilder records = new StringBuilder();
+            long positions = 0;
+            for (Map.Entry<String, IndexBuffer.Changes> entry : changes.entrySet()) {
+                Positions inserted = entry.getValue().inserted();
+                if (inserted.isEmpty()) {
+                    continue;
                 }
+                records.append(entry.getKey()).append(VALUE_SEPARATOR);
+                for (PrimitiveIterator.OfLong position = inserted.iterator(); position.hasNext(); ) {
+                    records.append(position.nextLong()).append(POSITION_SEPARATOR);
+                }
+                records.setLength(records.length() - POSITION_SEPARATOR.length());
+                records.append(RECORD_SEPARATOR);
+                positions += inserted.size();
+            }
+            if (positions > 0) {
+                append(channels.channel(pathToIndexValue), pathToIndexValue, records, positions);
             }
         } catch (IOException e) {
-            throw new DatabaseException("Cannot delete an index position: " + pathToIndexValue, e);
+            throw new DatabaseException("Cannot write an index file: " + pathToIndexValue, e);
         } finally {
             if (positionsCache != null) {
-                positionsCache.refresh(new PositionsKey(index, value.toString()));
+                changes.forEach((value, valueChanges) -> positionsCache.invalidate(new PositionsKey(valueChanges.index(), value)));
+            }
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marks the deleted positions of the values in one scan of the index file, must be called under the write lock
+     * of the file. A record with only one position is deleted whole.
+     */
+    private void deleteAll(Path pathToIndexValue, Map<String, IndexBuffer.Changes> changes) throws IOException {
+        Map<String, Set<String>> deletes = new HashMap<>();
+        changes.forEach((value, valueChanges) -> {
+            Positions deleted = valueChanges.deleted();
+            if (!deleted.isEmpty()) {
+                Set<String> positions = new HashSet<>();
+                for (PrimitiveIterator.OfLong position = deleted.iterator(); position.hasNext(); ) {
+                    positions.add(String.valueOf(position.nextLong()));
+                }
+                deletes.put(value, positions);
+            }
+        });
+        if (deletes.isEmpty()) {
+            return;
+        }
+        FileChannel channel = channels.channel(pathToIndexValue);
+        channel.position(0);
+        RecordDecoder decoder = new RecordDecoder(channel, RECORD_SEPARATOR, RECORD_DELETED);
+
+        String record;
+        while (!deletes.isEmpty() && (record = decoder.next()) != null) {
+            int separator = record.indexOf(VALUE_SEPARATOR);
+            String value = record.substring(0, separator);
+            Set<String> positions = deletes.get(value);
+            if (positions == null) {
+                continue;
+            }
+            String[] tokens = record.substring(separator + 1).split(POSITION_SEPARATOR);
+
+            // only one position in the record
+            if (tokens.length == 1 && positions.remove(tokens[0])) {
+                deleted(pathToIndexValue, decoder.position() - decoder.recordPosition());
+                markDeleted(channel, decoder.recordPosition());  // delete whole record
+
+            } else {
+                long positionsStart = decoder.recordPosition() + (value + VALUE_SEPARATOR).getBytes(StandardCharsets.UTF_8).length;
+                int offset = 0;
+                for (String token : tokens) {
+                    // an active position can occur only once
+                    if (positions.remove(token)) {
+                        deleted(pathToIndexValue, token.length() + POSITION_SEPARATOR.length());
+                        markDeleted(channel, positionsStart + offset);
+                    }
+                    offset += token.length() + 1;
+                }
+            }
+            if (positions.isEmpty()) {
+                deletes.remove(value);
             }
         }
     }
 
-    private void deleteRecord(SeekableByteChannel channel, String record) throws IOException {
-        long pos = channel.position();
-        channel.position(pos - record.length() - 1);
-        channel.write(ByteBuffer.wrap(new byte[]{RECORD_DELETED}));
-        channel.position(pos);
+    /**
+     * Counts a deleted position, the stats of the file are counted before when not known yet.
+     */
+    private void deleted(Path file, long bytes) throws IOException {
+        if (!fileStats.containsKey(file)) {
+            fileStats.put(file, countStats(file));
+        }
+        addStats(file, StorageStats.deleted(1, bytes));
+        filesWithDeletions.add(file);
     }
 
-    private void deletePosition(SeekableByteChannel channel, String record, int separatorPos, int offset) throws IOException {
-        long pos = channel.position();
-        channel.position(pos - record.length() + separatorPos + offset);
-        channel.write(ByteBuffer.wrap(new byte[]{RECORD_DELETED}));
-        channel.position(pos);
+    private static void markDeleted(FileChannel channel, long position) throws IOException {
+        channel.write(ByteBuffer.wrap(new byte[]{RECORD_DELETED}), position);
     }
 
     @Override
@@ -263,17 +572,34 @@ class IndexingFile implements Indexing {
         return true;
     }
 
+    @Override
+    public boolean create(String index, IndexType type) {
+        if (type != IndexType.HASH) {
+            throw new DatabaseException("Unsupported type of an index: " + type);
+        }
+        return create(index);
+    }
+
+    @Override
+    public IndexType type(String index) {
+        return exists(index) ? IndexType.HASH : null;
+    }
+
     @Override
     public void drop(String index) {
         if (!exists(index)) {
             return;
         }
-        try {
-            FileUtils.deleteDirectory(getPathToIndex(index).toFile());
-            existingIndexes.put(index, false);
-
-        } catch (IOException e) {
-            throw new DatabaseException("Cannot delete an index directory: " + getPathToIndex(index), e);
+        synchronized (flushes) {
+            discard(getPathToIndex(index));
+            try {
+                FileUtils.deleteDirectory(getPathToIndex(index).toFile());
+                existingIndexes.put(index, false);
+                resetStats(getPathToIndex(index));
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot delete an index directory: " + getPathToIndex(index), e);
+            }
         }
     }
 
@@ -282,12 +608,16 @@ class IndexingFile implements Indexing {
         if (!Files.exists(path)) {
             return;
         }
-        try {
-            FileUtils.deleteDirectory(path.toFile());
-            existingIndexes.replaceAll((k, v) -> false);
-
-        } catch (IOException e) {
-            throw new DatabaseException("Cannot delete an index directory: " + path, e);
+        synchronized (flushes) {
+            discard(path);
+            try {
+                FileUtils.deleteDirectory(path.toFile());
+                existingIndexes.replaceAll((k, v) -> false);
+                resetStats(path);
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot delete an index directory: " + path, e);
+            }
         }
     }
 
@@ -296,14 +626,29 @@ class IndexingFile implements Indexing {
         if (!Files.exists(path)) {
             return;
         }
-        try (Stream<Path> filesStream = Files.walk(path)) {
-            filesStream
-                    .filter(Files::isRegularFile)
-                    .filter(file -> file.endsWith("index"))
-                    .forEach(this::deleteFile);
+        synchronized (flushes) {
+            discard(path);
+            resetStats(path);
+            try (Stream<Path> filesStream = Files.walk(path)) {
+                filesStream
+                        .filter(Files::isRegularFile)
+                        .filter(file -> file.endsWith("index") || file.endsWith(STATS_FILE))
+                        .forEach(this::deleteFile);
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot clean up an index directory: " + path, e);
+            }
+        }
+    }
 
-        } catch (IOException e) {
-            throw new DatabaseException("Cannot clean up an index directory: " + path, e);
+    /**
+     * Forgets the buffered changes and closes the channels of the index files in the directory.
+     */
+    private void discard(Path dir) {
+        buffer.discard(dir);
+        channels.closeAll(dir);
+        if (positionsCache != null) {
+            positionsCache.invalidateAll();
         }
     }
 
@@ -345,54 +690,327 @@ class IndexingFile implements Indexing {
     }
 
     void cleanUpIndex(Path file) {
+        cleanUpIndex(file, false);
+    }
+
+    /**
+     * @param force true if the cleaned-up file must be forced to the disk before it replaces the index file
+     */
+    void cleanUpIndex(Path file, boolean force) {
+        synchronized (flushes) {
+            cleanUpIndexFile(file, force);
+        }
+    }
+
+    private void cleanUpIndexFile(Path file, boolean force) {
         log.debug("Cleaning up indexes for " + file);
+        // the file is replaced
+        channels.close(file);
         try {
             Path temp = Paths.get(file + ".tmp");
             ChannelUtils.createNewFileOrTruncateExisting(temp);
 
-            Map<String, Set<String>> valuesMap = new HashMap<>();
+            Map<String, Positions.Builder> valuesMap = new HashMap<>();
 
             // collect values' positions
             try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ)) {
-                int separator;
-                String value;
-                String positionList;
-                String[] positions;
-                Set<String> set;
-
-                String record;
-                while ((record = ChannelUtils.next(channel, RECORD_SEPARATOR, RECORD_DELETED)) != null) {
-                    separator = record.indexOf(VALUE_SEPARATOR);
-                    value = record.substring(0, separator);
-                    positionList = record.substring(separator + 1);
-                    positions = positionList.split(POSITION_SEPARATOR);
-
-                    valuesMap.putIfAbsent(value, new TreeSet<>());
-                    set = valuesMap.get(value);
-
-                    for (String position : positions) {
-                        if (!position.startsWith(POSITION_DELETED)) {
-                            set.add(position);
-                        }
+                RecordDecoder decoder = new RecordDecoder(channel, RECORD_SEPARATOR, RECORD_DELETED);
+                byte valueSeparator = (byte) VALUE_SEPARATOR.charAt(0);
+
+                ByteBuffer record;
+                while ((record = decoder.nextBytes()) != null) {
+                    int separator = record.position();
+                    while (record.get(separator) != valueSeparator) {
+                        separator++;
                     }
+                    byte[] value = new byte[separator - record.position()];
+                    record.get(value);
+                    record.get();   // the separator
+
+                    readPositions(record, valuesMap.computeIfAbsent(new String(value, StandardCharsets.UTF_8),
+                                                                     v -> new Positions.Builder()));
                 }
             }
 
             // write the positions
-            try (SeekableByteChannel channel = Files.newByteChannel(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
-                String positions;
-
-                for (Map.Entry<String, Set<String>> entry : valuesMap.entrySet()) {
-                    positions = String.join(POSITION_SEPARATOR, entry.getValue()).replace(" ", "");
-                    String insert = entry.getKey() + VALUE_SEPARATOR + positions + RECORD_SEPARATOR;
-                    channel.write(ByteBuffer.wrap(insert.getBytes()));
+            long liveRecords = 0;
+            long liveBytes = 0;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                StringBuilder insert = new StringBuilder();
+
+                for (Map.Entry<String, Positions.Builder> entry : valuesMap.entrySet()) {
+                    Positions positions = entry.getValue().build();
+                    if (positions.isEmpty()) {
+                        continue;
+                    }
+                    insert.setLength(0);
+                    insert.append(entry.getKey()).append(VALUE_SEPARATOR);
+                    for (PrimitiveIterator.OfLong position = positions.iterator(); position.hasNext(); ) {
+                        insert.append(position.nextLong()).append(POSITION_SEPARATOR);
+                    }
+                    insert.setLength(insert.length() - POSITION_SEPARATOR.length());
+                    insert.append(RECORD_SEPARATOR);
+                    liveBytes += channel.write(ByteBuffer.wrap(insert.toString().getBytes(StandardCharsets.UTF_8)));
+                    liveRecords += positions.size();
+                }
+                if (force) {
+                    channel.force(true);
                 }
             }
 
             Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            modifiedFiles.add(file);
+            setStats(file, StorageStats.live(liveRecords, liveBytes));
+            filesWithDeletions.remove(file);
 
         } catch (IOException e) {
             throw new DatabaseException("Cannot clean up an index file: " + file, e);
         }
     }
+
+    /**
+     * The buffered changes are written first.
+     */
+    @Override
+    public StorageStats stats(String index) {
+        StorageStats stats = StorageStats.EMPTY;
+        if (!exists(index)) {
+            return stats;
+        }
+        flush();
+        try (Stream<Path> filesStream = Files.walk(getPathToIndex(index))) {
+            Iterator<Path> files = filesStream.filter(file -> file.endsWith("index")).iterator();
+            while (files.hasNext()) {
+                stats = stats.add(stats(files.next()));
+            }
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot read an index directory: " + getPathToIndex(index), e);
+        }
+        return stats;
+    }
+
+    private StorageStats stats(Path file) throws IOException {
+        StorageStats stats = fileStats.get(file);
+        if (stats == null) {
+            stats = countStats(file);
+            fileStats.put(file, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Counts live and deleted positions in the index file.
+     * <p>
+     * Dead bytes are bytes of deleted records and of deleted positions with their separators.
+     */
+    private StorageStats countStats(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return StorageStats.EMPTY;
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        long liveRecords = 0;
+        long deadRecords = 0;
+        long deadBytes = 0;
+
+        int recordStart = 0;
+        for (int end = 0; end < bytes.length; end++) {
+            if (bytes[end] != RECORD_SEPARATOR) {
+                continue;
+            }
+            boolean recordDeleted = end > recordStart && bytes[recordStart] == RECORD_DELETED;
+            int positionStart = recordStart;
+            while (positionStart < end && bytes[positionStart] != VALUE_SEPARATOR.charAt(0)) {
+                positionStart++;
+            }
+            while (++positionStart <= end) {
+                int positionEnd = positionStart;
+                while (positionEnd < end && bytes[positionEnd] != POSITION_SEPARATOR.charAt(0)) {
+                    positionEnd++;
+                }
+                if (recordDeleted) {
+                    deadRecords++;
+                } else if (positionEnd > positionStart && bytes[positionStart] == RECORD_DELETED) {
+                    deadRecords++;
+                    deadBytes += positionEnd - positionStart + POSITION_SEPARATOR.length();
+                } else {
+                    liveRecords++;
+                }
+                positionStart = positionEnd;
+            }
+            if (recordDeleted) {
+                deadBytes += end - recordStart + 1;
+            }
+            recordStart = end + 1;
+        }
+        return new StorageStats(liveRecords, bytes.length - deadBytes, deadRecords, deadBytes);
+    }
+
+    @Override
+    public boolean cleanUpNeeded(double threshold) {
+        filesWithDeletions.removeIf(file -> !Files.exists(file));
+        return filesWithDeletions.stream().anyMatch(file -> cleanUpNeeded(file, threshold));
+    }
+
+    private boolean cleanUpNeeded(Path file, double threshold) {
+        StorageStats stats = fileStats.get(file);
+        return stats != null && stats.getDeadBytes() >= CLEAN_UP_MIN_DEAD_BYTES && stats.deadRatio() >= threshold;
+    }
+
+    @Override
+    public long cleanUpNext(double threshold) {
+        Iterator<Path> files = filesWithDeletions.iterator();
+        while (files.hasNext()) {
+            Path file = files.next();
+            try {
+                if (!Files.exists(file)) {
+                    files.remove();
+
+                } else if (cleanUpNeeded(file, threshold)) {
+                    files.remove();
+                    long size = Files.size(file);
+                    cleanUpIndex(file, true);
+                    return size;
+                }
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot clean up an index file: " + file, e);
+            }
+        }
+        return -1;
+    }
+
+    private void setStats(Path file, StorageStats stats) {
+        fileStats.put(file, stats);
+        statsChanged();
+    }
+
+    /**
+     * Adds the delta to the stats of the file, if known.
+     */
+    private void addStats(Path file, StorageStats delta) {
+        fileStats.computeIfPresent(file, (k, v) -> v.add(delta));
+        statsChanged();
+    }
+
+    /**
+     * Forgets the stats of files in the directory.
+     */
+    private void resetStats(Path dir) {
+        fileStats.keySet().removeIf(file -> file.startsWith(dir));
+        filesWithDeletions.removeIf(file -> file.startsWith(dir));
+        statsChanged();
+    }
+
+    private void loadStats() {
+        Path statsPath = path.resolve(STATS_FILE);
+        if (!Files.exists(statsPath)) {
+            return;
+        }
+        try (InputStream in = Files.newInputStream(statsPath)) {
+            Properties properties = new Properties();
+            properties.load(in);
+
+            for (String key : properties.stringPropertyNames()) {
+                if (key.endsWith(".size")) {
+                    String name = key.substring(0, key.length() - ".size".length());
+                    Path file = path.resolve(name);
+                    StorageStats stats = StorageStats.load(name, properties);
+                    if (stats != null && Files.exists(file) && String.valueOf(Files.size(file)).equals(properties.getProperty(key))) {
+                        fileStats.put(file, stats);
+                    }
+                }
+            }
+            statsStored.set(true);
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot read index stats: " + statsPath, e);
+        }
+    }
+
+    private void storeStats() throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        Properties properties = new Properties();
+        for (Map.Entry<Path, StorageStats> entry : fileStats.entrySet()) {
+            Path file = entry.getKey();
+            if (Files.exists(file)) {
+                String name = path.relativize(file).toString().replace('\\', '/');
+                entry.getValue().store(name, properties);
+                properties.setProperty(name + ".size", String.valueOf(Files.size(file)));
+            }
+        }
+        Path statsPath = path.resolve(STATS_FILE);
+        Path temp = path.resolve(STATS_FILE + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, null);
+        }
+        Files.move(temp, statsPath, StandardCopyOption.REPLACE_EXISTING);
+        statsStored.set(true);
+    }
+
+    /**
+     * Removes the stored stats, because they become outdated.
+     */
+    private void statsChanged() {
+        if (statsStored.compareAndSet(true, false)) {
+            try {
+                Files.deleteIfExists(path.resolve(STATS_FILE));
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot remove index stats: " + path, e);
+            }
+        }
+    }
+
+    @Override
+    public void sync() {
+        flush();
+        Iterator<Path> files = modifiedFiles.iterator();
+        while (files.hasNext()) {
+            Path file = files.next();
+            files.remove();
+            try {
+                force(channels.opened(file), file);
+
+            } catch (NoSuchFileException ignore) {
+                // dropped meanwhile
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot force an index file: " + file, e);
+            }
+        }
+        try {
+            storeStats();
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot store index stats: " + path, e);
+        }
+    }
+
+    /**
+     * Forces the index file through its open channel, if any.
+     */
+    private static void force(FileChannel opened, Path file) throws IOException {
+        if (opened != null) {
+            try {
+                opened.force(true);
+                return;
+
+            } catch (ClosedChannelException ignore) {
+                // closed by the pool meanwhile
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    @Override
+    public void close() {
+        sync();
+        channels.close();
+        if (positionsCache != null) {
+            positionsCache.invalidateAll();
+        }
+        cacheValuePaths.clear();
+    }
 }
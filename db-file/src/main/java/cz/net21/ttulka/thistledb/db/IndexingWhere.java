@@ -1,79 +1,132 @@
 package cz.net21.ttulka.thistledb.db;
 
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
-
 /**
  * Analyses the WHERE condition and finds indexes based on it.
+ * <p>
+ * Conditions with the operator `=` are found by any index, conditions with `>`, `>=`, `<`, `<=` and `LIKE` patterns
+ * starting with a literal prefix are found by ordered indexes (@see IndexType#BTREE) as ranges of values.
+ * Indexes find a superset of the matching records, the records are matched with the condition when read.
+ * <p>
+ * Positions are returned in the ascending order, so the collection file is read forwards. Positions close to each other
+ * form a run (@see #runEnd()), records of a run can be read from the collection file at once.
  *
  * @author ttulka
  */
 class IndexingWhere {
 
+    // maximal gap between positions of a run
+    static final long RUN_GAP = 16 * 1024;
+    // maximal distance from the first to the last position of a run
+    static final long MAX_RUN_LENGTH = 1024 * 1024;
+
+    // characters of LIKE patterns with a special meaning as wildcards or in regular expressions
+    private static final String LIKE_SPECIAL = "*?_\\.[]{}()+^$|";
+
     private boolean isIndexed = false;
 
-    private Iterator<Long> positions = null;
+    private Positions positions = null;
 
-    public IndexingWhere(Where where, Indexing indexing) {
-        Set<Long> wherePositions = null;
+    // index of the next position to return
+    private int next = 0;
+    // index of the last position of the actual run
+    private int runEnd = -1;
 
+    public IndexingWhere(Where where, Indexing indexing) {
         for (Where.Condition and : where.getAndConditions()) {
             // all OR conditions must be indexed
             boolean andIndexed = true;
-            Set<Long> andPositions = new HashSet<>();
+            Positions andPositions = Positions.EMPTY;
 
             for (Where.ConditionDataPart or : and.getOrClause()) {
-                if (!or.getOperator().equals(Where.Operators.EQUAL)) {
+                if (!isIndexed(or, indexing)) {
                     andIndexed = false;
                     break;
                 }
-                if (!indexing.exists(or.getKey())) {
-                    andIndexed = false;
-                    break;
-                }
-                Set<Long> orPositions = indexing.positions(or.getKey(), or.getValue());
+                Positions orPositions = positions(or, indexing);
                 if (orPositions != null) {
-                    andPositions.addAll(orPositions);
+                    andPositions = andPositions.or(orPositions);
                 }
             }
 
             if (andIndexed) {
                 isIndexed = true;   // at least one AND must be indexed
 
-                if (wherePositions == null) {
-                    wherePositions = new HashSet<>(andPositions);
-                } else {
-                    wherePositions.retainAll(andPositions);
-                }
+                positions = positions == null ? andPositions : positions.and(andPositions);
 
                 // if any AND condition makes the result empty, makes no sense to continue
-                if (wherePositions.isEmpty()) {
+                if (positions.isEmpty()) {
                     break;
                 }
             }
         }
+    }
 
-        if (wherePositions != null) {
-            positions = createIterator(wherePositions);
+    /**
+     * Finds out whether the condition would be indexed without reading the indexes.
+     *
+     * @return true if the condition would be indexed, otherwise false.
+     */
+    static boolean isIndexed(Where where, Indexing indexing) {
+        if (Where.EMPTY.equals(where)) {
+            return false;
+        }
+        for (Where.Condition and : where.getAndConditions()) {
+            boolean andIndexed = !and.getOrClause().isEmpty();
+            for (Where.ConditionDataPart or : and.getOrClause()) {
+                if (!isIndexed(or, indexing)) {
+                    andIndexed = false;
+                    break;
+                }
+            }
+            if (andIndexed) {
+                return true;
+            }
         }
+        return false;
     }
 
-    private Iterator<Long> createIterator(Set<Long> positions) {
-        return new Iterator<Long>() {
-
-            private Iterator<Long> iterator = positions.iterator();
+    private static boolean isIndexed(Where.ConditionDataPart condition, Indexing indexing) {
+        switch (condition.getOperator()) {
+            case EQUAL:
+                return indexing.exists(condition.getKey());
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return indexing.type(condition.getKey()) == IndexType.BTREE;
+            case LIKE:
+                return !likePrefix(condition.getValue()).isEmpty() && indexing.type(condition.getKey()) == IndexType.BTREE;
+            default:
+                return false;
+        }
+    }
 
-            @Override
-            public boolean hasNext() {
-                return iterator.hasNext();
-            }
+    private static Positions positions(Where.ConditionDataPart condition, Indexing indexing) {
+        switch (condition.getOperator()) {
+            case EQUAL:
+                return indexing.positions(condition.getKey(), condition.getValue());
+            case GREATER:
+            case GREATER_EQUAL:
+                return indexing.range(condition.getKey(), condition.getValue(), null);
+            case LESS:
+            case LESS_EQUAL:
+                return indexing.range(condition.getKey(), null, condition.getValue());
+            case LIKE:
+                return indexing.prefix(condition.getKey(), likePrefix(condition.getValue()));
+            default:
+                throw new IllegalArgumentException("Condition cannot be indexed: " + condition);
+        }
+    }
 
-            @Override
-            public Long next() {
-                return iterator.next();
-            }
-        };
+    /**
+     * @return the literal prefix of the LIKE pattern, values matching the pattern start with the prefix
+     */
+    static String likePrefix(String pattern) {
+        int end = 0;
+        while (end < pattern.length() && LIKE_SPECIAL.indexOf(pattern.charAt(end)) < 0) {
+            end++;
+        }
+        return pattern.substring(0, end);
     }
 
     /**
@@ -90,9 +143,31 @@ class IndexingWhere {
         if (!isIndexed) {
             throw new IllegalStateException("Cannot call nextPosition() when not indexed.");
         }
-        if (positions != null && positions.hasNext()) {
-            return positions.next();
+        if (positions != null && next < positions.size()) {
+            return positions.get(next++);
         }
         return -1;
     }
+
+    /**
+     * Finds the run of the last returned position: following positions with gaps up to {@link #RUN_GAP},
+     * at most {@link #MAX_RUN_LENGTH} from the first one.
+     *
+     * @return the last position of the run, or -1 if no position was returned
+     */
+    public long runEnd() {
+        if (positions == null || next == 0) {
+            return -1;
+        }
+        int actual = next - 1;
+        if (actual > runEnd) {
+            runEnd = actual;
+            while (runEnd + 1 < positions.size()
+                   && positions.get(runEnd + 1) - positions.get(runEnd) <= RUN_GAP
+                   && positions.get(runEnd + 1) - positions.get(actual) <= MAX_RUN_LENGTH) {
+                runEnd++;
+            }
+        }
+        return positions.get(runEnd);
+    }
 }
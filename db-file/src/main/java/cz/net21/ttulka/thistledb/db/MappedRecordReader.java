@@ -0,0 +1,150 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads records from a memory-mapped file.
+ * <p>
+ * The file is mapped in windows of at most {@link #MAX_WINDOW_SIZE} bytes and record boundaries are found
+ * directly in the mapped region, without copying the bytes into intermediate buffers.
+ * <p>
+ * When a record crosses the end of the current window, a new window is mapped from the start of the record.
+ * The size of the file is checked again at that moment, so records appended while scanning are read as well.
+ *
+ * @author ttulka
+ */
+class MappedRecordReader implements RecordReader {
+
+    static final int MAX_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final byte separatorFlag;
+    private final byte deletedFlag;
+
+    private final int maxWindowSize;
+
+    private MappedByteBuffer window;
+    private ByteBuffer record;
+    private long windowStart = 0;
+
+    private long position = 0;
+    private long recordPosition = -1;
+
+    private Long maxPosition = null;
+
+    private long skippedRecords = 0;
+
+    public MappedRecordReader(FileChannel channel, char separatorFlag, char deletedFlag) {
+        this(channel, separatorFlag, deletedFlag, MAX_WINDOW_SIZE);
+    }
+
+    MappedRecordReader(FileChannel channel, char separatorFlag, char deletedFlag, int maxWindowSize) {
+        this.channel = channel;
+        this.separatorFlag = (byte) separatorFlag;
+        this.deletedFlag = (byte) deletedFlag;
+        this.maxWindowSize = maxWindowSize;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void position(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public long recordPosition() {
+        return recordPosition;
+    }
+
+    @Override
+    public void setMaxPosition(Long maxPosition) {
+        this.maxPosition = maxPosition;
+    }
+
+    @Override
+    public ByteBuffer nextBytes() throws IOException {
+        long recordStart = position;
+        long limit = limit();
+        while (true) {
+            long end = findSeparator(recordStart, limit);
+            if (end == -1) {
+                return null;
+            }
+            position = end + 1;
+
+            if (byteAt(recordStart) != deletedFlag) {
+                recordPosition = recordStart;
+                record.limit((int) (end - windowStart)).position((int) (recordStart - windowStart));
+                return record;
+            }
+            recordStart = position;
+            skippedRecords++;
+        }
+    }
+
+    @Override
+    public long skippedRecords() {
+        return skippedRecords;
+    }
+
+    private long limit() throws IOException {
+        long size = channel.size();
+        return maxPosition != null ? Math.min(size, maxPosition) : size;
+    }
+
+    /**
+     * Finds the next separator in the file.
+     *
+     * @param from  the position to start from
+     * @param limit the position to search until (exclusive)
+     * @return the position of the separator, or -1 if not found
+     * @throws IOException
+     */
+    private long findSeparator(long from, long limit) throws IOException {
+        long pos = from;
+        while (pos < limit) {
+            if (!mapped(pos)) {
+                map(from, pos);
+            }
+            int index = (int) (pos - windowStart);
+            int windowLimit = (int) Math.min(window.limit(), limit - windowStart);
+
+            for (; index < windowLimit; index++) {
+                if (window.get(index) == separatorFlag) {
+                    return windowStart + index;
+                }
+            }
+            pos = windowStart + windowLimit;
+        }
+        return -1;
+    }
+
+    private boolean mapped(long pos) {
+        return window != null && pos >= windowStart && pos < windowStart + window.limit();
+    }
+
+    /**
+     * Maps a new window starting at the record start and covering the position.
+     * A record bigger than the window makes the window grow.
+     */
+    private void map(long from, long pos) throws IOException {
+        long windowSize = Math.max(maxWindowSize, 2 * (pos - from));
+        windowSize = Math.min(windowSize, channel.size() - from);
+        windowSize = Math.min(windowSize, Integer.MAX_VALUE);
+
+        window = channel.map(FileChannel.MapMode.READ_ONLY, from, windowSize);
+        record = window.duplicate();
+        windowStart = from;
+    }
+
+    private byte byteAt(long pos) {
+        return window.get((int) (pos - windowStart));
+    }
+}
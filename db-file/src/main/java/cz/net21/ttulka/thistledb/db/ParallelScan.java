@@ -0,0 +1,185 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+/**
+ * Scan of partitions in parallel. Every partition is read by a fork-join worker, the results are merged into one stream.
+ * <p>
+ * When ordered, the results come in the order of the partitions, otherwise as the partitions are finished.
+ * Only a limited count of partitions is scanned ahead, so results of a slow consumer don't pile up in the memory.
+ * <p>
+ * The partitions read one snapshot of the collection, the snapshot is released when the scan is finished.
+ * A scan closed before its end stops the partitions in flight and waits for them before the snapshot is released.
+ *
+ * @author ttulka
+ */
+final class ParallelScan implements Iterator<String>, AutoCloseable {
+
+    static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(PARALLELISM);
+
+    private final Iterator<Supplier<Iterator<String>>> partitions;
+    private final boolean ordered;
+    private final int maxInFlight;
+    private final Runnable onFinished;
+
+    // scanned partitions in the order of submitting
+    private final Deque<ScanTask> inFlight = new ArrayDeque<>();
+    // finished partitions in the order of finishing
+    private final BlockingQueue<ScanTask> finished = new LinkedBlockingQueue<>();
+
+    private Iterator<String> current = Collections.emptyIterator();
+
+    private boolean done = false;
+
+    // true when the partitions in flight should stop reading
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param partitions suppliers of iterators over partitions, called by the workers
+     * @param ordered    true if the results should come in the order of the partitions
+     */
+    public ParallelScan(List<Supplier<Iterator<String>>> partitions, boolean ordered) {
+        this(partitions, ordered, () -> {
+        });
+    }
+
+    /**
+     * @param partitions suppliers of iterators over partitions, called by the workers
+     * @param ordered    true if the results should come in the order of the partitions
+     * @param onFinished called once when the scan is finished or failed
+     */
+    public ParallelScan(List<Supplier<Iterator<String>>> partitions, boolean ordered, Runnable onFinished) {
+        this.partitions = partitions.iterator();
+        this.ordered = ordered;
+        this.maxInFlight = PARALLELISM * 2;
+        this.onFinished = onFinished;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (done) {
+            return false;
+        }
+        while (!current.hasNext()) {
+            submitPartitions();
+            if (inFlight.isEmpty()) {
+                finish();
+                return false;
+            }
+            ScanTask task = ordered ? inFlight.peekFirst() : takeFinished();
+            inFlight.remove(task);
+            try {
+                current = results(task).iterator();
+
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finishes the scan before all the results are read.
+     */
+    @Override
+    public void close() {
+        if (done) {
+            return;
+        }
+        cancelled = true;
+        for (ScanTask task : inFlight) {
+            task.quietlyJoin();
+        }
+        inFlight.clear();
+        current = Collections.emptyIterator();
+        finish();
+    }
+
+    private void finish() {
+        if (!done) {
+            done = true;
+            onFinished.run();
+        }
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    private void submitPartitions() {
+        while (inFlight.size() < maxInFlight && partitions.hasNext()) {
+            ScanTask task = new ScanTask(partitions.next());
+            inFlight.addLast(task);
+            POOL.execute(task);
+        }
+    }
+
+    private ScanTask takeFinished() {
+        try {
+            return finished.take();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Scan of a collection was interrupted.", e);
+        }
+    }
+
+    private List<String> results(ScanTask task) {
+        try {
+            return task.join();
+
+        } catch (DatabaseException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new DatabaseException("Cannot read a collection: " + e.getMessage(), e);
+        }
+    }
+
+    private final class ScanTask extends RecursiveTask<List<String>> {
+
+        private final Supplier<Iterator<String>> partition;
+
+        ScanTask(Supplier<Iterator<String>> partition) {
+            this.partition = partition;
+        }
+
+        @Override
+        protected List<String> compute() {
+            try {
+                List<String> results = new ArrayList<>();
+                if (cancelled) {
+                    return results;
+                }
+                Iterator<String> iterator = partition.get();
+                while (!cancelled && iterator.hasNext()) {
+                    results.add(iterator.next());
+                }
+                return results;
+
+            } finally {
+                if (!ordered) {
+                    finished.add(this);
+                }
+            }
+        }
+    }
+}
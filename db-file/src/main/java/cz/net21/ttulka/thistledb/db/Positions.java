@@ -0,0 +1,234 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Immutable set of positions of records held in a sorted array of primitive values.
+ * <p>
+ * Positions are iterated in the ascending order. A position is found by the binary search,
+ * intersections and unions are merged in linear time without boxing the positions.
+ *
+ * @author ttulka
+ */
+final class Positions extends AbstractSet<Long> {
+
+    static final Positions EMPTY = new Positions(new long[0], 0);
+
+    private final long[] positions;
+    private final int size;
+
+    private Positions(long[] positions, int size) {
+        this.positions = positions;
+        this.size = size;
+    }
+
+    /**
+     * @param positions positions in any order, duplicates allowed
+     */
+    static Positions of(long... positions) {
+        Builder builder = new Builder(positions.length);
+        for (long position : positions) {
+            builder.add(position);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param positions positions in any order
+     * @return the same instance for positions already held in this type
+     */
+    static Positions of(Collection<Long> positions) {
+        if (positions instanceof Positions) {
+            return (Positions) positions;
+        }
+        Builder builder = new Builder(positions.size());
+        positions.forEach(builder::add);
+        return builder.build();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the position at the index in the ascending order
+     */
+    long get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return positions[index];
+    }
+
+    boolean contains(long position) {
+        return Arrays.binarySearch(positions, 0, size, position) >= 0;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Long && contains((long) (Long) o);
+    }
+
+    @Override
+    public PrimitiveIterator.OfLong iterator() {
+        return new PrimitiveIterator.OfLong() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public long nextLong() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return positions[next++];
+            }
+        };
+    }
+
+    /**
+     * @return positions contained in both sets
+     */
+    Positions and(Positions other) {
+        if (size == 0 || other.size == 0) {
+            return EMPTY;
+        }
+        long[] result = new long[Math.min(size, other.size)];
+        int count = 0;
+        for (int i = 0, j = 0; i < size && j < other.size; ) {
+            if (positions[i] < other.positions[j]) {
+                i++;
+            } else if (positions[i] > other.positions[j]) {
+                j++;
+            } else {
+                result[count++] = positions[i];
+                i++;
+                j++;
+            }
+        }
+        return trimmed(result, count);
+    }
+
+    /**
+     * @return positions contained in any of the sets
+     */
+    Positions or(Positions other) {
+        if (other.size == 0) {
+            return this;
+        }
+        if (size == 0) {
+            return other;
+        }
+        long[] result = new long[size + other.size];
+        int count = 0;
+        int i = 0, j = 0;
+        while (i < size && j < other.size) {
+            if (positions[i] < other.positions[j]) {
+                result[count++] = positions[i++];
+            } else if (positions[i] > other.positions[j]) {
+                result[count++] = other.positions[j++];
+            } else {
+                result[count++] = positions[i];
+                i++;
+                j++;
+            }
+        }
+        while (i < size) {
+            result[count++] = positions[i++];
+        }
+        while (j < other.size) {
+            result[count++] = other.positions[j++];
+        }
+        return trimmed(result, count);
+    }
+
+    /**
+     * @return positions not contained in the other set
+     */
+    Positions without(Positions other) {
+        if (size == 0 || other.size == 0) {
+            return this;
+        }
+        long[] result = new long[size];
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.positions[j] < positions[i]) {
+                j++;
+            }
+            if (j == other.size || other.positions[j] != positions[i]) {
+                result[count++] = positions[i];
+            }
+        }
+        return count == size ? this : trimmed(result, count);
+    }
+
+    private static Positions trimmed(long[] positions, int size) {
+        if (size == 0) {
+            return EMPTY;
+        }
+        // the array is kept when almost full, otherwise the unused capacity would be held as long as the set
+        return new Positions(size > positions.length - positions.length / 8 ? positions : Arrays.copyOf(positions, size), size);
+    }
+
+    /**
+     * Collects positions in any order, the positions are sorted and deduplicated at once when built.
+     */
+    static final class Builder {
+
+        private long[] positions;
+        private int size = 0;
+        // true while the positions are added in the ascending order
+        private boolean sorted = true;
+
+        Builder() {
+            this(16);
+        }
+
+        Builder(int capacity) {
+            positions = new long[Math.max(capacity, 1)];
+        }
+
+        Builder add(long position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            if (size > 0 && positions[size - 1] >= position) {
+                sorted = false;
+            }
+            positions[size++] = position;
+            return this;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        Positions build() {
+            if (!sorted) {
+                Arrays.sort(positions, 0, size);
+                int distinct = 0;
+                for (int i = 0; i < size; i++) {
+                    if (distinct == 0 || positions[distinct - 1] != positions[i]) {
+                        positions[distinct++] = positions[i];
+                    }
+                }
+                size = distinct;
+            }
+            Positions built = trimmed(positions, size);
+            // the builder must not change the array of the built set
+            positions = new long[1];
+            size = 0;
+            sorted = true;
+            return built;
+        }
+    }
+}
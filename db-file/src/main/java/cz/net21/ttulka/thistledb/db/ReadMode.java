@@ -0,0 +1,25 @@
+package cz.net21.ttulka.thistledb.db;
+
+/**
+ * Modes of reading collection files.
+ *
+ * @author ttulka
+ */
+public enum ReadMode {
+
+    /**
+     * Records are read via the file channel into heap buffers.
+     */
+    CHANNEL,
+
+    /**
+     * The collection file is memory-mapped and records are found directly in the mapped region.
+     */
+    MAPPED,
+
+    /**
+     * Full scans of reactive selects read ahead via asynchronous file channels on a small shared I/O pool,
+     * records are read from the read-ahead bytes. Other reads work as with {@link #CHANNEL}.
+     */
+    ASYNC
+}
@@ -0,0 +1,210 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads records separated by a separator flag from a channel.
+ * <p>
+ * The decoder scans raw bytes for the separator and decodes each found record only once as UTF-8.
+ * One buffer and one charset decoder are reused for the whole scan.
+ * <p>
+ * The decoder keeps its own position and sets the position of the channel before every read,
+ * so the channel can be used for writing in the meantime.
+ *
+ * @author ttulka
+ */
+public class RecordDecoder implements RecordReader {
+
+    static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    private final SeekableByteChannel channel;
+    private final byte separatorFlag;
+    private final byte deletedFlag;
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private byte[] bytes;
+    private ByteBuffer bytesBuffer;
+    private ByteBuffer recordBuffer;
+    private CharBuffer chars;
+
+    private long bufferStart = 0;
+    private int bufferLength = 0;
+
+    private long position;
+    private long recordPosition = -1;
+
+    private Long maxPosition = null;
+
+    private long skippedRecords = 0;
+
+    /**
+     * Creates a decoder starting at the current position of the channel.
+     *
+     * @param channel       the channel
+     * @param separatorFlag the separator flag separating records
+     * @param deletedFlag   the delete flag for a deleted record to start with
+     * @throws IOException
+     */
+    public RecordDecoder(SeekableByteChannel channel, char separatorFlag, char deletedFlag) throws IOException {
+        this(channel, separatorFlag, deletedFlag, DEFAULT_BUFFER_SIZE);
+    }
+
+    RecordDecoder(SeekableByteChannel channel, char separatorFlag, char deletedFlag, int bufferSize) throws IOException {
+        this.channel = channel;
+        this.separatorFlag = (byte) separatorFlag;
+        this.deletedFlag = (byte) deletedFlag;
+        this.position = channel.position();
+
+        allocate(bufferSize);
+        chars = CharBuffer.allocate(bufferSize);
+    }
+
+    private void allocate(int bufferSize) {
+        byte[] newBytes = new byte[bufferSize];
+        if (bytes != null) {
+            System.arraycopy(bytes, 0, newBytes, 0, bufferLength);
+        }
+        bytes = newBytes;
+        bytesBuffer = ByteBuffer.wrap(bytes);
+        recordBuffer = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void position(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public long recordPosition() {
+        return recordPosition;
+    }
+
+    @Override
+    public void setMaxPosition(Long maxPosition) {
+        this.maxPosition = maxPosition;
+    }
+
+    @Override
+    public long skippedRecords() {
+        return skippedRecords;
+    }
+
+    /**
+     * Returns a next not-deleted record as a slice of bytes, without the separator.
+     * <p>
+     * The returned buffer is a read-only view of the internal buffer and is valid only until the next read.
+     *
+     * @return the next record or null if there is no complete record anymore
+     * @throws IOException
+     */
+    @Override
+    public ByteBuffer nextBytes() throws IOException {
+        long recordStart = position;
+        int scanned = 0;    // bytes of the record already known to contain no separator
+
+        while (true) {
+            if (recordStart < bufferStart || recordStart + scanned >= bufferStart + bufferLength) {
+                if (!fill(recordStart)) {
+                    return null;
+                }
+            }
+            int offset = (int) (recordStart - bufferStart);
+
+            int end = offset + scanned;
+            while (end < bufferLength && bytes[end] != separatorFlag) {
+                end++;
+            }
+            if (end == bufferLength) {
+                scanned = end - offset;
+                continue;
+            }
+            position = bufferStart + end + 1;
+
+            if (end > offset && bytes[offset] == deletedFlag) {
+                recordStart = position;
+                scanned = 0;
+                skippedRecords++;
+                continue;
+            }
+            recordPosition = recordStart;
+
+            recordBuffer.limit(end).position(offset);
+            return recordBuffer;
+        }
+    }
+
+    /**
+     * Decodes the bytes as UTF-8.
+     *
+     * @param record the bytes
+     * @return the decoded string
+     */
+    @Override
+    public String decode(ByteBuffer record) {
+        if (chars.capacity() < record.remaining()) {
+            chars = CharBuffer.allocate(Math.max(record.remaining(), chars.capacity() * 2));
+        }
+        chars.clear();
+        decoder.reset();
+        decoder.decode(record, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+
+        return chars.toString();
+    }
+
+    /**
+     * Moves the buffer to start at the position and reads more bytes into it.
+     *
+     * @param from the position for the buffer to start at
+     * @return true if some bytes were read, false if there is nothing more to read
+     * @throws IOException
+     */
+    private boolean fill(long from) throws IOException {
+        if (from < bufferStart || from > bufferStart + bufferLength) {
+            bufferLength = 0;
+
+        } else if (from > bufferStart) {
+            int shift = (int) (from - bufferStart);
+            System.arraycopy(bytes, shift, bytes, 0, bufferLength - shift);
+            bufferLength -= shift;
+        }
+        bufferStart = from;
+
+        if (bufferLength == bytes.length) {
+            allocate(bytes.length * 2);
+        }
+
+        long readPosition = bufferStart + bufferLength;
+        long toRead = bytes.length - bufferLength;
+        if (maxPosition != null) {
+            toRead = Math.min(toRead, maxPosition - readPosition);
+        }
+        if (toRead <= 0) {
+            return false;
+        }
+        channel.position(readPosition);
+
+        bytesBuffer.limit(bufferLength + (int) toRead).position(bufferLength);
+        int read = channel.read(bytesBuffer);
+        if (read <= 0) {
+            return false;
+        }
+        bufferLength += read;
+        return true;
+    }
+}
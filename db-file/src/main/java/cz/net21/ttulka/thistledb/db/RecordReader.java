@@ -0,0 +1,87 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader of records from a collection file.
+ *
+ * @author ttulka
+ */
+interface RecordReader {
+
+    /**
+     * Returns a next not-deleted record starting from the current position.
+     *
+     * @return the next record or null if there is no complete record anymore
+     * @throws IOException
+     */
+    default String next() throws IOException {
+        ByteBuffer record = nextBytes();
+        return record != null ? decode(record) : null;
+    }
+
+    /**
+     * Returns a next not-deleted record starting from the current position as raw bytes.
+     * <p>
+     * The returned buffer may share memory with the reader and is valid only until the next read.
+     *
+     * @return the next record or null if there is no complete record anymore
+     * @throws IOException
+     */
+    ByteBuffer nextBytes() throws IOException;
+
+    /**
+     * Decodes a record returned by {@link #nextBytes()} as UTF-8.
+     *
+     * @param record the bytes of the record
+     * @return the decoded string
+     */
+    default String decode(ByteBuffer record) {
+        if (record.hasArray()) {
+            return new String(record.array(), record.arrayOffset() + record.position(), record.remaining(), StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[record.remaining()];
+        record.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the position of the next read
+     */
+    long position();
+
+    /**
+     * Sets the position of the next read.
+     *
+     * @param position the new position
+     */
+    void position(long position);
+
+    /**
+     * @return the position of the last returned record, or -1 if no record was read yet
+     */
+    long recordPosition();
+
+    /**
+     * Limits the reading to the position. Records ending behind the position are not read.
+     *
+     * @param maxPosition the maximal position (exclusive), or null for no limit
+     */
+    void setMaxPosition(Long maxPosition);
+
+    /**
+     * @return the count of deleted records skipped by the reader so far
+     */
+    long skippedRecords();
+
+    /**
+     * Hints that records until the position are going to be read, the reader may read them with its next read at once.
+     * The hint is valid until the next call.
+     *
+     * @param position the position of the last record to be read
+     */
+    default void readAhead(long position) {
+    }
+}
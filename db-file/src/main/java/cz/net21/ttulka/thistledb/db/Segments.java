@@ -0,0 +1,298 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Segments of a collection.
+ * <p>
+ * The collection file itself is the segment 0, further segments are stored in the directory `<collectionName>_seg`
+ * in files named by their number. Records are always appended into the last (active) segment. A new segment is started
+ * when the active one reaches the segment size. Segments before the active one are sealed: their records are only read,
+ * marked as deleted or moved away by compaction.
+ * <p>
+ * A position of a record holds the number of the segment in the upper bits and the offset in the segment file
+ * in the lower {@link #OFFSET_BITS} bits. Positions in the segment 0 are therefore the same as in a not-segmented collection.
+ * <p>
+ * Stats of live and dead records are kept for every segment. The stats are stored in the file `<collectionName>_meta/stats`
+ * and are valid until a next change of the collection: the file is removed with the first change after it's stored.
+ * Stats missing after an unclean shutdown are counted again on demand.
+ *
+ * @author ttulka
+ */
+class Segments {
+
+    static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final Path path;
+    private final Path dir;
+    private final Path statsPath;
+
+    private final NavigableSet<Integer> ids = new ConcurrentSkipListSet<>();
+
+    // stats of segments, a missing value means not known yet
+    private final Map<Integer, StorageStats> stats = new ConcurrentHashMap<>();
+
+    // true when the stored stats are up to date
+    private final AtomicBoolean statsStored = new AtomicBoolean(false);
+
+    // versions of segments, changed with every modification of a sealed segment
+    private final Map<Integer, Long> versions = new ConcurrentHashMap<>();
+
+    public Segments(Path path) {
+        this.path = path;
+        this.dir = Paths.get(path + "_seg");
+        this.statsPath = Paths.get(path + "_meta").resolve("stats");
+        load();
+    }
+
+    static long position(int segment, long offset) {
+        return ((long) segment << OFFSET_BITS) | offset;
+    }
+
+    static int segment(long position) {
+        return (int) (position >>> OFFSET_BITS);
+    }
+
+    static long offset(long position) {
+        return position & OFFSET_MASK;
+    }
+
+    /**
+     * Reloads the segments from the disk.
+     */
+    void load() {
+        ids.clear();
+        stats.clear();
+        ids.add(0);
+
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> files = Files.list(dir)) {
+                files.map(file -> file.getFileName().toString())
+                        .filter(name -> name.matches("\\d+"))
+                        .map(Integer::valueOf)
+                        .forEach(ids::add);
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot read a segments directory '" + dir + "': " + e.getMessage(), e);
+            }
+        }
+        loadStats();
+    }
+
+    /**
+     * Loads the stored stats. Stats of a segment with a different size than stored are ignored.
+     */
+    private void loadStats() {
+        if (!Files.exists(statsPath)) {
+            return;
+        }
+        try (InputStream in = Files.newInputStream(statsPath)) {
+            Properties properties = new Properties();
+            properties.load(in);
+
+            for (int segment : ids) {
+                String size = properties.getProperty(segment + ".size");
+                StorageStats segmentStats = StorageStats.load(String.valueOf(segment), properties);
+                if (segmentStats != null && String.valueOf(Files.size(path(segment))).equals(size)) {
+                    stats.put(segment, segmentStats);
+                }
+            }
+            statsStored.set(true);
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot read stats of a collection '" + statsPath + "': " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Stores the stats of all the segments with known stats.
+     */
+    void storeStats() throws IOException {
+        Properties properties = new Properties();
+        for (int segment : ids) {
+            StorageStats segmentStats = stats.get(segment);
+            if (segmentStats != null) {
+                segmentStats.store(String.valueOf(segment), properties);
+                properties.setProperty(segment + ".size", String.valueOf(Files.size(path(segment))));
+            }
+        }
+        Files.createDirectories(statsPath.getParent());
+        Path temp = Paths.get(statsPath + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, null);
+        }
+        Files.move(temp, statsPath, StandardCopyOption.REPLACE_EXISTING);
+        statsStored.set(true);
+    }
+
+    /**
+     * Removes the stored stats, because they become outdated.
+     */
+    private void statsChanged() {
+        if (statsStored.compareAndSet(true, false)) {
+            try {
+                Files.deleteIfExists(statsPath);
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot remove stats of a collection '" + statsPath + "': " + e.getMessage(), e);
+            }
+        }
+    }
+
+    Path getDir() {
+        return dir;
+    }
+
+    Path path(int segment) {
+        return segment == 0 ? path : dir.resolve(String.format("%08d", segment));
+    }
+
+    boolean exists(int segment) {
+        return ids.contains(segment);
+    }
+
+    int active() {
+        return ids.last();
+    }
+
+    boolean isSealed(int segment) {
+        return segment < active();
+    }
+
+    /**
+     * @return the next segment or null if the segment is the last one
+     */
+    Integer next(int segment) {
+        return ids.higher(segment);
+    }
+
+    NavigableSet<Integer> sealed() {
+        return ids.headSet(active(), false);
+    }
+
+    NavigableSet<Integer> all() {
+        return ids;
+    }
+
+    /**
+     * Starts a new active segment.
+     *
+     * @param format the format of the collection
+     * @return the number of the new segment
+     * @throws IOException
+     */
+    int roll(FileFormat format) throws IOException {
+        int segment = active() + 1;
+        create(segment, format);
+        return segment;
+    }
+
+    /**
+     * Creates an empty segment.
+     *
+     * @param segment the number of the segment
+     * @param format  the format of the collection
+     * @throws IOException
+     */
+    void create(int segment, FileFormat format) throws IOException {
+        Files.createDirectories(dir);
+        try (FileChannel channel = FileChannel.open(path(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            format.writeHeader(channel);
+        }
+        ids.add(segment);
+        setStats(segment, StorageStats.EMPTY);
+    }
+
+    /**
+     * Removes a sealed segment. The segment 0 is replaced with an empty file instead, because it is the collection file.
+     * <p>
+     * The file is not overwritten in place, so readers having the segment still open can continue.
+     *
+     * @param segment the segment
+     * @param format  the format of the collection
+     * @throws IOException
+     */
+    void remove(int segment, FileFormat format) throws IOException {
+        if (segment == 0) {
+            Path empty = Paths.get(path + ".seg.tmp");
+            ChannelUtils.createNewFileOrTruncateExisting(empty);
+            try (FileChannel channel = FileChannel.open(empty, StandardOpenOption.WRITE)) {
+                format.writeHeader(channel);
+            }
+            Files.move(empty, path, StandardCopyOption.REPLACE_EXISTING);
+            setStats(0, StorageStats.EMPTY);
+        } else {
+            ids.remove(segment);
+            resetStats(segment);
+            Files.deleteIfExists(path(segment));
+        }
+    }
+
+    /**
+     * Deletes all the segments except the segment 0, and the stored stats.
+     */
+    void drop() throws IOException {
+        if (Files.exists(dir)) {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+        Files.deleteIfExists(statsPath);
+        statsStored.set(false);
+        load();
+    }
+
+    /**
+     * @return the stats of the segment or null if not known yet
+     */
+    StorageStats stats(int segment) {
+        return stats.get(segment);
+    }
+
+    void setStats(int segment, StorageStats segmentStats) {
+        stats.put(segment, segmentStats);
+        statsChanged();
+    }
+
+    /**
+     * Adds the delta to the stats of the segment, if known.
+     */
+    void addStats(int segment, StorageStats delta) {
+        stats.computeIfPresent(segment, (k, v) -> v.add(delta));
+        statsChanged();
+    }
+
+    /**
+     * Forgets the stats of the segment, they will be counted again.
+     */
+    void resetStats(int segment) {
+        stats.remove(segment);
+        statsChanged();
+    }
+
+    long version(int segment) {
+        return versions.getOrDefault(segment, 0L);
+    }
+
+    /**
+     * Marks the segment as modified.
+     */
+    void touch(int segment) {
+        versions.merge(segment, 1L, Long::sum);
+    }
+}
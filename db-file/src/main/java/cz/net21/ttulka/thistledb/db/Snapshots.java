@@ -0,0 +1,244 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snapshots of a collection pinned by readers.
+ * <p>
+ * A snapshot is the end position of the collection and an epoch. Records appended behind the end are not visible
+ * in the snapshot. Writers deleting or overwriting a record while snapshots are pinned preserve the previous version
+ * of the record tagged with the epoch of the change (a tombstone), readers of older snapshots read the preserved version
+ * instead of the record. Versions not visible in any pinned snapshot are discarded.
+ * <p>
+ * Snapshots are pinned under the read lock and versions are preserved under the write lock of the collection,
+ * so a change is either fully visible in a snapshot or not at all.
+ *
+ * @author ttulka
+ */
+final class Snapshots {
+
+    // the epoch of the last pinned snapshot, changes done meanwhile belong to the next epoch
+    private final AtomicLong epoch = new AtomicLong();
+
+    // counts of pinned snapshots by epochs
+    private final NavigableMap<Long, Integer> pinned = new TreeMap<>();
+
+    // preserved versions by positions of records
+    private final ConcurrentSkipListMap<Long, Version> versions = new ConcurrentSkipListMap<>();
+
+    private volatile boolean active = false;
+
+    /**
+     * Pins a new snapshot. Must be called under the read lock of the collection.
+     *
+     * @param end        the end position of the collection
+     * @param generation the generation of the collection files
+     * @return the snapshot
+     */
+    synchronized Snapshot pin(long end, int generation) {
+        Snapshot snapshot = new Snapshot(epoch.incrementAndGet(), end, generation);
+        pinned.merge(snapshot.epoch, 1, Integer::sum);
+        active = true;
+        return snapshot;
+    }
+
+    /**
+     * Releases the snapshot, versions not needed anymore are discarded.
+     */
+    synchronized void release(Snapshot snapshot) {
+        if (snapshot.released) {
+            return;
+        }
+        snapshot.released = true;
+        pinned.computeIfPresent(snapshot.epoch, (e, count) -> count > 1 ? count - 1 : null);
+
+        if (pinned.isEmpty()) {
+            active = false;
+            versions.clear();
+        } else {
+            long oldest = pinned.firstKey();
+            versions.values().removeIf(version -> version.newest().epoch <= oldest);
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return true if a snapshot is pinned
+     */
+    boolean active() {
+        return active;
+    }
+
+    /**
+     * @return the count of pinned snapshots
+     */
+    synchronized int pinned() {
+        return pinned.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * @return the count of positions with preserved versions
+     */
+    int preserved() {
+        return versions.size();
+    }
+
+    /**
+     * Waits until all the pinned snapshots are released.
+     *
+     * @param timeout the maximal time to wait in milliseconds
+     * @return true if no snapshot is pinned
+     */
+    synchronized boolean await(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (!pinned.isEmpty()) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Preserves the version of the record before it's deleted or overwritten, when a snapshot is pinned.
+     * Must be called under the write lock of the collection, before the record is changed.
+     *
+     * @param position the position of the record
+     * @param data     the serialized record
+     */
+    void preserve(long position, byte[] data) {
+        if (!active) {
+            return;
+        }
+        // visible only in the snapshots pinned so far
+        Version version = new Version(epoch.get() + 1, data, null);
+        versions.merge(position, version, Version::append);
+    }
+
+    /**
+     * @return the version of the record visible in the snapshot, or null if the record was not changed since
+     */
+    byte[] version(long position, Snapshot snapshot) {
+        Version version = versions.get(position);
+        return version != null ? version.visibleIn(snapshot) : null;
+    }
+
+    /**
+     * @return the positions and versions of records from the range changed since the snapshot, in the order of positions
+     */
+    Iterator<Map.Entry<Long, byte[]>> versions(long from, long to, Snapshot snapshot) {
+        if (versions.isEmpty() || from >= to) {
+            return Collections.emptyIterator();
+        }
+        Iterator<Map.Entry<Long, Version>> entries = versions.subMap(from, to).entrySet().iterator();
+        return new Iterator<Map.Entry<Long, byte[]>>() {
+
+            private Map.Entry<Long, byte[]> next = advance();
+
+            private Map.Entry<Long, byte[]> advance() {
+                while (entries.hasNext()) {
+                    Map.Entry<Long, Version> entry = entries.next();
+                    byte[] data = entry.getValue().visibleIn(snapshot);
+                    if (data != null) {
+                        return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), data);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<Long, byte[]> next() {
+                Map.Entry<Long, byte[]> current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    /**
+     * A snapshot pinned by a reader.
+     */
+    static final class Snapshot {
+
+        private final long epoch;
+        private final long end;
+        private final int generation;
+
+        private boolean released = false;
+
+        private Snapshot(long epoch, long end, int generation) {
+            this.epoch = epoch;
+            this.end = end;
+            this.generation = generation;
+        }
+
+        /**
+         * @return the end position of the collection, records from the position on are not visible
+         */
+        long end() {
+            return end;
+        }
+
+        /**
+         * @return the generation of the collection files the snapshot was pinned on
+         */
+        int generation() {
+            return generation;
+        }
+    }
+
+    /**
+     * Versions of a record in the order of their changes.
+     */
+    private static final class Version {
+
+        private final long epoch;
+        private final byte[] data;
+        private final Version next;
+
+        Version(long epoch, byte[] data, Version next) {
+            this.epoch = epoch;
+            this.data = data;
+            this.next = next;
+        }
+
+        /**
+         * @return the data of the first change after the snapshot, it's the version the snapshot saw
+         */
+        byte[] visibleIn(Snapshot snapshot) {
+            for (Version version = this; version != null; version = version.next) {
+                if (version.epoch > snapshot.epoch) {
+                    return version.data;
+                }
+            }
+            return null;
+        }
+
+        Version newest() {
+            Version version = this;
+            while (version.next != null) {
+                version = version.next;
+            }
+            return version;
+        }
+
+        Version append(Version newer) {
+            return new Version(epoch, data, next != null ? next.append(newer) : newer);
+        }
+    }
+}
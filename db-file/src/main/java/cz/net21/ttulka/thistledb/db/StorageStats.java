@@ -0,0 +1,118 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * Counters of live and dead records and bytes of a storage file. Dead records are deleted but still occupy the file
+ * until it's compacted or cleaned up.
+ * <p>
+ * Stats are immutable, changes are added as deltas.
+ *
+ * @author ttulka
+ */
+final class StorageStats {
+
+    static final StorageStats EMPTY = new StorageStats(0, 0, 0, 0);
+
+    private final long liveRecords;
+    private final long liveBytes;
+    private final long deadRecords;
+    private final long deadBytes;
+
+    StorageStats(long liveRecords, long liveBytes, long deadRecords, long deadBytes) {
+        this.liveRecords = liveRecords;
+        this.liveBytes = liveBytes;
+        this.deadRecords = deadRecords;
+        this.deadBytes = deadBytes;
+    }
+
+    /**
+     * @return a delta of added records
+     */
+    static StorageStats live(long records, long bytes) {
+        return new StorageStats(records, bytes, 0, 0);
+    }
+
+    /**
+     * @return a delta of live records turned dead
+     */
+    static StorageStats deleted(long records, long bytes) {
+        return new StorageStats(-records, -bytes, records, bytes);
+    }
+
+    StorageStats add(StorageStats delta) {
+        return new StorageStats(liveRecords + delta.liveRecords, liveBytes + delta.liveBytes,
+                                deadRecords + delta.deadRecords, deadBytes + delta.deadBytes);
+    }
+
+    long getLiveRecords() {
+        return liveRecords;
+    }
+
+    long getLiveBytes() {
+        return liveBytes;
+    }
+
+    long getDeadRecords() {
+        return deadRecords;
+    }
+
+    long getDeadBytes() {
+        return deadBytes;
+    }
+
+    /**
+     * @return the ratio of dead bytes to all the bytes
+     */
+    double deadRatio() {
+        long total = liveBytes + deadBytes;
+        return total > 0 ? (double) deadBytes / total : 0;
+    }
+
+    void store(String prefix, Properties properties) {
+        properties.setProperty(prefix + ".liveRecords", String.valueOf(liveRecords));
+        properties.setProperty(prefix + ".liveBytes", String.valueOf(liveBytes));
+        properties.setProperty(prefix + ".deadRecords", String.valueOf(deadRecords));
+        properties.setProperty(prefix + ".deadBytes", String.valueOf(deadBytes));
+    }
+
+    /**
+     * @return the stats or null if the stats are not stored under the prefix
+     */
+    static StorageStats load(String prefix, Properties properties) {
+        try {
+            return new StorageStats(
+                    Long.parseLong(properties.getProperty(prefix + ".liveRecords")),
+                    Long.parseLong(properties.getProperty(prefix + ".liveBytes")),
+                    Long.parseLong(properties.getProperty(prefix + ".deadRecords")),
+                    Long.parseLong(properties.getProperty(prefix + ".deadBytes")));
+
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof StorageStats)) {
+            return false;
+        }
+        StorageStats that = (StorageStats) o;
+        return liveRecords == that.liveRecords && liveBytes == that.liveBytes
+               && deadRecords == that.deadRecords && deadBytes == that.deadBytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(liveRecords, liveBytes, deadRecords, deadBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "live " + liveRecords + " records (" + liveBytes + " bytes), dead " + deadRecords + " records (" + deadBytes + " bytes)";
+    }
+}
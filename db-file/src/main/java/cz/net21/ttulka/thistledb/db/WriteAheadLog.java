@@ -0,0 +1,375 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.apachecommons.CommonsLog;
+
+/**
+ * Write-ahead log of a collection.
+ * <p>
+ * Every change of a collection file is appended into the log before it's written into the collection file.
+ * The log is forced to the disk based on the durability of operations:
+ * <ul>
+ * <li>{@link Durability#SYNC} waits for the force, concurrent operations waiting together are forced by one call (group commit),</li>
+ * <li>{@link Durability#BATCHED} lets the log be forced by a background flusher in regular intervals,</li>
+ * <li>{@link Durability#NONE} doesn't force the log at all.</li>
+ * </ul>
+ * Regardless of the durability, records overwritten in place by a statement are written only after the log is forced
+ * once for all of them, because a torn slot can be restored only from a durable entry.
+ * Collection files are not forced with every write. A checkpoint forces them and truncates the log.
+ * After a crash the log is replayed into the collection file and indexes.
+ * <p>
+ * Log entries have the form `[int length][int crc32c][byte type][long position][data]`,
+ * the length and checksum cover the type, position and data. Entries are physical and idempotent.
+ * <p>
+ * The data of a write is the record, of a padded write `[int slot length][record]`, of a delete the deleted document
+ * and of an update in place `[int slot length][int old document length][old document][record]`.
+ *
+ * @author ttulka
+ */
+@CommonsLog
+class WriteAheadLog implements AutoCloseable {
+
+    static final byte WRITE = 1;
+    static final byte DELETE = 2;
+    static final byte PADDED_WRITE = 3;
+    static final byte UPDATE = 4;
+
+    private static final int ENTRY_HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "thistledb-wal-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Applies a log entry.
+     */
+    @FunctionalInterface
+    interface Replayer {
+
+        void apply(byte type, long position, byte[] data) throws IOException;
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+
+    private final Object appendLock = new Object();
+
+    // log sequence numbers are bytes ever written into the log, they keep growing after truncation
+    private long writtenLsn = 0;
+    private long durableLsn = 0;
+    private long truncatedLsn = 0;
+
+    private boolean syncing = false;
+    private volatile boolean batchedPending = false;
+
+    private final ScheduledFuture<?> flusher;
+
+    /**
+     * @param path          the log file
+     * @param batchInterval the interval of forcing batched changes in milliseconds
+     */
+    public WriteAheadLog(Path path, long batchInterval) {
+        this.path = path;
+        try {
+            Files.createDirectories(path.getParent());
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.writtenLsn = channel.size();
+            this.durableLsn = writtenLsn;
+
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot open a write-ahead log '" + path + "': " + e.getMessage(), e);
+        }
+        this.flusher = FLUSHER.scheduleWithFixedDelay(this::flushBatched, batchInterval, batchInterval, TimeUnit.MILLISECONDS);
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return the size of the log file in bytes
+     */
+    long size() {
+        synchronized (appendLock) {
+            return writtenLsn - truncatedLsn;
+        }
+    }
+
+    /**
+     * @return the size of the log file forced to the disk in bytes
+     */
+    long durableSize() {
+        synchronized (appendLock) {
+            synchronized (this) {
+                return Math.max(durableLsn - truncatedLsn, 0);
+            }
+        }
+    }
+
+    /**
+     * Logs a record written on the position.
+     */
+    void logWrite(long position, byte[] data) throws IOException {
+        append(WRITE, position, data);
+    }
+
+    /**
+     * Logs a record written on the position into a slot of the length.
+     */
+    void logWrite(long position, byte[] data, int slotLength) throws IOException {
+        if (slotLength == data.length) {
+            append(WRITE, position, data);
+        } else {
+            append(PADDED_WRITE, position, padded(data, slotLength));
+        }
+    }
+
+    /**
+     * Logs a record on the position overwritten in place.
+     *
+     * @param position   the position of the record
+     * @param oldData    the overwritten document
+     * @param data       the new record
+     * @param slotLength the length of the slot of the record
+     */
+    void logUpdate(long position, byte[] oldData, byte[] data, int slotLength) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(Integer.BYTES + Integer.BYTES + oldData.length + data.length);
+        entry.putInt(slotLength).putInt(oldData.length).put(oldData).put(data);
+        append(UPDATE, position, entry.array());
+    }
+
+    private static byte[] padded(byte[] data, int slotLength) {
+        return ByteBuffer.allocate(Integer.BYTES + data.length).putInt(slotLength).put(data).array();
+    }
+
+    /**
+     * Logs a record on the position marked as deleted.
+     */
+    void logDelete(long position, byte[] data) throws IOException {
+        append(DELETE, position, data);
+    }
+
+    /**
+     * Logs records written on the positions with one write.
+     *
+     * @param positions   the positions of the records
+     * @param data        the records
+     * @param slotLengths the lengths of the slots of the records
+     * @param from        the first record to log
+     * @param to          the record after the last one to log
+     */
+    void logWrites(long[] positions, List<byte[]> data, int[] slotLengths, int from, int to) throws IOException {
+        byte[][] entryData = new byte[to - from][];
+        int size = 0;
+        for (int i = from; i < to; i++) {
+            byte[] record = data.get(i);
+            entryData[i - from] = slotLengths[i] == record.length ? record : padded(record, slotLengths[i]);
+            size += entrySize(entryData[i - from]);
+        }
+        ByteBuffer entries = ByteBuffer.allocate(size);
+        for (int i = from; i < to; i++) {
+            byte type = entryData[i - from] == data.get(i) ? WRITE : PADDED_WRITE;
+            putEntry(entries, type, positions[i], entryData[i - from]);
+        }
+        entries.flip();
+        write(entries);
+    }
+
+    private void append(byte type, long position, byte[] data) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(entrySize(data));
+        putEntry(entry, type, position, data);
+        entry.flip();
+        write(entry);
+    }
+
+    private static int entrySize(byte[] data) {
+        return ENTRY_HEADER_SIZE + 1 + Long.BYTES + data.length;
+    }
+
+    private static void putEntry(ByteBuffer buffer, byte type, long position, byte[] data) {
+        int start = buffer.position();
+        buffer.position(start + ENTRY_HEADER_SIZE);
+        buffer.put(type).putLong(position).put(data);
+
+        int length = buffer.position() - start - ENTRY_HEADER_SIZE;
+        buffer.putInt(start, length);
+        buffer.putInt(start + Integer.BYTES, Crc32c.compute(buffer.array(), start + ENTRY_HEADER_SIZE, length));
+    }
+
+    private void write(ByteBuffer entry) throws IOException {
+        synchronized (appendLock) {
+            long offset = writtenLsn - truncatedLsn;
+            while (entry.hasRemaining()) {
+                offset += channel.write(entry, offset);
+            }
+            writtenLsn = offset + truncatedLsn;
+        }
+    }
+
+    /**
+     * Makes the changes logged so far as durable as required.
+     *
+     * @param durability the durability
+     */
+    void commit(Durability durability) {
+        switch (durability) {
+            case SYNC:
+                sync();
+                break;
+            case BATCHED:
+                batchedPending = true;
+                break;
+            default:
+                // nothing to do
+        }
+    }
+
+    /**
+     * Forces all the changes logged so far to the disk.
+     * <p>
+     * Only one thread forces the log at a time, the others wait. A thread finding its changes not forced
+     * after the wait forces all the changes logged meanwhile at once.
+     */
+    void sync() {
+        long target;
+        synchronized (appendLock) {
+            target = writtenLsn;
+        }
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (syncing && durableLsn < target) {
+                        wait();
+                    }
+                    if (durableLsn >= target) {
+                        return;
+                    }
+                    syncing = true;
+                }
+                long forced;
+                synchronized (appendLock) {
+                    forced = writtenLsn;
+                }
+                try {
+                    channel.force(false);
+
+                    synchronized (this) {
+                        durableLsn = Math.max(durableLsn, forced);
+                    }
+                } finally {
+                    synchronized (this) {
+                        syncing = false;
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot force a write-ahead log '" + path + "': " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while forcing a write-ahead log '" + path + "'.", e);
+        }
+    }
+
+    private void flushBatched() {
+        if (batchedPending) {
+            batchedPending = false;
+            try {
+                sync();
+
+            } catch (Exception e) {
+                log.error("Cannot flush a write-ahead log.", e);
+            }
+        }
+    }
+
+    /**
+     * Truncates the log. Must be called only when all the logged changes are forced in the collection files.
+     */
+    void truncate() throws IOException {
+        synchronized (appendLock) {
+            channel.truncate(0);
+            channel.force(true);
+            truncatedLsn = writtenLsn;
+        }
+        synchronized (this) {
+            durableLsn = Math.max(durableLsn, truncatedLsn);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Replays all the complete entries in the log. A torn entry at the end of the log is ignored.
+     *
+     * @param replayer the replayer applying the entries
+     * @return the count of replayed entries
+     * @throws IOException
+     */
+    int replay(Replayer replayer) throws IOException {
+        int replayed = 0;
+        long position = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+
+        while (position + ENTRY_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            int length = header.getInt(0);
+            int crc = header.getInt(Integer.BYTES);
+
+            if (length < 1 + Long.BYTES || position + ENTRY_HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(body, position + ENTRY_HEADER_SIZE);
+            if (Crc32c.compute(body.array(), 0, length) != crc) {
+                break;
+            }
+            byte type = body.get(0);
+            long recordPosition = body.getLong(1);
+            byte[] data = new byte[length - 1 - Long.BYTES];
+            body.position(1 + Long.BYTES);
+            body.get(data);
+
+            replayer.apply(type, recordPosition, data);
+            replayed++;
+
+            position += ENTRY_HEADER_SIZE + length;
+        }
+        if (position < size) {
+            log.warn("Torn entry at the end of the write-ahead log '" + path + "' ignored.");
+        }
+        return replayed;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) <= 0) {
+                throw new IOException("Unexpected end of the write-ahead log.");
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        flusher.cancel(false);
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+            log.warn("Cannot close a channel.", ignore);
+        }
+    }
+}
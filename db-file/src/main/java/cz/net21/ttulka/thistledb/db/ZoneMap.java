@@ -0,0 +1,592 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.stream.DoubleStream;
+
+import org.json.JSONArray;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+
+/**
+ * Zone map of a segment: lightweight statistics of elements for blocks of records.
+ * <p>
+ * For every block and element there are kept the minimal and maximal value, the count of records without the element
+ * and a small sample of distinct values. A block whose statistics contradict a condition cannot contain a matching record
+ * and can be skipped by a scan.
+ * <p>
+ * Elements configured so have a bloom filter of their values in every block, it skips blocks certainly not containing
+ * a value of an equality condition.
+ * <p>
+ * Statistics are a superset of the values in the block: deleted records are still counted in and a record updated
+ * in place widens the statistics of its block.
+ *
+ * @author ttulka
+ */
+final class ZoneMap {
+
+    static final long DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    static final int SAMPLE_SIZE = 8;
+
+    static final double BLOOM_FILTER_FPP = 0.01;
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final Funnel<CharSequence> FUNNEL = Funnels.stringFunnel(StandardCharsets.UTF_8);
+
+    private final Set<String> elements;
+    private final Set<String> bloomFilters;
+
+    // blocks by their start offsets, a block ends where the next one starts
+    private final NavigableMap<Long, Block> blocks;
+
+    private ZoneMap(Set<String> elements, Set<String> bloomFilters, NavigableMap<Long, Block> blocks) {
+        this.elements = Collections.unmodifiableSet(elements);
+        this.bloomFilters = Collections.unmodifiableSet(bloomFilters);
+        this.blocks = blocks;
+    }
+
+    /**
+     * @return the elements with statistics
+     */
+    Set<String> elements() {
+        return elements;
+    }
+
+    /**
+     * @return the elements with bloom filters
+     */
+    Set<String> bloomFilters() {
+        return bloomFilters;
+    }
+
+    int blocks() {
+        return blocks.size();
+    }
+
+    /**
+     * @return the expected false-positive rates of the bloom filters of all the blocks
+     */
+    DoubleStream bloomFilterFpps() {
+        return blocks.values().stream()
+                .flatMap(block -> block.stats.values().stream())
+                .filter(elementStats -> elementStats.bloomFilter != null)
+                .mapToDouble(elementStats -> elementStats.bloomFilter.expectedFpp());
+    }
+
+    /**
+     * Skips blocks which cannot contain a record matching the condition.
+     *
+     * @param offset the offset of a next read
+     * @param where  the condition
+     * @return the offset to continue reading from
+     */
+    long skip(long offset, Where where) {
+        return skip(offset, where, () -> {});
+    }
+
+    /**
+     * Skips blocks which cannot contain a record matching the condition.
+     *
+     * @param offset              the offset of a next read
+     * @param where               the condition
+     * @param bloomFilterNegative called for every block skipped by a bloom filter of a single equality condition
+     * @return the offset to continue reading from
+     */
+    long skip(long offset, Where where, Runnable bloomFilterNegative) {
+        Map.Entry<Long, Block> block = blocks.floorEntry(offset);
+        while (block != null && offset < block.getValue().end && !block.getValue().mayMatch(where)) {
+            if (block.getValue().bloomFiltered(where)) {
+                bloomFilterNegative.run();
+            }
+            offset = block.getValue().end;
+            block = blocks.floorEntry(offset);
+        }
+        return offset;
+    }
+
+    /**
+     * A false-positive rate is measurable only for single equality conditions: a block let through by a bloom filter
+     * without a matching record is a false positive then.
+     *
+     * @return true if the condition is a single equality decided by a bloom filter of the block starting at the offset
+     */
+    boolean bloomFiltered(long offset, Where where) {
+        Block block = blocks.get(offset);
+        return block != null && block.bloomFiltered(where);
+    }
+
+    /**
+     * @return the end of the block containing the offset, the start of a next block if there is no such block,
+     * or {@link Long#MAX_VALUE} if there is no block behind the offset
+     */
+    long blockEnd(long offset) {
+        Map.Entry<Long, Block> block = blocks.floorEntry(offset);
+        if (block != null && offset < block.getValue().end) {
+            return block.getValue().end;
+        }
+        Long next = blocks.higherKey(offset);
+        return next != null ? next : Long.MAX_VALUE;
+    }
+
+    /**
+     * Widens the statistics of the block containing the record with the values of the record.
+     *
+     * @param offset the offset of the record
+     * @param values the values of the record by elements
+     */
+    void add(long offset, Function<String, Object> values) {
+        Map.Entry<Long, Block> block = blocks.floorEntry(offset);
+        if (block != null && offset < block.getValue().end) {
+            blocks.put(block.getKey(), block.getValue().with(values));
+        }
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(elements.size());
+        for (String element : elements) {
+            writeString(out, element);
+        }
+        out.writeInt(bloomFilters.size());
+        for (String element : bloomFilters) {
+            writeString(out, element);
+        }
+        out.writeInt(blocks.size());
+        for (Map.Entry<Long, Block> block : blocks.entrySet()) {
+            out.writeLong(block.getKey());
+            out.writeLong(block.getValue().end);
+            for (String element : elements) {
+                block.getValue().stats.get(element).write(out);
+            }
+        }
+    }
+
+    static ZoneMap read(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported version of a zone map: " + version);
+        }
+        Set<String> elements = new LinkedHashSet<>();
+        int elementsCount = in.readInt();
+        for (int i = 0; i < elementsCount; i++) {
+            elements.add(readString(in));
+        }
+        Set<String> bloomFilters = new LinkedHashSet<>();
+        int bloomFiltersCount = in.readInt();
+        for (int i = 0; i < bloomFiltersCount; i++) {
+            bloomFilters.add(readString(in));
+        }
+        NavigableMap<Long, Block> blocks = new ConcurrentSkipListMap<>();
+        int blocksCount = in.readInt();
+        for (int i = 0; i < blocksCount; i++) {
+            long start = in.readLong();
+            long end = in.readLong();
+            Map<String, ElementStats> stats = new HashMap<>();
+            for (String element : elements) {
+                stats.put(element, ElementStats.read(in));
+            }
+            blocks.put(start, new Block(end, stats));
+        }
+        return new ZoneMap(elements, bloomFilters, blocks);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds a zone map from records read sequentially.
+     */
+    static final class Builder {
+
+        private final Set<String> elements;
+        private final Set<String> bloomFilters;
+        private final long blockSize;
+        private final NavigableMap<Long, Block> blocks = new ConcurrentSkipListMap<>();
+
+        private long blockStart;
+        private Map<String, ElementStats> stats;
+
+        /**
+         * @param elements  the elements to keep statistics for
+         * @param start     the offset of the first record
+         * @param blockSize the size of a block
+         */
+        Builder(Collection<String> elements, long start, long blockSize) {
+            this(elements, Collections.emptySet(), start, blockSize);
+        }
+
+        /**
+         * @param elements     the elements to keep statistics for
+         * @param bloomFilters the elements to keep bloom filters for, they are added to the elements
+         * @param start        the offset of the first record
+         * @param blockSize    the size of a block
+         */
+        Builder(Collection<String> elements, Collection<String> bloomFilters, long start, long blockSize) {
+            this.elements = new LinkedHashSet<>(elements);
+            this.elements.addAll(bloomFilters);
+            this.bloomFilters = new LinkedHashSet<>(bloomFilters);
+            this.blockSize = blockSize;
+            this.blockStart = start;
+            this.stats = newStats();
+        }
+
+        /**
+         * Adds a next record.
+         *
+         * @param offset the offset of the record
+         * @param values the values of the record by elements
+         */
+        void add(long offset, Function<String, Object> values) {
+            if (offset - blockStart >= blockSize) {
+                blocks.put(blockStart, new Block(offset, sealed(stats)));
+                blockStart = offset;
+                stats = newStats();
+            }
+            elements.forEach(element -> stats.get(element).add(values.apply(element)));
+        }
+
+        /**
+         * @param end the end of the last record
+         */
+        ZoneMap build(long end) {
+            if (end > blockStart) {
+                blocks.put(blockStart, new Block(end, sealed(stats)));
+            }
+            return new ZoneMap(elements, bloomFilters, blocks);
+        }
+
+        private Map<String, ElementStats> newStats() {
+            Map<String, ElementStats> stats = new HashMap<>();
+            elements.forEach(element -> stats.put(element, new ElementStats(bloomFilters.contains(element))));
+            return stats;
+        }
+
+        private static Map<String, ElementStats> sealed(Map<String, ElementStats> stats) {
+            stats.values().forEach(ElementStats::seal);
+            return stats;
+        }
+    }
+
+    /**
+     * Block of records. Not changed once built, a widened block is a new object.
+     */
+    private static final class Block {
+
+        private final long end;
+        private final Map<String, ElementStats> stats;
+
+        Block(long end, Map<String, ElementStats> stats) {
+            this.end = end;
+            this.stats = stats;
+        }
+
+        /**
+         * @return false if no record of the block can match the condition
+         */
+        boolean mayMatch(Where where) {
+            if (Where.EMPTY.equals(where)) {
+                return true;
+            }
+            for (Where.Condition and : where.getAndConditions()) {
+                if (and.getOrClause().stream().noneMatch(this::mayMatch)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean mayMatch(Where.ConditionDataPart condition) {
+            ElementStats elementStats = stats.get(condition.getKey());
+            return elementStats == null || elementStats.mayMatch(condition);
+        }
+
+        /**
+         * @return true if the condition is a single equality decided by a bloom filter
+         */
+        boolean bloomFiltered(Where where) {
+            if (Where.EMPTY.equals(where) || where.getAndConditions().size() != 1
+                || where.getAndConditions().get(0).getOrClause().size() != 1) {
+                return false;
+            }
+            Where.ConditionDataPart condition = where.getAndConditions().get(0).getOrClause().get(0);
+            ElementStats elementStats = stats.get(condition.getKey());
+            return elementStats != null && elementStats.bloomFiltered(condition);
+        }
+
+        Block with(Function<String, Object> values) {
+            Map<String, ElementStats> widened = new HashMap<>();
+            stats.forEach((element, elementStats) -> {
+                ElementStats copy = elementStats.copy();
+                copy.add(values.apply(element));
+                widened.put(element, copy);
+            });
+            return new Block(end, widened);
+        }
+    }
+
+    /**
+     * Statistics of an element in a block. Values are compared the same way as by the condition: as numbers
+     * when both the values are numbers, otherwise as strings.
+     */
+    private static final class ElementStats {
+
+        private long nulls;
+        private long values;
+
+        private Double numberMin;
+        private Double numberMax;
+        // of values not being numbers
+        private String textMin;
+        private String textMax;
+        // of all the values as strings
+        private String stringMin;
+        private String stringMax;
+
+        private Set<String> sample = new LinkedHashSet<>();
+        private boolean sampleComplete = true;
+
+        // of the values as keys, see #key
+        private BloomFilter<CharSequence> bloomFilter;
+        // keys of the values for the bloom filter, collected until the block is sealed
+        private Set<String> keys;
+
+        ElementStats(boolean withBloomFilter) {
+            this.keys = withBloomFilter ? new HashSet<>() : null;
+        }
+
+        private ElementStats() {
+        }
+
+        /**
+         * Creates the bloom filter sized for the collected values.
+         */
+        void seal() {
+            if (keys != null) {
+                bloomFilter = BloomFilter.create(FUNNEL, Math.max(keys.size(), 1), BLOOM_FILTER_FPP);
+                keys.forEach(bloomFilter::put);
+                keys = null;
+            }
+        }
+
+        void add(Object value) {
+            if (value == null) {
+                nulls++;
+
+            } else if (value instanceof JSONArray) {
+                Iterator iterator = ((JSONArray) value).iterator();
+                while (iterator.hasNext()) {
+                    addValue(iterator.next().toString());
+                }
+            } else {
+                addValue(value.toString());
+            }
+        }
+
+        private void addValue(String value) {
+            values++;
+            Double number = number(value);
+            if (number != null) {
+                numberMin = min(numberMin, number);
+                numberMax = max(numberMax, number);
+            } else {
+                textMin = min(textMin, value);
+                textMax = max(textMax, value);
+            }
+            stringMin = min(stringMin, value);
+            stringMax = max(stringMax, value);
+
+            if (keys != null) {
+                keys.add(key(value));
+            } else if (bloomFilter != null) {
+                bloomFilter.put(key(value));
+            }
+
+            if (sampleComplete && !sample.contains(value)) {
+                if (sample.size() < SAMPLE_SIZE) {
+                    sample.add(value);
+                } else {
+                    sampleComplete = false;
+                    sample = Collections.emptySet();
+                }
+            }
+        }
+
+        boolean mayMatch(Where.ConditionDataPart condition) {
+            if (values == 0) {
+                return false;   // a missing element matches no condition
+            }
+            if (sampleComplete) {
+                return sample.stream().anyMatch(value -> condition.matches(element -> value));
+            }
+            Double number = number(condition.getValue());
+            switch (condition.getOperator()) {
+                case EQUAL:
+                    if (bloomFilter != null && !bloomFilter.mightContain(key(condition.getValue()))) {
+                        return false;
+                    }
+                    if (number != null) {
+                        return numberMin != null && inRange(numberMin, numberMax, number)
+                               || textMin != null && inRange(textMin, textMax, condition.getValue());
+                    }
+                    return inRange(stringMin, stringMax, condition.getValue());
+                case GREATER:
+                case GREATER_EQUAL:
+                case LESS:
+                case LESS_EQUAL:
+                    if (number != null) {
+                        return numberMin != null && mayMatch(condition.getOperator(), numberMin, numberMax, number)
+                               || textMin != null && mayMatch(condition.getOperator(), textMin, textMax, condition.getValue());
+                    }
+                    return mayMatch(condition.getOperator(), stringMin, stringMax, condition.getValue());
+                default:
+                    return true;
+            }
+        }
+
+        boolean bloomFiltered(Where.ConditionDataPart condition) {
+            return bloomFilter != null && values > 0 && !sampleComplete && condition.getOperator() == Where.Operators.EQUAL;
+        }
+
+        /**
+         * Values equal by the condition have the same key: numbers are equal as doubles, other values as strings.
+         */
+        private static String key(String value) {
+            Double number = number(value);
+            return number != null ? "#" + Long.toHexString(Double.doubleToLongBits(number)) : value;
+        }
+
+        private static <T extends Comparable<T>> boolean inRange(T min, T max, T value) {
+            return value.compareTo(min) >= 0 && value.compareTo(max) <= 0;
+        }
+
+        private static <T extends Comparable<T>> boolean mayMatch(Where.Operators operator, T min, T max, T value) {
+            switch (operator) {
+                case GREATER:
+                    return max.compareTo(value) > 0;
+                case GREATER_EQUAL:
+                    return max.compareTo(value) >= 0;
+                case LESS:
+                    return min.compareTo(value) < 0;
+                case LESS_EQUAL:
+                    return min.compareTo(value) <= 0;
+                default:
+                    return true;
+            }
+        }
+
+        private static Double number(String value) {
+            try {
+                return Double.valueOf(value);
+
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static <T extends Comparable<T>> T min(T current, T value) {
+            return current == null || value.compareTo(current) < 0 ? value : current;
+        }
+
+        private static <T extends Comparable<T>> T max(T current, T value) {
+            return current == null || value.compareTo(current) > 0 ? value : current;
+        }
+
+        ElementStats copy() {
+            ElementStats copy = new ElementStats();
+            copy.nulls = nulls;
+            copy.values = values;
+            copy.numberMin = numberMin;
+            copy.numberMax = numberMax;
+            copy.textMin = textMin;
+            copy.textMax = textMax;
+            copy.stringMin = stringMin;
+            copy.stringMax = stringMax;
+            copy.sample = sampleComplete ? new LinkedHashSet<>(sample) : Collections.emptySet();
+            copy.sampleComplete = sampleComplete;
+            copy.bloomFilter = bloomFilter != null ? bloomFilter.copy() : null;
+            copy.keys = keys != null ? new HashSet<>(keys) : null;
+            return copy;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(nulls);
+            out.writeLong(values);
+            out.writeBoolean(numberMin != null);
+            if (numberMin != null) {
+                out.writeDouble(numberMin);
+                out.writeDouble(numberMax);
+            }
+            writeString(out, textMin);
+            writeString(out, textMax);
+            writeString(out, stringMin);
+            writeString(out, stringMax);
+            out.writeBoolean(sampleComplete);
+            out.writeInt(sample.size());
+            for (String value : sample) {
+                writeString(out, value);
+            }
+            out.writeBoolean(bloomFilter != null);
+            if (bloomFilter != null) {
+                bloomFilter.writeTo(out);
+            }
+        }
+
+        static ElementStats read(DataInputStream in) throws IOException {
+            ElementStats stats = new ElementStats();
+            stats.nulls = in.readLong();
+            stats.values = in.readLong();
+            if (in.readBoolean()) {
+                stats.numberMin = in.readDouble();
+                stats.numberMax = in.readDouble();
+            }
+            stats.textMin = readString(in);
+            stats.textMax = readString(in);
+            stats.stringMin = readString(in);
+            stats.stringMax = readString(in);
+            stats.sampleComplete = in.readBoolean();
+            int sampleSize = in.readInt();
+            stats.sample = new LinkedHashSet<>();
+            for (int i = 0; i < sampleSize; i++) {
+                stats.sample.add(readString(in));
+            }
+            if (in.readBoolean()) {
+                stats.bloomFilter = BloomFilter.readFrom(in, FUNNEL);
+            }
+            return stats;
+        }
+    }
+}
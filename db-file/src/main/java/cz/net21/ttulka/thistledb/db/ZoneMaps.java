@@ -0,0 +1,292 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+
+import lombok.extern.apachecommons.CommonsLog;
+
+/**
+ * Zone maps of sealed segments of a collection (@see ZoneMap).
+ * <p>
+ * Zone maps are kept for frequently filtered elements: an element becomes tracked when it was filtered
+ * by {@link #MIN_FILTERS} scans. The tracked elements and zone maps are stored in the directory `<collectionName>_meta/zones`.
+ * A zone map changed by an update is stored again with a checkpoint, its file is removed with the change,
+ * so a stale zone map never survives a crash.
+ * <p>
+ * Elements configured in the options of the collection have bloom filters in the zone maps. Bloom filters let through
+ * a block without the value with a small probability, such false positives are counted (@see BloomFilterStats).
+ *
+ * @author ttulka
+ */
+@CommonsLog
+class ZoneMaps {
+
+    static final int MIN_FILTERS = 3;
+    static final int MAX_ELEMENTS = 8;
+
+    private static final String ELEMENTS_FILE = "elements";
+
+    private final Path dir;
+
+    private final Set<String> elements = Collections.synchronizedSet(new LinkedHashSet<>());
+
+    private volatile Set<String> bloomFilters = Collections.emptySet();
+
+    // counts of scans filtering elements not tracked yet
+    private final Map<String, Integer> filters = new ConcurrentHashMap<>();
+
+    private final Map<Integer, ZoneMap> zoneMaps = new ConcurrentHashMap<>();
+
+    // zone maps changed since stored
+    private final Set<Integer> changed = ConcurrentHashMap.newKeySet();
+
+    // blocks skipped by a bloom filter, let through with and without a matching record
+    private final LongAdder bloomFilterNegatives = new LongAdder();
+    private final LongAdder bloomFilterTruePositives = new LongAdder();
+    private final LongAdder bloomFilterFalsePositives = new LongAdder();
+
+    public ZoneMaps(Path path) {
+        this.dir = Paths.get(path + "_meta").resolve("zones");
+        load();
+    }
+
+    private void load() {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try {
+            Path elementsPath = dir.resolve(ELEMENTS_FILE);
+            if (Files.exists(elementsPath)) {
+                elements.addAll(Files.readAllLines(elementsPath));
+            }
+            try (Stream<Path> files = Files.list(dir)) {
+                files.filter(file -> file.getFileName().toString().matches("\\d+")).forEach(this::load);
+            }
+        } catch (IOException e) {
+            throw new DatabaseException("Cannot read zone maps: " + dir, e);
+        }
+    }
+
+    private void load(Path file) {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            zoneMaps.put(Integer.valueOf(file.getFileName().toString()), ZoneMap.read(in));
+
+        } catch (IOException e) {
+            log.warn("Cannot read a zone map, it will be built again: " + file, e);
+            FileUtils.deleteQuietly(file.toFile());
+        }
+    }
+
+    /**
+     * @return the tracked elements
+     */
+    Set<String> elements() {
+        synchronized (elements) {
+            return new LinkedHashSet<>(elements);
+        }
+    }
+
+    /**
+     * @return the elements with bloom filters
+     */
+    Set<String> bloomFilters() {
+        return bloomFilters;
+    }
+
+    /**
+     * Sets the elements with bloom filters, they are kept in zone maps in addition to the tracked elements.
+     */
+    void setBloomFilters(Set<String> bloomFilters) {
+        this.bloomFilters = Collections.unmodifiableSet(new LinkedHashSet<>(bloomFilters));
+    }
+
+    /**
+     * @return true if there are tracked elements or elements with bloom filters
+     */
+    boolean hasElements() {
+        return !elements.isEmpty() || !bloomFilters.isEmpty();
+    }
+
+    /**
+     * Counts the elements filtered by a scan.
+     *
+     * @param where the condition of the scan
+     * @return true if a new element is tracked
+     */
+    boolean filtered(Where where) {
+        if (Where.EMPTY.equals(where)) {
+            return false;
+        }
+        boolean tracked = false;
+        for (Where.Condition and : where.getAndConditions()) {
+            for (Where.ConditionDataPart or : and.getOrClause()) {
+                String element = or.getKey();
+                if (!elements.contains(element) && !bloomFilters.contains(element) && filters.merge(element, 1, Integer::sum) >= MIN_FILTERS) {
+                    tracked |= track(element);
+                }
+            }
+        }
+        return tracked;
+    }
+
+    /**
+     * Starts tracking the element, when there are not too many tracked elements yet.
+     *
+     * @return true if the element is newly tracked
+     */
+    boolean track(String element) {
+        synchronized (elements) {
+            if (elements.contains(element) || elements.size() >= MAX_ELEMENTS) {
+                return false;
+            }
+            elements.add(element);
+            filters.remove(element);
+            try {
+                Files.createDirectories(dir);
+                Files.write(dir.resolve(ELEMENTS_FILE), elements);
+
+            } catch (IOException e) {
+                throw new DatabaseException("Cannot store zone maps: " + dir, e);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the zone map of the segment or null if there is none
+     */
+    ZoneMap get(int segment) {
+        return zoneMaps.get(segment);
+    }
+
+    /**
+     * @return true if the segment has no zone map of all the tracked elements and bloom filters
+     */
+    boolean needed(int segment) {
+        if (!hasElements()) {
+            return false;
+        }
+        ZoneMap zoneMap = zoneMaps.get(segment);
+        return zoneMap == null
+               || !zoneMap.elements().containsAll(elements())
+               || !zoneMap.bloomFilters().containsAll(bloomFilters);
+    }
+
+    /**
+     * Counts a block skipped by a bloom filter.
+     */
+    void bloomFilterNegative() {
+        bloomFilterNegatives.increment();
+    }
+
+    /**
+     * Counts a block let through by a bloom filter.
+     *
+     * @param matched true if the block contains a matching record
+     */
+    void bloomFilterPositive(boolean matched) {
+        (matched ? bloomFilterTruePositives : bloomFilterFalsePositives).increment();
+    }
+
+    BloomFilterStats bloomFilterStats() {
+        double expectedFpp = zoneMaps.values().stream()
+                .flatMapToDouble(ZoneMap::bloomFilterFpps)
+                .average().orElse(0);
+        return new BloomFilterStats(bloomFilterNegatives.sum(), bloomFilterTruePositives.sum(), bloomFilterFalsePositives.sum(), expectedFpp);
+    }
+
+    /**
+     * Sets and stores the zone map of the segment.
+     */
+    void put(int segment, ZoneMap zoneMap) throws IOException {
+        zoneMaps.put(segment, zoneMap);
+        changed.remove(segment);
+        store(segment, zoneMap);
+    }
+
+    /**
+     * Widens the zone map of the segment with the values of a record updated in place.
+     */
+    void update(int segment, long offset, Function<String, Object> values) throws IOException {
+        ZoneMap zoneMap = zoneMaps.get(segment);
+        if (zoneMap != null) {
+            zoneMap.add(offset, values);
+            if (changed.add(segment)) {
+                Files.deleteIfExists(path(segment));
+            }
+        }
+    }
+
+    /**
+     * Removes the zone map of the segment.
+     */
+    void remove(int segment) throws IOException {
+        zoneMaps.remove(segment);
+        changed.remove(segment);
+        Files.deleteIfExists(path(segment));
+    }
+
+    /**
+     * Removes zone maps of all the segments, the tracked elements are kept.
+     */
+    void clear() throws IOException {
+        for (int segment : new ArrayList<>(zoneMaps.keySet())) {
+            remove(segment);
+        }
+    }
+
+    /**
+     * Removes everything.
+     */
+    void drop() throws IOException {
+        zoneMaps.clear();
+        changed.clear();
+        elements.clear();
+        filters.clear();
+        if (Files.exists(dir)) {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    /**
+     * Stores the zone maps changed since stored.
+     */
+    void store() throws IOException {
+        for (int segment : new ArrayList<>(changed)) {
+            changed.remove(segment);
+            ZoneMap zoneMap = zoneMaps.get(segment);
+            if (zoneMap != null) {
+                store(segment, zoneMap);
+            }
+        }
+    }
+
+    private void store(int segment, ZoneMap zoneMap) throws IOException {
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve(segment + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+            zoneMap.write(out);
+        }
+        Files.move(tmp, path(segment), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path path(int segment) {
+        return dir.resolve(String.valueOf(segment));
+    }
+}
@@ -0,0 +1,78 @@
+package cz.net21.ttulka.thistledb.db;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author ttulka
+ */
+public class AppendsTest {
+
+    @Test
+    public void publishInOrderTest() {
+        Appends appends = new Appends();
+        appends.open(100);
+
+        Appends.Range first = appends.reserve(10, 1);
+        Appends.Range second = appends.reserve(20, 2);
+        Appends.Range third = appends.reserve(30, 3);
+
+        assertThat(first.start(), is(100L));
+        assertThat(second.start(), is(110L));
+        assertThat(third.start(), is(130L));
+        assertThat(appends.reserved(), is(160L));
+
+        appends.complete(third);
+        assertThat("Not published before the previous ranges.", appends.published(), is(100L));
+
+        appends.complete(first);
+        assertThat(appends.published(), is(110L));
+
+        appends.complete(second);
+        assertThat(appends.published(), is(160L));
+        assertThat(appends.isPublished(), is(true));
+    }
+
+    @Test
+    public void awaitPublishedTest() throws InterruptedException {
+        Appends appends = new Appends();
+        appends.open(0);
+        Appends.Range range = appends.reserve(10, 1);
+
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignore) {
+            }
+            appends.complete(range);
+        });
+        writer.start();
+        appends.awaitPublished();
+
+        assertThat(appends.published(), is(10L));
+
+        appends.moveTo(1000);
+        assertThat(appends.reserve(5, 1).start(), is(1000L));
+    }
+
+    @Test
+    public void closeTest() {
+        Appends appends = new Appends();
+        appends.open(0);
+        Appends.Range range = appends.reserve(10, 1);
+        appends.close();
+
+        assertThat(appends.isOpen(), is(false));
+
+        appends.open(50);
+        appends.complete(range);
+        assertThat("A range reserved before the close is ignored.", appends.published(), is(50L));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void reserveNotOpenTest() {
+        new Appends().reserve(10, 1);
+    }
+}
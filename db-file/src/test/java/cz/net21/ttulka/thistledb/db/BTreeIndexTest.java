@@ -0,0 +1,204 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+
+/**
+ * @author ttulka
+ */
+public class BTreeIndexTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void insertAndDeleteTest() throws IOException {
+        try (BTreeIndex index = new BTreeIndex(temp.getRoot().toPath().resolve("btree"))) {
+            index.insert("a", 10);
+            index.insert("b", 20);
+            index.insert("a", 30);
+            index.insert("a", 10);
+
+            assertThat(index.positions("a"), contains(10L, 30L));
+            assertThat(index.positions("b"), contains(20L));
+            assertThat(index.positions("c"), empty());
+            assertThat(index.size(), is(3L));
+
+            index.delete("a", 10);
+            index.delete("c", 10);
+
+            assertThat(index.positions("a"), contains(30L));
+            assertThat(index.positions("b"), contains(20L));
+            assertThat(index.stats().getLiveRecords(), is(2L));
+            assertThat(index.stats().getDeadRecords(), is(0L));
+        }
+    }
+
+    @Test
+    public void typedKeysTest() throws IOException {
+        try (BTreeIndex index = new BTreeIndex(temp.getRoot().toPath().resolve("btree"))) {
+            index.insert("5", 10);
+            index.insert("-0", 20);
+            index.insert("abc", 30);
+
+            assertThat(index.positions("5.0"), contains(10L));
+            assertThat(index.positions("05"), contains(10L));
+            assertThat(index.positions("0"), contains(20L));
+            assertThat(index.positions("abc"), contains(30L));
+            assertThat(index.positions("ab"), empty());
+        }
+    }
+
+    @Test
+    public void longKeysTest() throws IOException {
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 0; i < BTreeIndex.MAX_KEY_SIZE; i++) {
+            prefix.append('x');
+        }
+        try (BTreeIndex index = new BTreeIndex(temp.getRoot().toPath().resolve("btree"))) {
+            for (int i = 0; i < 100; i++) {
+                index.insert(prefix.toString() + i, i);
+            }
+            // keys are truncated, positions of values with the same prefix are false positives
+            assertThat(index.positions(prefix + "1").size(), is(100));
+        }
+    }
+
+    @Test
+    public void rangeTest() throws IOException {
+        try (BTreeIndex index = new BTreeIndex(temp.getRoot().toPath().resolve("btree"))) {
+            index.insert("10", 1);
+            index.insert("-5", 2);
+            index.insert("2.5", 3);
+            index.insert("abc", 4);
+            index.insert("Abc", 5);
+            index.insert("1", 6);
+
+            assertThat(index.range("2", "10"), contains(1L, 3L));
+            assertThat(index.range("2.5", null), contains(1L, 3L, 4L, 5L));
+            assertThat(index.range(null, "1"), contains(2L, 6L));
+            assertThat(index.range("b", null), contains(1L, 2L, 3L, 6L));
+            assertThat(index.range("Abc", "abc"), contains(1L, 2L, 3L, 4L, 5L, 6L));
+        }
+    }
+
+    @Test
+    public void prefixTest() throws IOException {
+        try (BTreeIndex index = new BTreeIndex(temp.getRoot().toPath().resolve("btree"))) {
+            index.insert("John", 1);
+            index.insert("johnny", 2);
+            index.insert("Joe", 3);
+            index.insert("JOHN SMITH", 4);
+            index.insert("42", 5);
+
+            assertThat(index.prefix("joh"), contains(1L, 2L, 4L));
+            assertThat(index.prefix("JO"), contains(1L, 2L, 3L, 4L));
+            assertThat(index.prefix("x"), empty());
+            assertThat(index.prefix("4"), contains(5L));
+        }
+    }
+
+    @Test
+    public void stringOrderTest() throws IOException {
+        // a supplementary character is sorted before a character at the end of the basic plane, as compared by strings
+        String supplementary = new String(Character.toChars(0x1F600));
+        String basic = "\uFF21";
+        assertThat(supplementary.compareTo(basic) < 0, is(true));
+
+        try (BTreeIndex index = new BTreeIndex(temp.getRoot().toPath().resolve("btree"))) {
+            index.insert(basic, 1);
+            index.insert(supplementary, 2);
+
+            assertThat(index.range(null, supplementary), contains(2L));
+            assertThat(index.range(supplementary, null), contains(1L, 2L));
+        }
+    }
+
+    @Test
+    public void splitAndReopenTest() throws IOException {
+        Path path = temp.getRoot().toPath().resolve("btree");
+        int count = 50_000;
+
+        try (BTreeIndex index = new BTreeIndex(path)) {
+            for (int i = 0; i < count; i++) {
+                index.insert("value" + (i % 1000), i);
+            }
+            assertThat(index.stats().getLiveBytes() > (long) BTreeIndex.POOL_PAGES * BTreeIndex.PAGE_SIZE, is(true));
+        }
+        assertThat(BTreeIndex.isClean(path), is(true));
+
+        try (BTreeIndex index = new BTreeIndex(path)) {
+            assertThat(index.size(), is((long) count));
+            for (int i = 0; i < 1000; i++) {
+                assertThat(index.positions("value" + i).size(), is(count / 1000));
+            }
+            assertThat(index.positions("value7"), hasItems(7L, 25007L, 49007L));
+        }
+    }
+
+    @Test
+    public void loadTest() throws IOException {
+        Path path = temp.getRoot().toPath().resolve("btree");
+        int count = 50_000;
+
+        try (BTreeIndex index = new BTreeIndex(path);
+             ExternalSort sort = new ExternalSort(temp.getRoot().toPath().resolve("sort"), 100_000)) {
+            for (int i = 0; i < count; i++) {
+                sort.add(BTreeIndex.key("value" + (i % 1000)), i);
+            }
+            index.load(sort.sorted());
+
+            assertThat(index.size(), is((long) count));
+            assertThat(BTreeIndex.isClean(path), is(true));
+            assertThat(index.positions("value7"), hasItems(7L, 25007L, 49007L));
+        }
+        try (BTreeIndex index = new BTreeIndex(path)) {
+            for (int i = 0; i < 1000; i++) {
+                assertThat(index.positions("value" + i).size(), is(count / 1000));
+            }
+            assertThat(index.range("value990", "value999").size(), is(10 * count / 1000));
+
+            index.insert("value7", count);
+            index.delete("value7", 7);
+            assertThat(index.positions("value7").size(), is(count / 1000));
+            assertThat(index.positions("value7").contains((long) count), is(true));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void loadNotEmptyTest() throws IOException {
+        try (BTreeIndex index = new BTreeIndex(temp.getRoot().toPath().resolve("btree"));
+             ExternalSort sort = new ExternalSort(temp.getRoot().toPath().resolve("sort"), 100_000)) {
+            index.insert("a", 10);
+            index.load(sort.sorted());
+        }
+    }
+
+    @Test
+    public void cleanTest() throws IOException {
+        Path path = temp.getRoot().toPath().resolve("btree");
+        try (BTreeIndex index = new BTreeIndex(path)) {
+            assertThat(BTreeIndex.isClean(path), is(true));
+
+            index.insert("a", 10);
+            assertThat(BTreeIndex.isClean(path), is(false));
+
+            index.sync();
+            assertThat(BTreeIndex.isClean(path), is(true));
+
+            index.delete("a", 10);
+            assertThat(BTreeIndex.isClean(path), is(false));
+        }
+        assertThat(BTreeIndex.isClean(path), is(true));
+    }
+}
@@ -0,0 +1,78 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Performance Test of equality lookups of rare values on a non-indexed element with bloom filters.
+ *
+ * @author ttulka
+ */
+public class BloomFilterPTest {
+
+    private static final int AMOUNT_OF_RECORDS = 200_000;
+    private static final int AMOUNT_OF_LOOKUPS = 20;
+    private static final int BATCH_SIZE = 1_000;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void performanceTest() throws IOException {
+        DbCollectionFile collection = new DbCollectionFile(temp.newFile().toPath(), 0);
+        collection.setSegmentSize(4 * 1024 * 1024);
+
+        Random random = new Random(42);
+        List<String> users = new ArrayList<>();
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < AMOUNT_OF_RECORDS; i++) {
+            String user = new UUID(random.nextLong(), random.nextLong()).toString();
+            if (i % (AMOUNT_OF_RECORDS / AMOUNT_OF_LOOKUPS) == 0) {
+                users.add(user);
+            }
+            batch.add("{\"order\":{\"id\":" + i + ",\"user\":\"" + user + "\",\"amount\":" + (i % 1000) + "}}");
+            if (batch.size() == BATCH_SIZE) {
+                collection.insert(batch);
+                batch.clear();
+            }
+        }
+
+        long withoutBloomFilters = measure(collection, users);
+        System.out.println("LOOKUP WITHOUT BLOOM FILTERS: " + withoutBloomFilters + " ms");
+
+        collection.setOptions(CollectionOptions.builder().bloomFilters(Collections.singleton("order.user")).build());
+        collection.buildZoneMaps();
+
+        long withBloomFilters = measure(collection, users);
+        System.out.println("LOOKUP WITH BLOOM FILTERS: " + withBloomFilters + " ms");
+        System.out.println("BLOOM FILTERS: " + collection.bloomFilterStats());
+
+        assertThat("Bloom filters must speed up the lookup.", withBloomFilters < withoutBloomFilters, is(true));
+    }
+
+    private long measure(DbCollectionFile collection, List<String> users) {
+        long start = System.currentTimeMillis();
+        for (String user : users) {
+            int count = 0;
+            Iterator<String> select = collection.select("order.id", "order.user = '" + user + "'");
+            while (select.hasNext()) {
+                select.next();
+                count++;
+            }
+            assertThat("The record should be found.", count, is(1));
+        }
+        return (System.currentTimeMillis() - start) / users.size();
+    }
+}
@@ -0,0 +1,57 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author ttulka
+ */
+public class ChannelPoolTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void leastRecentlyUsedClosedTest() throws IOException {
+        Path dir = temp.getRoot().toPath().resolve("pool");
+        try (ChannelPool pool = new ChannelPool(2)) {
+            FileChannel a = pool.channel(dir.resolve("a"));
+            FileChannel b = pool.channel(dir.resolve("b"));
+            assertThat(Files.exists(dir.resolve("a")), is(true));
+
+            assertThat(pool.channel(dir.resolve("a")), sameInstance(a));
+            pool.channel(dir.resolve("c"));
+
+            assertThat(pool.size(), is(2));
+            assertThat(a.isOpen(), is(true));
+            assertThat(b.isOpen(), is(false));
+            assertThat(pool.opened(dir.resolve("b")), nullValue());
+        }
+    }
+
+    @Test
+    public void closeAllTest() throws IOException {
+        Path dir = temp.getRoot().toPath();
+        try (ChannelPool pool = new ChannelPool(ChannelPool.DEFAULT_MAX_OPEN)) {
+            FileChannel a = pool.channel(dir.resolve("x").resolve("a"));
+            FileChannel b = pool.channel(dir.resolve("y").resolve("b"));
+
+            pool.closeAll(dir.resolve("x"));
+
+            assertThat(a.isOpen(), is(false));
+            assertThat(b.isOpen(), is(true));
+            assertThat(pool.size(), is(1));
+        }
+    }
+}
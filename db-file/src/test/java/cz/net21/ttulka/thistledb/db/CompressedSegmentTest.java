@@ -0,0 +1,126 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author ttulka
+ */
+public class CompressedSegmentTest {
+
+    private static final int AMOUNT_OF_RECORDS = 5_000;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path segment;
+    private Path compressed;
+
+    private final List<Long> positions = new ArrayList<>();
+
+    @Before
+    public void createSegment() throws IOException {
+        segment = temp.newFile().toPath();
+        compressed = temp.getRoot().toPath().resolve("compressed");
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            FileFormat.FRAMED.writeHeader(channel);
+            long position = FileFormat.FRAMED.dataOffset();
+            for (int i = 0; i < AMOUNT_OF_RECORDS; i++) {
+                ByteBuffer record = FileFormat.FRAMED.encode(record(i).getBytes(StandardCharsets.UTF_8));
+                positions.add(position);
+                while (record.hasRemaining()) {
+                    position += channel.write(record, position);
+                }
+            }
+            FileFormat.FRAMED.delete(channel, positions.get(1));
+        }
+    }
+
+    private String record(int i) {
+        return "{\"person\":{\"id\":" + i + ",\"name\":\"Person " + i + "\",\"note\":\"lorem ipsum dolor sit amet\"}}";
+    }
+
+    @Test
+    public void compressTest() throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            long size = CompressedSegment.compress(channel, FileFormat.FRAMED, compressed);
+            assertThat(size, is(Files.size(segment)));
+        }
+        assertThat("Compressed file should be smaller.", Files.size(compressed) < Files.size(segment) / 3, is(true));
+        assertThat(FileFormat.detect(compressed), is(FileFormat.FRAMED));
+
+        try (FileChannel channel = FileChannel.open(compressed, StandardOpenOption.READ)) {
+            assertThat(CompressedSegment.isCompressed(channel), is(true));
+
+            CompressedSegment compressedSegment = new CompressedSegment(channel);
+            assertThat(compressedSegment.blocks() > 1, is(true));
+
+            RecordReader reader = compressedSegment.reader();
+            int count = 0;
+            String record;
+            while ((record = reader.next()) != null) {
+                int id = count < 1 ? count : count + 1;     // the second record is deleted
+                assertThat(record, is(record(id)));
+                assertThat(reader.recordPosition(), is(positions.get(id)));
+                count++;
+            }
+            assertThat(count, is(AMOUNT_OF_RECORDS - 1));
+        }
+    }
+
+    @Test
+    public void readAtPositionTest() throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            CompressedSegment.compress(channel, FileFormat.FRAMED, compressed);
+        }
+        try (FileChannel channel = FileChannel.open(compressed, StandardOpenOption.READ)) {
+            RecordReader reader = new CompressedSegment(channel).reader();
+
+            for (int id : new int[]{4321, 7, AMOUNT_OF_RECORDS - 1, 0}) {
+                reader.position(positions.get(id));
+                assertThat(reader.next(), is(record(id)));
+                assertThat(reader.recordPosition(), is(positions.get(id)));
+            }
+            reader.position(positions.get(10));
+            reader.setMaxPosition(positions.get(11));
+            assertThat(reader.next(), is(record(10)));
+            assertThat(reader.next(), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void deleteTest() throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            CompressedSegment.compress(channel, FileFormat.FRAMED, compressed);
+        }
+        try (FileChannel channel = FileChannel.open(compressed, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            CompressedSegment compressedSegment = new CompressedSegment(channel);
+            compressedSegment.delete(positions.get(0));
+            compressedSegment.delete(positions.get(2));
+
+            RecordReader reader = compressedSegment.reader();
+            assertThat(reader.next(), is(record(3)));
+        }
+        try (FileChannel channel = FileChannel.open(compressed, StandardOpenOption.READ)) {
+            RecordReader reader = new CompressedSegment(channel).reader();
+            assertThat("Deletions should be persistent.", reader.next(), is(record(3)));
+        }
+    }
+}
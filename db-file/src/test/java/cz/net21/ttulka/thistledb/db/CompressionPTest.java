@@ -0,0 +1,122 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Performance Test of compressed collections.
+ *
+ * @author ttulka
+ */
+public class CompressionPTest {
+
+    private static final int AMOUNT_OF_RECORDS = 100_000;
+    private static final int AMOUNT_OF_ROUNDS = 5;
+    private static final int BATCH_SIZE = 1_000;
+    private static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final String JUNK = "Frederick P. Brooks, Jr., is Kenan Professor of Computer Science at the University of North Carolina at Chapel Hill. He is best known as the 'father of the IBM System/360', having served as project manager for its development and later as manager of the Operating System/360 software project during its design phase. For this work he, Bob Evans, and Erich Bloch were awarded the National Medal of Technology in 1985.";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path plainPath;
+    private Path compressedPath;
+
+    @Before
+    public void setUp() throws IOException {
+        plainPath = temp.newFile().toPath();
+        compressedPath = temp.newFile().toPath();
+
+        long start = System.currentTimeMillis();
+        generateData(plainPath, CollectionOptions.DEFAULT);
+        generateData(compressedPath, CollectionOptions.builder().compression(Compression.DEFLATE).build());
+
+        System.out.println("GENERATION TIME: " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void generateData(Path path, CollectionOptions options) {
+        DbCollectionFile collection = new DbCollectionFile(path, 0);
+        collection.setSegmentSize(SEGMENT_SIZE);
+        collection.setOptions(options);
+
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < AMOUNT_OF_RECORDS; i++) {
+            batch.add("{\"root\":{\"id\":" + i + ",\"name\":\"Name " + (i % 100) + "\",\"ballast\":\"" + JUNK + "\"}}");
+
+            if (batch.size() == BATCH_SIZE) {
+                collection.insert(batch);
+                batch.clear();
+            }
+        }
+        collection.insert(batch);
+        collection.compress();
+    }
+
+    @Test
+    public void performanceTest() {
+        long plainSize = size(plainPath);
+        long compressedSize = size(compressedPath);
+
+        System.out.println(String.format("SIZE: %.1f MB plain, %.1f MB compressed, ratio %.2f",
+                                         plainSize / 1024.0 / 1024.0, compressedSize / 1024.0 / 1024.0,
+                                         (double) plainSize / compressedSize));
+
+        measure(plainPath, 1);  // warm up
+        measure(compressedPath, 1);
+
+        long plainTime = measure(plainPath, AMOUNT_OF_ROUNDS);
+        System.out.println("SCAN TIME (PLAIN): " + plainTime + " ms, " + throughput(plainSize, plainTime));
+
+        long compressedTime = measure(compressedPath, AMOUNT_OF_ROUNDS);
+        System.out.println("SCAN TIME (COMPRESSED): " + compressedTime + " ms, " + throughput(plainSize, compressedTime));
+
+        assertThat("Compressed collection should be smaller.", compressedSize < plainSize / 2, is(true));
+    }
+
+    private long size(Path path) {
+        long size = FileUtils.sizeOf(path.toFile());
+        Path segments = new Segments(path).getDir();
+        if (segments.toFile().exists()) {
+            size += FileUtils.sizeOfDirectory(segments.toFile());
+        }
+        return size;
+    }
+
+    private String throughput(long bytes, long time) {
+        double seconds = Math.max(time, 1) / 1000.0;
+        return String.format("%.1f MB/s (raw), %.0f records/s", bytes / 1024.0 / 1024.0 / seconds, AMOUNT_OF_RECORDS / seconds);
+    }
+
+    private long measure(Path path, int rounds) {
+        DbCollectionFile collection = new DbCollectionFile(path, 0);
+
+        long time = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.currentTimeMillis();
+
+            int count = 0;
+            Iterator<String> select = collection.select("*", null);
+            while (select.hasNext()) {
+                select.next();
+                count++;
+            }
+            time += System.currentTimeMillis() - start;
+
+            assertThat("All records should be read.", count, is(AMOUNT_OF_RECORDS));
+        }
+        return time / rounds;
+    }
+}
@@ -0,0 +1,113 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Performance Test of concurrent inserts.
+ *
+ * @author ttulka
+ */
+public class ConcurrentInsertPTest {
+
+    private static final int AMOUNT_OF_RECORDS = 100_000;
+    private static final int BATCH_SIZE = 100;
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    private static final String JUNK = "Frederick P. Brooks, Jr., is Kenan Professor of Computer Science at the University of North Carolina at Chapel Hill. He is best known as the 'father of the IBM System/360', having served as project manager for its development and later as manager of the Operating System/360 software project during its design phase.";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void performanceTest() throws Exception {
+        measure(1, false);  // warm up
+
+        long singleTime = 0;
+        long bestTime = Long.MAX_VALUE;
+        for (int threads : THREADS) {
+            long time = measure(threads, false);
+            System.out.println("INSERT TIME (" + threads + " threads): " + time + " ms, " + throughput(time));
+            if (threads == 1) {
+                singleTime = time;
+            }
+            bestTime = Math.min(bestTime, time);
+        }
+        for (int threads : THREADS) {
+            long time = measure(threads, true);
+            System.out.println("INDEXED INSERT TIME (" + threads + " threads): " + time + " ms, " + throughput(time));
+        }
+        if (Runtime.getRuntime().availableProcessors() > 1) {
+            assertThat("Concurrent inserts must be faster than a single inserter.", bestTime < singleTime, is(true));
+        }
+    }
+
+    private long measure(int threads, boolean indexed) throws Exception {
+        DbCollectionFile collection = new DbCollectionFile(temp.newFile().toPath(), 0);
+        if (indexed) {
+            collection.createIndex("root.group");
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.currentTimeMillis();
+
+            List<Future<?>> inserts = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                inserts.add(executor.submit(() -> insert(collection, thread, threads)));
+            }
+            for (Future<?> insert : inserts) {
+                insert.get();
+            }
+            long time = System.currentTimeMillis() - start;
+
+            assertThat("All records should be inserted.", count(collection), is(AMOUNT_OF_RECORDS));
+            return time;
+
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void insert(DbCollectionFile collection, int thread, int threads) {
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = thread; i < AMOUNT_OF_RECORDS; i += threads) {
+            batch.add("{\"root\":{\"id\":" + i + ",\"group\":" + i % 100 + ",\"ballast\":\"" + JUNK + "\"}}");
+
+            if (batch.size() == BATCH_SIZE) {
+                collection.insert(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            collection.insert(batch);
+        }
+    }
+
+    private int count(DbCollectionFile collection) throws IOException {
+        int count = 0;
+        Iterator<String> select = collection.select("root.id", null);
+        while (select.hasNext()) {
+            select.next();
+            count++;
+        }
+        return count;
+    }
+
+    private String throughput(long time) {
+        double seconds = Math.max(time, 1) / 1000.0;
+        return String.format("%.0f records/s", AMOUNT_OF_RECORDS / seconds);
+    }
+}
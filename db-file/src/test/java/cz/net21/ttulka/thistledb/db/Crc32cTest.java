@@ -0,0 +1,52 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author ttulka
+ */
+public class Crc32cTest {
+
+    @Test
+    public void checkValueTest() {
+        byte[] bytes = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+        assertThat(Crc32c.compute(bytes, 0, bytes.length), is(0xE3069283));
+    }
+
+    @Test
+    public void zerosTest() {
+        byte[] bytes = new byte[32];
+
+        assertThat(Crc32c.compute(bytes, 0, bytes.length), is(0x8A9136AA));
+    }
+
+    @Test
+    public void updateVariantsTest() {
+        byte[] bytes = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.US_ASCII);
+        int expected = Crc32c.compute(bytes, 0, bytes.length);
+
+        Crc32c bytewise = new Crc32c();
+        for (byte b : bytes) {
+            bytewise.update(b);
+        }
+        assertThat((int) bytewise.getValue(), is(expected));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        Crc32c buffered = new Crc32c();
+        buffered.update(direct);
+        assertThat((int) buffered.getValue(), is(expected));
+
+        buffered.reset();
+        buffered.update(bytes, 0, 10);
+        buffered.update(bytes, 10, bytes.length - 10);
+        assertThat((int) buffered.getValue(), is(expected));
+    }
+}
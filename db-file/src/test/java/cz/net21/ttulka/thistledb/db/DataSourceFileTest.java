@@ -1,14 +1,19 @@
 package cz.net21.ttulka.thistledb.db;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 import cz.net21.ttulka.thistledb.TestData;
 import cz.net21.ttulka.thistledb.tson.TSONObject;
@@ -536,6 +541,194 @@ public class DataSourceFileTest {
         dataSource.dropCollection(TEST_COLLECTION_NAME);
     }
 
+    @Test
+    public void asyncSelectTest() throws IOException {
+        DataSourceFile asyncDataSource = new DataSourceFile(temp.newFolder().toPath(), 0, ReadMode.ASYNC);
+        asyncDataSource.createCollection(TEST_COLLECTION_NAME);
+
+        int count = 20_000;
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            data.add("{\"person\":{\"id\":" + i + ",\"note\":\"" + String.format("%100d", i) + "\"}}");
+        }
+        asyncDataSource.insert(TEST_COLLECTION_NAME, data);
+
+        List<String> results = new CopyOnWriteArrayList<>();
+        asyncDataSource.select(TEST_COLLECTION_NAME, "person.id", null, true).subscribe(results::add);
+
+        waitForSeconds(1);
+
+        assertThat("Should return all the records.", results.size(), is(count));
+        assertThat("Should return the records in order.", results.get(count - 1), is("{\"id\":" + (count - 1) + "}"));
+
+        results.clear();
+        asyncDataSource.select(TEST_COLLECTION_NAME, "person.id", "person.id < 10").subscribe(results::add);
+
+        waitForSeconds(1);
+
+        assertThat("Should return ten records.", results.size(), is(10));
+
+        asyncDataSource.createIndex(TEST_COLLECTION_NAME, "person.id");
+        results.clear();
+        asyncDataSource.select(TEST_COLLECTION_NAME, "person.id", "person.id = 100").subscribe(results::add);
+
+        waitForSeconds(1);
+
+        assertThat("Should return the indexed record.", results, contains("{\"id\":100}"));
+    }
+
+    @Test
+    public void asyncSelectDemandTest() throws IOException {
+        DataSourceFile asyncDataSource = new DataSourceFile(temp.newFolder().toPath(), 0, ReadMode.ASYNC);
+        asyncDataSource.createCollection(TEST_COLLECTION_NAME);
+
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            data.add("{\"person\":{\"id\":" + i + "}}");
+        }
+        asyncDataSource.insert(TEST_COLLECTION_NAME, data);
+
+        List<String> results = new CopyOnWriteArrayList<>();
+        AtomicBoolean completed = new AtomicBoolean(false);
+        Subscription[] subscription = new Subscription[1];
+
+        asyncDataSource.select(TEST_COLLECTION_NAME, "*").subscribe(new Subscriber<String>() {
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription[0] = s;
+                s.request(5);
+            }
+
+            @Override
+            public void onNext(String json) {
+                results.add(json);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onComplete() {
+                completed.set(true);
+            }
+        });
+
+        waitForSeconds(1);
+
+        assertThat("Should return only the requested records.", results.size(), is(5));
+        assertThat(completed.get(), is(false));
+
+        subscription[0].request(Long.MAX_VALUE);
+
+        waitForSeconds(1);
+
+        assertThat("Should return all the records.", results.size(), is(100));
+        assertThat(completed.get(), is(true));
+    }
+
+    @Test
+    public void catalogTest() throws IOException {
+        Path dataDir = temp.newFolder().toPath();
+        DataSourceFile dataSource = new DataSourceFile(dataDir, 0);
+        dataSource.createCollection(TEST_COLLECTION_NAME, CollectionOptions.builder().padding(10).build());
+        dataSource.createCollection("other");
+        dataSource.createIndex(TEST_COLLECTION_NAME, "person.name");
+        dataSource.insert(TEST_COLLECTION_NAME, TestData.JSON_PERSON);
+
+        DataSourceFile reopened = new DataSourceFile(dataDir, 0);
+
+        assertThat("Collections should not be opened at start.", reopened.openCollections(), is(0));
+        assertThat(reopened.collectionExists(TEST_COLLECTION_NAME), is(true));
+        assertThat(reopened.collectionExists("other"), is(true));
+        assertThat(reopened.catalog.options(TEST_COLLECTION_NAME).getPadding(), is(10));
+        assertThat(reopened.catalog.indexes(TEST_COLLECTION_NAME), contains("person.name"));
+
+        List<String> results = new CopyOnWriteArrayList<>();
+        reopened.select(TEST_COLLECTION_NAME, "*", "person.name = \"John\"").subscribe(results::add);
+
+        waitForSeconds(1);
+
+        assertThat("Should open the collection on the first access.", reopened.openCollections(), is(1));
+        assertThat(results, contains(TestData.JSON_PERSON));
+
+        reopened.cleanUpData();
+        assertThat("Should not open collections to clean them up.", reopened.openCollections(), is(1));
+
+        reopened.dropCollection("other");
+
+        assertThat(new DataSourceFile(dataDir, 0).collectionExists("other"), is(false));
+    }
+
+    @Test
+    public void rebuildCatalogTest() throws IOException {
+        Path dataDir = temp.newFolder().toPath();
+        DataSourceFile dataSource = new DataSourceFile(dataDir, 0);
+        dataSource.createCollection(TEST_COLLECTION_NAME, CollectionOptions.builder().padding(10).build());
+        dataSource.insert(TEST_COLLECTION_NAME, TestData.JSON_PERSON);
+
+        Files.delete(dataDir.resolve(Catalog.FILE));
+
+        DataSourceFile reopened = new DataSourceFile(dataDir, 0);
+
+        assertThat(reopened.collectionExists(TEST_COLLECTION_NAME), is(true));
+        assertThat(reopened.catalog.names(), contains(TEST_COLLECTION_NAME));
+        assertThat(reopened.catalog.options(TEST_COLLECTION_NAME).getPadding(), is(10));
+        assertThat(Files.exists(dataDir.resolve(Catalog.FILE)), is(true));
+    }
+
+    @Test
+    public void closeIdleCollectionsTest() throws IOException {
+        dataSource.createCollection(TEST_COLLECTION_NAME);
+        dataSource.insert(TEST_COLLECTION_NAME, TestData.JSON_BASIC);
+
+        Flux<String> notSubscribed = dataSource.select(TEST_COLLECTION_NAME, "*");
+
+        assertThat("A select not subscribed should not hold the collection.", dataSource.closeIdleCollections(Long.MAX_VALUE), is(1));
+        assertThat(dataSource.openCollections(), is(0));
+
+        List<String> subscribed = new CopyOnWriteArrayList<>();
+        notSubscribed.subscribe(subscribed::add);
+
+        waitForSeconds(1);
+
+        assertThat("Should reopen the collection on the subscription.", subscribed, contains(TestData.JSON_BASIC));
+        assertThat("An idle collection should be closed.", dataSource.closeIdleCollections(Long.MAX_VALUE), is(1));
+        assertThat(dataSource.openCollections(), is(0));
+
+        dataSource.insert(TEST_COLLECTION_NAME, TestData.JSON_PERSON);
+
+        List<String> results = new CopyOnWriteArrayList<>();
+        dataSource.select(TEST_COLLECTION_NAME, "*").subscribe(results::add);
+
+        waitForSeconds(1);
+
+        assertThat("Should reopen the collection.", dataSource.openCollections(), is(1));
+        assertThat(results, containsInAnyOrder(TestData.JSON_BASIC, TestData.JSON_PERSON));
+    }
+
+    @Test
+    public void createOverUncataloguedFilesTest() throws IOException {
+        Path dataDir = temp.newFolder().toPath();
+        DataSourceFile dataSource = new DataSourceFile(dataDir, 0);
+        dataSource.createCollection(TEST_COLLECTION_NAME);
+        dataSource.insert(TEST_COLLECTION_NAME, TestData.JSON_PERSON);
+
+        // a crash after the collection was removed from the catalog but before its files were dropped
+        dataSource.catalog.remove(TEST_COLLECTION_NAME);
+        DataSourceFile reopened = new DataSourceFile(dataDir, 0);
+
+        assertThat(reopened.collectionExists(TEST_COLLECTION_NAME), is(false));
+        assertThat(reopened.createCollection(TEST_COLLECTION_NAME), is(true));
+
+        List<String> results = new CopyOnWriteArrayList<>();
+        reopened.select(TEST_COLLECTION_NAME, "*").subscribe(results::add);
+
+        waitForSeconds(1);
+
+        assertThat("Should be a new empty collection.", results.size(), is(0));
+    }
+
     private void waitForSeconds(int seconds) {
         try {
             Thread.sleep(seconds * 1000);
@@ -1,10 +1,21 @@
 package cz.net21.ttulka.thistledb.db;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -12,10 +23,14 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import cz.net21.ttulka.thistledb.TestData;
+import cz.net21.ttulka.thistledb.tson.TSONObject;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.fail;
 
 /**
  * @author ttulka
@@ -85,4 +100,976 @@ public class DbCollectionFileTest {
         positions = dbCollection.indexing.positions("person.name", "John");
         assertThat(positions.size(), is(1));    // only John McDonald
     }
+
+    @Test
+    public void indexTypesTest() {
+        dbCollection.insert(Collections.singleton("{\"person\":{\"name\":\"John\",\"age\":20}}"));
+        dbCollection.insert(Collections.singleton("{\"person\":{\"name\":\"Peter\",\"age\":30}}"));
+
+        assertThat(dbCollection.createIndex("person.name", IndexType.HASH), is(true));
+        assertThat(dbCollection.createIndex("person.age"), is(true));
+
+        assertThat(dbCollection.indexType("person.name"), is(IndexType.HASH));
+        assertThat(dbCollection.indexType("person.age"), is(DbCollectionFile.DEFAULT_INDEX_TYPE));
+        assertThat(dbCollection.indexType("person.surname"), is(nullValue()));
+
+        assertThat(dbCollection.createIndex("person.name"), is(false));
+        assertThat(dbCollection.createIndex("person.name", IndexType.HASH), is(false));
+
+        assertThat(toList(dbCollection.select("person.name", "person.age = 20.0")), contains("{\"name\":\"John\"}"));
+        assertThat(toList(dbCollection.select("person.age", "person.name = 'Peter'")), contains("{\"age\":30}"));
+    }
+
+    @Test
+    public void migrateIndexTest() {
+        dbCollection.insert(Collections.singleton("{\"person\":{\"name\":\"John\"}}"));
+        dbCollection.insert(Collections.singleton("{\"person\":{\"name\":\"Peter\"}}"));
+        dbCollection.createIndex("person.name", IndexType.HASH);
+
+        assertThat(dbCollection.createIndex("person.name", IndexType.BTREE), is(true));
+        assertThat(dbCollection.indexType("person.name"), is(IndexType.BTREE));
+        assertThat(dbCollection.indexing.positions("person.name", "John").size(), is(1));
+
+        dbCollection.insert(Collections.singleton("{\"person\":{\"name\":\"John\"}}"));
+        assertThat(dbCollection.indexing.positions("person.name", "John").size(), is(2));
+
+        assertThat(dbCollection.createIndex("person.name", IndexType.HASH), is(true));
+        assertThat(dbCollection.indexType("person.name"), is(IndexType.HASH));
+        assertThat(dbCollection.indexing.positions("person.name", "John").size(), is(2));
+    }
+
+    @Test
+    public void rangeAndPrefixQueriesTest() {
+        dbCollection.insert(Arrays.asList(
+                "{\"person\":{\"name\":\"John\",\"age\":20}}",
+                "{\"person\":{\"name\":\"johnny\",\"age\":35}}",
+                "{\"person\":{\"name\":\"Peter\",\"age\":\"unknown\"}}",
+                "{\"person\":{\"name\":\"Joe\",\"age\":40.5}}"));
+        dbCollection.createIndex("person.name", IndexType.BTREE);
+        dbCollection.createIndex("person.age", IndexType.BTREE);
+
+        String[] wheres = {
+                "person.age > 20", "person.age >= 20", "person.age < 40", "person.age <= 35.0",
+                "person.age > 30 AND person.age < 40", "person.age > 'a'", "person.age < 'a'",
+                "person.name LIKE 'jo*'", "person.name LIKE 'JOHN*'", "person.name LIKE 'J_e'", "person.name LIKE '*er'"};
+
+        List<List<String>> indexed = new ArrayList<>();
+        for (String where : wheres) {
+            assertThat(where, IndexingWhere.isIndexed(Where.create(where), dbCollection.indexing), is(!where.contains("'*")));
+            indexed.add(toList(dbCollection.select("person.name", where)));
+        }
+        dbCollection.dropIndex("person.name");
+        dbCollection.dropIndex("person.age");
+
+        for (int i = 0; i < wheres.length; i++) {
+            assertThat(wheres[i], indexed.get(i), is(toList(dbCollection.select("person.name", wheres[i]))));
+        }
+        assertThat(indexed.get(0), contains("{\"name\":\"johnny\"}", "{\"name\":\"Peter\"}", "{\"name\":\"Joe\"}"));
+        assertThat(indexed.get(7), contains("{\"name\":\"John\"}", "{\"name\":\"johnny\"}", "{\"name\":\"Joe\"}"));
+    }
+
+    @Test
+    public void createIndexWithSpillsTest() {
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            data.add("{\"person\":{\"id\":" + i + ",\"group\":\"g" + i % 10 + "\"}}");
+        }
+        dbCollection.insert(data);
+
+        DbCollectionFile.setIndexBuildMemory(1024);
+        try {
+            dbCollection.createIndex("person.id", IndexType.BTREE);
+            dbCollection.createIndex("person.group", IndexType.HASH);
+        } finally {
+            DbCollectionFile.setIndexBuildMemory(ExternalSort.DEFAULT_MAX_MEMORY);
+        }
+        assertThat(Files.exists(Paths.get(dbCollection.path + "_sort")), is(false));
+
+        assertThat(dbCollection.indexing.positions("person.id", "500").size(), is(1));
+        assertThat(dbCollection.indexing.positions("person.group", "g5").size(), is(100));
+        assertThat(toList(dbCollection.select("person.group", "person.id = 123")), contains("{\"group\":\"g3\"}"));
+        assertThat(toList(dbCollection.select("person.id", "person.id >= 990 AND person.group = 'g5'")), contains("{\"id\":995}"));
+    }
+
+    @Test
+    public void rebuildUncleanBTreeIndexTest() throws IOException {
+        dbCollection.createIndex("person.name", IndexType.BTREE);
+        dbCollection.insert(Collections.singleton("{\"person\":{\"name\":\"John\"}}"));
+        dbCollection.checkpoint();
+        dbCollection.insert(Collections.singleton("{\"person\":{\"name\":\"John\"}}"));
+
+        Path tree = dbCollection.indexing.getPath().resolve("person.name").resolve(BTreeIndexing.FILE);
+        assertThat(BTreeIndex.isClean(tree), is(false));
+
+        DbCollectionFile reopened = new DbCollectionFile(dbCollection.path, 0);
+        assertThat(BTreeIndex.isClean(tree), is(true));
+        assertThat(reopened.indexType("person.name"), is(IndexType.BTREE));
+        assertThat(reopened.indexing.positions("person.name", "John").size(), is(2));
+    }
+
+    @Test
+    public void mappedReadModeTest() throws IOException {
+        DbCollectionFile mappedCollection = new DbCollectionFile(temp.newFile().toPath(), 0, ReadMode.MAPPED);
+
+        mappedCollection.insert(Collections.singleton("{\"person\":{\"name\":\"Peter\",\"surname\":\"Jumble\"}}"));
+        mappedCollection.insert(Collections.singleton("{\"person\":{\"name\":\"Tomas\",\"surname\":\"Tulka\"}}"));
+        mappedCollection.insert(Collections.singleton("{\"person\":{\"name\":\"John\",\"surname\":\"Lennon\"}}"));
+
+        mappedCollection.createIndex("person.name");
+
+        mappedCollection.update(new String[]{"person.name"}, new String[]{"John"}, "person.surname=\"Jumble\"");
+        mappedCollection.delete("person.surname=\"Tulka\"");
+
+        assertThat(toList(mappedCollection.select("person.surname", null)),
+                   contains("{\"surname\":\"Lennon\"}", "{\"surname\":\"Jumble\"}"));
+        assertThat(toList(mappedCollection.select("person.surname", "person.name=\"John\"")),
+                   containsInAnyOrder("{\"surname\":\"Lennon\"}", "{\"surname\":\"Jumble\"}"));
+    }
+
+    @Test
+    public void legacyFormatTest() throws IOException {
+        DbCollectionFile legacyCollection = new DbCollectionFile(temp.newFile().toPath(), 0, ReadMode.CHANNEL, FileFormat.TEXT);
+
+        legacyCollection.insert(Collections.singleton("{\"person\":{\"name\":\"Peter\",\"surname\":\"Jumble\"}}"));
+        legacyCollection.insert(Collections.singleton("{\"person\":{\"name\":\"Tomáš\",\"surname\":\"Tulka\"}}"));
+        legacyCollection.insert(Collections.singleton("{\"person\":{\"name\":\"John\",\"surname\":\"Lennon\"}}"));
+
+        legacyCollection.createIndex("person.name");
+
+        legacyCollection.update(new String[]{"person.name"}, new String[]{"John"}, "person.surname=\"Jumble\"");
+        legacyCollection.delete("person.surname=\"Tulka\"");
+        legacyCollection.cleanUp();
+
+        assertThat(FileFormat.detect(legacyCollection.path), is(FileFormat.TEXT));
+        assertThat(toList(legacyCollection.select("person.surname", "person.name=\"John\"")),
+                   containsInAnyOrder("{\"surname\":\"Lennon\"}", "{\"surname\":\"Jumble\"}"));
+    }
+
+    @Test
+    public void framedFormatTest() throws IOException {
+        assertThat(dbCollection.getFormat(), is(FileFormat.FRAMED));
+
+        dbCollection.insert(Collections.singleton("{\"person\":{\"name\":\"Tomáš\"}}"));
+
+        assertThat(FileFormat.detect(dbCollection.path), is(FileFormat.FRAMED));
+        assertThat(Files.size(dbCollection.path), is((long) FileFormat.HEADER_SIZE + FileFormat.RECORD_HEADER_SIZE
+                                                     + "{\"person\":{\"name\":\"Tomáš\"}}".getBytes("UTF-8").length));
+        assertThat(toList(dbCollection.select("person.name", null)), contains("{\"name\":\"Tomáš\"}"));
+    }
+
+    @Test
+    public void segmentsTest() {
+        dbCollection.setSegmentSize(100);
+        dbCollection.createIndex("person.id");
+
+        for (int i = 0; i < 10; i++) {
+            dbCollection.insert(Collections.singleton("{\"person\":{\"id\":" + i + ",\"name\":\"Person " + i + "\"}}"));
+        }
+        assertThat(dbCollection.segments.active() > 1, is(true));
+
+        dbCollection.update(new String[]{"person.name"}, new String[]{"\"Updated\""}, "person.id = 2");
+        dbCollection.delete("person.id = 3");
+
+        assertThat(toList(dbCollection.select("person.id", null)).size(), is(9));
+        assertThat(toList(dbCollection.select("person.name", "person.id = 2")), contains("{\"name\":\"Updated\"}"));
+        assertThat(toList(dbCollection.select("person.id", "person.name = \"Person 9\"")), contains("{\"id\":9}"));
+
+        dbCollection.cleanUp();
+
+        assertThat(toList(dbCollection.select("person.id", null)).size(), is(9));
+        assertThat(toList(dbCollection.select("person.name", "person.id = 2")), contains("{\"name\":\"Updated\"}"));
+    }
+
+    @Test
+    public void compactionTest() throws IOException {
+        dbCollection.setSegmentSize(200);
+        dbCollection.setCompactionThreshold(1.1);   // no background compaction
+        dbCollection.createIndex("person.id");
+
+        for (int i = 0; i < 20; i++) {
+            dbCollection.insert(Collections.singleton("{\"person\":{\"id\":" + i + ",\"name\":\"Person " + i + "\"}}"));
+        }
+        Path secondSegment = dbCollection.segments.path(1);
+        long sizeBefore = Files.size(dbCollection.path);
+
+        dbCollection.delete("person.id = 0");
+        dbCollection.delete("person.id = 1");
+        dbCollection.delete("person.id = 2");
+        dbCollection.delete("person.id = 5");
+
+        dbCollection.setCompactionThreshold(0.5);
+        assertThat(dbCollection.compact() > 0, is(true));
+
+        assertThat("The first segment should be emptied.", Files.size(dbCollection.path) < sizeBefore, is(true));
+        assertThat("The second segment shouldn't be compacted.", Files.exists(secondSegment), is(true));
+
+        assertThat(toList(dbCollection.select("person.id", null)).size(), is(16));
+        for (int i = 3; i < 20; i++) {
+            assertThat(toList(dbCollection.select("person.name", "person.id = " + i)),
+                       is(i == 5 ? Collections.emptyList() : Collections.singletonList("{\"name\":\"Person " + i + "\"}")));
+        }
+    }
+
+    @Test
+    public void backgroundCompactionTest() throws Exception {
+        dbCollection.setSegmentSize(200);
+
+        for (int i = 0; i < 20; i++) {
+            dbCollection.insert(Collections.singleton("{\"person\":{\"id\":" + i + "}}"));
+        }
+        long sizeBefore = Files.size(dbCollection.path);
+
+        dbCollection.delete("person.id < 10");
+
+        long timeout = System.currentTimeMillis() + 10_000;
+        while (Files.size(dbCollection.path) == sizeBefore && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertThat("The first segment should be compacted in the background.", Files.size(dbCollection.path) < sizeBefore, is(true));
+        assertThat(toList(dbCollection.select("person.id", null)).size(), is(10));
+    }
+
+    @Test
+    public void bulkInsertTest() {
+        dbCollection.setSegmentSize(500);
+        dbCollection.createIndex("person.id");
+        dbCollection.createIndex("person.group");
+
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            data.add("{\"person\":{\"id\":" + i + ",\"group\":" + i % 3 + "}}");
+        }
+        dbCollection.insert(data);
+
+        assertThat(dbCollection.segments.active() > 1, is(true));
+        assertThat(toList(dbCollection.select("person.id", null)).size(), is(100));
+        assertThat(toList(dbCollection.select("person.id", "person.group = 1")).size(), is(33));
+        for (int i = 0; i < 100; i += 7) {
+            assertThat(toList(dbCollection.select("person.group", "person.id = " + i)), contains("{\"group\":" + i % 3 + "}"));
+        }
+        dbCollection.delete("person.group = 0");
+
+        assertThat(toList(dbCollection.select("person.id", null)).size(), is(66));
+        assertThat(toList(dbCollection.select("person.id", "person.group = 0")).size(), is(0));
+    }
+
+    @Test
+    public void compressionTest() throws IOException {
+        dbCollection.setSegmentSize(1000);
+        dbCollection.setCompactionThreshold(1.1);   // no background compaction
+        dbCollection.setOptions(CollectionOptions.builder().compression(Compression.DEFLATE).build());
+        dbCollection.createIndex("person.id");
+
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            data.add("{\"person\":{\"id\":" + i + ",\"name\":\"Person " + i + "\"}}");
+        }
+        dbCollection.insert(data);
+        long sizeBefore = Files.size(dbCollection.path);
+
+        dbCollection.compress();
+
+        assertThat("Sealed segments should be compressed.", Files.size(dbCollection.path) < sizeBefore, is(true));
+        assertThat(toList(dbCollection.select("person.id", null)).size(), is(100));
+        assertThat(toList(dbCollection.select("person.name", "person.id = 3")), contains("{\"name\":\"Person 3\"}"));
+
+        dbCollection.delete("person.id = 3");
+        dbCollection.update(new String[]{"person.name"}, new String[]{"\"Updated\""}, "person.id = 4");
+
+        DbCollectionFile reopened = new DbCollectionFile(dbCollection.path, 0);
+        assertThat(reopened.getOptions().getCompression(), is(Compression.DEFLATE));
+        assertThat(toList(reopened.select("person.id", null)).size(), is(99));
+        assertThat(toList(reopened.select("person.name", "person.id = 3")).size(), is(0));
+        assertThat(toList(reopened.select("person.name", "person.id = 4")), contains("{\"name\":\"Updated\"}"));
+
+        reopened.setCompactionThreshold(0.01);
+        assertThat(reopened.compact() > 0, is(true));
+        assertThat(toList(reopened.select("person.id", null)).size(), is(99));
+
+        reopened.cleanUp();
+        assertThat(toList(reopened.select("person.id", null)).size(), is(99));
+        assertThat(toList(reopened.select("person.name", "person.id = 4")), contains("{\"name\":\"Updated\"}"));
+    }
+
+    @Test
+    public void writeAheadLogRecoveryTest() throws IOException {
+        dbCollection.enableWriteAheadLog(60_000);
+        dbCollection.createIndex("person.id");
+
+        for (int i = 0; i < 5; i++) {
+            dbCollection.insert(Collections.singleton("{\"person\":{\"id\":" + i + "}}"));
+        }
+        dbCollection.delete("person.id = 3");
+        dbCollection.commit(Durability.SYNC);
+
+        // simulate a crash losing the not-forced collection file and indexes
+        try (FileChannel channel = FileChannel.open(dbCollection.path, StandardOpenOption.WRITE)) {
+            channel.truncate(FileFormat.HEADER_SIZE);
+        }
+        dbCollection.indexing.dropOnlyData();
+
+        DbCollectionFile recovered = new DbCollectionFile(dbCollection.path, 0);
+        assertThat(toList(recovered.select("person.id", null)).size(), is(0));
+
+        recovered.enableWriteAheadLog(60_000);
+
+        assertThat(toList(recovered.select("person.id", null)), contains("{\"id\":0}", "{\"id\":1}", "{\"id\":2}", "{\"id\":4}"));
+        assertThat(toList(recovered.select("person.id", "person.id = 4")), contains("{\"id\":4}"));
+        assertThat(toList(recovered.select("person.id", "person.id = 3")).size(), is(0));
+    }
+
+    @Test
+    public void binaryEncodingTest() throws IOException {
+        dbCollection.setOptions(CollectionOptions.builder().encoding(Encoding.BINARY).build());
+        dbCollection.enableWriteAheadLog(60_000);
+        dbCollection.createIndex("person.id");
+
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            data.add("{ \"person\" : { \"id\" : " + i + ", \"name\" : \"Person " + i + "\", \"score\" : " + i + ".5 } }");
+        }
+        dbCollection.insert(data);
+
+        byte[] file = Files.readAllBytes(dbCollection.path);
+        assertThat("Documents should not be stored as text.", new String(file, "UTF-8").contains("\"name\""), is(false));
+
+        assertThat(toList(dbCollection.select("*", "person.id = 3")), contains("{\"person\":{\"id\":3,\"name\":\"Person 3\",\"score\":3.5}}"));
+        assertThat(toList(dbCollection.select("person.name", "person.score > 7")), contains("{\"name\":\"Person 7\"}", "{\"name\":\"Person 8\"}", "{\"name\":\"Person 9\"}"));
+        assertThat(toList(dbCollection.select("person", "person.name LIKE 'Person 1'")), contains("{\"id\":1,\"name\":\"Person 1\",\"score\":1.5}"));
+        assertThat(toList(dbCollection.select("person.xxx", "person.id = 1")), contains("{}"));
+
+        assertThat(dbCollection.update(new String[]{"person.name"}, new String[]{"\"Updated\""}, "person.id = 4"), is(1));
+        assertThat(dbCollection.delete("person.id = 5"), is(1));
+        assertThat(dbCollection.add("person.note", "person.id = 6"), is(1));
+        assertThat(dbCollection.remove("person.score", "person.id = 7"), is(1));
+
+        DbCollectionFile reopened = new DbCollectionFile(dbCollection.path, 0);
+        reopened.enableWriteAheadLog(60_000);
+        assertThat(reopened.getOptions().getEncoding(), is(Encoding.BINARY));
+        assertThat(toList(reopened.select("person.id", null)).size(), is(9));
+        assertThat(toList(reopened.select("person.name", "person.id = 4")), contains("{\"name\":\"Updated\"}"));
+        assertThat(toList(reopened.select("person.id", "person.id = 5")).size(), is(0));
+        assertThat(toList(reopened.select("person", "person.id = 6")), contains("{\"id\":6,\"name\":\"Person 6\",\"score\":6.5,\"note\":null}"));
+        assertThat(toList(reopened.select("person", "person.id = 7")), contains("{\"id\":7,\"name\":\"Person 7\"}"));
+
+        reopened.cleanUp();
+        assertThat(toList(reopened.select("person.name", "person.id = 4")), contains("{\"name\":\"Updated\"}"));
+        assertThat(toList(reopened.select("person.id", null)).size(), is(9));
+    }
+
+    @Test
+    public void updateInPlaceTest() throws IOException {
+        dbCollection.setOptions(CollectionOptions.builder().padding(50).build());
+        dbCollection.createIndex("person.id");
+        dbCollection.createIndex("person.name");
+
+        for (int i = 0; i < 3; i++) {
+            dbCollection.insert(Collections.singleton("{\"person\":{\"id\":" + i + ",\"name\":\"Person " + i + "\"}}"));
+        }
+        long size = Files.size(dbCollection.path);
+
+        assertThat(dbCollection.update(new String[]{"person.name"}, new String[]{"\"Updated person\""}, "person.id = 1"), is(1));
+
+        assertThat("Record should be updated in place.", Files.size(dbCollection.path), is(size));
+        assertThat(toList(dbCollection.select("person.id", null)), contains("{\"id\":0}", "{\"id\":1}", "{\"id\":2}"));
+        assertThat(toList(dbCollection.select("person.id", "person.name = 'Updated person'")), contains("{\"id\":1}"));
+        assertThat(toList(dbCollection.select("person.id", "person.name = 'Person 1'")).size(), is(0));
+        assertThat(toList(dbCollection.select("person.name", "person.id = 1")), contains("{\"name\":\"Updated person\"}"));
+    }
+
+    @Test
+    public void updateMovesRecordNotFittingTest() throws IOException {
+        dbCollection.createIndex("person.id");
+        dbCollection.insert(Collections.singleton("{\"person\":{\"id\":1,\"name\":\"Person\"}}"));
+        long size = Files.size(dbCollection.path);
+
+        assertThat(dbCollection.update(new String[]{"person.name"}, new String[]{"\"Longer person\""}, "person.id = 1"), is(1));
+
+        long moved = Files.size(dbCollection.path);
+        assertThat("Record should be moved.", moved > size, is(true));
+
+        // the moved record has a reserved space
+        assertThat(dbCollection.update(new String[]{"person.name"}, new String[]{"\"Longer person 2\""}, "person.id = 1"), is(1));
+
+        assertThat("Record should be updated in place.", Files.size(dbCollection.path), is(moved));
+        assertThat(toList(dbCollection.select("person.name", "person.id = 1")), contains("{\"name\":\"Longer person 2\"}"));
+
+        dbCollection.cleanUp();
+        assertThat(toList(dbCollection.select("person.name", "person.id = 1")), contains("{\"name\":\"Longer person 2\"}"));
+    }
+
+    @Test
+    public void writeAheadLogRecoveryOfUpdateInPlaceTest() throws IOException {
+        dbCollection.setOptions(CollectionOptions.builder().padding(50).build());
+        dbCollection.enableWriteAheadLog(60_000);
+        dbCollection.createIndex("person.name");
+
+        for (int i = 0; i < 3; i++) {
+            dbCollection.insert(Collections.singleton("{\"person\":{\"id\":" + i + ",\"name\":\"Person " + i + "\"}}"));
+        }
+        dbCollection.update(new String[]{"person.name"}, new String[]{"\"Updated\""}, "person.id = 1");
+        dbCollection.commit(Durability.SYNC);
+
+        // simulate a crash losing the not-forced collection file and indexes
+        try (FileChannel channel = FileChannel.open(dbCollection.path, StandardOpenOption.WRITE)) {
+            channel.truncate(FileFormat.HEADER_SIZE);
+        }
+        dbCollection.indexing.dropOnlyData();
+
+        DbCollectionFile recovered = new DbCollectionFile(dbCollection.path, 0);
+        recovered.enableWriteAheadLog(60_000);
+
+        assertThat(toList(recovered.select("person.name", null)), contains("{\"name\":\"Person 0\"}", "{\"name\":\"Updated\"}", "{\"name\":\"Person 2\"}"));
+        assertThat(toList(recovered.select("person.id", "person.name = 'Updated'")), contains("{\"id\":1}"));
+        assertThat(toList(recovered.select("person.id", "person.name = 'Person 1'")).size(), is(0));
+    }
+
+    @Test
+    public void writeAheadLogRecoveryOfTornSlotTest() throws IOException {
+        dbCollection.setOptions(CollectionOptions.builder().padding(50).build());
+        dbCollection.enableWriteAheadLog(60_000);
+
+        for (int i = 0; i < 3; i++) {
+            dbCollection.insert(Collections.singleton("{\"person\":{\"id\":" + i + ",\"name\":\"Person " + i + "\"}}"));
+        }
+        dbCollection.checkpoint();  // the log has no entry of the original record
+        long size = Files.size(dbCollection.path);
+
+        dbCollection.update(new String[]{"person.name"}, new String[]{"\"Updated\""}, "person.id = 1");
+        assertThat("Record should be updated in place.", Files.size(dbCollection.path), is(size));
+
+        // simulate a power loss tearing the slot and losing the not-forced part of the log
+        byte[] file = Files.readAllBytes(dbCollection.path);
+        int updated = new String(file, StandardCharsets.ISO_8859_1).indexOf("Updated");
+        try (FileChannel channel = FileChannel.open(dbCollection.path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'P', 'e', 'r', 's'}), updated);
+        }
+        Path log = dbCollection.wal.getPath();
+        long durable = dbCollection.wal.durableSize();
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(durable);
+        }
+
+        DbCollectionFile recovered = new DbCollectionFile(dbCollection.path, 0);
+        recovered.enableWriteAheadLog(60_000);
+
+        assertThat(toList(recovered.select("person.name", null)), contains("{\"name\":\"Person 0\"}", "{\"name\":\"Updated\"}", "{\"name\":\"Person 2\"}"));
+    }
+
+    @Test
+    public void statsTest() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            dbCollection.insert(Collections.singleton("{\"person\":{\"id\":" + i + "}}"));
+        }
+        dbCollection.insert(Arrays.asList("{\"person\":{\"id\":10}}", "{\"person\":{\"id\":11}}"));
+        dbCollection.delete("person.id < 3");
+
+        StorageStats stats = dbCollection.stats();
+        assertThat(stats.getLiveRecords(), is(9L));
+        assertThat(stats.getDeadRecords(), is(3L));
+        assertThat(stats.getLiveBytes() + stats.getDeadBytes(), is(Files.size(dbCollection.path) - FileFormat.HEADER_SIZE));
+
+        assertThat("Counted stats should be the same.", new DbCollectionFile(dbCollection.path, 0).stats(), is(stats));
+
+        dbCollection.checkpoint();
+        assertThat("Stored stats should be loaded.", new DbCollectionFile(dbCollection.path, 0).segments.stats(0), is(stats));
+
+        dbCollection.cleanUp();
+        assertThat(dbCollection.stats(), is(new StorageStats(9, stats.getLiveBytes(), 0, 0)));
+    }
+
+    @Test
+    public void indexCleanUpTest() {
+        dbCollection.createIndex("person.name");
+
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            data.add("{\"person\":{\"id\":" + i + ",\"name\":\"John\"}}");
+        }
+        dbCollection.insert(data);
+        dbCollection.delete("person.id < 400");
+
+        dbCollection.cleanUpIndexes();   // could be already done in background
+        assertThat(dbCollection.cleanUpIndexes(), is(0));
+        assertThat(dbCollection.indexing.stats("person.name").getDeadRecords(), is(0L));
+        assertThat(toList(dbCollection.select("person.id", "person.name = 'John'")).size(), is(100));
+    }
+
+    @Test
+    public void maintenanceRateTest() {
+        DbCollectionFile.setMaintenanceRate(1024 * 1024);
+        try {
+            dbCollection.setSegmentSize(1024);
+            for (int i = 0; i < 100; i++) {
+                dbCollection.insert(Collections.singleton("{\"person\":{\"id\":" + i + ",\"name\":\"Person " + i + "\"}}"));
+            }
+            dbCollection.delete("person.id < 90");
+            dbCollection.compact();
+
+        } finally {
+            DbCollectionFile.setMaintenanceRate(0);
+        }
+        assertThat(dbCollection.stats().getLiveRecords(), is(10L));
+        assertThat(toList(dbCollection.select("person.id", null)).size(), is(10));
+    }
+
+    @Test
+    public void parallelSelectTest() throws IOException {
+        parallelSelect(dbCollection);
+        parallelSelect(new DbCollectionFile(temp.newFile().toPath(), 0, ReadMode.MAPPED, FileFormat.TEXT));
+
+        DbCollectionFile binaryCollection = new DbCollectionFile(temp.newFile().toPath(), 0);
+        binaryCollection.setOptions(CollectionOptions.builder().encoding(Encoding.BINARY).padding(20).build());
+        parallelSelect(binaryCollection);
+    }
+
+    private void parallelSelect(DbCollectionFile collection) {
+        collection.setSegmentSize(16 * 1024);
+        collection.setScanPartitionSize(1024);
+
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            data.add("{\"person\":{\"id\":" + i + ",\"name\":\"Person " + (i % 10) + "\"}}");
+        }
+        collection.insert(data);
+        collection.delete("person.name = 'Person 1'");
+        collection.update(new String[]{"person.name"}, new String[]{"Person 22"}, "person.name = 'Person 2'");
+
+        List<String> expected = toList(collection.select("person.id", "person.id >= 100"));
+        assertThat(expected.size(), is(810));
+
+        assertThat(toList(collection.select("person.id", "person.id >= 100", true)), is(expected));
+        assertThat(toList(collection.select("person.id", "person.id >= 100", false)), containsInAnyOrder(expected.toArray()));
+        assertThat(toList(collection.select("*", null, false)).size(), is(900));
+
+        collection.createIndex("person.name");
+        assertThat(toList(collection.select("person.id", "person.name = 'Person 22'", false)).size(), is(100));
+    }
+
+    @Test
+    public void zoneMapsTest() throws IOException {
+        dbCollection.setOptions(CollectionOptions.builder().padding(50).build());
+        dbCollection.setSegmentSize(2 * 1024);
+        dbCollection.setZoneMapBlockSize(256);
+
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            data.add("{\"event\":{\"time\":" + i + ",\"type\":\"type" + (i % 3) + "\"}}");
+        }
+        dbCollection.insert(data);
+
+        for (int i = 0; i < ZoneMaps.MIN_FILTERS; i++) {
+            assertThat(toList(dbCollection.select("event.time", "event.time >= 290")).size(), is(10));
+        }
+        assertThat(dbCollection.zoneMaps.elements(), contains("event.time"));
+
+        dbCollection.buildZoneMaps();
+        for (int segment : dbCollection.segments.sealed()) {
+            assertThat(dbCollection.zoneMaps.get(segment).elements(), contains("event.time"));
+        }
+        assertThat("Blocks of old events are skipped.",
+                   dbCollection.zoneMaps.get(0).skip(FileFormat.HEADER_SIZE, Where.create("event.time >= 290")) > FileFormat.HEADER_SIZE, is(true));
+        assertThat(toList(dbCollection.select("event.time", "event.time >= 290 AND event.type = 'type0'")).size(), is(3));
+        assertThat(toList(dbCollection.select("event.time", "event.time < 10", true)).size(), is(10));
+
+        // widened by an update in place
+        dbCollection.update(new String[]{"event.time"}, new String[]{"5000"}, "event.time = 5");
+        assertThat(toList(dbCollection.select("event.time", "event.time > 1000")), contains("{\"time\":5000}"));
+
+        dbCollection.checkpoint();
+        DbCollectionFile reopened = new DbCollectionFile(dbCollection.path, 0);
+        assertThat(reopened.zoneMaps.get(0).elements(), contains("event.time"));
+        assertThat(toList(reopened.select("event.time", "event.time > 1000")), contains("{\"time\":5000}"));
+        assertThat(toList(reopened.select("event.time", "event.time < 10")).size(), is(9));
+    }
+
+    @Test
+    public void bloomFiltersTest() throws IOException {
+        dbCollection.setSegmentSize(2 * 1024);
+        dbCollection.setZoneMapBlockSize(512);    // more values in a block than in a sample
+
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            data.add("{\"user\":\"u" + (i * 7919 % 1000) + "\",\"seq\":" + i + "}");
+        }
+        dbCollection.insert(data);
+        dbCollection.setOptions(CollectionOptions.builder().bloomFilters(Collections.singleton("user")).build());
+
+        dbCollection.buildZoneMaps();
+        for (int segment : dbCollection.segments.sealed()) {
+            assertThat(dbCollection.zoneMaps.get(segment).bloomFilters(), contains("user"));
+        }
+        assertThat("Bloom filter elements are not learned.", dbCollection.zoneMaps.elements().isEmpty(), is(true));
+
+        String user = "u" + (10 * 7919 % 1000);
+        assertThat(toList(dbCollection.select("seq", "user = '" + user + "'")), contains("{\"seq\":10}"));
+        assertThat(toList(dbCollection.select("seq", "user = 'none'")).isEmpty(), is(true));
+
+        BloomFilterStats stats = dbCollection.bloomFilterStats();
+        assertThat(stats.getTruePositives(), is(1L));
+        assertThat(stats.getNegatives() > 0, is(true));
+        assertThat(stats.falsePositiveRate() < 0.5, is(true));
+        assertThat(stats.expectedFalsePositiveRate() < 2 * ZoneMap.BLOOM_FILTER_FPP, is(true));
+
+        dbCollection.checkpoint();
+        DbCollectionFile reopened = new DbCollectionFile(dbCollection.path, 0);
+        assertThat(reopened.zoneMaps.get(0).bloomFilters(), contains("user"));
+        assertThat(toList(reopened.select("seq", "user = '" + user + "'")), contains("{\"seq\":10}"));
+        assertThat(reopened.bloomFilterStats().getNegatives() > 0, is(true));
+    }
+
+    @Test
+    public void documentCacheTest() {
+        DbCollectionFile.setDocumentCacheSize(1024 * 1024);
+        try {
+            dbCollection.setOptions(CollectionOptions.builder().padding(50).build());
+            dbCollection.insert(Arrays.asList(TestData.JSON_PERSON, TestData.JSON_BASIC));
+            dbCollection.createIndex("person.name");
+
+            assertThat(toList(dbCollection.select("person.name", "person.name = 'John'")), contains("{\"name\":\"John\"}"));
+            assertThat(DbCollectionFile.getDocumentCacheStats().missCount(), is(1L));
+
+            for (int i = 0; i < 10; i++) {
+                assertThat(toList(dbCollection.select("person.name", "person.name = 'John'")), contains("{\"name\":\"John\"}"));
+            }
+            assertThat(DbCollectionFile.getDocumentCacheStats().hitCount(), is(10L));
+            assertThat(DbCollectionFile.getDocumentCacheStats().missCount(), is(1L));
+
+            // updated in place
+            dbCollection.update(new String[]{"person.surname"}, new String[]{"Doe"}, "person.name = 'John'");
+            assertThat(toList(dbCollection.select("person.surname", "person.name = 'John'")), contains("{\"surname\":\"Doe\"}"));
+
+            dbCollection.delete("person.name = 'John'");
+            assertThat(toList(dbCollection.select("*", "person.name = 'John'")).isEmpty(), is(true));
+
+        } finally {
+            DbCollectionFile.setDocumentCacheSize(DbCollectionFile.DEFAULT_DOCUMENT_CACHE_SIZE);
+        }
+    }
+
+    @Test
+    public void documentCacheDisabledTest() {
+        DbCollectionFile.setDocumentCacheSize(0);
+        try {
+            dbCollection.insert(Collections.singleton(TestData.JSON_PERSON));
+            dbCollection.createIndex("person.name");
+
+            assertThat(toList(dbCollection.select("person.name", "person.name = 'John'")), contains("{\"name\":\"John\"}"));
+            assertThat(DbCollectionFile.getDocumentCacheStats().requestCount(), is(0L));
+
+        } finally {
+            DbCollectionFile.setDocumentCacheSize(DbCollectionFile.DEFAULT_DOCUMENT_CACHE_SIZE);
+        }
+    }
+
+    @Test
+    public void documentCacheConcurrentUpdateTest() throws Exception {
+        DbCollectionFile.setDocumentCacheSize(64 * 1024 * 1024);
+        try {
+            dbCollection.setOptions(CollectionOptions.builder().padding(50).build());
+            // a large document is long preserved and read, so the readers read it while it's being updated
+            StringBuilder note = new StringBuilder();
+            for (int i = 0; i < 20_000; i++) {
+                note.append("note ");
+            }
+            dbCollection.enableWriteAheadLog(60_000);
+            dbCollection.insert(Collections.singleton("{\"person\":{\"id\":1,\"version\":0,\"note\":\"" + note + "\"}}"));
+            dbCollection.createIndex("person.id");
+
+            // readers cache the document while it's being updated in place
+            AtomicBoolean updating = new AtomicBoolean(true);
+            List<Thread> readers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                readers.add(new Thread(() -> {
+                    while (updating.get()) {
+                        Iterator<String> select = dbCollection.select("person.version", "person.id = 1");
+                        // the select reads without the lock at any point of a next update
+                        long until = System.nanoTime() + ThreadLocalRandom.current().nextLong(2_000_000);
+                        while (System.nanoTime() < until) {
+                            Thread.yield();
+                        }
+                        toList(select);
+                    }
+                }));
+            }
+            readers.forEach(Thread::start);
+            try {
+                for (int version = 1; version <= 200; version++) {
+                    dbCollection.update(new String[]{"person.version"}, new String[]{String.valueOf(version)}, "person.id = 1");
+                    assertThat(toList(dbCollection.select("person.version", "person.id = 1")), contains("{\"version\":" + version + "}"));
+                }
+            } finally {
+                updating.set(false);
+                for (Thread reader : readers) {
+                    reader.join();
+                }
+            }
+        } finally {
+            DbCollectionFile.setDocumentCacheSize(DbCollectionFile.DEFAULT_DOCUMENT_CACHE_SIZE);
+        }
+    }
+
+    @Test(expected = DatabaseException.class)
+    public void changeEncodingOfNonEmptyCollectionTest() {
+        dbCollection.insert(Collections.singleton(TestData.JSON_BASIC));
+        dbCollection.setOptions(CollectionOptions.builder().encoding(Encoding.BINARY).build());
+    }
+
+    @Test
+    public void autoIdentityTest() throws IOException {
+        dbCollection.setOptions(CollectionOptions.builder().identity(Identity.AUTO).build());
+        dbCollection.insert(Arrays.asList("{\"_id\":\"a1\",\"v\":1}", "{\"v\":2}"));
+
+        assertThat(toList(dbCollection.select("v", "_id = 'a1'")), contains("{\"v\":1}"));
+
+        String generated = new TSONObject(toList(dbCollection.select("*", "v = 2")).get(0)).getString("_id");
+        assertThat(toList(dbCollection.select("v", "_id = '" + generated + "'")), contains("{\"v\":2}"));
+
+        dbCollection.update(new String[]{"v"}, new String[]{"3"}, "_id = 'a1'");
+        assertThat(toList(dbCollection.select("v", "_id = 'a1'")), contains("{\"v\":3}"));
+
+        dbCollection.delete("_id = 'a1'");
+        assertThat(toList(dbCollection.select("*", "_id = 'a1'")).isEmpty(), is(true));
+
+        // the id of a deleted document can be used again
+        dbCollection.insert(Collections.singleton("{\"_id\":\"a1\",\"v\":4}"));
+
+        dbCollection.cleanUp();
+        assertThat(toList(dbCollection.select("v", "_id = 'a1'")), contains("{\"v\":4}"));
+
+        DbCollectionFile reopened = new DbCollectionFile(dbCollection.path, 0);
+        assertThat(toList(reopened.select("v", "_id = '" + generated + "'")), contains("{\"v\":2}"));
+    }
+
+    @Test
+    public void userIdentityTest() {
+        dbCollection.setOptions(CollectionOptions.builder().identity(Identity.USER).build());
+        dbCollection.insert(Arrays.asList("{\"_id\":1,\"v\":1}", "{\"_id\":\"x\",\"v\":2}"));
+
+        assertThat(toList(dbCollection.select("v", "_id = 1")), contains("{\"v\":1}"));
+        assertThat(toList(dbCollection.select("v", "_id = 'x'")), contains("{\"v\":2}"));
+
+        try {
+            dbCollection.insert(Collections.singleton("{\"v\":3}"));
+            fail("A document without an id must be rejected.");
+        } catch (DatabaseException expected) {
+        }
+        try {
+            dbCollection.insert(Collections.singleton("{\"_id\":1.0,\"v\":3}"));
+            fail("A duplicate id must be rejected.");
+        } catch (DatabaseException expected) {
+        }
+        try {
+            dbCollection.insert(Arrays.asList("{\"_id\":\"y\"}", "{\"_id\":\"y\"}"));
+            fail("A duplicate id in one batch must be rejected.");
+        } catch (DatabaseException expected) {
+        }
+        try {
+            dbCollection.update(new String[]{"_id"}, new String[]{"2"}, "_id = 1");
+            fail("An id must not be updated.");
+        } catch (DatabaseException expected) {
+        }
+        try {
+            dbCollection.dropIndex("_id");
+            fail("The id index must not be dropped.");
+        } catch (DatabaseException expected) {
+        }
+        assertThat(toList(dbCollection.select("*", null)).size(), is(2));
+    }
+
+    @Test
+    public void rebuildCorruptedIdIndexTest() throws IOException {
+        dbCollection.setOptions(CollectionOptions.builder().identity(Identity.USER).build());
+        dbCollection.insert(Arrays.asList("{\"_id\":\"a\",\"v\":1}", "{\"_id\":\"b\",\"v\":2}"));
+        dbCollection.checkpoint();
+
+        Path ids = Paths.get(dbCollection.path + "_meta").resolve("id");
+        try (FileChannel channel = FileChannel.open(ids, StandardOpenOption.WRITE)) {
+            channel.truncate(10);
+        }
+        DbCollectionFile reopened = new DbCollectionFile(dbCollection.path, 0);
+        assertThat(toList(reopened.select("v", "_id = 'b'")), contains("{\"v\":2}"));
+    }
+
+    @Test(expected = DatabaseException.class)
+    public void changeIdentityOfNonEmptyCollectionTest() {
+        dbCollection.insert(Collections.singleton(TestData.JSON_BASIC));
+        dbCollection.setOptions(CollectionOptions.builder().identity(Identity.AUTO).build());
+    }
+
+    @Test
+    public void snapshotTest() {
+        snapshot(dbCollection);
+    }
+
+    @Test
+    public void snapshotOfBinaryCollectionTest() throws IOException {
+        DbCollectionFile binaryCollection = new DbCollectionFile(temp.newFile().toPath(), 0);
+        binaryCollection.setOptions(CollectionOptions.builder().encoding(Encoding.BINARY).build());
+        snapshot(binaryCollection);
+    }
+
+    @Test
+    public void snapshotOfTextCollectionTest() throws IOException {
+        snapshot(new DbCollectionFile(temp.newFile().toPath(), 0, ReadMode.MAPPED, FileFormat.TEXT));
+    }
+
+    private void snapshot(DbCollectionFile collection) {
+        collection.setOptions(CollectionOptions.builder().encoding(collection.getOptions().getEncoding()).padding(50).build());
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            data.add("{\"person\":{\"id\":" + i + ",\"name\":\"Person " + i + "\"}}");
+        }
+        collection.insert(data);
+        List<String> expected = toList(collection.select("person.id", null));
+
+        Iterator<String> select = collection.select("person.id", null);
+        assertThat(collection.snapshots.pinned(), is(1));
+
+        collection.delete("person.id = 1");
+        collection.update(new String[]{"person.id"}, new String[]{"100"}, "person.id = 2");   // in place
+        collection.update(new String[]{"person.name"}, new String[]{"Person with a very long name to be moved"}, "person.id = 3");
+        collection.delete("person.id = 9");
+        collection.insert(Collections.singleton("{\"person\":{\"id\":10,\"name\":\"Person 10\"}}"));
+
+        assertThat(toList(select), is(expected));
+        assertThat(collection.snapshots.pinned(), is(0));
+        assertThat(collection.snapshots.preserved(), is(0));
+
+        assertThat(toList(collection.select("person.id", null)).size(), is(9));
+        assertThat(toList(collection.select("person.id", "person.id = 100")).size(), is(1));
+    }
+
+    @Test
+    public void snapshotOfIndexedSelectTest() {
+        dbCollection.setOptions(CollectionOptions.builder().padding(50).build());
+        dbCollection.createIndex("person.name");
+        dbCollection.insert(Arrays.asList("{\"person\":{\"id\":1,\"name\":\"John\"}}",
+                                          "{\"person\":{\"id\":2,\"name\":\"John\"}}",
+                                          "{\"person\":{\"id\":3,\"name\":\"John\"}}"));
+
+        Iterator<String> select = dbCollection.select("person.id", "person.name = 'John'");
+
+        dbCollection.update(new String[]{"person.name"}, new String[]{"Peter"}, "person.id = 2");
+        dbCollection.delete("person.id = 3");
+        dbCollection.insert(Collections.singleton("{\"person\":{\"id\":4,\"name\":\"John\"}}"));
+
+        assertThat(toList(select), containsInAnyOrder("{\"id\":1}", "{\"id\":2}", "{\"id\":3}"));
+        assertThat(toList(dbCollection.select("person.id", "person.name = 'John'")), containsInAnyOrder("{\"id\":1}", "{\"id\":4}"));
+    }
+
+    @Test
+    public void snapshotOfParallelSelectTest() {
+        dbCollection.setSegmentSize(4 * 1024);
+        dbCollection.setScanPartitionSize(1024);
+
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            data.add("{\"person\":{\"id\":" + i + ",\"name\":\"Person " + (i % 10) + "\"}}");
+        }
+        dbCollection.insert(data);
+
+        Iterator<String> select = dbCollection.select("person.id", "person.id >= 0", true);
+        dbCollection.delete("person.id < 400");
+        dbCollection.compact();     // could be already done in background
+        assertThat(dbCollection.segments.exists(1), is(false));
+        dbCollection.insert(data);
+
+        assertThat(toList(select).size(), is(500));
+        assertThat(dbCollection.snapshots.pinned(), is(0));
+        assertThat(toList(dbCollection.select("person.id", "person.id >= 0", true)).size(), is(600));
+    }
+
+    @Test
+    public void cleanUpWaitsForSnapshotsTest() throws Exception {
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            data.add("{\"person\":{\"id\":" + i + "}}");
+        }
+        dbCollection.insert(data);
+        dbCollection.delete("person.id >= 50");
+
+        Iterator<String> select = dbCollection.select("person.id", null);
+
+        Thread cleanUp = new Thread(dbCollection::cleanUp);
+        cleanUp.start();
+        cleanUp.join(200);
+        assertThat("Clean-up waits for the snapshot.", cleanUp.isAlive(), is(true));
+
+        Thread update = new Thread(() -> dbCollection.update(new String[]{"person.name"}, new String[]{"\"Updated\""}, "person.id = 1"));
+        update.start();
+        update.join(10_000);
+        assertThat("Clean-up should not block writes while waiting for the snapshot.", update.isAlive(), is(false));
+
+        assertThat(toList(select).size(), is(50));
+        cleanUp.join(10_000);
+        assertThat(cleanUp.isAlive(), is(false));
+        assertThat(toList(dbCollection.select("person.id", null)).size(), is(50));
+    }
+
+    @Test
+    public void concurrentInsertTest() throws Exception {
+        dbCollection.setSegmentSize(2000);
+        dbCollection.createIndex("person.group");
+
+        int threads = 4;
+        int count = 200;
+        List<Thread> inserts = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            inserts.add(new Thread(() -> {
+                for (int i = 0; i < count; i += 10) {
+                    List<String> data = new ArrayList<>();
+                    for (int j = i; j < i + 10; j++) {
+                        data.add("{\"person\":{\"thread\":" + thread + ",\"id\":" + j + ",\"group\":" + j % 5 + "}}");
+                    }
+                    dbCollection.insert(data);
+                }
+            }));
+        }
+        inserts.forEach(Thread::start);
+
+        // selects see a consistent prefix of the collection meanwhile
+        while (inserts.stream().anyMatch(Thread::isAlive)) {
+            for (String json : toList(dbCollection.select("*", null))) {
+                assertThat(new TSONObject(json).findByPath("person.id") != null, is(true));
+            }
+        }
+        for (Thread insert : inserts) {
+            insert.join();
+        }
+        assertThat(dbCollection.segments.all().size() > 1, is(true));
+        assertThat(toList(dbCollection.select("*", null)).size(), is(threads * count));
+        assertThat(toList(dbCollection.select("*", "person.group = 1")).size(), is(threads * count / 5));
+        assertThat(toList(dbCollection.select("*", "person.thread = 2 AND person.id = 199")).size(), is(1));
+    }
+
+    @Test
+    public void concurrentInsertOfSameIdTest() throws Exception {
+        dbCollection.setOptions(CollectionOptions.builder().identity(Identity.USER).build());
+
+        List<Thread> inserts = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            inserts.add(new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    try {
+                        dbCollection.insert(Collections.singleton("{\"_id\":" + i + "}"));
+                    } catch (DatabaseException ignore) {
+                        // duplicate
+                    }
+                }
+            }));
+        }
+        inserts.forEach(Thread::start);
+        for (Thread insert : inserts) {
+            insert.join();
+        }
+        assertThat(toList(dbCollection.select("*", null)).size(), is(50));
+    }
+
+    private List<String> toList(Iterator<String> iterator) {
+        List<String> list = new ArrayList<>();
+        iterator.forEachRemaining(list::add);
+        return list;
+    }
 }
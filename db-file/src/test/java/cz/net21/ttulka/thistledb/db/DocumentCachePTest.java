@@ -0,0 +1,68 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Performance Test of indexed point reads of hot documents with the document cache.
+ *
+ * @author ttulka
+ */
+public class DocumentCachePTest {
+
+    private static final int AMOUNT_OF_RECORDS = 10_000;
+    private static final int AMOUNT_OF_HOT_KEYS = 100;
+    private static final int AMOUNT_OF_READS = 50_000;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @After
+    public void resetCache() {
+        DbCollectionFile.setDocumentCacheSize(DbCollectionFile.DEFAULT_DOCUMENT_CACHE_SIZE);
+    }
+
+    @Test
+    public void performanceTest() throws IOException {
+        DbCollectionFile collection = new DbCollectionFile(temp.newFile().toPath(), 0);
+        collection.createIndex("customer.id");
+
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < AMOUNT_OF_RECORDS; i++) {
+            data.add("{\"customer\":{\"id\":" + i + ",\"name\":\"Customer " + i + "\",\"address\":{\"city\":\"City " + (i % 100)
+                     + "\",\"street\":\"Street " + i + "\"},\"tags\":[\"a\",\"b\",\"c\"]}}");
+        }
+        collection.insert(data);
+
+        DbCollectionFile.setDocumentCacheSize(0);
+        long withoutCache = measure(collection);
+        System.out.println("HOT READS WITHOUT CACHE: " + withoutCache + " ms");
+
+        DbCollectionFile.setDocumentCacheSize(DbCollectionFile.DEFAULT_DOCUMENT_CACHE_SIZE);
+        long withCache = measure(collection);
+        System.out.println("HOT READS WITH CACHE: " + withCache + " ms");
+        System.out.println("DOCUMENT CACHE: " + DbCollectionFile.getDocumentCacheStats());
+
+        assertThat("The cache must speed up the reads.", withCache < withoutCache, is(true));
+    }
+
+    private long measure(DbCollectionFile collection) {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < AMOUNT_OF_READS; i++) {
+            Iterator<String> select = collection.select("customer.name", "customer.id = " + (i % AMOUNT_OF_HOT_KEYS));
+            assertThat("The document should be found.", select.hasNext(), is(true));
+            select.next();
+        }
+        return System.currentTimeMillis() - start;
+    }
+}
@@ -0,0 +1,65 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author ttulka
+ */
+public class DocumentCacheTest {
+
+    private final Path collection = Paths.get("test");
+    private final Path otherCollection = Paths.get("other");
+
+    @Test
+    public void getTest() {
+        DocumentCache cache = new DocumentCache(1024 * 1024);
+        cache.put(collection, 1, new DocumentCache.Document("{\"a\":1}"));
+
+        assertThat(cache.get(collection, 1).json(), is("{\"a\":1}"));
+        assertThat(cache.get(collection, 1).object().findByPath("a"), is(1));
+        assertThat(cache.get(collection, 2), nullValue());
+        assertThat(cache.get(otherCollection, 1), nullValue());
+
+        assertThat(cache.stats().hitCount(), is(2L));
+        assertThat(cache.stats().missCount(), is(2L));
+    }
+
+    @Test
+    public void invalidateTest() {
+        DocumentCache cache = new DocumentCache(1024 * 1024);
+        cache.put(collection, 1, new DocumentCache.Document("{\"a\":1}"));
+        cache.put(collection, 2, new DocumentCache.Document("{\"a\":2}"));
+        cache.put(otherCollection, 1, new DocumentCache.Document("{\"a\":3}"));
+
+        cache.invalidate(collection, 1);
+        assertThat(cache.get(collection, 1), nullValue());
+        assertThat(cache.get(collection, 2), notNullValue());
+
+        cache.invalidateAll(collection);
+        assertThat(cache.get(collection, 2), nullValue());
+        assertThat(cache.get(otherCollection, 1), notNullValue());
+    }
+
+    @Test
+    public void boundedBySizeTest() {
+        DocumentCache.Document document = new DocumentCache.Document("{\"value\":\"" + new String(new char[100]).replace('\0', 'x') + "\"}");
+        DocumentCache cache = new DocumentCache(10 * document.size());
+
+        for (int i = 0; i < 100; i++) {
+            cache.put(collection, i, document);
+            cache.get(collection, 0);   // keeps the first document recently used
+        }
+        assertThat(cache.get(collection, 99), notNullValue());
+        assertThat(cache.get(collection, 0), notNullValue());
+        assertThat(cache.get(collection, 50), nullValue());
+        assertThat(cache.stats().evictionCount() >= 90, is(true));
+    }
+}
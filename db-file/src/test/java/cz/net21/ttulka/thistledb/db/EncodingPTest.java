@@ -0,0 +1,109 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Performance Test of the text and binary encoding.
+ *
+ * @author ttulka
+ */
+public class EncodingPTest {
+
+    private static final int AMOUNT_OF_RECORDS = 100_000;
+    private static final int AMOUNT_OF_ROUNDS = 5;
+    private static final int BATCH_SIZE = 1_000;
+
+    private static final String WHERE = "root.group = 7";
+    private static final int AMOUNT_OF_MATCHES = AMOUNT_OF_RECORDS / 100;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path textPath;
+    private Path binaryPath;
+
+    @Before
+    public void setUp() throws IOException {
+        textPath = temp.newFile().toPath();
+        binaryPath = temp.newFile().toPath();
+
+        long start = System.currentTimeMillis();
+        generateData(textPath, Encoding.TEXT);
+        System.out.println("GENERATION TIME (TEXT): " + (System.currentTimeMillis() - start) + " ms");
+
+        start = System.currentTimeMillis();
+        generateData(binaryPath, Encoding.BINARY);
+        System.out.println("GENERATION TIME (BINARY): " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void generateData(Path path, Encoding encoding) {
+        DbCollectionFile collection = new DbCollectionFile(path, 0);
+        collection.setOptions(CollectionOptions.builder().encoding(encoding).build());
+
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < AMOUNT_OF_RECORDS; i++) {
+            batch.add("{\"root\":{\"id\":" + i + ",\"group\":" + (i % 100) + ",\"name\":\"Name " + i + "\"," +
+                      "\"address\":{\"street\":\"Street " + i + "\",\"city\":\"City " + (i % 50) + "\",\"zip\":" + (10000 + i) + "}," +
+                      "\"tags\":[\"tag" + (i % 3) + "\",\"tag" + (i % 7) + "\"],\"score\":" + (i / 10.0) + ",\"active\":" + (i % 2 == 0) + "}}");
+
+            if (batch.size() == BATCH_SIZE) {
+                collection.insert(batch);
+                batch.clear();
+            }
+        }
+        collection.insert(batch);
+    }
+
+    @Test
+    public void performanceTest() throws IOException {
+        System.out.println("SIZE (TEXT): " + Files.size(textPath) / 1024 + " kB");
+        System.out.println("SIZE (BINARY): " + Files.size(binaryPath) / 1024 + " kB");
+
+        measure(textPath, "*", null, AMOUNT_OF_RECORDS, 1);     // warm up
+        measure(binaryPath, "*", null, AMOUNT_OF_RECORDS, 1);
+
+        System.out.println("SCAN TIME (TEXT): " + measure(textPath, "*", null, AMOUNT_OF_RECORDS, AMOUNT_OF_ROUNDS) + " ms");
+        System.out.println("SCAN TIME (BINARY): " + measure(binaryPath, "*", null, AMOUNT_OF_RECORDS, AMOUNT_OF_ROUNDS) + " ms");
+
+        long textTime = measure(textPath, "root.name", WHERE, AMOUNT_OF_MATCHES, AMOUNT_OF_ROUNDS);
+        System.out.println("WHERE TIME (TEXT): " + textTime + " ms");
+
+        long binaryTime = measure(binaryPath, "root.name", WHERE, AMOUNT_OF_MATCHES, AMOUNT_OF_ROUNDS);
+        System.out.println("WHERE TIME (BINARY): " + binaryTime + " ms");
+
+        assertThat("Binary where must not be slower than the text one.", binaryTime <= textTime, is(true));
+    }
+
+    private long measure(Path path, String element, String where, int expected, int rounds) {
+        DbCollectionFile collection = new DbCollectionFile(path, 0);
+
+        long time = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.currentTimeMillis();
+
+            int count = 0;
+            Iterator<String> select = collection.select(element, where);
+            while (select.hasNext()) {
+                select.next();
+                count++;
+            }
+            time += System.currentTimeMillis() - start;
+
+            assertThat("All matching records should be read.", count, is(expected));
+        }
+        return time / rounds;
+    }
+}
@@ -0,0 +1,97 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+/**
+ * @author ttulka
+ */
+public class ExternalSortTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void sortInMemoryTest() throws IOException {
+        Path dir = temp.getRoot().toPath().resolve("sort");
+        try (ExternalSort sort = new ExternalSort(dir, ExternalSort.DEFAULT_MAX_MEMORY)) {
+            sort.add(key("b"), 20);
+            sort.add(key("a"), 30);
+            sort.add(key("b"), 10);
+            sort.add(key("a"), 30);
+
+            List<ExternalSort.Group> groups = groups(sort.sorted());
+
+            assertThat(sort.runs(), is(0));
+            assertThat(Files.exists(dir), is(false));
+            assertThat(groups.size(), is(2));
+            assertThat(new String(groups.get(0).key, StandardCharsets.UTF_8), is("a"));
+            assertThat(groups.get(0).positions, contains(30L));
+            assertThat(new String(groups.get(1).key, StandardCharsets.UTF_8), is("b"));
+            assertThat(groups.get(1).positions, contains(10L, 20L));
+        }
+    }
+
+    @Test
+    public void sortWithSpillsTest() throws IOException {
+        Path dir = temp.getRoot().toPath().resolve("sort");
+        int count = 10_000;
+        try (ExternalSort sort = new ExternalSort(dir, 10_000)) {
+            for (int i = count - 1; i >= 0; i--) {
+                sort.add(key("value" + i % 100), i);
+            }
+            assertThat(sort.runs() > 1, is(true));
+
+            List<ExternalSort.Group> groups = groups(sort.sorted());
+
+            assertThat(groups.size(), is(100));
+            String previous = "";
+            for (ExternalSort.Group group : groups) {
+                String value = new String(group.key, StandardCharsets.UTF_8);
+                assertThat(value.compareTo(previous) > 0, is(true));
+                assertThat(group.positions.size(), is(count / 100));
+                assertThat(group.positions.get(0), is(Long.valueOf(value.substring("value".length()))));
+                previous = value;
+            }
+        }
+        assertThat(Files.exists(dir), is(false));
+    }
+
+    @Test
+    public void unsignedKeysTest() throws IOException {
+        try (ExternalSort sort = new ExternalSort(temp.getRoot().toPath().resolve("sort"), 1)) {
+            sort.add(new byte[]{(byte) 0xFF}, 1);
+            sort.add(new byte[]{0x01, 0x00}, 2);
+            sort.add(new byte[]{0x01}, 3);
+
+            List<ExternalSort.Group> groups = groups(sort.sorted());
+
+            assertThat(groups.get(0).positions, contains(3L));
+            assertThat(groups.get(1).positions, contains(2L));
+            assertThat(groups.get(2).positions, contains(1L));
+        }
+    }
+
+    private static byte[] key(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<ExternalSort.Group> groups(Iterator<ExternalSort.Group> sorted) {
+        List<ExternalSort.Group> groups = new ArrayList<>();
+        sorted.forEachRemaining(groups::add);
+        return groups;
+    }
+}
@@ -0,0 +1,66 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+/**
+ * @author ttulka
+ */
+public class FileFormatConverterTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void upgradeTest() throws IOException {
+        Path dataDir = temp.newFolder().toPath();
+        Path legacy = dataDir.resolve("legacy");
+
+        // a collection in the legacy format with a deleted record
+        try (Writer writer = Files.newBufferedWriter(legacy, StandardCharsets.UTF_8)) {
+            writer.write("{\"name\":\"Tomáš\"}" + DbCollectionFile.RECORD_SEPARATOR);
+            writer.write(DbCollectionFile.RECORD_DELETED + "\"name\":\"John\"}" + DbCollectionFile.RECORD_SEPARATOR);
+            writer.write("{\"name\":\"Peter\"}" + DbCollectionFile.RECORD_SEPARATOR);
+        }
+        new DbCollectionFile(legacy, 0).createIndex("name");
+
+        assertThat(FileFormat.detect(legacy), is(FileFormat.TEXT));
+
+        DataSourceFile dataSource = new DataSourceFile(dataDir, 0);
+        dataSource.createCollection("current");
+        dataSource.insert("current", "{\"name\":\"Peter\"}");
+
+        int converted = new FileFormatConverter(dataDir).upgrade();
+
+        assertThat(converted, is(1));
+        assertThat(FileFormat.detect(legacy), is(FileFormat.FRAMED));
+        assertThat(FileFormat.detect(dataDir.resolve("current")), is(FileFormat.FRAMED));
+
+        DbCollectionFile upgraded = new DbCollectionFile(legacy, 0);
+        assertThat(toList(upgraded.select("*", null)), contains("{\"name\":\"Tomáš\"}", "{\"name\":\"Peter\"}"));
+        assertThat(toList(upgraded.select("*", "name='Peter'")), contains("{\"name\":\"Peter\"}"));
+        assertThat(upgraded.indexing.positions("name", "Peter").size(), is(1));
+
+        assertThat(new FileFormatConverter(dataDir).upgrade(), is(0));
+    }
+
+    private List<String> toList(Iterator<String> iterator) {
+        List<String> list = new ArrayList<>();
+        iterator.forEachRemaining(list::add);
+        return list;
+    }
+}
@@ -0,0 +1,230 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author ttulka
+ */
+public class FramedRecordReaderTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private FileChannel channel;
+
+    @Before
+    public void openChannel() throws IOException {
+        Path file = temp.newFile().toPath();
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileFormat.FRAMED.writeHeader(channel);
+    }
+
+    @After
+    public void closeChannel() throws IOException {
+        channel.close();
+    }
+
+    private long append(String data) throws IOException {
+        long position = channel.size();
+        channel.write(FileFormat.FRAMED.encode(data.getBytes(StandardCharsets.UTF_8)), position);
+        return position;
+    }
+
+    private FramedRecordReader reader(boolean mapped, int windowSize) {
+        FramedRecordReader reader = new FramedRecordReader(channel, mapped, windowSize);
+        reader.position(FileFormat.HEADER_SIZE);
+        return reader;
+    }
+
+    @Test
+    public void readRecordsTest() throws IOException {
+        readRecords(false);
+        readRecords(true);
+    }
+
+    private void readRecords(boolean mapped) throws IOException {
+        channel.truncate(FileFormat.HEADER_SIZE);
+        long first = append("abc");
+        long second = append("Tomáš");
+        FileFormat.FRAMED.delete(channel, second);
+        long third = append("{\"name\":\"Žluťoučký kůň\"}");
+
+        FramedRecordReader reader = reader(mapped, 4);
+
+        assertThat(reader.next(), is("abc"));
+        assertThat(reader.recordPosition(), is(first));
+        assertThat(reader.next(), is("{\"name\":\"Žluťoučký kůň\"}"));
+        assertThat(reader.recordPosition(), is(third));
+        assertThat(reader.next(), is(nullValue()));
+    }
+
+    @Test
+    public void positionTest() throws IOException {
+        append("abc");
+        long second = append("def");
+
+        FramedRecordReader reader = reader(false, FramedRecordReader.DEFAULT_BUFFER_SIZE);
+        reader.position(second);
+
+        assertThat(reader.next(), is("def"));
+        assertThat(reader.next(), is(nullValue()));
+    }
+
+    @Test
+    public void readAheadTest() throws IOException {
+        append("abc");
+        long second = append("def");
+        long third = append("ghi");
+
+        FramedRecordReader reader = reader(false, 4);
+        reader.readAhead(third);
+
+        assertThat(reader.next(), is("abc"));
+
+        // read already with the first record
+        channel.write(FileFormat.FRAMED.encode("xyz".getBytes(StandardCharsets.UTF_8)), third);
+
+        reader.position(second);
+        assertThat(reader.next(), is("def"));
+        assertThat(reader.next(), is("ghi"));
+    }
+
+    @Test
+    public void maxPositionTest() throws IOException {
+        append("abc");
+        long second = append("def");
+        append("ghi");
+
+        FramedRecordReader reader = reader(false, FramedRecordReader.DEFAULT_BUFFER_SIZE);
+        reader.setMaxPosition(second + FileFormat.RECORD_HEADER_SIZE + 3);
+
+        assertThat(reader.next(), is("abc"));
+        assertThat(reader.next(), is("def"));
+        assertThat(reader.next(), is(nullValue()));
+    }
+
+    @Test
+    public void tornRecordTest() throws IOException {
+        append("abc");
+        append("def");
+        channel.truncate(channel.size() - 1);
+
+        FramedRecordReader reader = reader(false, FramedRecordReader.DEFAULT_BUFFER_SIZE);
+
+        assertThat(reader.next(), is("abc"));
+        assertThat(reader.next(), is(nullValue()));
+    }
+
+    @Test(expected = DatabaseException.class)
+    public void corruptedRecordTest() throws IOException {
+        long position = append("abc");
+        channel.write(ByteBuffer.wrap(new byte[]{'x'}), position + FileFormat.RECORD_HEADER_SIZE + 1);
+
+        reader(false, FramedRecordReader.DEFAULT_BUFFER_SIZE).next();
+    }
+
+    @Test
+    public void growingFileTest() throws IOException {
+        append("abc");
+
+        FramedRecordReader reader = reader(true, MappedRecordReader.MAX_WINDOW_SIZE);
+
+        assertThat(reader.next(), is("abc"));
+        assertThat(reader.next(), is(nullValue()));
+
+        append("def");
+
+        assertThat(reader.next(), is("def"));
+        assertThat(reader.next(), is(nullValue()));
+    }
+
+    @Test
+    public void paddedRecordTest() throws IOException {
+        paddedRecord(false);
+        paddedRecord(true);
+    }
+
+    private void paddedRecord(boolean mapped) throws IOException {
+        channel.truncate(FileFormat.HEADER_SIZE);
+        long first = channel.size();
+        channel.write(FileFormat.FRAMED.encode("abc".getBytes(StandardCharsets.UTF_8), 20), first);
+        long second = append("def");
+
+        FramedRecordReader reader = reader(mapped, 4);
+
+        assertThat(reader.next(), is("abc"));
+        assertThat(reader.recordPosition(), is(first));
+        assertThat(reader.position(), is(second));
+
+        channel.write(FileFormat.FRAMED.encode("abcdefghijklmnop".getBytes(StandardCharsets.UTF_8), 20), first);
+        reader.position(first);
+
+        assertThat(reader.next(), is("abcdefghijklmnop"));
+        assertThat(reader.next(), is("def"));
+        assertThat(reader.next(), is(nullValue()));
+    }
+
+    @Test
+    public void unusedRangeTest() throws IOException {
+        readUnusedRange(false);
+        readUnusedRange(true);
+    }
+
+    private void readUnusedRange(boolean mapped) throws IOException {
+        channel.truncate(FileFormat.HEADER_SIZE);
+        append("abc");
+        long unused = channel.size();
+        channel.write(FileFormat.FRAMED.encodeUnused(100), unused);
+        long last = append("def");
+
+        FramedRecordReader reader = reader(mapped, 4);
+
+        assertThat(reader.next(), is("abc"));
+        assertThat(reader.next(), is("def"));
+        assertThat(reader.recordPosition(), is(last));
+        assertThat(reader.next(), is(nullValue()));
+
+        assertThat("Unused range is a record.", FileFormat.FRAMED.nextRecordPosition(channel, unused - 1, channel.size()), is(unused));
+        assertThat(FileFormat.FRAMED.nextRecordPosition(channel, unused + 1, channel.size()), is(last));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dataNotFittingSlotTest() {
+        FileFormat.FRAMED.encode("abcdefghijklmnopqrstu".getBytes(StandardCharsets.UTF_8), 20);
+    }
+
+    @Test
+    public void nextRecordPositionTest() throws IOException {
+        long first = append("abc");
+        long second = append("{\"name\":\"Tomáš\"}");
+        FileFormat.FRAMED.delete(channel, second);
+        long third = channel.size();
+        channel.write(FileFormat.FRAMED.encode("def".getBytes(StandardCharsets.UTF_8), 20), third);
+        long fourth = append("ghi");
+        long end = channel.size();
+
+        assertThat(FileFormat.FRAMED.nextRecordPosition(channel, 0, end), is(first));
+        assertThat(FileFormat.FRAMED.nextRecordPosition(channel, first, end), is(first));
+        assertThat(FileFormat.FRAMED.nextRecordPosition(channel, first + 1, end), is(second));
+        assertThat("Deleted record is a record.", FileFormat.FRAMED.nextRecordPosition(channel, second + 1, end), is(third));
+        assertThat("Padding is not a record.", FileFormat.FRAMED.nextRecordPosition(channel, third + 1, end), is(fourth));
+        assertThat(FileFormat.FRAMED.nextRecordPosition(channel, fourth + 1, end), is(end));
+        assertThat(FileFormat.FRAMED.nextRecordPosition(channel, first + 1, fourth), is(second));
+        assertThat("Record must end in the limit.", FileFormat.FRAMED.nextRecordPosition(channel, third + 1, end - 1), is(end - 1));
+    }
+}
@@ -0,0 +1,112 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+
+/**
+ * @author ttulka
+ */
+public class IdIndexTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void insertAndDeleteTest() throws IOException {
+        try (IdIndex index = new IdIndex(temp.getRoot().toPath().resolve("id"))) {
+            index.insert("a", 10);
+            index.insert("b", 20);
+            index.insert("a", 10);
+
+            assertThat(index.positions("a"), contains(10L));
+            assertThat(index.positions("b"), contains(20L));
+            assertThat(index.positions("c"), empty());
+            assertThat(index.size(), is(2L));
+
+            index.delete("a", 10);
+
+            assertThat(index.positions("a"), empty());
+            assertThat(index.positions("b"), contains(20L));
+            assertThat(index.stats().getDeadRecords(), is(1L));
+
+            index.compact();
+
+            assertThat(index.positions("b"), contains(20L));
+            assertThat(index.stats().getDeadRecords(), is(0L));
+        }
+    }
+
+    @Test
+    public void numericIdsTest() throws IOException {
+        try (IdIndex index = new IdIndex(temp.getRoot().toPath().resolve("id"))) {
+            index.insert("5", 10);
+
+            assertThat(index.positions("5.0"), contains(10L));
+            assertThat(index.positions("05"), contains(10L));
+        }
+    }
+
+    @Test
+    public void growTest() throws IOException {
+        Path path = temp.getRoot().toPath().resolve("id");
+        int count = (int) IdIndex.INITIAL_CAPACITY * 4;
+
+        try (IdIndex index = new IdIndex(path)) {
+            for (int i = 1; i <= count; i++) {
+                index.insert("id" + i, i);
+            }
+            assertThat(index.capacity() > IdIndex.INITIAL_CAPACITY, is(true));
+        }
+        try (IdIndex index = new IdIndex(path)) {
+            assertThat(index.size(), is((long) count));
+            for (int i = 1; i <= count; i++) {
+                assertThat(index.positions("id" + i), contains((long) i));
+            }
+        }
+    }
+
+    @Test
+    public void regionsTest() throws IOException {
+        Path path = temp.getRoot().toPath().resolve("id");
+        int count = (int) IdIndex.INITIAL_CAPACITY * 4;
+
+        try (IdIndex index = new IdIndex(path, 256)) {
+            for (int i = 1; i <= count; i++) {
+                index.insert("id" + i, i);
+            }
+            for (int i = 1; i <= count; i += 2) {
+                index.delete("id" + i, i);
+            }
+            assertThat("Slots should be mapped in several regions.", index.capacity() > 256, is(true));
+        }
+        try (IdIndex index = new IdIndex(path)) {
+            assertThat(index.size(), is((long) count / 2));
+            for (int i = 1; i <= count; i++) {
+                assertThat(index.positions("id" + i).isEmpty(), is(i % 2 == 1));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptedTest() throws IOException {
+        Path path = temp.getRoot().toPath().resolve("id");
+        try (IdIndex index = new IdIndex(path)) {
+            index.insert("a", 10);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(100);
+        }
+        new IdIndex(path);
+    }
+}
@@ -5,6 +5,11 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.junit.Before;
@@ -26,14 +31,15 @@ import static org.mockito.Mockito.verify;
 public class IndexingFileTest {
 
     private IndexingFile indexingFile;
+    private Path path;
 
     @Rule
     public TemporaryFolder temp = new TemporaryFolder();
 
     @Before
     public void createDataSource() throws IOException {
-        Path tempPath = temp.newFolder().toPath().resolve("test");
-        indexingFile = new IndexingFile(tempPath, 0);
+        path = temp.newFolder().toPath().resolve("test");
+        indexingFile = new IndexingFile(path, 0);
     }
 
     @Test
@@ -69,6 +75,58 @@ public class IndexingFileTest {
         assertThat(positions6, is(nullValue()));
     }
 
+    @Test
+    public void insertAllTest() {
+        indexingFile.create("person.name");
+        indexingFile.insert("person.name", "John", 1L);
+
+        Map<String, List<Long>> valuePositions = new HashMap<>();
+        valuePositions.put("John", Arrays.asList(123L, 456L));
+        valuePositions.put("Peter", Collections.singletonList(789L));
+        indexingFile.insertAll("person.name", valuePositions);
+
+        assertThat(indexingFile.positions("person.name", "John"), containsInAnyOrder(1L, 123L, 456L));
+        assertThat(indexingFile.positions("person.name", "Peter"), contains(789L));
+
+        indexingFile.delete("person.name", "John", 456L);
+        assertThat(indexingFile.positions("person.name", "John"), containsInAnyOrder(1L, 123L));
+
+        indexingFile.insertAll("abc", valuePositions);
+        assertThat(indexingFile.positions("abc", "John"), is(nullValue()));
+    }
+
+    @Test
+    public void buildTest() throws IOException {
+        indexingFile.create("person.name");
+
+        try (ExternalSort sort = new ExternalSort(temp.newFolder().toPath().resolve("sort"), 1_000)) {
+            for (int i = 0; i < 1000; i++) {
+                sort.add(indexingFile.buildKey("person.name", "name" + i % 10), i);
+            }
+            indexingFile.build("person.name", sort.sorted());
+        }
+
+        assertThat(indexingFile.positions("person.name", "name3").size(), is(100));
+        assertThat(indexingFile.positions("person.name", "name3").contains(993L), is(true));
+        assertThat(indexingFile.stats("person.name").getLiveRecords(), is(1000L));
+
+        indexingFile.delete("person.name", "name3", 993L);
+        assertThat(indexingFile.positions("person.name", "name3").size(), is(99));
+    }
+
+    @Test
+    public void deleteNotExistingIndexTest() throws IOException {
+        indexingFile.delete("person.name", "name3", 3L);
+        indexingFile.create("person.name");
+
+        try (ExternalSort sort = new ExternalSort(temp.newFolder().toPath().resolve("sort"), 1_000)) {
+            sort.add(indexingFile.buildKey("person.name", "name3"), 3L);
+            indexingFile.build("person.name", sort.sorted());
+        }
+
+        assertThat(indexingFile.positions("person.name", "name3"), contains(3L));
+    }
+
     @Test
     public void existsTest() {
         boolean exists1 = indexingFile.exists("abc");
@@ -170,4 +228,110 @@ public class IndexingFileTest {
 
         assertThat("Index file should be cleaned up.", content.toString(), is(lastRecord));
     }
+
+    @Test
+    public void statsTest() throws IOException {
+        indexingFile = new IndexingFile(path, 0, 0);    // every change written at once
+        indexingFile.create("person.name");
+        for (long position = 10; position < 20; position++) {
+            indexingFile.insert("person.name", "John", position);
+        }
+        indexingFile.insertAll("person.name", Collections.singletonMap("John", Arrays.asList(100L, 200L)));
+        indexingFile.delete("person.name", "John", 10L);
+        indexingFile.delete("person.name", "John", 100L);
+
+        StorageStats stats = indexingFile.stats("person.name");
+        assertThat(stats.getLiveRecords(), is(10L));
+        assertThat(stats.getDeadRecords(), is(2L));
+        assertThat(stats.getDeadBytes(), is(12L));  // the whole record "John#10" and the position "100" with its separator
+
+        assertThat("Counted stats should be the same.", new IndexingFile(indexingFile.path.getParent().resolve("test"), 0).stats("person.name"), is(stats));
+
+        indexingFile.sync();
+        assertThat(Files.exists(indexingFile.path.resolve(IndexingFile.STATS_FILE)), is(true));
+        assertThat(new IndexingFile(indexingFile.path.getParent().resolve("test"), 0).stats("person.name"), is(stats));
+
+        indexingFile.cleanUp("person.name");
+        assertThat(indexingFile.stats("person.name").getLiveRecords(), is(10L));
+        assertThat(indexingFile.stats("person.name").getDeadBytes(), is(0L));
+    }
+
+    @Test
+    public void cleanUpNextTest() {
+        indexingFile = new IndexingFile(path, 0, 0);    // every change written at once
+        indexingFile.create("person.name");
+        for (long position = 1000; position < 1500; position++) {
+            indexingFile.insert("person.name", "John", position);
+        }
+        assertThat(indexingFile.cleanUpNeeded(0.5), is(false));
+
+        for (long position = 1000; position < 1400; position++) {
+            indexingFile.delete("person.name", "John", position);
+        }
+        assertThat(indexingFile.cleanUpNeeded(0.9), is(false));
+        assertThat(indexingFile.cleanUpNeeded(0.5), is(true));
+
+        assertThat(indexingFile.cleanUpNext(0.5) > 0, is(true));
+        assertThat(indexingFile.cleanUpNext(0.5), is(-1L));
+        assertThat(indexingFile.cleanUpNeeded(0.5), is(false));
+
+        assertThat(indexingFile.positions("person.name", "John").size(), is(100));
+        assertThat(indexingFile.stats("person.name").getDeadBytes(), is(0L));
+    }
+
+    @Test
+    public void bufferedChangesTest() {
+        indexingFile = new IndexingFile(path, 1);
+        indexingFile.create("person.name");
+        indexingFile.insertAll("person.name", Collections.singletonMap("John", Arrays.asList(1L, 2L, 3L)));
+        indexingFile.flush();
+
+        indexingFile.delete("person.name", "John", 2L);
+        indexingFile.insert("person.name", "John", 4L);
+        assertThat(indexingFile.positions("person.name", "John"), contains(1L, 3L, 4L));
+
+        indexingFile.delete("person.name", "John", 4L);
+        indexingFile.insert("person.name", "John", 2L);
+        indexingFile.insert("person.name", "Peter", 5L);
+        assertThat(indexingFile.positions("person.name", "John"), contains(1L, 2L, 3L));
+        assertThat(indexingFile.positions("person.name", "Peter"), contains(5L));
+
+        assertThat("Changes should not be written yet.",
+                   new IndexingFile(path, 0).positions("person.name", "Peter").isEmpty(), is(true));
+
+        indexingFile.flush();
+        assertThat(indexingFile.positions("person.name", "John"), contains(1L, 2L, 3L));
+        assertThat(indexingFile.positions("person.name", "Peter"), contains(5L));
+
+        IndexingFile reopened = new IndexingFile(path, 0);
+        assertThat(reopened.positions("person.name", "John"), contains(1L, 2L, 3L));
+        assertThat(reopened.positions("person.name", "Peter"), contains(5L));
+        assertThat(reopened.stats("person.name").getLiveRecords(), is(4L));
+    }
+
+    @Test
+    public void bufferFullTest() {
+        indexingFile = new IndexingFile(path, 0, 1024);
+        indexingFile.create("person.name");
+        for (long position = 0; position < 100; position++) {
+            indexingFile.insert("person.name", "John", position);
+        }
+        int written = new IndexingFile(path, 0).positions("person.name", "John").size();
+        assertThat("Some changes should be written when the buffer is full.", written > 0 && written < 100, is(true));
+
+        assertThat(indexingFile.positions("person.name", "John").size(), is(100));
+
+        indexingFile.sync();
+        assertThat(new IndexingFile(path, 0).positions("person.name", "John").size(), is(100));
+    }
+
+    @Test
+    public void dropBufferedTest() {
+        indexingFile.create("person.name");
+        indexingFile.insert("person.name", "John", 1L);
+        indexingFile.drop("person.name");
+        indexingFile.sync();
+
+        assertThat(Files.exists(indexingFile.getPathToIndex("person.name")), is(false));
+    }
 }
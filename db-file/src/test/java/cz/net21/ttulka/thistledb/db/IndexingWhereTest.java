@@ -1,7 +1,5 @@
 package cz.net21.ttulka.thistledb.db;
 
-import java.util.Collections;
-
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -26,7 +24,7 @@ public class IndexingWhereTest {
     @Before
     public void setUp() {
         when(indexing.exists(eq("person.surname"))).thenReturn(true);
-        when(indexing.positions(eq("person.surname"), eq("Smith"))).thenReturn(Collections.singleton(123L));
+        when(indexing.positions(eq("person.surname"), eq("Smith"))).thenReturn(Positions.of(123L));
     }
 
     @Test
@@ -40,6 +38,25 @@ public class IndexingWhereTest {
         assertThat(indexingWhere.nextPosition(), is(-1L));
     }
 
+    @Test
+    public void orderedRunsTest() {
+        when(indexing.exists(eq("person.name"))).thenReturn(true);
+        when(indexing.positions(eq("person.name"), eq("John"))).thenReturn(Positions.of(5_000_000L, 100L, 2_000L));
+
+        Where where = Where.create("person.surname='Smith' OR person.name='John'");
+
+        IndexingWhere indexingWhere = new IndexingWhere(where, indexing);
+
+        assertThat(indexingWhere.nextPosition(), is(100L));
+        assertThat(indexingWhere.runEnd(), is(2_000L));
+        assertThat(indexingWhere.nextPosition(), is(123L));
+        assertThat(indexingWhere.runEnd(), is(2_000L));
+        assertThat(indexingWhere.nextPosition(), is(2_000L));
+        assertThat(indexingWhere.nextPosition(), is(5_000_000L));
+        assertThat(indexingWhere.runEnd(), is(5_000_000L));
+        assertThat(indexingWhere.nextPosition(), is(-1L));
+    }
+
     @Test(expected = IllegalStateException.class)
     public void wrongTest() {
         Where where = Where.create("person.name='John'");
@@ -75,7 +92,7 @@ public class IndexingWhereTest {
     @Test
     public void basicORTest() {
         when(indexing.exists(eq("person.name"))).thenReturn(true);
-        when(indexing.positions(eq("person.name"), eq("John"))).thenReturn(Collections.singleton(456L));
+        when(indexing.positions(eq("person.name"), eq("John"))).thenReturn(Positions.of(456L));
 
         Where where = Where.create("person.surname='Smith' OR person.name='John'");
 
@@ -100,7 +117,7 @@ public class IndexingWhereTest {
     @Test
     public void basicAND_ORTest() {
         when(indexing.exists(eq("person.name"))).thenReturn(true);
-        when(indexing.positions(eq("person.name"), eq("John"))).thenReturn(Collections.singleton(456L));
+        when(indexing.positions(eq("person.name"), eq("John"))).thenReturn(Positions.of(456L));
 
         Where where = Where.create("person.surname='Smith' OR person.name='John' AND person.age=42");
 
@@ -115,7 +132,7 @@ public class IndexingWhereTest {
     @Test
     public void wrongAND_ORTest() {
         when(indexing.exists(eq("person.name"))).thenReturn(true);
-        when(indexing.positions(eq("person.name"), eq("John"))).thenReturn(Collections.singleton(456L));
+        when(indexing.positions(eq("person.name"), eq("John"))).thenReturn(Positions.of(456L));
 
         // second AND part is wrong because not all OR parts are indexed (person.age)
         Where where = Where.create("person.surname='Smith' AND person.name='John' OR person.age=42");
@@ -126,4 +143,55 @@ public class IndexingWhereTest {
         assertThat(indexingWhere.nextPosition(), is(123L));
         assertThat(indexingWhere.nextPosition(), is(-1L));
     }
+
+    @Test
+    public void rangeTest() {
+        when(indexing.exists(eq("person.age"))).thenReturn(true);
+        when(indexing.type(eq("person.age"))).thenReturn(IndexType.BTREE);
+        when(indexing.range(eq("person.age"), eq("30"), eq((String) null))).thenReturn(Positions.of(300L, 100L));
+        when(indexing.range(eq("person.age"), eq((String) null), eq("40"))).thenReturn(Positions.of(200L, 100L));
+
+        Where where = Where.create("person.age >= 30 AND person.age < 40");
+
+        IndexingWhere indexingWhere = new IndexingWhere(where, indexing);
+
+        assertThat(indexingWhere.isIndexed(), is(true));
+        assertThat(indexingWhere.nextPosition(), is(100L));
+        assertThat(indexingWhere.nextPosition(), is(-1L));
+    }
+
+    @Test
+    public void rangeNotOrderedTest() {
+        when(indexing.type(eq("person.surname"))).thenReturn(IndexType.HASH);
+
+        Where where = Where.create("person.surname > 'S'");
+
+        assertThat(IndexingWhere.isIndexed(where, indexing), is(false));
+        assertThat(new IndexingWhere(where, indexing).isIndexed(), is(false));
+    }
+
+    @Test
+    public void likeTest() {
+        when(indexing.type(eq("person.surname"))).thenReturn(IndexType.BTREE);
+        when(indexing.prefix(eq("person.surname"), eq("Sm"))).thenReturn(Positions.of(123L));
+
+        assertThat(IndexingWhere.isIndexed(Where.create("person.surname LIKE 'Sm*'"), indexing), is(true));
+        assertThat(IndexingWhere.isIndexed(Where.create("person.surname LIKE '*th'"), indexing), is(false));
+
+        IndexingWhere indexingWhere = new IndexingWhere(Where.create("person.surname LIKE 'Sm_th'"), indexing);
+
+        assertThat(indexingWhere.isIndexed(), is(true));
+        assertThat(indexingWhere.nextPosition(), is(123L));
+        assertThat(indexingWhere.nextPosition(), is(-1L));
+    }
+
+    @Test
+    public void likePrefixTest() {
+        assertThat(IndexingWhere.likePrefix("abc*"), is("abc"));
+        assertThat(IndexingWhere.likePrefix("ab?c"), is("ab"));
+        assertThat(IndexingWhere.likePrefix("a_c"), is("a"));
+        assertThat(IndexingWhere.likePrefix("a.c"), is("a"));
+        assertThat(IndexingWhere.likePrefix("abc"), is("abc"));
+        assertThat(IndexingWhere.likePrefix("*abc"), is(""));
+    }
 }
@@ -0,0 +1,133 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author ttulka
+ */
+public class MappedRecordReaderTest {
+
+    private static final char SEPARATOR = DbCollectionFile.RECORD_SEPARATOR;
+    private static final char DELETED = DbCollectionFile.RECORD_DELETED;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private FileChannel channel;
+
+    @Before
+    public void openChannel() throws IOException {
+        Path file = temp.newFile().toPath();
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @After
+    public void closeChannel() throws IOException {
+        channel.close();
+    }
+
+    private void append(String data) throws IOException {
+        channel.write(ByteBuffer.wrap(data.getBytes("UTF-8")), channel.size());
+    }
+
+    @Test
+    public void readRecordsTest() throws IOException {
+        append("abc" + SEPARATOR + DELETED + "def" + SEPARATOR + "ghi" + SEPARATOR + "incomplete");
+
+        MappedRecordReader reader = new MappedRecordReader(channel, SEPARATOR, DELETED);
+
+        assertThat(reader.next(), is("abc"));
+        assertThat(reader.recordPosition(), is(0L));
+        assertThat(reader.next(), is("ghi"));
+        assertThat(reader.recordPosition(), is(9L));
+        assertThat(reader.next(), is(nullValue()));
+    }
+
+    @Test
+    public void readMultiByteRecordsTest() throws IOException {
+        append("{\"name\":\"Tomáš\"}" + SEPARATOR + "{\"name\":\"Žluťoučký kůň\"}" + SEPARATOR);
+
+        MappedRecordReader reader = new MappedRecordReader(channel, SEPARATOR, DELETED);
+
+        assertThat(reader.next(), is("{\"name\":\"Tomáš\"}"));
+        assertThat(reader.next(), is("{\"name\":\"Žluťoučký kůň\"}"));
+        assertThat(reader.recordPosition(), is(19L));
+        assertThat(reader.next(), is(nullValue()));
+    }
+
+    @Test
+    public void seekTest() throws IOException {
+        append("abc" + SEPARATOR + "def" + SEPARATOR + "ghi" + SEPARATOR);
+
+        MappedRecordReader reader = new MappedRecordReader(channel, SEPARATOR, DELETED);
+        reader.position(4);
+
+        assertThat(reader.next(), is("def"));
+        assertThat(reader.position(), is(8L));
+
+        reader.position(0);
+        assertThat(reader.next(), is("abc"));
+    }
+
+    @Test
+    public void maxPositionTest() throws IOException {
+        append("abc" + SEPARATOR + "def" + SEPARATOR + "ghi" + SEPARATOR);
+
+        MappedRecordReader reader = new MappedRecordReader(channel, SEPARATOR, DELETED);
+        reader.setMaxPosition(8L);
+
+        assertThat(reader.next(), is("abc"));
+        assertThat(reader.next(), is("def"));
+        assertThat(reader.next(), is(nullValue()));
+    }
+
+    @Test
+    public void recordsCrossingWindowsTest() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("record").append(i).append(SEPARATOR);
+        }
+        append(sb.toString());
+
+        MappedRecordReader reader = new MappedRecordReader(channel, SEPARATOR, DELETED, 5);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(reader.next(), is("record" + i));
+        }
+        assertThat(reader.next(), is(nullValue()));
+    }
+
+    @Test
+    public void growingFileTest() throws IOException {
+        append("abc" + SEPARATOR);
+
+        MappedRecordReader reader = new MappedRecordReader(channel, SEPARATOR, DELETED);
+
+        assertThat(reader.next(), is("abc"));
+        assertThat(reader.next(), is(nullValue()));
+
+        append("def" + SEPARATOR + "gh");
+
+        assertThat(reader.next(), is("def"));
+        assertThat(reader.next(), is(nullValue()));
+
+        append("i" + SEPARATOR);
+
+        assertThat(reader.next(), is("ghi"));
+        assertThat(reader.next(), is(nullValue()));
+    }
+}
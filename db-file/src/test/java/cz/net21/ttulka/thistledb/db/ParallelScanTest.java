@@ -0,0 +1,62 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author ttulka
+ */
+public class ParallelScanTest {
+
+    @Test
+    public void closeStopsPartitionsTest() throws InterruptedException {
+        AtomicBoolean released = new AtomicBoolean(false);
+        AtomicBoolean readAfterRelease = new AtomicBoolean(false);
+
+        List<Supplier<Iterator<String>>> partitions = new ArrayList<>();
+        partitions.add(() -> Collections.singletonList("first").iterator());
+        for (int i = 0; i < ParallelScan.PARALLELISM * 2; i++) {
+            partitions.add(() -> new Iterator<String>() {
+                private int count = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return count < 1000;
+                }
+
+                @Override
+                public String next() {
+                    if (released.get()) {
+                        readAfterRelease.set(true);
+                    }
+                    count++;
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "next";
+                }
+            });
+        }
+
+        ParallelScan scan = new ParallelScan(partitions, true, () -> released.set(true));
+        assertThat(scan.next(), is("first"));
+
+        scan.close();
+        assertThat(released.get(), is(true));
+        assertThat(scan.hasNext(), is(false));
+
+        Thread.sleep(50);
+        assertThat("Partitions should not be read after the scan is closed.", readAfterRelease.get(), is(false));
+    }
+}
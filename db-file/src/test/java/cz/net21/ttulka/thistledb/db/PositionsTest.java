@@ -0,0 +1,69 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+
+/**
+ * @author ttulka
+ */
+public class PositionsTest {
+
+    @Test
+    public void ofTest() {
+        Positions positions = Positions.of(30L, 10L, 20L, 10L);
+
+        assertThat(positions, contains(10L, 20L, 30L));
+        assertThat(positions.size(), is(3));
+        assertThat(positions.get(0), is(10L));
+        assertThat(positions.contains(20L), is(true));
+        assertThat(positions.contains(25L), is(false));
+        assertThat(positions.contains((Object) 30L), is(true));
+        assertThat(positions.contains((Object) "30"), is(false));
+
+        assertThat(Positions.of(), empty());
+        assertThat(Positions.of(new HashSet<>(Arrays.asList(3L, 1L, 2L))), contains(1L, 2L, 3L));
+        assertThat(Positions.of(positions) == positions, is(true));
+        assertThat(positions.equals(new HashSet<>(Arrays.asList(10L, 20L, 30L))), is(true));
+    }
+
+    @Test
+    public void andTest() {
+        Positions positions = Positions.of(1L, 3L, 5L, 7L);
+
+        assertThat(positions.and(Positions.of(2L, 3L, 7L, 8L)), contains(3L, 7L));
+        assertThat(positions.and(Positions.of(2L, 4L)), empty());
+        assertThat(positions.and(Positions.EMPTY), empty());
+    }
+
+    @Test
+    public void orTest() {
+        Positions positions = Positions.of(1L, 3L, 5L);
+
+        assertThat(positions.or(Positions.of(2L, 3L, 6L)), contains(1L, 2L, 3L, 5L, 6L));
+        assertThat(positions.or(Positions.EMPTY), contains(1L, 3L, 5L));
+        assertThat(Positions.EMPTY.or(positions), contains(1L, 3L, 5L));
+    }
+
+    @Test
+    public void builderTest() {
+        Positions.Builder builder = new Positions.Builder(1);
+        for (long i = 1000; i > 0; i--) {
+            builder.add(i % 100);
+        }
+        Positions positions = builder.build();
+
+        assertThat(positions.size(), is(100));
+        assertThat(positions.get(0), is(0L));
+        assertThat(positions.get(99), is(99L));
+        assertThat(builder.isEmpty(), is(true));
+        assertThat(builder.add(5L).build(), contains(5L));
+        assertThat(positions.size(), is(100));
+    }
+}
@@ -0,0 +1,181 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author ttulka
+ */
+public class RecordDecoderTest {
+
+    private static final char SEPARATOR = '\1';
+    private static final char DELETED = '\2';
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private FileChannel channel;
+
+    @Before
+    public void openChannel() throws IOException {
+        Path file = temp.newFile().toPath();
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @After
+    public void closeChannel() throws IOException {
+        channel.close();
+    }
+
+    private void append(String data) throws IOException {
+        channel.write(ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)), channel.size());
+    }
+
+    @Test
+    public void readRecordsTest() throws IOException {
+        append("abc" + SEPARATOR + DELETED + "def" + SEPARATOR + SEPARATOR + "ghi" + SEPARATOR + "incomplete");
+
+        RecordDecoder decoder = new RecordDecoder(channel, SEPARATOR, DELETED);
+
+        assertThat(decoder.next(), is("abc"));
+        assertThat(decoder.recordPosition(), is(0L));
+        assertThat(decoder.next(), is(""));
+        assertThat(decoder.recordPosition(), is(9L));
+        assertThat(decoder.next(), is("ghi"));
+        assertThat(decoder.recordPosition(), is(10L));
+        assertThat(decoder.next(), is(nullValue()));
+    }
+
+    @Test
+    public void readMultiByteRecordsTest() throws IOException {
+        append("{\"name\":\"Tomáš\"}" + SEPARATOR + "{\"name\":\"Žluťoučký kůň\"}" + SEPARATOR + "{\"sign\":\"€\"}" + SEPARATOR);
+
+        RecordDecoder decoder = new RecordDecoder(channel, SEPARATOR, DELETED, 4);
+
+        assertThat(decoder.next(), is("{\"name\":\"Tomáš\"}"));
+        assertThat(decoder.next(), is("{\"name\":\"Žluťoučký kůň\"}"));
+        assertThat(decoder.recordPosition(), is(19L));
+        assertThat(decoder.next(), is("{\"sign\":\"€\"}"));
+        assertThat(decoder.next(), is(nullValue()));
+    }
+
+    @Test
+    public void smallBufferTest() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append(i % 3 == 0 ? DELETED + "deleted" : "record" + i).append(SEPARATOR);
+        }
+        append(sb.toString());
+
+        RecordDecoder decoder = new RecordDecoder(channel, SEPARATOR, DELETED, 2);
+
+        for (int i = 0; i < 1000; i++) {
+            if (i % 3 != 0) {
+                assertThat(decoder.next(), is("record" + i));
+            }
+        }
+        assertThat(decoder.next(), is(nullValue()));
+    }
+
+    @Test
+    public void nextBytesTest() throws IOException {
+        append("abc" + SEPARATOR + "def" + SEPARATOR);
+
+        RecordDecoder decoder = new RecordDecoder(channel, SEPARATOR, DELETED);
+
+        ByteBuffer record = decoder.nextBytes();
+        assertThat(record.remaining(), is(3));
+        assertThat(record.get(record.position()), is((byte) 'a'));
+
+        record = decoder.nextBytes();
+        assertThat(decoder.decode(record), is("def"));
+
+        assertThat(decoder.nextBytes(), is(nullValue()));
+    }
+
+    @Test
+    public void positionTest() throws IOException {
+        append("abc" + SEPARATOR + "def" + SEPARATOR + "ghi" + SEPARATOR);
+
+        RecordDecoder decoder = new RecordDecoder(channel, SEPARATOR, DELETED);
+        decoder.position(4);
+
+        assertThat(decoder.next(), is("def"));
+        assertThat(decoder.position(), is(8L));
+
+        decoder.position(0);
+        assertThat(decoder.next(), is("abc"));
+
+        // the channel can be used in the meantime
+        channel.position(0);
+        channel.write(ByteBuffer.wrap(new byte[]{DELETED}));
+
+        assertThat(decoder.next(), is("def"));
+        assertThat(decoder.next(), is("ghi"));
+    }
+
+    @Test
+    public void maxPositionTest() throws IOException {
+        append("abc" + SEPARATOR + "def" + SEPARATOR + "ghi" + SEPARATOR);
+
+        RecordDecoder decoder = new RecordDecoder(channel, SEPARATOR, DELETED);
+        decoder.setMaxPosition(8L);
+
+        assertThat(decoder.next(), is("abc"));
+        assertThat(decoder.next(), is("def"));
+        assertThat(decoder.next(), is(nullValue()));
+    }
+
+    @Test
+    public void growingFileTest() throws IOException {
+        append("abc" + SEPARATOR + "de");
+
+        RecordDecoder decoder = new RecordDecoder(channel, SEPARATOR, DELETED);
+
+        assertThat(decoder.next(), is("abc"));
+        assertThat(decoder.next(), is(nullValue()));
+
+        append("f" + SEPARATOR);
+
+        assertThat(decoder.next(), is("def"));
+        assertThat(decoder.next(), is(nullValue()));
+    }
+
+    @Test
+    public void channelUtilsNextTest() throws IOException {
+        append("abc" + SEPARATOR + DELETED + "def" + SEPARATOR + "Tomáš" + SEPARATOR);
+        channel.position(0);
+
+        assertThat(ChannelUtils.next(channel, SEPARATOR, DELETED), is("abc"));
+        assertThat(channel.position(), is(4L));
+        assertThat(ChannelUtils.next(channel, SEPARATOR, DELETED), is("Tomáš"));
+        assertThat(ChannelUtils.next(channel, SEPARATOR, DELETED), is(nullValue()));
+    }
+
+    @Test
+    public void nextRecordPositionTest() throws IOException {
+        append("abc" + SEPARATOR + DELETED + "def" + SEPARATOR + "ghi" + SEPARATOR);
+        long end = channel.size();
+
+        assertThat(FileFormat.TEXT.nextRecordPosition(channel, 0, end), is(0L));
+        assertThat(FileFormat.TEXT.nextRecordPosition(channel, 1, end), is(4L));
+        assertThat(FileFormat.TEXT.nextRecordPosition(channel, 4, end), is(4L));
+        assertThat(FileFormat.TEXT.nextRecordPosition(channel, 5, end), is(9L));
+        assertThat(FileFormat.TEXT.nextRecordPosition(channel, 10, end), is(end));
+        assertThat(FileFormat.TEXT.nextRecordPosition(channel, 5, 7), is(7L));
+    }
+}
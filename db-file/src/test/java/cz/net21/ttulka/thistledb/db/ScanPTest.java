@@ -0,0 +1,146 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Performance Test of full scans.
+ *
+ * @author ttulka
+ */
+public class ScanPTest {
+
+    private static final int AMOUNT_OF_RECORDS = 100_000;
+    private static final int AMOUNT_OF_ROUNDS = 5;
+    private static final int BATCH_SIZE = 1_000;
+
+    private static final String JUNK = "Frederick P. Brooks, Jr., is Kenan Professor of Computer Science at the University of North Carolina at Chapel Hill. He is best known as the 'father of the IBM System/360', having served as project manager for its development and later as manager of the Operating System/360 software project during its design phase. For this work he, Bob Evans, and Erich Bloch were awarded the National Medal of Technology in 1985. Earlier, he was an architect of the IBM Stretch and Harvest computers. At Chapel Hill, Dr. Brooks founded the Department of Computer Science and chaired it from 1964 through 1984. He has served on the National Science Board and the Defense Science Board. His current teaching and research is in computer architecture, molecular graphics, and virtual environments. To my surprise and delight, The Mythical Man-Month continues to be popular after 20 years. Over 250,000 copies are in print. People often ask which of the opinions and recommendations.";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path collectionPath;
+
+    @Before
+    public void setUp() throws IOException {
+        collectionPath = temp.newFile().toPath();
+
+        long start = System.currentTimeMillis();
+        generateData();
+
+        System.out.println("GENERATION TIME: " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void generateData() {
+        DbCollectionFile collection = new DbCollectionFile(collectionPath, 0);
+
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < AMOUNT_OF_RECORDS; i++) {
+            batch.add("{\"root\":{\"id\":" + i + ",\"ballast\":\"" + JUNK + "\"}}");
+
+            if (batch.size() == BATCH_SIZE) {
+                collection.insert(batch);
+                batch.clear();
+            }
+        }
+        collection.insert(batch);
+        collection.cleanUp();
+    }
+
+    @Test
+    public void performanceTest() throws IOException {
+        double megabytes = Files.size(collectionPath) / 1024.0 / 1024.0;
+
+        measure(ReadMode.CHANNEL, 1);   // warm up
+        measure(ReadMode.MAPPED, 1);
+
+        long channelTime = measure(ReadMode.CHANNEL, AMOUNT_OF_ROUNDS);
+        System.out.println("SCAN TIME (CHANNEL): " + channelTime + " ms, " + throughput(megabytes, channelTime));
+
+        long mappedTime = measure(ReadMode.MAPPED, AMOUNT_OF_ROUNDS);
+        System.out.println("SCAN TIME (MAPPED): " + mappedTime + " ms, " + throughput(megabytes, mappedTime));
+
+        assertThat("Mapped scan must not be slower than the channel scan.", mappedTime <= channelTime, is(true));
+    }
+
+    @Test
+    public void parallelPerformanceTest() throws IOException {
+        double megabytes = Files.size(collectionPath) / 1024.0 / 1024.0;
+        DbCollectionFile collection = new DbCollectionFile(collectionPath, 0);
+        collection.setScanPartitionSize(4 * 1024 * 1024);
+
+        String where = "root.id >= " + AMOUNT_OF_RECORDS / 2;
+        measure(() -> collection.select("root.id", where), 1);    // warm up
+
+        long sequentialTime = measure(() -> collection.select("root.id", where), AMOUNT_OF_ROUNDS);
+        System.out.println("SEQUENTIAL SCAN TIME: " + sequentialTime + " ms, " + throughput(megabytes, sequentialTime));
+
+        long orderedTime = measure(() -> collection.select("root.id", where, true), AMOUNT_OF_ROUNDS);
+        System.out.println("PARALLEL ORDERED SCAN TIME (" + ParallelScan.PARALLELISM + " workers): "
+                           + orderedTime + " ms, " + throughput(megabytes, orderedTime));
+
+        long unorderedTime = measure(() -> collection.select("root.id", where, false), AMOUNT_OF_ROUNDS);
+        System.out.println("PARALLEL UNORDERED SCAN TIME (" + ParallelScan.PARALLELISM + " workers): "
+                           + unorderedTime + " ms, " + throughput(megabytes, unorderedTime));
+
+        if (ParallelScan.PARALLELISM > 1) {
+            assertThat("Parallel scan must be faster than the sequential scan.", unorderedTime < sequentialTime, is(true));
+        }
+    }
+
+    private long measure(Supplier<Iterator<String>> select, int rounds) {
+        long time = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.currentTimeMillis();
+
+            int count = 0;
+            Iterator<String> results = select.get();
+            while (results.hasNext()) {
+                results.next();
+                count++;
+            }
+            time += System.currentTimeMillis() - start;
+
+            assertThat("All records should be found.", count, is(AMOUNT_OF_RECORDS / 2));
+        }
+        return time / rounds;
+    }
+
+    private String throughput(double megabytes, long time) {
+        double seconds = Math.max(time, 1) / 1000.0;
+        return String.format("%.1f MB/s, %.0f records/s", megabytes / seconds, AMOUNT_OF_RECORDS / seconds);
+    }
+
+    private long measure(ReadMode readMode, int rounds) {
+        DbCollectionFile collection = new DbCollectionFile(collectionPath, 0, readMode);
+
+        long time = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.currentTimeMillis();
+
+            int count = 0;
+            Iterator<String> select = collection.select("*", null);
+            while (select.hasNext()) {
+                select.next();
+                count++;
+            }
+            time += System.currentTimeMillis() - start;
+
+            assertThat("All records should be read.", count, is(AMOUNT_OF_RECORDS));
+        }
+        return time / rounds;
+    }
+}
@@ -0,0 +1,89 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+/**
+ * @author ttulka
+ */
+public class SegmentsTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void positionTest() {
+        long position = Segments.position(3, 12345);
+
+        assertThat(Segments.segment(position), is(3));
+        assertThat(Segments.offset(position), is(12345L));
+
+        assertThat("Positions in the segment 0 are file offsets.", Segments.position(0, 12345), is(12345L));
+        assertThat("Positions are ordered by segments.", Segments.position(1, 0) > Segments.position(0, Long.MAX_VALUE >>> 24), is(true));
+    }
+
+    @Test
+    public void rollAndRemoveTest() throws IOException {
+        Path path = temp.newFile().toPath();
+        FileFormat.initialize(path, FileFormat.FRAMED);
+
+        Segments segments = new Segments(path);
+        assertThat(segments.active(), is(0));
+
+        assertThat(segments.roll(FileFormat.FRAMED), is(1));
+        assertThat(segments.roll(FileFormat.FRAMED), is(2));
+
+        assertThat(segments.active(), is(2));
+        assertThat(segments.sealed(), contains(0, 1));
+        assertThat(FileFormat.detect(segments.path(2)), is(FileFormat.FRAMED));
+
+        segments.remove(1, FileFormat.FRAMED);
+        assertThat(Files.exists(segments.path(1)), is(false));
+        assertThat(segments.next(0), is(2));
+        assertThat(segments.next(2), is(nullValue()));
+
+        Files.write(path, new byte[100], StandardOpenOption.APPEND);
+        segments.remove(0, FileFormat.FRAMED);
+        assertThat("Segment 0 is the collection file and is kept empty.", Files.size(path), is((long) FileFormat.HEADER_SIZE));
+
+        Segments loaded = new Segments(path);
+        assertThat(loaded.active(), is(2));
+        assertThat(loaded.sealed(), contains(0));
+    }
+
+    @Test
+    public void storeStatsTest() throws IOException {
+        Path path = temp.newFile().toPath();
+        FileFormat.initialize(path, FileFormat.FRAMED);
+
+        Segments segments = new Segments(path);
+        segments.roll(FileFormat.FRAMED);
+        segments.setStats(0, new StorageStats(3, 300, 1, 100));
+        segments.addStats(1, StorageStats.live(2, 50));
+        segments.storeStats();
+
+        Segments loaded = new Segments(path);
+        assertThat(loaded.stats(0), is(new StorageStats(3, 300, 1, 100)));
+        assertThat(loaded.stats(1), is(new StorageStats(2, 50, 0, 0)));
+
+        loaded.addStats(1, StorageStats.deleted(1, 25));
+        assertThat(loaded.stats(1), is(new StorageStats(1, 25, 1, 25)));
+        assertThat("Stored stats are outdated after a change.", new Segments(path).stats(1), is(nullValue()));
+
+        loaded.storeStats();
+        Files.write(segments.path(1), new byte[10], StandardOpenOption.APPEND);
+        assertThat("Stats of a changed segment are ignored.", new Segments(path).stats(1), is(nullValue()));
+        assertThat(new Segments(path).stats(0), is(new StorageStats(3, 300, 1, 100)));
+    }
+}
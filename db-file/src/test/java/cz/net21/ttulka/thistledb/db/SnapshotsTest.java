@@ -0,0 +1,64 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author ttulka
+ */
+public class SnapshotsTest {
+
+    @Test
+    public void versionsTest() {
+        Snapshots snapshots = new Snapshots();
+        snapshots.preserve(10, new byte[]{0});
+        assertThat("Nothing is preserved without a snapshot.", snapshots.preserved(), is(0));
+
+        Snapshots.Snapshot first = snapshots.pin(100, 0);
+        snapshots.preserve(10, new byte[]{1});
+
+        Snapshots.Snapshot second = snapshots.pin(100, 0);
+        snapshots.preserve(10, new byte[]{2});
+        snapshots.preserve(20, new byte[]{3});
+
+        assertThat(snapshots.version(10, first), is(new byte[]{1}));
+        assertThat(snapshots.version(10, second), is(new byte[]{2}));
+        assertThat(snapshots.version(20, second), is(new byte[]{3}));
+        assertThat(snapshots.version(30, second), nullValue());
+
+        Iterator<Map.Entry<Long, byte[]>> versions = snapshots.versions(0, 20, first);
+        assertThat(versions.next().getKey(), is(10L));
+        assertThat(versions.hasNext(), is(false));
+
+        snapshots.release(first);
+        assertThat(snapshots.pinned(), is(1));
+        assertThat(snapshots.version(10, second), is(new byte[]{2}));
+
+        Snapshots.Snapshot third = snapshots.pin(100, 0);
+        assertThat(snapshots.version(10, third), nullValue());
+
+        snapshots.release(second);
+        snapshots.release(third);
+        snapshots.release(third);
+        assertThat(snapshots.pinned(), is(0));
+        assertThat(snapshots.preserved(), is(0));
+    }
+
+    @Test
+    public void awaitTest() throws InterruptedException {
+        Snapshots snapshots = new Snapshots();
+        assertThat(snapshots.await(0), is(true));
+
+        Snapshots.Snapshot snapshot = snapshots.pin(100, 0);
+        assertThat(snapshots.await(10), is(false));
+
+        new Thread(() -> snapshots.release(snapshot)).start();
+        assertThat(snapshots.await(10_000), is(true));
+    }
+}
@@ -0,0 +1,77 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Performance Test of updates in place.
+ *
+ * @author ttulka
+ */
+public class UpdatePTest {
+
+    private static final int AMOUNT_OF_RECORDS = 20_000;
+    private static final int AMOUNT_OF_ROUNDS = 5;
+    private static final int BATCH_SIZE = 1_000;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private DbCollectionFile generateData(CollectionOptions options) throws IOException {
+        DbCollectionFile collection = new DbCollectionFile(temp.newFile().toPath(), 0);
+        collection.setOptions(options);
+        // as opened by the data source, updates in place force the log
+        collection.enableWriteAheadLog(DataSourceFile.DEFAULT_BATCH_INTERVAL);
+        collection.createIndex("root.id");
+        collection.createIndex("root.name");
+
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < AMOUNT_OF_RECORDS; i++) {
+            batch.add("{\"root\":{\"id\":" + i + ",\"name\":\"Name " + (i % 100) + "\",\"counter\":0}}");
+
+            if (batch.size() == BATCH_SIZE) {
+                collection.insert(batch);
+                batch.clear();
+            }
+        }
+        collection.insert(batch);
+        return collection;
+    }
+
+    @Test
+    public void performanceTest() throws IOException {
+        measure("no padding", generateData(CollectionOptions.DEFAULT));
+        measure("padding 20%", generateData(CollectionOptions.builder().padding(20).build()));
+    }
+
+    private void measure(String name, DbCollectionFile collection) {
+        long size = size(collection.path);
+        long start = System.currentTimeMillis();
+
+        for (int round = 1; round <= AMOUNT_OF_ROUNDS; round++) {
+            // the counter grows by one digit every round, the document grows
+            collection.update(new String[]{"root.counter"}, new String[]{String.valueOf((long) Math.pow(10, round))}, "root.name = 'Name 1'");
+            collection.update(new String[]{"root.counter"}, new String[]{String.valueOf((long) Math.pow(10, round) + 1)}, null);
+        }
+        long time = System.currentTimeMillis() - start;
+
+        System.out.println(String.format("UPDATE (%s): %d ms, file grew from %.1f MB to %.1f MB",
+                                         name, time, size / 1024.0 / 1024.0, size(collection.path) / 1024.0 / 1024.0));
+    }
+
+    private long size(Path path) {
+        long size = FileUtils.sizeOf(path.toFile());
+        Path segments = new Segments(path).getDir();
+        if (segments.toFile().exists()) {
+            size += FileUtils.sizeOfDirectory(segments.toFile());
+        }
+        return size;
+    }
+}
@@ -0,0 +1,108 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+/**
+ * @author ttulka
+ */
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void replayTest() throws IOException {
+        Path path = temp.getRoot().toPath().resolve("wal").resolve("log");
+
+        try (WriteAheadLog wal = new WriteAheadLog(path, 60_000)) {
+            wal.logWrite(8, "first".getBytes(StandardCharsets.UTF_8));
+            wal.logDelete(8, "first".getBytes(StandardCharsets.UTF_8));
+            wal.logWrite(Segments.position(1, 8), "second".getBytes(StandardCharsets.UTF_8));
+            wal.commit(Durability.SYNC);
+        }
+        try (WriteAheadLog wal = new WriteAheadLog(path, 60_000)) {
+            assertThat(replay(wal), contains("1:8:first", "2:8:first", "1:" + Segments.position(1, 8) + ":second"));
+        }
+    }
+
+    @Test
+    public void tornTailTest() throws IOException {
+        Path path = temp.getRoot().toPath().resolve("log");
+
+        try (WriteAheadLog wal = new WriteAheadLog(path, 60_000)) {
+            wal.logWrite(8, "first".getBytes(StandardCharsets.UTF_8));
+            wal.logWrite(20, "second".getBytes(StandardCharsets.UTF_8));
+            wal.sync();
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        try (WriteAheadLog wal = new WriteAheadLog(path, 60_000)) {
+            assertThat(replay(wal), contains("1:8:first"));
+        }
+    }
+
+    @Test
+    public void truncateTest() throws IOException {
+        Path path = temp.getRoot().toPath().resolve("log");
+
+        try (WriteAheadLog wal = new WriteAheadLog(path, 60_000)) {
+            wal.logWrite(8, "first".getBytes(StandardCharsets.UTF_8));
+            wal.truncate();
+            assertThat(wal.size(), is(0L));
+
+            wal.logWrite(30, "second".getBytes(StandardCharsets.UTF_8));
+            wal.commit(Durability.SYNC);
+
+            assertThat(replay(wal), contains("1:30:second"));
+        }
+    }
+
+    @Test
+    public void groupCommitTest() throws Exception {
+        Path path = temp.getRoot().toPath().resolve("log");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try (WriteAheadLog wal = new WriteAheadLog(path, 60_000)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                final long position = i;
+                futures.add(executor.submit(() -> {
+                    wal.logWrite(position, new byte[]{1});
+                    wal.commit(Durability.SYNC);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertThat(replay(wal).size(), is(100));
+
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private List<String> replay(WriteAheadLog wal) throws IOException {
+        List<String> entries = new ArrayList<>();
+        wal.replay((type, position, data) -> entries.add(type + ":" + position + ":" + new String(data, StandardCharsets.UTF_8)));
+        return entries;
+    }
+}
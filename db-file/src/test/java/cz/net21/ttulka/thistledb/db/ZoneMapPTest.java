@@ -0,0 +1,74 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Performance Test of range queries on a time-stamped collection with zone maps.
+ *
+ * @author ttulka
+ */
+public class ZoneMapPTest {
+
+    private static final int AMOUNT_OF_RECORDS = 200_000;
+    private static final int AMOUNT_OF_ROUNDS = 5;
+    private static final int BATCH_SIZE = 1_000;
+    private static final int RECENT_RECORDS = 1_000;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void performanceTest() throws IOException {
+        DbCollectionFile collection = new DbCollectionFile(temp.newFile().toPath(), 0);
+        collection.setSegmentSize(4 * 1024 * 1024);
+
+        long time = 1_500_000_000_000L;
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < AMOUNT_OF_RECORDS; i++) {
+            batch.add("{\"event\":{\"time\":" + (time + i * 1000L) + ",\"source\":\"sensor" + (i % 50) + "\",\"value\":" + (i % 1000) + "}}");
+            if (batch.size() == BATCH_SIZE) {
+                collection.insert(batch);
+                batch.clear();
+            }
+        }
+        String where = "event.time >= " + (time + (AMOUNT_OF_RECORDS - RECENT_RECORDS) * 1000L);
+
+        long withoutZoneMaps = measure(collection, where);
+        System.out.println("RECENT WINDOW WITHOUT ZONE MAPS: " + withoutZoneMaps + " ms");
+
+        collection.buildZoneMaps();
+
+        long withZoneMaps = measure(collection, where);
+        System.out.println("RECENT WINDOW WITH ZONE MAPS: " + withZoneMaps + " ms");
+
+        assertThat("Zone maps must speed up the query.", withZoneMaps < withoutZoneMaps, is(true));
+    }
+
+    private long measure(DbCollectionFile collection, String where) {
+        long time = 0;
+        for (int i = 0; i < AMOUNT_OF_ROUNDS; i++) {
+            long start = System.currentTimeMillis();
+
+            int count = 0;
+            Iterator<String> select = collection.select("event.value", where);
+            while (select.hasNext()) {
+                select.next();
+                count++;
+            }
+            time += System.currentTimeMillis() - start;
+
+            assertThat("All records should be found.", count, is(RECENT_RECORDS));
+        }
+        return time / AMOUNT_OF_ROUNDS;
+    }
+}
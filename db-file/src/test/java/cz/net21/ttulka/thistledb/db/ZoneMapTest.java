@@ -0,0 +1,167 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cz.net21.ttulka.thistledb.tson.TSONObject;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author ttulka
+ */
+public class ZoneMapTest {
+
+    private ZoneMap zoneMap;
+
+    @Before
+    public void buildZoneMap() {
+        // blocks: [0, 100) ids 0..9, [100, 200) ids 10..19, [200, 300) ids 20..29
+        ZoneMap.Builder builder = new ZoneMap.Builder(Arrays.asList("id", "name", "tag"), 0, 100);
+        for (int i = 0; i < 30; i++) {
+            String tag = i < 10 ? ",\"tag\":\"" + (i % 2 == 0 ? "even" : "odd") + "\"" : "";
+            builder.add(i * 10, new TSONObject("{\"id\":" + i + ",\"name\":\"Name " + i + "\"" + tag + "}")::findByPath);
+        }
+        zoneMap = builder.build(300);
+    }
+
+    private long skip(long offset, String where) {
+        return zoneMap.skip(offset, Where.create(where));
+    }
+
+    @Test
+    public void skipRangeTest() {
+        assertThat(skip(0, "id > 15"), is(100L));
+        assertThat(skip(0, "id >= 20"), is(200L));
+        assertThat(skip(0, "id > 29"), is(300L));
+        assertThat(skip(0, "id < 5"), is(0L));
+        assertThat(skip(100, "id < 10"), is(300L));
+        assertThat(skip(100, "id <= 10"), is(100L));
+        assertThat(skip(50, "id > 15"), is(100L));
+        assertThat("Offset behind the blocks is not skipped.", skip(300, "id < 0"), is(300L));
+    }
+
+    @Test
+    public void skipEqualTest() {
+        assertThat(skip(0, "id = 25"), is(200L));
+        assertThat(skip(0, "id = 100"), is(300L));
+        assertThat(skip(0, "name = 'Name 99'"), is(300L));
+        assertThat("Numbers are compared as numbers.", skip(0, "id = 25.0"), is(200L));
+    }
+
+    @Test
+    public void skipBySampleTest() {
+        assertThat(skip(0, "tag = 'even'"), is(0L));
+        assertThat(skip(0, "tag = 'none'"), is(300L));
+        assertThat(skip(0, "tag LIKE 'ev*'"), is(0L));
+        assertThat(skip(0, "tag LIKE 'x*'"), is(300L));
+        assertThat("Blocks without the element are skipped.", skip(100, "tag != 'even'"), is(300L));
+    }
+
+    @Test
+    public void skipConditionsTest() {
+        assertThat(skip(0, "id > 25 AND name = 'Name 1'"), is(300L));
+        assertThat(skip(0, "id > 25 OR id < 5"), is(0L));
+        assertThat(skip(0, "id > 15 OR tag = 'odd'"), is(0L));
+        assertThat(skip(0, "id > 15 OR unknown = 1"), is(0L));
+        assertThat(skip(0, null), is(0L));
+    }
+
+    @Test
+    public void bloomFilterTest() {
+        // blocks: [0, 100), [100, 200), [200, 300) with 10 distinct codes each
+        ZoneMap.Builder builder = new ZoneMap.Builder(Arrays.asList("id"), Arrays.asList("code"), 0, 100);
+        for (int i = 0; i < 30; i++) {
+            builder.add(i * 10, new TSONObject("{\"id\":" + i + ",\"code\":" + (i < 20 ? "\"c" + (i * 7) + "\"" : i * 1000) + "}")::findByPath);
+        }
+        ZoneMap bloomMap = builder.build(300);
+
+        assertThat(bloomMap.elements(), is(new LinkedHashSet<>(Arrays.asList("id", "code"))));
+        assertThat(bloomMap.bloomFilters(), is(Collections.singleton("code")));
+
+        assertThat(bloomMap.skip(0, Where.create("code = 'c21'")), is(0L));
+        assertThat(bloomMap.skip(0, Where.create("code = 'c91'")), is(100L));
+        assertThat("Numbers are compared as numbers.", bloomMap.skip(0, Where.create("code = 25000.0")), is(200L));
+        assertThat("Missing value is skipped, unless a false positive.", bloomMap.skip(0, Where.create("code = 'c20'")), is(300L));
+
+        AtomicInteger negatives = new AtomicInteger();
+        bloomMap.skip(0, Where.create("code = 'c91'"), negatives::incrementAndGet);
+        assertThat(negatives.get(), is(1));
+
+        assertThat(bloomMap.bloomFiltered(100, Where.create("code = 'c91'")), is(true));
+        assertThat("Not a block start.", bloomMap.bloomFiltered(150, Where.create("code = 'c91'")), is(false));
+        assertThat("Not a single equality.", bloomMap.bloomFiltered(100, Where.create("code = 'c91' AND id > 1")), is(false));
+        assertThat("No bloom filter.", bloomMap.bloomFiltered(100, Where.create("id = 15")), is(false));
+
+        assertThat(bloomMap.bloomFilterFpps().count(), is(3L));
+        assertThat(bloomMap.bloomFilterFpps().allMatch(fpp -> fpp < 2 * ZoneMap.BLOOM_FILTER_FPP), is(true));
+    }
+
+    @Test
+    public void bloomFilterWidenAndReadTest() throws IOException {
+        ZoneMap.Builder builder = new ZoneMap.Builder(Collections.emptySet(), Arrays.asList("code"), 0, 100);
+        for (int i = 0; i < 20; i++) {
+            builder.add(i * 10, new TSONObject("{\"code\":\"c" + i + "\"}")::findByPath);
+        }
+        ZoneMap bloomMap = builder.build(200);
+        assertThat(bloomMap.skip(0, Where.create("code = 'new'")), is(200L));
+
+        bloomMap.add(110, new TSONObject("{\"code\":\"new\"}")::findByPath);
+        assertThat(bloomMap.skip(0, Where.create("code = 'new'")), is(100L));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bloomMap.write(new DataOutputStream(bytes));
+        ZoneMap read = ZoneMap.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertThat(read.bloomFilters(), is(Collections.singleton("code")));
+        for (int i = 0; i < 20; i++) {
+            assertThat(read.skip(0, Where.create("code = 'c" + i + "'")), is(i < 10 ? 0L : 100L));
+        }
+        assertThat(read.skip(0, Where.create("code = 'new'")), is(100L));
+    }
+
+    @Test
+    public void blockEndTest() {
+        assertThat(zoneMap.blockEnd(0), is(100L));
+        assertThat(zoneMap.blockEnd(150), is(200L));
+        assertThat(zoneMap.blockEnd(300), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void widenTest() {
+        assertThat(skip(0, "id > 100"), is(300L));
+
+        zoneMap.add(110, new TSONObject("{\"id\":1000,\"name\":\"Name 11\"}")::findByPath);
+
+        assertThat(skip(0, "id > 100"), is(100L));
+        assertThat(skip(0, "id = 1000"), is(100L));
+        assertThat(skip(200, "id > 100"), is(300L));
+    }
+
+    @Test
+    public void writeAndReadTest() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        zoneMap.write(new DataOutputStream(bytes));
+
+        ZoneMap read = ZoneMap.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertThat(read.elements(), is(zoneMap.elements()));
+        assertThat(read.blocks(), is(3));
+        for (String where : Arrays.asList("id > 15", "id = 25", "name = 'Name 15'", "tag = 'even'", "tag = 'none'", "id < 10")) {
+            for (long offset = 0; offset <= 300; offset += 50) {
+                assertThat(read.skip(offset, Where.create(where)), is(zoneMap.skip(offset, Where.create(where))));
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import lombok.NonNull;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Options of a collection chosen at its creation.
+ * <p>
+ * Options are represented as key-value pairs in queries and on the disk, e.g. `compression=deflate`.
+ *
+ * @author ttulka
+ */
+public final class CollectionOptions {
+
+    public static final CollectionOptions DEFAULT = builder().build();
+
+    static final String COMPRESSION = "compression";
+    static final String ENCODING = "encoding";
+    static final String PADDING = "padding";
+    static final String BLOOM = "bloom";
+    static final String IDENTITY = "id";
+
+    // separator of elements in the value of the bloom option
+    static final String ELEMENTS_SEPARATOR = "|";
+
+    static final int MAX_PADDING = 100;
+
+    private final Compression compression;
+    private final Encoding encoding;
+    private final int padding;
+    private final Set<String> bloomFilters;
+    private final Identity identity;
+
+    private CollectionOptions(Compression compression, Encoding encoding, int padding, Set<String> bloomFilters, Identity identity) {
+        this.compression = compression;
+        this.encoding = encoding;
+        this.padding = padding;
+        this.bloomFilters = Collections.unmodifiableSet(bloomFilters);
+        this.identity = identity;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return the space reserved in records for their growth in percents of the record size
+     */
+    public int getPadding() {
+        return padding;
+    }
+
+    /**
+     * @return the elements with bloom filters for equality conditions, empty if there are none
+     */
+    public Set<String> getBloomFilters() {
+        return bloomFilters;
+    }
+
+    public Identity getIdentity() {
+        return identity;
+    }
+
+    /**
+     * @return the options as key-value pairs
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>();
+        map.put(COMPRESSION, compression.name().toLowerCase());
+        map.put(ENCODING, encoding.name().toLowerCase());
+        map.put(PADDING, String.valueOf(padding));
+        if (!bloomFilters.isEmpty()) {
+            map.put(BLOOM, String.join(ELEMENTS_SEPARATOR, bloomFilters));
+        }
+        map.put(IDENTITY, identity.name().toLowerCase());
+        return map;
+    }
+
+    /**
+     * Creates options from key-value pairs. Keys and values are case-insensitive, missing options get default values.
+     *
+     * @param map the key-value pairs
+     * @return the options
+     * @throws DatabaseException if an option is unknown or its value is invalid
+     */
+    public static CollectionOptions fromMap(@NonNull Map<String, String> map) {
+        Builder builder = builder();
+        map.forEach((key, value) -> {
+            switch (key.toLowerCase()) {
+                case COMPRESSION:
+                    builder.compression(valueOf(Compression.class, key, value));
+                    break;
+                case ENCODING:
+                    builder.encoding(valueOf(Encoding.class, key, value));
+                    break;
+                case PADDING:
+                    builder.padding(percents(key, value));
+                    break;
+                case BLOOM:
+                    builder.bloomFilters(elements(value));
+                    break;
+                case IDENTITY:
+                    builder.identity(valueOf(Identity.class, key, value));
+                    break;
+                default:
+                    throw new DatabaseException("Unknown collection option: " + key);
+            }
+        });
+        return builder.build();
+    }
+
+    private static <E extends Enum<E>> E valueOf(Class<E> type, String key, String value) {
+        try {
+            return Enum.valueOf(type, value.toUpperCase());
+
+        } catch (IllegalArgumentException e) {
+            throw new DatabaseException("Invalid value of the collection option " + key + ": " + value);
+        }
+    }
+
+    private static int percents(String key, String value) {
+        try {
+            int percents = Integer.parseInt(value);
+            if (percents >= 0 && percents <= MAX_PADDING) {
+                return percents;
+            }
+        } catch (NumberFormatException ignore) {
+        }
+        throw new DatabaseException("Invalid value of the collection option " + key + ": " + value);
+    }
+
+    private static Collection<String> elements(String value) {
+        return Arrays.stream(value.split(Pattern.quote(ELEMENTS_SEPARATOR)))
+                .map(String::trim)
+                .filter(element -> !element.isEmpty())
+                .collect(toList());
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private Compression compression = Compression.NONE;
+        private Encoding encoding = Encoding.TEXT;
+        private int padding = 0;
+        private Set<String> bloomFilters = new LinkedHashSet<>();
+        private Identity identity = Identity.NONE;
+
+        public Builder compression(@NonNull Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder encoding(@NonNull Encoding encoding) {
+            this.encoding = encoding;
+            return this;
+        }
+
+        public Builder padding(int padding) {
+            if (padding < 0 || padding > MAX_PADDING) {
+                throw new IllegalArgumentException("Padding must be between 0 and " + MAX_PADDING + " percents: " + padding);
+            }
+            this.padding = padding;
+            return this;
+        }
+
+        /**
+         * @param elements the elements to keep bloom filters of in blocks of records
+         */
+        public Builder bloomFilters(@NonNull Collection<String> elements) {
+            this.bloomFilters = new LinkedHashSet<>(elements);
+            return this;
+        }
+
+        public Builder identity(@NonNull Identity identity) {
+            this.identity = identity;
+            return this;
+        }
+
+        public CollectionOptions build() {
+            return new CollectionOptions(compression, encoding, padding, bloomFilters, identity);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package cz.net21.ttulka.thistledb.db;
+
+/**
+ * Compression modes of collections.
+ *
+ * @author ttulka
+ */
+public enum Compression {
+
+    /**
+     * Records are stored as they are.
+     */
+    NONE,
+
+    /**
+     * Sealed segments of the collection are compressed in blocks with the Deflate algorithm.
+     */
+    DEFLATE
+}
@@ -20,6 +20,15 @@ public interface DataSource {
      */
     boolean createCollection(String collectionName);
 
+    /**
+     * Creates a collection with options.
+     *
+     * @param collectionName the collection name
+     * @param options        the options of the collection
+     * @return true if a new collection was created, otherwise false
+     */
+    boolean createCollection(String collectionName, CollectionOptions options);
+
     /**
      * Drops a collection.
      *
@@ -47,6 +56,17 @@ public interface DataSource {
      */
     int add(String collectionName, String element, String where);
 
+    /**
+     * Adds an element by a condition.
+     *
+     * @param collectionName the collection name
+     * @param element        the element
+     * @param where          the condition
+     * @param durability     the durability of the operation
+     * @return count of altered documents
+     */
+    int add(String collectionName, String element, String where, Durability durability);
+
     /**
      * Removes an element.
      *
@@ -66,6 +86,17 @@ public interface DataSource {
      */
     int remove(String collectionName, String element, String where);
 
+    /**
+     * Removes an element by a condition.
+     *
+     * @param collectionName the collection name
+     * @param element        the element
+     * @param where          the condition
+     * @param durability     the durability of the operation
+     * @return count of altered documents
+     */
+    int remove(String collectionName, String element, String where, Durability durability);
+
     /**
      * Selects from a collection by a condition.
      *
@@ -77,6 +108,19 @@ public interface DataSource {
      */
     Flux<String> select(String collectionName, String element, String where);
 
+    /**
+     * Selects from a collection by a condition. Documents not found by indexes are searched in parallel,
+     * they come in the order of the collection only when required.
+     *
+     * @param collectionName the collection name
+     * @param element        the element to select
+     * @param where          the condition
+     * @param ordered        true if the documents should come in the order of the collection
+     * @return a collection of found documents
+     * @throws DatabaseException if the collection doesn't exist
+     */
+    Flux<String> select(String collectionName, String element, String where, boolean ordered);
+
     /**
      * Selects from a collection. Convenient method.
      *
@@ -105,6 +149,16 @@ public interface DataSource {
      */
     void insert(String collectionName, Collection<String> data);
 
+    /**
+     * Inserts JSON data into a collection.
+     *
+     * @param collectionName the collection name
+     * @param data           the JSON data to insert
+     * @param durability     the durability of the operation
+     * @throws DatabaseException if the collection doesn't exist
+     */
+    void insert(String collectionName, Collection<String> data, Durability durability);
+
     /**
      * Updates a collection by a condition.
      *
@@ -117,6 +171,19 @@ public interface DataSource {
      */
     int update(String collectionName, String[] columns, String[] values, String where);
 
+    /**
+     * Updates a collection by a condition.
+     *
+     * @param collectionName the collection name
+     * @param columns        the columns to update
+     * @param values         the new values
+     * @param where          the condition
+     * @param durability     the durability of the operation
+     * @return count of updated documents
+     * @throws DatabaseException if the collection doesn't exist
+     */
+    int update(String collectionName, String[] columns, String[] values, String where, Durability durability);
+
     /**
      * Updates a collection. Convenient method.
      *
@@ -138,6 +205,17 @@ public interface DataSource {
      */
     int delete(String collectionName, String where);
 
+    /**
+     * Deletes from a collection by a condition.
+     *
+     * @param collectionName the collection name
+     * @param where          the condition
+     * @param durability     the durability of the operation
+     * @return count of deleted documents
+     * @throws DatabaseException if the collection doesn't exist
+     */
+    int delete(String collectionName, String where, Durability durability);
+
     /**
      * Deletes from a collection. Convenient method.
      *
@@ -158,6 +236,18 @@ public interface DataSource {
      */
     boolean createIndex(String collectionName, String column);
 
+    /**
+     * Creates an index of the type in a collection. An existing index of another type is migrated to the type.
+     *
+     * @param collectionName the collection name
+     * @param column         the column to create the index on
+     * @param type           the type of the index
+     * @return true if a new index was created or migrated, otherwise false
+     * @throws DatabaseException if the collection doesn't exist
+     * @throws DatabaseException if cannot create the index
+     */
+    boolean createIndex(String collectionName, String column, IndexType type);
+
     /**
      * Drops an index from a collection.
      *
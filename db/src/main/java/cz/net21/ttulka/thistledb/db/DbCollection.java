@@ -18,6 +18,8 @@ interface DbCollection {
 
     boolean createIndex(String column);
 
+    boolean createIndex(String column, IndexType type);
+
     boolean dropIndex(String column);
 
     int add(String element, String where);
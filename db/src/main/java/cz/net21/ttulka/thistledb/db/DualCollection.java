@@ -104,6 +104,11 @@ public class DualCollection implements DbCollection {
         throw new DatabaseException("Cannot create an index for the collection '" + NAME + "'.");
     }
 
+    @Override
+    public boolean createIndex(String column, IndexType type) {
+        throw new DatabaseException("Cannot create an index for the collection '" + NAME + "'.");
+    }
+
     @Override
     public boolean dropIndex(String column) {
         throw new DatabaseException("Cannot drop an index for the collection '" + NAME + "'.");
@@ -0,0 +1,25 @@
+package cz.net21.ttulka.thistledb.db;
+
+/**
+ * Durability levels of write operations.
+ *
+ * @author ttulka
+ */
+public enum Durability {
+
+    /**
+     * The operation returns without waiting for the changes to reach the disk.
+     */
+    NONE,
+
+    /**
+     * The changes are forced to the disk in regular intervals, the operation returns without waiting.
+     */
+    BATCHED,
+
+    /**
+     * The operation returns after its changes are forced to the disk.
+     * Concurrent operations are forced together.
+     */
+    SYNC
+}
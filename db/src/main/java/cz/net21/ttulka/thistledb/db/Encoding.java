@@ -0,0 +1,19 @@
+package cz.net21.ttulka.thistledb.db;
+
+/**
+ * Encodings of documents stored in collections.
+ *
+ * @author ttulka
+ */
+public enum Encoding {
+
+    /**
+     * Documents are stored as JSON text.
+     */
+    TEXT,
+
+    /**
+     * Documents are stored in the binary TSON encoding, single elements are read without decoding whole documents.
+     */
+    BINARY
+}
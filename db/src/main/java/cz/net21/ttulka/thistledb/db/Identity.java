@@ -0,0 +1,29 @@
+package cz.net21.ttulka.thistledb.db;
+
+/**
+ * Identity of documents in collections: the unique element `_id` as a primary key.
+ *
+ * @author ttulka
+ */
+public enum Identity {
+
+    /**
+     * Documents have no identity, `_id` is an ordinary element.
+     */
+    NONE,
+
+    /**
+     * Documents have a unique `_id`, a document without it gets a generated one.
+     */
+    AUTO,
+
+    /**
+     * Documents must have a unique `_id` supplied by the user.
+     */
+    USER;
+
+    /**
+     * The element of the identity.
+     */
+    public static final String ID = "_id";
+}
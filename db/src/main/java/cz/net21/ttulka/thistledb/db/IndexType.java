@@ -0,0 +1,19 @@
+package cz.net21.ttulka.thistledb.db;
+
+/**
+ * Types of indexes.
+ *
+ * @author ttulka
+ */
+public enum IndexType {
+
+    /**
+     * Values are hashed into a directory structure of small index files.
+     */
+    HASH,
+
+    /**
+     * Values are sorted in a B+tree of pages in one file.
+     */
+    BTREE
+}
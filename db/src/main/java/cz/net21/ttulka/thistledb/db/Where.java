@@ -4,6 +4,7 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -11,6 +12,7 @@ import java.util.stream.Stream;
 
 import org.json.JSONArray;
 
+import cz.net21.ttulka.thistledb.tson.TSONBinary;
 import cz.net21.ttulka.thistledb.tson.TSONObject;
 import lombok.Data;
 import lombok.NonNull;
@@ -48,6 +50,14 @@ class Where {
         public boolean matches(String json) {
             return true;
         }
+
+        public boolean matches(TSONBinary binary) {
+            return true;
+        }
+
+        public boolean matches(TSONObject json) {
+            return true;
+        }
     };
 
     private final List<Condition> andConditions;
@@ -68,10 +78,32 @@ class Where {
         if (json == null) {
             return false;
         }
-        TSONObject jsonObject = new TSONObject(json);
+        return matches(new TSONObject(json)::findByPath);
+    }
 
+    /**
+     * Matches an already parsed document.
+     */
+    public boolean matches(TSONObject json) {
+        if (json == null) {
+            return false;
+        }
+        return matches(json::findByPath);
+    }
+
+    /**
+     * Matches a binary document, only the elements in conditions are decoded.
+     */
+    public boolean matches(TSONBinary binary) {
+        if (binary == null) {
+            return false;
+        }
+        return matches(binary::findByPath);
+    }
+
+    private boolean matches(Function<String, Object> elements) {
         return andConditions.stream()
-                .map(and -> and.matches(jsonObject))
+                .map(and -> and.matches(elements))
                 .allMatch(match -> match);
     }
 
@@ -160,8 +192,12 @@ class Where {
         private final List<ConditionDataPart> orClause;
 
         public boolean matches(TSONObject json) {
+            return matches(json::findByPath);
+        }
+
+        boolean matches(Function<String, Object> elements) {
             return orClause.stream()
-                    .map(or -> or.matches(json))
+                    .map(or -> or.matches(elements))
                     .anyMatch(match -> match);
         }
     }
@@ -174,7 +210,11 @@ class Where {
         private final String value;
 
         public boolean matches(TSONObject json) {
-            return valueMatches(json.findByPath(key));
+            return matches(json::findByPath);
+        }
+
+        boolean matches(Function<String, Object> elements) {
+            return valueMatches(elements.apply(key));
         }
 
         private boolean valueMatches(Object o) {
@@ -0,0 +1,57 @@
+package cz.net21.ttulka.thistledb.db;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author ttulka
+ */
+public class CollectionOptionsTest {
+
+    @Test
+    public void fromMapTest() {
+        CollectionOptions options = CollectionOptions.fromMap(Collections.singletonMap("Compression", "DEFLATE"));
+
+        assertThat(options.getCompression(), is(Compression.DEFLATE));
+        assertThat(CollectionOptions.fromMap(options.toMap()).getCompression(), is(Compression.DEFLATE));
+        assertThat(CollectionOptions.fromMap(Collections.emptyMap()).getCompression(), is(Compression.NONE));
+        assertThat(CollectionOptions.fromMap(Collections.emptyMap()).getEncoding(), is(Encoding.TEXT));
+        assertThat(CollectionOptions.fromMap(Collections.singletonMap("encoding", "binary")).getEncoding(), is(Encoding.BINARY));
+        assertThat(CollectionOptions.fromMap(Collections.emptyMap()).getPadding(), is(0));
+        assertThat(CollectionOptions.fromMap(Collections.singletonMap("padding", "20")).getPadding(), is(20));
+        assertThat(CollectionOptions.fromMap(Collections.emptyMap()).getIdentity(), is(Identity.NONE));
+        assertThat(CollectionOptions.fromMap(Collections.singletonMap("id", "auto")).getIdentity(), is(Identity.AUTO));
+        assertThat(CollectionOptions.fromMap(CollectionOptions.builder().identity(Identity.USER).build().toMap()).getIdentity(), is(Identity.USER));
+    }
+
+    @Test
+    public void bloomFiltersTest() {
+        CollectionOptions options = CollectionOptions.fromMap(Collections.singletonMap("bloom", "patient.id | name"));
+
+        assertThat(options.getBloomFilters(), is(new LinkedHashSet<>(Arrays.asList("patient.id", "name"))));
+        assertThat(CollectionOptions.fromMap(options.toMap()).getBloomFilters(), is(options.getBloomFilters()));
+        assertThat(CollectionOptions.fromMap(Collections.emptyMap()).getBloomFilters().isEmpty(), is(true));
+        assertThat(CollectionOptions.DEFAULT.toMap().containsKey("bloom"), is(false));
+    }
+
+    @Test(expected = DatabaseException.class)
+    public void unknownOptionTest() {
+        CollectionOptions.fromMap(Collections.singletonMap("unknown", "none"));
+    }
+
+    @Test(expected = DatabaseException.class)
+    public void invalidValueTest() {
+        CollectionOptions.fromMap(Collections.singletonMap("compression", "zip"));
+    }
+
+    @Test(expected = DatabaseException.class)
+    public void invalidPaddingTest() {
+        CollectionOptions.fromMap(Collections.singletonMap("padding", "101"));
+    }
+}
@@ -104,6 +104,9 @@ public class WhereTest {
         assertThat(where.matches("{\"person\":{\"name\":\"John\",\"surname\":\"Smith\",\"age\":33}}"), is(false));
         assertThat(where.matches("{\"person\":{\"name\":\"Jon\",\"surname\":\"Smith\",\"age\":42}}"), is(false));
         assertThat(where.matches("{\"person\":{\"name\":\"Johnny\",\"surname\":\"Smith\",\"age\":42}}"), is(true));
+        assertThat(where.matches(new TSONObject("{\"person\":{\"name\":\"Johnny\",\"surname\":\"Smith\",\"age\":42}}")), is(true));
+        assertThat(where.matches(new TSONObject("{\"person\":{\"name\":\"Jon\",\"surname\":\"Smith\",\"age\":42}}")), is(false));
+        assertThat(Where.EMPTY.matches(new TSONObject("{}")), is(true));
     }
 
     @Test
@@ -10,6 +10,9 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import cz.net21.ttulka.thistledb.console.Console;
+import cz.net21.ttulka.thistledb.db.Durability;
+import cz.net21.ttulka.thistledb.db.FileFormatConverter;
+import cz.net21.ttulka.thistledb.db.ReadMode;
 import lombok.extern.apachecommons.CommonsLog;
 
 /**
@@ -26,6 +29,13 @@ public final class Application {
         cmdOptions.addOption("d", "dataDir", true, "Data directory to store DB files into.");
         cmdOptions.addOption("c", "cacheExpirationTime", true, "Cache expiration time (in minutes).");
         cmdOptions.addOption("m", "maxConnections", true, "Maximum client connections.");
+        cmdOptions.addOption("r", "readMode", true, "Mode of reading collection files (CHANNEL, MAPPED, ASYNC).");
+        cmdOptions.addOption("w", "durability", true, "Default durability of write operations (NONE, BATCHED, SYNC).");
+        cmdOptions.addOption("i", "batchInterval", true, "Interval of forcing batched writes to the disk (in milliseconds).");
+        cmdOptions.addOption("t", "maintenanceRate", true, "Maximal I/O of the background maintenance (in MB per second).");
+        cmdOptions.addOption("s", "documentCacheSize", true, "Size of the cache of documents read by indexes (in MB).");
+        cmdOptions.addOption("l", "idleTime", true, "Time after which collections not accessed are closed (in minutes).");
+        cmdOptions.addOption("u", "upgrade", false, "Upgrade collection files in the data directory to the current format and exit.");
         cmdOptions.addOption("h", "help", false, "Help.");
 
         try {
@@ -35,9 +45,13 @@ public final class Application {
                 System.exit(0);
             }
 
-            startServer(cmdLine);
+            if (cmdLine.hasOption("u")) {
+                upgradeData(cmdLine);
+            } else {
+                startServer(cmdLine);
+            }
 
-        } catch (NumberFormatException | ParseException e) {
+        } catch (IllegalArgumentException | ParseException e) {
             System.err.println("Cannot parse the user input: " + e.getMessage());
             log.error(e);
             printHelp(cmdOptions);
@@ -65,6 +79,30 @@ public final class Application {
             int cacheExpirationTime = Integer.parseInt(cmdLine.getOptionValue("c"));
             builder.cacheExpirationTime(cacheExpirationTime);
         }
+        if (cmdLine.hasOption("r")) {
+            ReadMode readMode = ReadMode.valueOf(cmdLine.getOptionValue("r").toUpperCase());
+            builder.readMode(readMode);
+        }
+        if (cmdLine.hasOption("w")) {
+            Durability durability = Durability.valueOf(cmdLine.getOptionValue("w").toUpperCase());
+            builder.durability(durability);
+        }
+        if (cmdLine.hasOption("i")) {
+            long batchInterval = Long.parseLong(cmdLine.getOptionValue("i"));
+            builder.batchInterval(batchInterval);
+        }
+        if (cmdLine.hasOption("t")) {
+            long maintenanceRate = Long.parseLong(cmdLine.getOptionValue("t"));
+            builder.maintenanceRate(maintenanceRate * 1024 * 1024);
+        }
+        if (cmdLine.hasOption("s")) {
+            long documentCacheSize = Long.parseLong(cmdLine.getOptionValue("s"));
+            builder.documentCacheSize(documentCacheSize * 1024 * 1024);
+        }
+        if (cmdLine.hasOption("l")) {
+            long idleTime = Long.parseLong(cmdLine.getOptionValue("l"));
+            builder.collectionIdleTime(idleTime * 60 * 1000);
+        }
 
         Server server = builder.build();
 
@@ -80,6 +118,16 @@ public final class Application {
         server.stop();
     }
 
+    private static void upgradeData(CommandLine cmdLine) {
+        Path dataDir = cmdLine.hasOption("d")
+                       ? Paths.get(cmdLine.getOptionValue("d"))
+                       : Server.DEFAULT_DATA_DIR;
+
+        int converted = new FileFormatConverter(dataDir).upgrade();
+
+        System.out.println("Upgraded collections: " + converted);
+    }
+
     private static void startCommandConsole(int port) {
         try {
             Console console = new Console(port);
@@ -4,6 +4,8 @@ import java.nio.file.Path;
 
 import cz.net21.ttulka.thistledb.db.DataSource;
 import cz.net21.ttulka.thistledb.db.DataSourceFile;
+import cz.net21.ttulka.thistledb.db.Durability;
+import cz.net21.ttulka.thistledb.db.ReadMode;
 import lombok.NonNull;
 
 /**
@@ -16,7 +18,12 @@ final class DataSourceFactory {
     private DataSourceFactory() {
     }
 
-    public static DataSource getDataSource(@NonNull Path dataDir, int cacheExpirationTime) {
-        return new DataSourceFile(dataDir, cacheExpirationTime);
+    public static DataSource getDataSource(@NonNull Path dataDir, int cacheExpirationTime, @NonNull ReadMode readMode) {
+        return new DataSourceFile(dataDir, cacheExpirationTime, readMode);
+    }
+
+    public static DataSource getDataSource(@NonNull Path dataDir, int cacheExpirationTime, @NonNull ReadMode readMode,
+                                           @NonNull Durability durability, long batchInterval) {
+        return new DataSourceFile(dataDir, cacheExpirationTime, readMode, durability, batchInterval);
     }
 }
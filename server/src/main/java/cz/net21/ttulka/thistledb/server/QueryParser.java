@@ -1,19 +1,25 @@
 package cz.net21.ttulka.thistledb.server;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.json.JSONArray;
 
+import cz.net21.ttulka.thistledb.db.Durability;
+import cz.net21.ttulka.thistledb.db.IndexType;
 import cz.net21.ttulka.thistledb.tson.TSONObject;
 import lombok.NonNull;
 import lombok.extern.apachecommons.CommonsLog;
 
 import static java.util.regex.Pattern.CASE_INSENSITIVE;
+import static java.util.regex.Pattern.DOTALL;
 import static java.util.regex.Pattern.compile;
 
 /**
@@ -28,6 +34,9 @@ class QueryParser {
     private static final String JSON_ELEMENT = "[\\w\\d._\\-$]+";
     private static final String JSON_VALUE = "((null)|(\".+\")|('.+')|(true)|(false)|(\\d+)|([\\d]*[.]?[\\d]+))";
 
+    private static final String OPTION = "[\\w]+\\s*=\\s*" + JSON_ELEMENT + "(\\s*\\|\\s*" + JSON_ELEMENT + ")*";
+    private static final String OPTIONS = OPTION + "(\\s*,\\s*" + OPTION + ")*";
+
     private static final String WHERE = "((" + JSON_ELEMENT + "\\s*(=|!=|<|<=|>|>=)\\s*" + JSON_VALUE + ")|(" + JSON_ELEMENT + "\\s+(LIKE)\\s+'([^']*)')|(" + JSON_ELEMENT + "\\s+(LIKE)\\s+\"(([^\"]|(\\\\\"))*)\"))+";
     private static final String WHERE_COMPOSITED = "(" + WHERE + ")(\\s+(AND|OR)\\s+(" + WHERE + "))*";
 
@@ -36,24 +45,43 @@ class QueryParser {
     static final Pattern UPDATE = compile("UPDATE\\s+(" + COLLECTION + ")\\s+SET\\s+((" + JSON_ELEMENT + "\\s*=\\s*" + JSON_VALUE + ")(\\s*,\\s*" + JSON_ELEMENT + "\\s*=\\s*" + JSON_VALUE + ")*)", CASE_INSENSITIVE);
     static final Pattern UPDATE_WHERE = compile("UPDATE\\s+(" + COLLECTION + ")\\s+SET\\s+((" + JSON_ELEMENT + "\\s*=\\s*" + JSON_VALUE + ")(\\s*,\\s*" + JSON_ELEMENT + "\\s*=\\s*" + JSON_VALUE + ")*)\\s+WHERE\\s+(" + WHERE_COMPOSITED + ")", CASE_INSENSITIVE);
     static final Pattern DELETE = compile("DELETE\\s+FROM\\s+(" + COLLECTION + ")(\\s+WHERE\\s+(" + WHERE_COMPOSITED + "))?", CASE_INSENSITIVE);
-    static final Pattern CREATE = compile("CREATE\\s+(?!.*INDEX)(" + COLLECTION + ")", CASE_INSENSITIVE);
+    static final Pattern CREATE = compile("CREATE\\s+(?!.*INDEX)(" + COLLECTION + ")(\\s+WITH\\s+(" + OPTIONS + "))?", CASE_INSENSITIVE);
     static final Pattern DROP = compile("DROP\\s+((?!.*INDEX)" + COLLECTION + ")", CASE_INSENSITIVE);
     static final Pattern ADD = compile("ALTER\\s+(" + COLLECTION + ")\\s+ADD((\\s+((?!.WHERE)(" + JSON_ELEMENT + "))+)\\s*)(\\s+WHERE\\s+(" + WHERE_COMPOSITED + "))?", CASE_INSENSITIVE);
     static final Pattern REMOVE = compile("ALTER\\s+(" + COLLECTION + ")\\s+REMOVE((\\s+((?!.WHERE)(" + JSON_ELEMENT + "))+)\\s*)(\\s+WHERE\\s+(" + WHERE_COMPOSITED + "))?", CASE_INSENSITIVE);
-    static final Pattern CREATE_INDEX = compile("CREATE\\s+INDEX\\s+(" + JSON_ELEMENT + ")\\s+ON\\s+(" + COLLECTION + ")", CASE_INSENSITIVE);
+    static final Pattern CREATE_INDEX = compile("CREATE\\s+INDEX\\s+(" + JSON_ELEMENT + ")\\s+ON\\s+(" + COLLECTION + ")(\\s+USING\\s+(HASH|BTREE))?", CASE_INSENSITIVE);
     static final Pattern DROP_INDEX = compile("DROP\\s+INDEX\\s+(" + JSON_ELEMENT + ")\\s+ON\\s+(" + COLLECTION + ")", CASE_INSENSITIVE);
 
+    static final Pattern DURABILITY = compile("(.*?)\\s+WITH\\s+DURABILITY\\s+(NONE|BATCHED|SYNC)", CASE_INSENSITIVE | DOTALL);
+
+    private static final EnumSet<Commands> WRITE_COMMANDS = EnumSet.of(Commands.INSERT, Commands.UPDATE, Commands.DELETE, Commands.ADD, Commands.REMOVE);
+
     private final String ql;
 
     private final Commands command;
 
+    private final Durability durability;
+
     /**
      * @param ql the query to parse
      * @throws IllegalArgumentException if the query is invalid
      */
     public QueryParser(@NonNull String ql) {
-        this.ql = cleanQuery(ql);
+        ql = cleanQuery(ql);
+
+        Matcher durabilityMatcher = DURABILITY.matcher(ql);
+        if (durabilityMatcher.matches()) {
+            ql = durabilityMatcher.group(1);
+            this.durability = Durability.valueOf(durabilityMatcher.group(2).toUpperCase());
+        } else {
+            this.durability = null;
+        }
+        this.ql = ql;
         this.command = parseCommand(this.ql);
+
+        if (durability != null && !WRITE_COMMANDS.contains(command)) {
+            throw new IllegalArgumentException("Durability cannot be applied on the command " + command + ": " + ql);
+        }
     }
 
     private String cleanQuery(String ql) {
@@ -64,6 +92,43 @@ class QueryParser {
         return ql;
     }
 
+    /**
+     * @return the collection options from the `WITH` clause of the `CREATE` command, empty if there is no such clause
+     */
+    public Map<String, String> parseOptions() {
+        Map<String, String> options = new LinkedHashMap<>();
+        if (command == Commands.CREATE) {
+            String list = getMatchingGroup(CREATE, ql, 3);
+            if (list != null) {
+                for (String option : list.split(",")) {
+                    String[] keyValue = option.split("=");
+                    options.put(keyValue[0].trim(), keyValue[1].trim());
+                }
+            }
+        }
+        return options;
+    }
+
+    /**
+     * @return the type of the index from the `USING` clause, or null if the query has no such clause
+     */
+    public IndexType parseIndexType() {
+        if (command == Commands.CREATE_INDEX) {
+            String type = getMatchingGroup(CREATE_INDEX, ql, 4);
+            if (type != null) {
+                return IndexType.valueOf(type.toUpperCase());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the durability from the `WITH DURABILITY` clause, or null if the query has no such clause
+     */
+    public Durability parseDurability() {
+        return durability;
+    }
+
     public String getQuery() {
         return ql;
     }
@@ -1,9 +1,13 @@
 package cz.net21.ttulka.thistledb.server;
 
 import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 
+import cz.net21.ttulka.thistledb.db.CollectionOptions;
 import cz.net21.ttulka.thistledb.db.DataSource;
+import cz.net21.ttulka.thistledb.db.Durability;
+import cz.net21.ttulka.thistledb.db.IndexType;
 import cz.net21.ttulka.thistledb.tson.TSONObject;
 import lombok.NonNull;
 import lombok.extern.apachecommons.CommonsLog;
@@ -107,8 +111,13 @@ class QueryProcessor {
     Flux<String> processInsert(QueryParser parser) {
         String collection = parser.parseCollection();
         List<String> values = parser.parseValues();
+        Durability durability = parser.parseDurability();
 
-        dataSource.insert(collection, values);
+        if (durability != null) {
+            dataSource.insert(collection, values, durability);
+        } else {
+            dataSource.insert(collection, values);
+        }
         return Flux.just(OKAY);
     }
 
@@ -118,23 +127,38 @@ class QueryProcessor {
 
         String[] columns = parser.parseSetColumns();
         String[] values = parser.parseSetValues();
+        Durability durability = parser.parseDurability();
 
-        dataSource.update(collection, columns, values, where);
+        if (durability != null) {
+            dataSource.update(collection, columns, values, where, durability);
+        } else {
+            dataSource.update(collection, columns, values, where);
+        }
         return Flux.just(OKAY);
     }
 
     Flux<String> processDelete(QueryParser parser) {
         String collection = parser.parseCollection();
         String where = parser.parseWhere();
+        Durability durability = parser.parseDurability();
 
-        dataSource.delete(collection, where);
+        if (durability != null) {
+            dataSource.delete(collection, where, durability);
+        } else {
+            dataSource.delete(collection, where);
+        }
         return Flux.just(OKAY);
     }
 
     Flux<String> processCreate(QueryParser parser) {
         String collection = parser.parseCollection();
+        Map<String, String> options = parser.parseOptions();
 
-        dataSource.createCollection(collection);
+        if (!options.isEmpty()) {
+            dataSource.createCollection(collection, CollectionOptions.fromMap(options));
+        } else {
+            dataSource.createCollection(collection);
+        }
         return Flux.just(OKAY);
     }
 
@@ -149,8 +173,13 @@ class QueryProcessor {
         String collection = parser.parseCollection();
         String element = parser.parseElement();
         String where = parser.parseWhere();
+        Durability durability = parser.parseDurability();
 
-        dataSource.add(collection, element, where);
+        if (durability != null) {
+            dataSource.add(collection, element, where, durability);
+        } else {
+            dataSource.add(collection, element, where);
+        }
         return Flux.just(OKAY);
     }
 
@@ -158,16 +187,26 @@ class QueryProcessor {
         String collection = parser.parseCollection();
         String element = parser.parseElement();
         String where = parser.parseWhere();
+        Durability durability = parser.parseDurability();
 
-        dataSource.remove(collection, element, where);
+        if (durability != null) {
+            dataSource.remove(collection, element, where, durability);
+        } else {
+            dataSource.remove(collection, element, where);
+        }
         return Flux.just(OKAY);
     }
 
     Flux<String> processCreateIndex(QueryParser parser) {
         String collection = parser.parseCollection();
         String columns = parser.parseColumns();
+        IndexType type = parser.parseIndexType();
 
-        dataSource.createIndex(collection, columns);
+        if (type != null) {
+            dataSource.createIndex(collection, columns, type);
+        } else {
+            dataSource.createIndex(collection, columns);
+        }
         return Flux.just(OKAY);
     }
 
@@ -16,6 +16,9 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import cz.net21.ttulka.thistledb.db.DataSource;
+import cz.net21.ttulka.thistledb.db.DataSourceFile;
+import cz.net21.ttulka.thistledb.db.Durability;
+import cz.net21.ttulka.thistledb.db.ReadMode;
 import lombok.extern.apachecommons.CommonsLog;
 
 /**
@@ -31,6 +34,12 @@ public class Server implements AutoCloseable {
 
     public static final int DEFAULT_MAX_CONNECTION_POOL = 20;
     public static final int DEFAULT_CACHE_EXPIRATION_TIME = 20;
+    public static final ReadMode DEFAULT_READ_MODE = ReadMode.CHANNEL;
+    public static final Durability DEFAULT_DURABILITY = DataSourceFile.DEFAULT_DURABILITY;
+    public static final long DEFAULT_BATCH_INTERVAL = DataSourceFile.DEFAULT_BATCH_INTERVAL;
+    public static final long DEFAULT_MAINTENANCE_RATE = DataSourceFile.DEFAULT_MAINTENANCE_RATE;
+    public static final long DEFAULT_DOCUMENT_CACHE_SIZE = DataSourceFile.DEFAULT_DOCUMENT_CACHE_SIZE;
+    public static final long DEFAULT_COLLECTION_IDLE_TIME = DataSourceFile.DEFAULT_COLLECTION_IDLE_TIME;
 
     protected final int port;
 
@@ -52,13 +61,22 @@ public class Server implements AutoCloseable {
         private int port = DEFAULT_PORT;
         private Path dataDir = DEFAULT_DATA_DIR;
         private int cacheExpirationTime = DEFAULT_CACHE_EXPIRATION_TIME;
+        private ReadMode readMode = DEFAULT_READ_MODE;
+        private Durability durability = DEFAULT_DURABILITY;
+        private long batchInterval = DEFAULT_BATCH_INTERVAL;
+        private long maintenanceRate = DEFAULT_MAINTENANCE_RATE;
+        private long documentCacheSize = DEFAULT_DOCUMENT_CACHE_SIZE;
+        private long collectionIdleTime = DEFAULT_COLLECTION_IDLE_TIME;
 
         private boolean built = false;
 
         public Server build() {
             checkBuilt();
             built = true;
-            return new Server(port, dataDir, cacheExpirationTime);
+            DataSourceFile.setMaintenanceRate(maintenanceRate);
+            DataSourceFile.setDocumentCacheSize(documentCacheSize);
+            DataSourceFile.setCollectionIdleTime(collectionIdleTime);
+            return new Server(port, dataDir, cacheExpirationTime, readMode, durability, batchInterval);
         }
 
         public ServerBuilder port(int port) {
@@ -76,6 +94,45 @@ public class Server implements AutoCloseable {
             return this;
         }
 
+        public ServerBuilder readMode(ReadMode readMode) {
+            this.readMode = readMode;
+            return this;
+        }
+
+        public ServerBuilder durability(Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        public ServerBuilder batchInterval(long batchInterval) {
+            this.batchInterval = batchInterval;
+            return this;
+        }
+
+        /**
+         * @param maintenanceRate the maximal I/O of the background maintenance in bytes per second, zero for no limit
+         */
+        public ServerBuilder maintenanceRate(long maintenanceRate) {
+            this.maintenanceRate = maintenanceRate;
+            return this;
+        }
+
+        /**
+         * @param documentCacheSize the size of the cache of documents read by indexes in bytes, zero for no caching
+         */
+        public ServerBuilder documentCacheSize(long documentCacheSize) {
+            this.documentCacheSize = documentCacheSize;
+            return this;
+        }
+
+        /**
+         * @param collectionIdleTime the time after which collections not accessed are closed in milliseconds, zero for never
+         */
+        public ServerBuilder collectionIdleTime(long collectionIdleTime) {
+            this.collectionIdleTime = collectionIdleTime;
+            return this;
+        }
+
         private void checkBuilt() {
             if (built) {
                 throw new IllegalStateException("Server already built.");
@@ -88,8 +145,16 @@ public class Server implements AutoCloseable {
     }
 
     protected Server(int port, Path dataDir, int cacheExpirationTime) {
+        this(port, dataDir, cacheExpirationTime, DEFAULT_READ_MODE);
+    }
+
+    protected Server(int port, Path dataDir, int cacheExpirationTime, ReadMode readMode) {
+        this(port, dataDir, cacheExpirationTime, readMode, DEFAULT_DURABILITY, DEFAULT_BATCH_INTERVAL);
+    }
+
+    protected Server(int port, Path dataDir, int cacheExpirationTime, ReadMode readMode, Durability durability, long batchInterval) {
         this.port = port;
-        this.dataSource = DataSourceFactory.getDataSource(dataDir, cacheExpirationTime);
+        this.dataSource = DataSourceFactory.getDataSource(dataDir, cacheExpirationTime, readMode, durability, batchInterval);
     }
 
     public int getPort() {
@@ -5,8 +5,11 @@ import java.util.List;
 import org.junit.Test;
 
 import cz.net21.ttulka.thistledb.TestData;
+import cz.net21.ttulka.thistledb.db.Durability;
+import cz.net21.ttulka.thistledb.db.IndexType;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 
@@ -137,6 +140,21 @@ public class QueryParserTest {
         assertThat(QueryParser.CREATE_INDEX.matcher("CREATE INDEX a_2.a_3 ON a_2.a_3").matches(), is(false));
 
         assertThat(QueryParser.CREATE_INDEX.matcher("CREATE INDEX a_2.a_3 ON a_2").matches(), is(true));
+        assertThat(QueryParser.CREATE_INDEX.matcher("CREATE INDEX a_2.a_3 ON a_2 USING BTREE").matches(), is(true));
+        assertThat(QueryParser.CREATE_INDEX.matcher("CREATE INDEX a_2.a_3 ON a_2 using hash").matches(), is(true));
+        assertThat(QueryParser.CREATE_INDEX.matcher("CREATE INDEX a_2.a_3 ON a_2 USING").matches(), is(false));
+        assertThat(QueryParser.CREATE_INDEX.matcher("CREATE INDEX a_2.a_3 ON a_2 USING TREE").matches(), is(false));
+    }
+
+    @Test
+    public void parseIndexTypeTest() {
+        QueryParser parser = new QueryParser("CREATE INDEX a.b ON test USING btree");
+        assertThat(parser.parseCollection(), is("test"));
+        assertThat(parser.parseColumns(), is("a.b"));
+        assertThat(parser.parseIndexType(), is(IndexType.BTREE));
+
+        assertThat(new QueryParser("CREATE INDEX a ON test USING HASH").parseIndexType(), is(IndexType.HASH));
+        assertThat(new QueryParser("CREATE INDEX a ON test").parseIndexType(), is(nullValue()));
     }
 
     @Test
@@ -343,4 +361,41 @@ public class QueryParserTest {
         result = new QueryParser("ALTER test REMOVE a.b WHERE 1=1 AND 2=2").parseElement();
         assertThat(String.join(",", result), is("a.b"));
     }
+
+    @Test
+    public void parseOptionsTest() {
+        QueryParser parser = new QueryParser("CREATE test WITH compression = deflate");
+        assertThat(parser.getCommand(), is(Commands.CREATE));
+        assertThat(parser.parseCollection(), is("test"));
+        assertThat(parser.parseOptions().get("compression"), is("deflate"));
+
+        assertThat(new QueryParser("CREATE test WITH compression=deflate, encoding=binary").parseOptions().get("encoding"), is("binary"));
+        assertThat(new QueryParser("CREATE test WITH a=1, b=2").parseOptions().size(), is(2));
+        assertThat(new QueryParser("CREATE test WITH bloom=patient.id | name, padding=10").parseOptions().get("bloom"), is("patient.id | name"));
+        assertThat(new QueryParser("CREATE test").parseOptions().isEmpty(), is(true));
+
+        assertThat(QueryParser.CREATE.matcher("CREATE test WITH").matches(), is(false));
+        assertThat(QueryParser.CREATE.matcher("CREATE test WITH compression").matches(), is(false));
+    }
+
+    @Test
+    public void parseDurabilityTest() {
+        QueryParser parser = new QueryParser("INSERT INTO test VALUES {\"a\":1} WITH DURABILITY SYNC;");
+        assertThat(parser.getCommand(), is(Commands.INSERT));
+        assertThat(parser.parseDurability(), is(Durability.SYNC));
+        assertThat(parser.parseValues().get(0), is("{\"a\":1}"));
+
+        parser = new QueryParser("DELETE FROM test WHERE a=1 with durability none");
+        assertThat(parser.parseDurability(), is(Durability.NONE));
+        assertThat(parser.parseWhere(), is("a=1"));
+
+        assertThat(new QueryParser("UPDATE test SET a=1 WITH DURABILITY BATCHED").parseDurability(), is(Durability.BATCHED));
+        assertThat(new QueryParser("ALTER test ADD a.b WHERE 1=1 WITH DURABILITY SYNC").parseElement(), is("a.b"));
+        assertThat(new QueryParser("DELETE FROM test").parseDurability(), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseDurabilityForReadTest() {
+        new QueryParser("SELECT * FROM test WITH DURABILITY SYNC");
+    }
 }
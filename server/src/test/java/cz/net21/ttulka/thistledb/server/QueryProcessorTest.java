@@ -14,6 +14,7 @@ import org.mockito.runners.MockitoJUnitRunner;
 
 import cz.net21.ttulka.thistledb.TestData;
 import cz.net21.ttulka.thistledb.db.DataSource;
+import cz.net21.ttulka.thistledb.db.IndexType;
 import reactor.core.publisher.Flux;
 
 import static org.hamcrest.CoreMatchers.is;
@@ -155,6 +156,19 @@ public class QueryProcessorTest {
         assertThat(out.get(2), is(QueryProcessor.FINISHED));
     }
 
+    @Test
+    public void createIndexUsingTypeTest() {
+        List<String> out = new ArrayList<>();
+        Consumer<String> writer = mockWriter(out);
+
+        queryProcessor.process("CREATE INDEX a ON test USING BTREE", writer);
+
+        verify(dataSource).createIndex("test", "a", IndexType.BTREE);
+
+        assertThat(out.size(), is(3));
+        assertThat(out.get(1), is(QueryProcessor.OKAY));
+    }
+
     @Test
     public void dropIndexTest() {
         List<String> out = new ArrayList<>();
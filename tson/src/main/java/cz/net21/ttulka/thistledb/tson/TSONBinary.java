@@ -0,0 +1,526 @@
+package cz.net21.ttulka.thistledb.tson;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Binary encoding of a TSON object.
+ * <p>
+ * An encoded document starts with a dictionary of keys, every key is stored only once and referenced by its number.
+ * The dictionary is followed by the root object. Every value starts with a type byte:
+ * <ul>
+ * <li>an object has the count of its fields and a table of the fields `[short key][int offset]` in the original order,
+ * offsets are relative to the start of the object,</li>
+ * <li>an array has the count of its elements and a table of their offsets,</li>
+ * <li>numbers are stored typed as int, long or double, other numbers as text,</li>
+ * <li>strings are stored as UTF-8 with their length.</li>
+ * </ul>
+ * Single values can be found by a path in an encoded document without decoding the rest of it.
+ *
+ * @author ttulka
+ */
+public class TSONBinary {
+
+    static final byte VERSION = 1;
+
+    static final byte NULL = 0;
+    static final byte FALSE = 1;
+    static final byte TRUE = 2;
+    static final byte INT = 3;
+    static final byte LONG = 4;
+    static final byte DOUBLE = 5;
+    static final byte NUMBER = 6;
+    static final byte STRING = 7;
+    static final byte OBJECT = 8;
+    static final byte ARRAY = 9;
+
+    private static final int FIELD_ENTRY_SIZE = Short.BYTES + Integer.BYTES;
+
+    private final ByteBuffer data;
+
+    // position of the root object
+    private final int root;
+
+    // keys decoded on demand
+    private String[] keyNames;
+    private String[] quotedKeyNames;
+
+    /**
+     * Creates a view of an encoded document. The bytes are not copied.
+     *
+     * @param data the encoded document from its position to its limit
+     * @throws JSONException if the data are not an encoded document
+     */
+    public TSONBinary(ByteBuffer data) throws JSONException {
+        this.data = data.slice();
+        if (this.data.remaining() < 1 + Short.BYTES || this.data.get(0) != VERSION) {
+            throw new JSONException("Not a binary TSON document.");
+        }
+        int position = 1 + Short.BYTES;
+        int keys = this.data.getShort(1);
+        for (int i = 0; i < keys; i++) {
+            position += Short.BYTES + this.data.getShort(position);
+        }
+        this.root = position;
+    }
+
+    /**
+     * Encodes the object.
+     *
+     * @param tson the object
+     * @return the encoded document
+     */
+    public static byte[] encode(TSONObject tson) {
+        Encoder encoder = new Encoder();
+        encoder.collectKeys(tson);
+        return encoder.encode(tson);
+    }
+
+    /**
+     * Finds a value by the path without decoding the whole document.
+     *
+     * @param path the path with comma-separated levels, eg.: "addressBook.person.name"
+     * @return the value or null, objects and arrays are decoded
+     * @see TSONObject#findByPath(String)
+     */
+    public Object findByPath(String path) {
+        if (path == null) {
+            return null;
+        }
+        int position = root;
+        for (String keyPart : path.split("\\.")) {
+            if (data.get(position) != OBJECT) {
+                return null;
+            }
+            int key = keyNumber(keyPart);
+            if (key == -1) {
+                return null;
+            }
+            position = field(position, key);
+            if (position == -1) {
+                return null;
+            }
+        }
+        return decode(position);
+    }
+
+    /**
+     * Decodes the whole document.
+     *
+     * @return the object
+     */
+    public TSONObject toTSONObject() {
+        return (TSONObject) decode(root);
+    }
+
+    /**
+     * Writes the document as JSON text directly from the encoded data.
+     *
+     * @return the JSON text, the same as of the decoded object
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(data.remaining() + 16);
+        write(sb, root);
+        return sb.toString();
+    }
+
+    private int keyNumber(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int keys = data.getShort(1);
+        int position = 1 + Short.BYTES;
+        for (int i = 0; i < keys; i++) {
+            int length = data.getShort(position);
+            if (length == bytes.length && equals(bytes, position + Short.BYTES)) {
+                return i;
+            }
+            position += Short.BYTES + length;
+        }
+        return -1;
+    }
+
+    private boolean equals(byte[] bytes, int position) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (data.get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String key(int number) {
+        if (keyNames == null) {
+            keyNames = new String[data.getShort(1)];
+            int position = 1 + Short.BYTES;
+            for (int i = 0; i < keyNames.length; i++) {
+                int length = data.getShort(position);
+                keyNames[i] = string(position + Short.BYTES, length);
+                position += Short.BYTES + length;
+            }
+        }
+        return keyNames[number];
+    }
+
+    private String quotedKey(int number) {
+        if (quotedKeyNames == null) {
+            quotedKeyNames = new String[data.getShort(1)];
+        }
+        if (quotedKeyNames[number] == null) {
+            StringBuilder sb = new StringBuilder();
+            quote(key(number), sb);
+            quotedKeyNames[number] = sb.append(':').toString();
+        }
+        return quotedKeyNames[number];
+    }
+
+    /**
+     * @return the position of the value of the field in the object, or -1 if there is no such field
+     */
+    private int field(int object, int key) {
+        int count = data.getInt(object + 1);
+        int table = object + 1 + Integer.BYTES;
+        for (int i = 0; i < count; i++) {
+            int entry = table + i * FIELD_ENTRY_SIZE;
+            if (data.getShort(entry) == key) {
+                return object + data.getInt(entry + Short.BYTES);
+            }
+        }
+        return -1;
+    }
+
+    private String string(int position, int length) {
+        if (data.hasArray()) {
+            return new String(data.array(), data.arrayOffset() + position, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer duplicate = data.duplicate();
+        duplicate.position(position);
+        duplicate.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Object decode(int position) {
+        byte type = data.get(position);
+        switch (type) {
+            case NULL:
+                return JSONObject.NULL;
+            case FALSE:
+                return Boolean.FALSE;
+            case TRUE:
+                return Boolean.TRUE;
+            case INT:
+                return data.getInt(position + 1);
+            case LONG:
+                return data.getLong(position + 1);
+            case DOUBLE:
+                return data.getDouble(position + 1);
+            case NUMBER:
+                return new BigDecimal(string(position + 1 + Integer.BYTES, data.getInt(position + 1)));
+            case STRING:
+                return string(position + 1 + Integer.BYTES, data.getInt(position + 1));
+            case OBJECT: {
+                TSONObject tson = new TSONObject();
+                int count = data.getInt(position + 1);
+                int table = position + 1 + Integer.BYTES;
+                for (int i = 0; i < count; i++) {
+                    int entry = table + i * FIELD_ENTRY_SIZE;
+                    tson.put(key(data.getShort(entry)), decode(position + data.getInt(entry + Short.BYTES)));
+                }
+                return tson;
+            }
+            case ARRAY: {
+                JSONArray array = new JSONArray();
+                int count = data.getInt(position + 1);
+                int table = position + 1 + Integer.BYTES;
+                for (int i = 0; i < count; i++) {
+                    array.put(decode(position + data.getInt(table + i * Integer.BYTES)));
+                }
+                return array;
+            }
+            default:
+                throw new JSONException("Unknown type of a binary TSON value: " + type);
+        }
+    }
+
+    private void write(StringBuilder sb, int position) {
+        byte type = data.get(position);
+        switch (type) {
+            case NULL:
+                sb.append("null");
+                break;
+            case FALSE:
+                sb.append("false");
+                break;
+            case TRUE:
+                sb.append("true");
+                break;
+            case INT:
+                sb.append(data.getInt(position + 1));
+                break;
+            case LONG:
+                sb.append(data.getLong(position + 1));
+                break;
+            case DOUBLE:
+            case NUMBER:
+                sb.append(JSONObject.numberToString((Number) decode(position)));
+                break;
+            case STRING:
+                quote((String) decode(position), sb);
+                break;
+            case OBJECT: {
+                sb.append('{');
+                int count = data.getInt(position + 1);
+                int table = position + 1 + Integer.BYTES;
+                for (int i = 0; i < count; i++) {
+                    int entry = table + i * FIELD_ENTRY_SIZE;
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(quotedKey(data.getShort(entry)));
+                    write(sb, position + data.getInt(entry + Short.BYTES));
+                }
+                sb.append('}');
+                break;
+            }
+            case ARRAY: {
+                sb.append('[');
+                int count = data.getInt(position + 1);
+                int table = position + 1 + Integer.BYTES;
+                for (int i = 0; i < count; i++) {
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    write(sb, position + data.getInt(table + i * Integer.BYTES));
+                }
+                sb.append(']');
+                break;
+            }
+            default:
+                throw new JSONException("Unknown type of a binary TSON value: " + type);
+        }
+    }
+
+    /**
+     * Appends the string quoted and escaped the same way as {@link JSONObject#quote(String)} does.
+     */
+    private static void quote(String string, StringBuilder sb) {
+        sb.append('"');
+        char previous = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                    sb.append('\\').append(c);
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        sb.append('\\');
+                    }
+                    sb.append(c);
+                    break;
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                        String hex = Integer.toHexString(c);
+                        sb.append("\\u").append("0000", 0, 4 - hex.length()).append(hex);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+            previous = c;
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Encodes an object into a growing buffer.
+     */
+    private static class Encoder {
+
+        private final Map<String, Integer> keys = new HashMap<>();
+        private final List<byte[]> keyBytes = new ArrayList<>();
+
+        private byte[] buffer = new byte[256];
+        private int length = 0;
+
+        void collectKeys(Object value) {
+            if (value instanceof JSONObject) {
+                JSONObject object = (JSONObject) value;
+                for (String key : object.keySet()) {
+                    if (!keys.containsKey(key)) {
+                        if (keys.size() == Short.MAX_VALUE) {
+                            throw new JSONException("Too many distinct keys in a document.");
+                        }
+                        keys.put(key, keys.size());
+                        keyBytes.add(key.getBytes(StandardCharsets.UTF_8));
+                    }
+                    collectKeys(object.opt(key));
+                }
+            } else if (value instanceof JSONArray) {
+                for (Object element : (JSONArray) value) {
+                    collectKeys(element);
+                }
+            }
+        }
+
+        byte[] encode(TSONObject tson) {
+            put(VERSION);
+            putShort(keyBytes.size());
+            for (byte[] key : keyBytes) {
+                if (key.length > Short.MAX_VALUE) {
+                    throw new JSONException("Too long key in a document.");
+                }
+                putShort(key.length);
+                put(key);
+            }
+            putValue(tson);
+            return Arrays.copyOf(buffer, length);
+        }
+
+        private void putValue(Object value) {
+            if (value == null || JSONObject.NULL.equals(value)) {
+                put(NULL);
+
+            } else if (value instanceof Boolean) {
+                put((Boolean) value ? TRUE : FALSE);
+
+            } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                put(INT);
+                putInt(((Number) value).intValue());
+
+            } else if (value instanceof Long) {
+                put(LONG);
+                putLong((Long) value);
+
+            } else if (value instanceof Double || value instanceof Float) {
+                put(DOUBLE);
+                putLong(Double.doubleToRawLongBits(((Number) value).doubleValue()));
+
+            } else if (value instanceof Number) {
+                put(NUMBER);
+                putString(JSONObject.numberToString((Number) value));
+
+            } else if (value instanceof JSONObject) {
+                putObject((JSONObject) value);
+
+            } else if (value instanceof JSONArray) {
+                putArray((JSONArray) value);
+
+            } else {
+                put(STRING);
+                putString(value.toString());
+            }
+        }
+
+        private void putObject(JSONObject object) {
+            int start = length;
+            put(OBJECT);
+            putInt(object.length());
+            int table = length;
+            length += object.length() * FIELD_ENTRY_SIZE;
+            ensure(0);
+
+            for (String key : object.keySet()) {
+                setShort(table, keys.get(key));
+                setInt(table + Short.BYTES, length - start);
+                table += FIELD_ENTRY_SIZE;
+
+                putValue(object.opt(key));
+            }
+        }
+
+        private void putArray(JSONArray array) {
+            int start = length;
+            put(ARRAY);
+            putInt(array.length());
+            int table = length;
+            length += array.length() * Integer.BYTES;
+            ensure(0);
+
+            for (Object element : array) {
+                setInt(table, length - start);
+                table += Integer.BYTES;
+
+                putValue(element);
+            }
+        }
+
+        private void putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            put(bytes);
+        }
+
+        private void ensure(int bytes) {
+            if (length + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(length + bytes, buffer.length * 2));
+            }
+        }
+
+        private void put(byte value) {
+            ensure(1);
+            buffer[length++] = value;
+        }
+
+        private void put(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+
+        private void putShort(int value) {
+            ensure(Short.BYTES);
+            setShort(length, value);
+            length += Short.BYTES;
+        }
+
+        private void putInt(int value) {
+            ensure(Integer.BYTES);
+            setInt(length, value);
+            length += Integer.BYTES;
+        }
+
+        private void putLong(long value) {
+            ensure(Long.BYTES);
+            ByteBuffer.wrap(buffer, length, Long.BYTES).putLong(value);
+            length += Long.BYTES;
+        }
+
+        private void setShort(int position, int value) {
+            buffer[position] = (byte) (value >>> 8);
+            buffer[position + 1] = (byte) value;
+        }
+
+        private void setInt(int position, int value) {
+            buffer[position] = (byte) (value >>> 24);
+            buffer[position + 1] = (byte) (value >>> 16);
+            buffer[position + 2] = (byte) (value >>> 8);
+            buffer[position + 3] = (byte) value;
+        }
+    }
+}
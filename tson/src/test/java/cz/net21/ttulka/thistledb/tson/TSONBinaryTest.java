@@ -0,0 +1,115 @@
+package cz.net21.ttulka.thistledb.tson;
+
+import java.nio.ByteBuffer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author ttulka
+ */
+public class TSONBinaryTest {
+
+    private static final String JSON = "{" +
+                                       "\"id\":123," +
+                                       "\"big\":12345678901," +
+                                       "\"price\":1.5," +
+                                       "\"name\":\"Žluťoučký \\\"kůň\\\"\"," +
+                                       "\"active\":true," +
+                                       "\"deleted\":false," +
+                                       "\"note\":null," +
+                                       "\"text\":\"a\\nb\\tc\\\\d\"," +
+                                       "\"person\":{\"id\":1,\"name\":\"John\",\"address\":{\"city\":\"Prague\"}}," +
+                                       "\"tags\":[\"a\",1,{\"id\":2,\"name\":\"nested\"},[]]," +
+                                       "\"empty\":{}" +
+                                       "}";
+
+    private TSONBinary binary(String json) {
+        return new TSONBinary(ByteBuffer.wrap(TSONBinary.encode(new TSONObject(json))));
+    }
+
+    @Test
+    public void toStringTest() {
+        assertThat(binary(JSON).toString(), is(new TSONObject(JSON).toString()));
+        assertThat(binary("{}").toString(), is("{}"));
+    }
+
+    @Test
+    public void toTSONObjectTest() {
+        TSONObject tson = binary(JSON).toTSONObject();
+
+        assertThat(tson.toString(), is(new TSONObject(JSON).toString()));
+        assertThat(tson.get("id"), instanceOf(Integer.class));
+        assertThat(tson.get("big"), instanceOf(Long.class));
+        assertThat(tson.get("price"), instanceOf(Double.class));
+        assertThat(tson.get("person"), instanceOf(TSONObject.class));
+    }
+
+    @Test
+    public void findByPathTest() {
+        TSONBinary binary = binary(JSON);
+
+        assertThat(binary.findByPath("id"), is(123));
+        assertThat(binary.findByPath("big"), is(12345678901L));
+        assertThat(binary.findByPath("price"), is(1.5));
+        assertThat(binary.findByPath("name"), is("Žluťoučký \"kůň\""));
+        assertThat(binary.findByPath("active"), is(true));
+        assertThat(binary.findByPath("note"), is(JSONObject.NULL));
+        assertThat(binary.findByPath("person.name"), is("John"));
+        assertThat(binary.findByPath("person.address.city"), is("Prague"));
+        assertThat(binary.findByPath("person.address").toString(), is("{\"city\":\"Prague\"}"));
+        assertThat(binary.findByPath("tags"), instanceOf(JSONArray.class));
+        assertThat(((JSONArray) binary.findByPath("tags")).length(), is(4));
+
+        assertThat(binary.findByPath("xxx"), is(nullValue()));
+        assertThat(binary.findByPath("id.xxx"), is(nullValue()));
+        assertThat(binary.findByPath("person.xxx"), is(nullValue()));
+        assertThat(binary.findByPath("address.city"), is(nullValue()));
+        assertThat(binary.findByPath(null), is(nullValue()));
+    }
+
+    @Test
+    public void findByPathSameAsTSONObjectTest() {
+        TSONObject tson = new TSONObject(JSON);
+        TSONBinary binary = binary(JSON);
+
+        for (String path : new String[]{"id", "person", "person.id", "tags", "empty", "person.address.city"}) {
+            assertThat(String.valueOf(binary.findByPath(path)), is(String.valueOf(tson.findByPath(path))));
+        }
+    }
+
+    @Test
+    public void keysAreStoredOnceTest() {
+        StringBuilder sb = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < 100; i++) {
+            sb.append(i > 0 ? "," : "").append("{\"a_rather_long_identifier\":").append(i).append("}");
+        }
+        sb.append("]}");
+
+        byte[] encoded = TSONBinary.encode(new TSONObject(sb.toString()));
+        assertThat("Keys should be stored only once.", encoded.length < sb.length(), is(true));
+    }
+
+    @Test
+    public void slicedBufferTest() {
+        byte[] encoded = TSONBinary.encode(new TSONObject(JSON));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length + 10);
+        buffer.position(5);
+        buffer.put(encoded);
+        buffer.position(5).limit(5 + encoded.length);
+
+        assertThat(new TSONBinary(buffer.asReadOnlyBuffer()).findByPath("person.name"), is("John"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void invalidDataTest() {
+        new TSONBinary(ByteBuffer.wrap("{\"a\":1}".getBytes()));
+    }
+}